@@ -0,0 +1,154 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.embl.mobie.io.ImageDataFormat;
+import org.embl.mobie.io.n5.util.N5DataTypeSize;
+import org.embl.mobie.io.ome.zarr.readers.N5OmeZarrReader;
+import org.embl.mobie.io.ome.zarr.util.ZarrAxes;
+import org.embl.mobie.io.ome.zarr.util.ZarrDatasetAttributes;
+import org.embl.mobie.io.ome.zarr.writers.N5OMEZarrWriter;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * Compares the codecs for OME-Zarr chunks: the chunks of the full
+ * resolution level of a noisy ramp image are written with each codec, and
+ * decoded from memory, so that the numbers do not depend on the file
+ * system. The compression ratio of each codec is printed during setup, the
+ * decode speed is the decodedBytes counter, in bytes of decoded pixels per
+ * second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+    private static final String DATASET = "s0";
+
+    @Param({"8", "16"})
+    public int bitDepth;
+
+    @Param({"raw", "gzip", "blosc-lz4-5", "blosc-lz4-5-noshuffle", "blosc-zstd-1", "blosc-zstd-5"})
+    public String compression;
+
+    private File directory;
+    private N5OmeZarrReader reader;
+    private ZarrDatasetAttributes attributes;
+    private final List<byte[]> chunks = new ArrayList<>();
+    private final List<long[]> gridPositions = new ArrayList<>();
+    private long decodedBytesPerChunkSet;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        public long decodedBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            decodedBytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = SyntheticContainers.createTempDirectory();
+        final ImagePlus imp = SyntheticContainers.createImage(bitDepth, ZarrAxes.ZYX);
+        // a ramp alone compresses far better than real images
+        final ImageStack stack = imp.getStack();
+        for (int i = 1; i <= stack.getSize(); ++i)
+            stack.getProcessor(i).noise(bitDepth == 8 ? 8 : 200);
+        final String zarrPath = SyntheticContainers.write(imp, ImageDataFormat.OmeZarr, 64, compression, directory);
+
+        reader = new N5OmeZarrReader(zarrPath);
+        attributes = (ZarrDatasetAttributes) reader.getDatasetAttributes(DATASET);
+        final long[] dimensions = attributes.getDimensions();
+        final int[] blockSize = attributes.getBlockSize();
+        final long[] numChunks = new long[dimensions.length];
+        for (int d = 0; d < dimensions.length; ++d)
+            numChunks[d] = (dimensions[d] + blockSize[d] - 1) / blockSize[d];
+
+        long encodedBytes = 0;
+        final long[] position = new long[dimensions.length];
+        while (position[dimensions.length - 1] < numChunks[dimensions.length - 1]) {
+            final DataBlock<?> block = reader.readBlock(DATASET, attributes, position);
+            final byte[] chunk = N5OMEZarrWriter.encodeBlock(attributes, block);
+            chunks.add(chunk);
+            gridPositions.add(position.clone());
+            encodedBytes += chunk.length;
+            decodedBytesPerChunkSet += (long) block.getNumElements() * N5DataTypeSize.getNumBytesPerElement(attributes.getDataType());
+            for (int d = 0; d < dimensions.length; ++d) {
+                if (++position[d] < numChunks[d] || d == dimensions.length - 1)
+                    break;
+                position[d] = 0;
+            }
+        }
+        System.out.printf("%n%s, %d bit: %d chunks, compression ratio %.2f%n",
+            compression, bitDepth, chunks.size(), (double) decodedBytesPerChunkSet / encodedBytes);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        SyntheticContainers.delete(directory);
+    }
+
+    @Benchmark
+    public int decode(final Counters counters) throws IOException {
+        int numElements = 0;
+        for (int i = 0; i < chunks.size(); ++i)
+            numElements += reader.readBlock(new ByteArrayInputStream(chunks.get(i)), attributes, gridPositions.get(i)).getNumElements();
+        counters.decodedBytes += decodedBytesPerChunkSet;
+        return numElements;
+    }
+}
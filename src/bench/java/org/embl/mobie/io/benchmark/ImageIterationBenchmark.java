@@ -0,0 +1,128 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.embl.mobie.io.ImageDataFormat;
+import org.embl.mobie.io.SpimDataOpener;
+import org.embl.mobie.io.ome.zarr.loaders.N5OMEZarrImageLoader;
+import org.embl.mobie.io.ome.zarr.util.ZarrAxes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bdv.img.n5.N5ImageLoader;
+import mpicbg.spim.data.SpimDataException;
+import mpicbg.spim.data.generic.AbstractSpimData;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Benchmarks opening a container and iterating over all pixels of the full
+ * resolution image of the first setup, for OME-Zarr and BDV-N5. Every
+ * invocation opens the container again, so that all cells are read from
+ * disk rather than from the cell cache of the previous invocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ImageIterationBenchmark {
+    @Param({"OmeZarr", "BdvN5"})
+    public String format;
+
+    @Param({"8", "16", "32"})
+    public int bitDepth;
+
+    @Param({"32", "64"})
+    public int chunkSize;
+
+    @Param({"raw", "gzip"})
+    public String compression;
+
+    private File directory;
+    private ImageDataFormat imageDataFormat;
+    private String path;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = SyntheticContainers.createTempDirectory();
+        imageDataFormat = ImageDataFormat.valueOf(format);
+        path = SyntheticContainers.write(SyntheticContainers.createImage(bitDepth, ZarrAxes.ZYX), imageDataFormat, chunkSize, compression, directory);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        SyntheticContainers.delete(directory);
+    }
+
+    @Benchmark
+    public double iterateImage() throws SpimDataException {
+        final AbstractSpimData<?> spimData = new SpimDataOpener().open(path, imageDataFormat);
+        try {
+            final RandomAccessibleInterval<?> image = spimData.getSequenceDescription().getImgLoader().getSetupImgLoader(0).getImage(0);
+            return sum(image);
+        } finally {
+            close(spimData);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static double sum(final RandomAccessibleInterval<?> image) {
+        double sum = 0;
+        for (final RealType<?> pixel : Views.flatIterable((RandomAccessibleInterval<? extends RealType<?>>) image))
+            sum += pixel.getRealDouble();
+        return sum;
+    }
+
+    // the loaders hold fetcher threads and open files until they are closed
+    private static void close(final AbstractSpimData<?> spimData) {
+        final Object imgLoader = spimData.getSequenceDescription().getImgLoader();
+        if (imgLoader instanceof N5OMEZarrImageLoader)
+            ((N5OMEZarrImageLoader) imgLoader).close();
+        else if (imgLoader instanceof N5ImageLoader)
+            ((N5ImageLoader) imgLoader).close();
+    }
+}
@@ -0,0 +1,135 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.embl.mobie.io.ImageDataFormat;
+import org.embl.mobie.io.n5.util.DownsampleBlock;
+import org.embl.mobie.io.n5.writers.WriteImagePlusToN5;
+import org.embl.mobie.io.ome.zarr.util.ZarrAxes;
+import org.embl.mobie.io.ome.zarr.writers.CompressionPolicy;
+import org.embl.mobie.io.ome.zarr.writers.imageplus.WriteImagePlusToN5OmeZarr;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.RawCompression;
+
+import ij.IJ;
+import ij.ImagePlus;
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * Writes the synthetic containers the benchmarks read from: an 8, 16 or
+ * 32-bit ramp image of {@link #WIDTH} x {@link #HEIGHT} x {@link #DEPTH}
+ * pixels with three resolution levels, as OME-Zarr or BDV-N5. The width
+ * is not a multiple of the chunk sizes, so that there are edge cells.
+ */
+public class SyntheticContainers {
+    public static final int WIDTH = 250;
+    public static final int HEIGHT = 256;
+    public static final int DEPTH = 64;
+
+    static final int[][] RESOLUTIONS = new int[][]{{1, 1, 1}, {2, 2, 2}, {4, 4, 4}};
+
+    /**
+     * @param bitDepth 8, 16 or 32
+     * @param axes ZYX, CZYX, TZYX or TCZYX; channels and timepoints get two entries each
+     * @return the ramp image
+     */
+    public static ImagePlus createImage(final int bitDepth, final ZarrAxes axes) {
+        final int channels = axes.hasChannels() ? 2 : 1;
+        final int frames = axes.hasTimepoints() ? 2 : 1;
+        final ImagePlus imp = IJ.createImage("ramp", bitDepth + "-bit ramp", WIDTH, HEIGHT, channels, DEPTH, frames);
+        imp.getCalibration().setUnit("micrometer");
+        return imp;
+    }
+
+    /**
+     * @param compression "raw", "gzip", or "blosc-CODEC-LEVEL" with byte
+     *                    shuffle, e.g. "blosc-zstd-5", and "blosc-CODEC-LEVEL-noshuffle"
+     *                    without
+     */
+    public static Compression createCompression(final String compression) {
+        switch (compression) {
+            case "raw":
+                return new RawCompression();
+            case "gzip":
+                return new GzipCompression();
+            default:
+                final String[] parts = compression.split("-");
+                if (parts[0].equals("blosc") && (parts.length == 3 || parts.length == 4 && parts[3].equals("noshuffle")))
+                    return CompressionPolicy.blosc(parts[1], Integer.parseInt(parts[2]), parts.length == 3);
+                throw new IllegalArgumentException("Unsupported compression: " + compression);
+        }
+    }
+
+    /**
+     * Writes imp into a new directory below parent.
+     *
+     * @return the path to open with {@link org.embl.mobie.io.SpimDataOpener}:
+     * the zarr directory for OME-Zarr, the xml file for BDV-N5
+     */
+    public static String write(final ImagePlus imp, final ImageDataFormat format, final int chunkSize, final String compression, final File parent) {
+        final int[][] subdivisions = new int[RESOLUTIONS.length][];
+        for (int level = 0; level < RESOLUTIONS.length; level++)
+            subdivisions[level] = new int[]{chunkSize, chunkSize, chunkSize};
+
+        final AffineTransform3D sourceTransform = new AffineTransform3D();
+        final DownsampleBlock.DownsamplingMethod downsamplingMethod = DownsampleBlock.DownsamplingMethod.Average;
+        switch (format) {
+            case OmeZarr:
+                final String zarrPath = new File(parent, "image.ome.zarr").getAbsolutePath();
+                new WriteImagePlusToN5OmeZarr().export(imp, RESOLUTIONS, subdivisions, zarrPath, sourceTransform, downsamplingMethod, createCompression(compression));
+                return zarrPath;
+            case BdvN5:
+                final String xmlPath = new File(parent, "image.xml").getAbsolutePath();
+                new WriteImagePlusToN5().export(imp, RESOLUTIONS, subdivisions, xmlPath, sourceTransform, downsamplingMethod, createCompression(compression));
+                return xmlPath;
+            default:
+                throw new UnsupportedOperationException("Unsupported format: " + format);
+        }
+    }
+
+    public static File createTempDirectory() throws IOException {
+        return Files.createTempDirectory("mobie-io-benchmark").toFile();
+    }
+
+    public static void delete(final File directory) throws IOException {
+        if (directory == null || !directory.exists())
+            return;
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.embl.mobie.io.ImageDataFormat;
+import org.embl.mobie.io.ome.zarr.readers.N5OmeZarrReader;
+import org.embl.mobie.io.ome.zarr.util.N5OMEZarrCacheArrayLoader;
+import org.embl.mobie.io.ome.zarr.util.ZarrArrayCreator;
+import org.embl.mobie.io.ome.zarr.util.ZarrAxes;
+import org.embl.mobie.io.ome.zarr.util.ZarrMetadataCache;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.imglib2.img.cell.CellGrid;
+
+/**
+ * Benchmarks the steps of reading a single cell of the full resolution
+ * level of an OME-Zarr container: reading and decoding the chunk, turning
+ * the chunk into the cell array for an interior cell (which can use the
+ * chunk data as is) and for an edge cell (which needs a copy), and reading
+ * the dataset attributes with and without a {@link ZarrMetadataCache}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ZarrReadBenchmark {
+    private static final String DATASET = "s0";
+
+    @Param({"8", "16", "32"})
+    public int bitDepth;
+
+    @Param({"32", "64"})
+    public int chunkSize;
+
+    @Param({"raw", "gzip"})
+    public String compression;
+
+    @Param({"ZYX", "CZYX", "TCZYX"})
+    public String axes;
+
+    private File directory;
+    private N5OmeZarrReader reader;
+    private N5OmeZarrReader cachingReader;
+    private N5OMEZarrCacheArrayLoader<?> loader;
+    private ZarrArrayCreator<?, ?> arrayCreator;
+    private long[] interiorPosition;
+    private int[] interiorCellDims;
+    private long[] edgePosition;
+    private DataBlock<?> interiorBlock;
+    private DataBlock<?> edgeBlock;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        final ZarrAxes zarrAxes = ZarrAxes.valueOf(axes);
+        directory = SyntheticContainers.createTempDirectory();
+        final String zarrPath = SyntheticContainers.write(SyntheticContainers.createImage(bitDepth, zarrAxes), ImageDataFormat.OmeZarr, chunkSize, compression, directory);
+
+        reader = new N5OmeZarrReader(zarrPath);
+        cachingReader = new N5OmeZarrReader(zarrPath);
+        cachingReader.setMetadataCache(new ZarrMetadataCache());
+
+        final DatasetAttributes attributes = reader.getDatasetAttributes(DATASET);
+        final CellGrid grid = createGrid(attributes, zarrAxes);
+        loader = new N5OMEZarrCacheArrayLoader<>(reader, DATASET, 0, 0, attributes, grid, zarrAxes);
+        arrayCreator = new ZarrArrayCreator<>(grid, attributes.getDataType(), zarrAxes);
+
+        interiorPosition = new long[]{0, 0, 0};
+        interiorCellDims = new int[3];
+        grid.cellDimensions(interiorCellDims);
+        edgePosition = new long[]{grid.getGridDimensions()[0] - 1, 0, 0};
+        interiorBlock = reader.readBlock(DATASET, attributes, toChunkIndices(interiorPosition, zarrAxes));
+        edgeBlock = reader.readBlock(DATASET, attributes, toChunkIndices(edgePosition, zarrAxes));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        SyntheticContainers.delete(directory);
+    }
+
+    @Benchmark
+    public Object loadArray() throws IOException {
+        return loader.loadArray(interiorPosition, interiorCellDims);
+    }
+
+    @Benchmark
+    public Object createInteriorArray() {
+        return arrayCreator.createArray(interiorBlock, interiorPosition);
+    }
+
+    @Benchmark
+    public Object createEdgeArray() {
+        return arrayCreator.createArray(edgeBlock, edgePosition);
+    }
+
+    @Benchmark
+    public DatasetAttributes getDatasetAttributes() throws IOException {
+        return reader.getDatasetAttributes(DATASET);
+    }
+
+    @Benchmark
+    public DatasetAttributes getCachedDatasetAttributes() throws IOException {
+        return cachingReader.getDatasetAttributes(DATASET);
+    }
+
+    // same as N5OMEZarrImageLoader: the spatial dimensions in XYZ order
+    private static CellGrid createGrid(final DatasetAttributes attributes, final ZarrAxes zarrAxes) {
+        final long[] dimensions = new long[3];
+        Arrays.fill(dimensions, 1);
+        for (Map.Entry<Integer, Integer> entry : zarrAxes.spatialToZarr().entrySet())
+            dimensions[entry.getKey()] = attributes.getDimensions()[entry.getValue()];
+        final int[] cellDimensions = Arrays.copyOf(attributes.getBlockSize(), 3);
+        return new CellGrid(dimensions, cellDimensions);
+    }
+
+    private static long[] toChunkIndices(final long[] gridPosition, final ZarrAxes zarrAxes) {
+        final long[] chunkIndices = new long[zarrAxes.getNumDimension()];
+        for (Map.Entry<Integer, Integer> entry : zarrAxes.spatialToZarr().entrySet())
+            chunkIndices[entry.getValue()] = gridPosition[entry.getKey()];
+        return chunkIndices;
+    }
+}
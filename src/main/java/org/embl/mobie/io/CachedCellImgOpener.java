@@ -9,6 +9,7 @@ import net.imglib2.cache.img.CachedCellImg;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.util.Util;
+import org.embl.mobie.io.util.SharedFetchQueue;
 import org.janelia.saalfeldlab.n5.hdf5.N5HDF5Reader;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 
@@ -73,15 +74,8 @@ public class CachedCellImgOpener< T extends NativeType< T > & RealType< T > >
 		type = Util.getTypeFromInterval( channels.get( 0 ) );
 		final NativeType< ? > volatileTypeForType = VolatileTypeMatcher.getVolatileTypeForType( type );
 
-		RandomAccessibleInterval< Volatile< T > > vRAI;
-		if ( sharedQueue == null )
-		{
-			vRAI = VolatileViews.wrapAsVolatile( cachedCellImg );
-		}
-		else
-		{
-			vRAI = VolatileViews.wrapAsVolatile( cachedCellImg, sharedQueue );
-		}
+		final SharedQueue queue = sharedQueue == null ? SharedFetchQueue.get() : sharedQueue;
+		final RandomAccessibleInterval< Volatile< T > > vRAI = VolatileViews.wrapAsVolatile( cachedCellImg, queue );
 		volatileChannels = Axes.getChannels( vRAI, axes );
 
 
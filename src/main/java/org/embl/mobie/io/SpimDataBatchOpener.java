@@ -0,0 +1,129 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.embl.mobie.io.util.BoundedRequestExecutor;
+import org.embl.mobie.io.util.XmlDocumentCache;
+
+import bdv.cache.SharedQueue;
+import mpicbg.spim.data.generic.AbstractSpimData;
+
+/**
+ * Opens many images, e.g. all sources of a MoBIE project, in the
+ * background with a bounded number of images being opened at the same
+ * time. The viewer can show each image as soon as its future completes,
+ * while the others are still loading.
+ * <p>
+ * Xml documents that are needed by several images are read once, see
+ * {@link XmlDocumentCache}.
+ */
+public class SpimDataBatchOpener {
+
+    public static final int DEFAULT_MAX_CONCURRENT_OPENS = 8;
+
+    /**
+     * An image to open.
+     */
+    public static class OpenRequest {
+        private final String imagePath;
+        private final ImageDataFormat imageDataFormat;
+
+        public OpenRequest(String imagePath, ImageDataFormat imageDataFormat) {
+            this.imagePath = imagePath;
+            this.imageDataFormat = imageDataFormat;
+        }
+
+        public String getImagePath() {
+            return imagePath;
+        }
+
+        public ImageDataFormat getImageDataFormat() {
+            return imageDataFormat;
+        }
+    }
+
+    private final BoundedRequestExecutor executor;
+    private final SpimDataOpener opener;
+
+    public SpimDataBatchOpener() {
+        this(DEFAULT_MAX_CONCURRENT_OPENS);
+    }
+
+    /**
+     * @param maxConcurrentOpens the maximum number of images that are opened at the same time
+     */
+    public SpimDataBatchOpener(int maxConcurrentOpens) {
+        this(maxConcurrentOpens, XmlDocumentCache.getDefault());
+    }
+
+    /**
+     * @param maxConcurrentOpens the maximum number of images that are opened at the same time
+     * @param documentCache      cache for the xml documents of the images
+     */
+    public SpimDataBatchOpener(int maxConcurrentOpens, XmlDocumentCache documentCache) {
+        this.executor = new BoundedRequestExecutor("spimdata-opener", maxConcurrentOpens);
+        this.opener = new SpimDataOpener(documentCache);
+    }
+
+    /**
+     * Opens the image at imagePath in the background.
+     *
+     * @param sharedQueue fetcher queue for the image, or null
+     * @return the SpimData, or a future that failed with the reason why
+     * the image could not be opened
+     */
+    public CompletableFuture<AbstractSpimData<?>> open(String imagePath, ImageDataFormat imageDataFormat, SharedQueue sharedQueue) {
+        return executor.submit(() -> opener.open(imagePath, imageDataFormat, sharedQueue));
+    }
+
+    /**
+     * Opens all images in the background, in the order of the requests.
+     *
+     * @param sharedQueue fetcher queue for all images, or null
+     * @return one future per request, in the same order
+     */
+    public List<CompletableFuture<AbstractSpimData<?>>> open(List<OpenRequest> requests, SharedQueue sharedQueue) {
+        final List<CompletableFuture<AbstractSpimData<?>>> futures = new ArrayList<>();
+        for (OpenRequest request : requests)
+            futures.add(open(request.getImagePath(), request.getImageDataFormat(), sharedQueue));
+        return futures;
+    }
+
+    /**
+     * Stops the background threads once the images that were requested
+     * have been opened.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
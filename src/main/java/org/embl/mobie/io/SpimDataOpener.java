@@ -54,17 +54,15 @@ import org.embl.mobie.io.ome.zarr.openers.OMEZarrOpener;
 import org.embl.mobie.io.ome.zarr.openers.OMEZarrS3Opener;
 import org.embl.mobie.io.openorganelle.OpenOrganelleS3Opener;
 import org.embl.mobie.io.util.CustomXmlIoSpimData;
-import org.embl.mobie.io.util.IOHelper;
+import org.embl.mobie.io.util.XmlDocumentCache;
 import org.jdom2.Document;
 import org.jdom2.Element;
 import org.jdom2.JDOMException;
-import org.jdom2.input.SAXBuilder;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -78,7 +76,17 @@ public class SpimDataOpener {
 
     public static final String ERROR_WHILE_TRYING_TO_READ_SPIM_DATA = "Error while trying to read spimData";
 
+    private final XmlDocumentCache documentCache;
+
     public SpimDataOpener() {
+        this(XmlDocumentCache.getDefault());
+    }
+
+    /**
+     * @param documentCache cache for the xml documents that are read by this opener
+     */
+    public SpimDataOpener(XmlDocumentCache documentCache) {
+        this.documentCache = documentCache;
     }
 
     public AbstractSpimData< ? > open(String imagePath, ImageDataFormat imageDataFormat, SharedQueue sharedQueue) throws UnsupportedOperationException, SpimDataException {
@@ -180,11 +188,14 @@ public class SpimDataOpener {
         }
     }
 
+    private Document readXml(String path) throws IOException, JDOMException {
+        return documentCache.getDocument(path);
+    }
+
     private SpimData openBdvXml(String path) throws SpimDataException {
         try {
-            InputStream stream = IOHelper.getInputStream(path);
-            return new CustomXmlIoSpimData().loadFromStream(stream, path);
-        } catch (SpimDataException | IOException e) {
+            return new CustomXmlIoSpimData().loadFromDocument(readXml(path), path);
+        } catch (SpimDataException | IOException | JDOMException e) {
             throw new SpimDataException(ERROR_WHILE_TRYING_TO_READ_SPIM_DATA + e.getMessage());
         }
     }
@@ -248,9 +259,8 @@ public class SpimDataOpener {
     private SpimData openBdvOmeZarrS3(String path, SharedQueue queue) {
         //TODO: finish bug fixing
         try {
-            SAXBuilder sax = new SAXBuilder();
-            InputStream stream = IOHelper.getInputStream(path);
-            Document doc = sax.build(stream);
+            // the same document provides the image loader and the rest of the SpimData
+            Document doc = readXml(path);
             Element imgLoaderElem = doc.getRootElement().getChild("SequenceDescription").getChild("ImageLoader");
             String bucketAndObject = imgLoaderElem.getChild("BucketName").getText() + "/" + imgLoaderElem.getChild("Key").getText();
             String[] split = bucketAndObject.split("/");
@@ -265,8 +275,7 @@ public class SpimDataOpener {
             SpimData spim = new SpimData(null, Cast.unchecked(imageLoader.getSequenceDescription()), imageLoader.getViewRegistrations());
             SpimData spimData;
             try {
-                InputStream st = IOHelper.getInputStream(path);
-                spimData = (new CustomXmlIoSpimData()).loadFromStream(st, path);
+                spimData = (new CustomXmlIoSpimData()).loadFromDocument(doc, path);
             } catch (SpimDataException exception) {
                 log.debug("Failed to load stream from {}", path, exception);
                 return null;
@@ -313,8 +322,16 @@ public class SpimDataOpener {
 //    }
 
     private SpimData openBdvOmeZarr(String path, @Nullable SharedQueue sharedQueue) throws SpimDataException {
-        SpimData spimData = openBdvXml(path);
-        SpimData spimDataWithImageLoader = getSpimDataWithImageLoader(path, sharedQueue);
+        // the same document provides the image loader and the rest of the SpimData
+        final Document doc;
+        final SpimData spimData;
+        try {
+            doc = readXml(path);
+            spimData = new CustomXmlIoSpimData().loadFromDocument(doc, path);
+        } catch (SpimDataException | IOException | JDOMException e) {
+            throw new SpimDataException(ERROR_WHILE_TRYING_TO_READ_SPIM_DATA + e.getMessage());
+        }
+        SpimData spimDataWithImageLoader = getSpimDataWithImageLoader(doc, path, sharedQueue);
         if (spimData != null && spimDataWithImageLoader != null) {
             spimData.getSequenceDescription().setImgLoader(spimDataWithImageLoader.getSequenceDescription().getImgLoader());
             spimData.getSequenceDescription().getAllChannels().putAll(spimDataWithImageLoader.getSequenceDescription().getAllChannels());
@@ -326,9 +343,7 @@ public class SpimDataOpener {
 
     @NotNull
     private N5S3OMEZarrImageLoader createN5S3OmeZarrImageLoader(String path, @Nullable SharedQueue queue) throws IOException, JDOMException {
-        final SAXBuilder sax = new SAXBuilder();
-        InputStream stream = IOHelper.getInputStream(path);
-        final Document doc = sax.build(stream);
+        final Document doc = readXml(path);
         final Element imgLoaderElem = doc.getRootElement().getChild(SEQUENCEDESCRIPTION_TAG).getChild(IMGLOADER_TAG);
         String bucketAndObject = imgLoaderElem.getChild("BucketName").getText() + "/" + imgLoaderElem.getChild("Key").getText();
         final String[] split = bucketAndObject.split("/");
@@ -341,11 +356,8 @@ public class SpimDataOpener {
         }
     }
 
-    private SpimData getSpimDataWithImageLoader(String path, @Nullable SharedQueue sharedQueue) {
+    private SpimData getSpimDataWithImageLoader(Document doc, String path, @Nullable SharedQueue sharedQueue) {
         try {
-            final SAXBuilder sax = new SAXBuilder();
-            InputStream stream = IOHelper.getInputStream(path);
-            final Document doc = sax.build(stream);
             final Element imgLoaderElem = doc.getRootElement().getChild(SEQUENCEDESCRIPTION_TAG).getChild(IMGLOADER_TAG);
             String imagesFile = XmlN5OmeZarrImageLoader.getDatasetsPathFromXml(imgLoaderElem, path);
             if (imagesFile != null) {
@@ -357,7 +369,7 @@ public class SpimDataOpener {
                         : OMEZarrS3Opener.readURL(imagesFile);
                 }
             }
-        } catch (JDOMException | IOException e) {
+        } catch (IOException e) {
             IJ.log(e.getMessage());
         }
         return null;
@@ -0,0 +1,117 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Publishes the metrics as an MXBean in the platform MBean server, so that
+ * they can be inspected with e.g. JConsole or VisualVM while Fiji is running.
+ */
+@Slf4j
+public class JmxMetricsSink implements MetricsSink {
+    public static final String DEFAULT_OBJECT_NAME = "org.embl.mobie.io:type=LoaderMetrics";
+
+    private final ObjectName objectName;
+    private final MBeanServer server;
+
+    public JmxMetricsSink() {
+        this(DEFAULT_OBJECT_NAME);
+    }
+
+    public JmxMetricsSink(final String objectName) {
+        try {
+            this.objectName = new ObjectName(objectName);
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalArgumentException(e);
+        }
+        this.server = ManagementFactory.getPlatformMBeanServer();
+    }
+
+    public ObjectName getObjectName() {
+        return objectName;
+    }
+
+    @Override
+    public void start(final LoaderMetrics metrics) {
+        try {
+            if (server.isRegistered(objectName))
+                server.unregisterMBean(objectName);
+            server.registerMBean(new Bean(metrics), objectName);
+        } catch (JMException e) {
+            log.warn("Could not register " + objectName + ": " + e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        try {
+            if (server.isRegistered(objectName))
+                server.unregisterMBean(objectName);
+        } catch (JMException e) {
+            log.warn("Could not unregister " + objectName + ": " + e);
+        }
+    }
+
+    private static class Bean implements LoaderMetricsMXBean {
+        private final LoaderMetrics metrics;
+
+        Bean(final LoaderMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public List<MetricsSnapshot.LevelSnapshot> getLevels() {
+            return metrics.snapshot().getLevels();
+        }
+
+        @Override
+        public boolean isEnabled() {
+            return metrics.isEnabled();
+        }
+
+        @Override
+        public void setEnabled(final boolean enabled) {
+            metrics.setEnabled(enabled);
+        }
+
+        @Override
+        public void reset() {
+            metrics.reset();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies with one bucket per power of two microseconds:
+ * bucket 0 counts latencies below 1 us, bucket i latencies in
+ * [2^(i-1), 2^i) us. Recording is lock free, percentiles are accurate to
+ * a factor of two, which is enough to tell a cached read from a network
+ * round trip.
+ */
+public class LatencyHistogram {
+    public static final int NUM_BUCKETS = 40;
+
+    private final LongAdder[] buckets = new LongAdder[NUM_BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < NUM_BUCKETS; i++)
+            buckets[i] = new LongAdder();
+    }
+
+    public void record(final long nanos) {
+        final long latency = Math.max(0, nanos);
+        buckets[bucket(latency)].increment();
+        count.increment();
+        sumNanos.add(latency);
+        maxNanos.accumulate(latency);
+    }
+
+    public void reset() {
+        for (final LongAdder bucket : buckets)
+            bucket.reset();
+        count.reset();
+        sumNanos.reset();
+        maxNanos.reset();
+    }
+
+    public Snapshot snapshot() {
+        final long[] counts = new long[NUM_BUCKETS];
+        for (int i = 0; i < NUM_BUCKETS; i++)
+            counts[i] = buckets[i].sum();
+        return new Snapshot(counts, sumNanos.sum(), maxNanos.get());
+    }
+
+    static int bucket(final long nanos) {
+        final long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        return Math.min(NUM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    /**
+     * Upper bound of bucket i in nanoseconds.
+     */
+    static long upperBoundNanos(final int bucket) {
+        return TimeUnit.MICROSECONDS.toNanos(1L << bucket);
+    }
+
+    /**
+     * An immutable copy of a {@link LatencyHistogram}. The counts of the
+     * buckets are read one after the other, so a snapshot taken while
+     * latencies are recorded may be off by the latencies recorded meanwhile.
+     */
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sumNanos;
+        private final long maxNanos;
+
+        Snapshot(final long[] counts, final long sumNanos, final long maxNanos) {
+            this.counts = counts;
+            long count = 0;
+            for (final long c : counts)
+                count += c;
+            this.count = count;
+            this.sumNanos = sumNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMeanMillis() {
+            return count == 0 ? 0 : toMillis(sumNanos) / count;
+        }
+
+        public double getMaxMillis() {
+            return toMillis(maxNanos);
+        }
+
+        public double getP50Millis() {
+            return getPercentileMillis(50);
+        }
+
+        public double getP90Millis() {
+            return getPercentileMillis(90);
+        }
+
+        public double getP99Millis() {
+            return getPercentileMillis(99);
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the upper bound of the bucket that contains the
+         * percentile, but at most the largest recorded latency
+         */
+        public double getPercentileMillis(final double percentile) {
+            if (count == 0)
+                return 0;
+            final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return toMillis(Math.min(upperBoundNanos(i), maxNanos));
+            }
+            return toMillis(maxNanos);
+        }
+
+        private static double toMillis(final long nanos) {
+            return nanos / 1e6;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.amazonaws.SdkClientException;
+
+/**
+ * Metrics of the block reads of one resolution level of one setup.
+ * The cache array loaders record every read like this:
+ * <pre>
+ * final long start = metrics.readStarted();
+ * try {
+ *     block = n5.readBlock(...);
+ * } catch (Exception e) {
+ *     metrics.readFailed(start, e);
+ *     ...
+ * }
+ * metrics.readFinished(start, numBytes); // or readMissing(start)
+ * </pre>
+ * The read latency includes decompressing the block. Readers that fetch
+ * the encoded bytes separately, see {@link org.embl.mobie.io.util.RawBlockReader},
+ * additionally record the decompression on its own as decode latency.
+ * Turning the block into the array of a cell is recorded as array latency.
+ * Nothing is recorded while {@link LoaderMetrics#isEnabled()} is false.
+ */
+public class LevelMetrics {
+    static final long NOT_RECORDED = Long.MIN_VALUE;
+
+    /**
+     * Metrics that never record anything, for loaders that were not given any.
+     */
+    public static final LevelMetrics NONE = new LevelMetrics(null, "", -1, -1);
+
+    private final LoaderMetrics owner;
+    private final String source;
+    private final int setupId;
+    private final int level;
+
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder sdkClientErrors = new LongAdder();
+    private final LongAdder prefetchReads = new LongAdder();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LatencyHistogram readLatency = new LatencyHistogram();
+    private final LatencyHistogram decodeLatency = new LatencyHistogram();
+    private final LatencyHistogram arrayLatency = new LatencyHistogram();
+
+    LevelMetrics(final LoaderMetrics owner, final String source, final int setupId, final int level) {
+        this.owner = owner;
+        this.source = source;
+        this.setupId = setupId;
+        this.level = level;
+    }
+
+    /**
+     * @return the start time to pass to {@link #readFinished},
+     * {@link #readMissing} or {@link #readFailed}
+     */
+    public long readStarted() {
+        if (owner == null || !owner.isEnabled())
+            return NOT_RECORDED;
+        inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * @param start the return value of {@link #readStarted}
+     * @param numBytes the uncompressed size of the block
+     */
+    public void readFinished(final long start, final long numBytes) {
+        if (start == NOT_RECORDED)
+            return;
+        finished(start);
+        bytes.add(numBytes);
+    }
+
+    /**
+     * Records a read of a block that does not exist, e.g. because it is
+     * empty and has not been written.
+     */
+    public void readMissing(final long start) {
+        if (start == NOT_RECORDED)
+            return;
+        finished(start);
+        misses.increment();
+    }
+
+    public void readFailed(final long start, final Throwable error) {
+        if (start == NOT_RECORDED)
+            return;
+        finished(start);
+        errors.increment();
+        if (error instanceof SdkClientException)
+            sdkClientErrors.increment();
+    }
+
+    /**
+     * Records a block that was read because it had been prefetched.
+     */
+    public void prefetchRead() {
+        if (owner != null && owner.isEnabled())
+            prefetchReads.increment();
+    }
+
+    /**
+     * @return the start time to pass to {@link #decodeFinished}
+     */
+    public long decodeStarted() {
+        if (owner == null || !owner.isEnabled())
+            return NOT_RECORDED;
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the time it took to decompress the encoded bytes of a block.
+     */
+    public void decodeFinished(final long start) {
+        if (start == NOT_RECORDED)
+            return;
+        decodeLatency.record(System.nanoTime() - start);
+    }
+
+    /**
+     * @return the start time to pass to {@link #arrayFinished}
+     */
+    public long arrayStarted() {
+        if (owner == null || !owner.isEnabled())
+            return NOT_RECORDED;
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the time it took to turn a block into the array of a cell.
+     */
+    public void arrayFinished(final long start) {
+        if (start == NOT_RECORDED)
+            return;
+        arrayLatency.record(System.nanoTime() - start);
+    }
+
+    private void finished(final long start) {
+        inFlight.decrementAndGet();
+        reads.increment();
+        readLatency.record(System.nanoTime() - start);
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public int getSetupId() {
+        return setupId;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    void reset() {
+        reads.reset();
+        bytes.reset();
+        misses.reset();
+        errors.reset();
+        sdkClientErrors.reset();
+        prefetchReads.reset();
+        readLatency.reset();
+        decodeLatency.reset();
+        arrayLatency.reset();
+    }
+
+    MetricsSnapshot.LevelSnapshot snapshot() {
+        return new MetricsSnapshot.LevelSnapshot(source, setupId, level, reads.sum(), bytes.sum(), misses.sum(), errors.sum(), sdkClientErrors.sum(), prefetchReads.sum(), inFlight.get(), readLatency.snapshot(), decodeLatency.snapshot(), arrayLatency.snapshot());
+    }
+}
@@ -0,0 +1,202 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.embl.mobie.io.ome.zarr.readers.N5S3OmeZarrReader;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+/**
+ * Counters and latency histograms of the block reads of the cache array
+ * loaders, per source, setup and resolution level. All image loaders
+ * record into {@link #getInstance()}; what happens with the metrics is
+ * up to the {@link MetricsSink}s, e.g. {@link InMemoryMetricsSink},
+ * {@link JmxMetricsSink} or {@link LoggingMetricsSink}.
+ * <p>
+ * Each level is kept until all of its owners, usually the image loaders
+ * reading it, are {@link #release released} or garbage collected.
+ */
+public class LoaderMetrics {
+    private static final LoaderMetrics INSTANCE = new LoaderMetrics();
+
+    private final Map<Key, LevelMetrics> levels = new ConcurrentHashMap<>();
+    /**
+     * Owners of each level, weakly referenced, guarded by this.
+     */
+    private final Map<Key, Set<Object>> owners = new HashMap<>();
+    private final List<MetricsSink> sinks = new CopyOnWriteArrayList<>();
+    private volatile boolean enabled = true;
+
+    public static LoaderMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param owner   the object reading the level, e.g. an image loader,
+     *                which keeps the level until it is {@link #release
+     *                released} or garbage collected
+     * @param source  the container, see {@link #describe}
+     * @param setupId
+     * @param level
+     * @return the metrics of that level, created on first use
+     */
+    public synchronized LevelMetrics forLevel(final Object owner, final String source, final int setupId, final int level) {
+        removeUnowned();
+        final Key key = new Key(source, setupId, level);
+        owners.computeIfAbsent(key, k -> Collections.newSetFromMap(new WeakHashMap<>())).add(owner);
+        return levels.computeIfAbsent(key, k -> new LevelMetrics(this, source, setupId, level));
+    }
+
+    /**
+     * Removes owner from all levels, and the levels that have no owner
+     * left, e.g. when an image loader is closed.
+     *
+     * @param owner
+     */
+    public synchronized void release(final Object owner) {
+        for (final Set<Object> levelOwners : owners.values())
+            levelOwners.remove(owner);
+        removeUnowned();
+    }
+
+    private void removeUnowned() {
+        for (final Iterator<Map.Entry<Key, Set<Object>>> it = owners.entrySet().iterator(); it.hasNext(); ) {
+            final Map.Entry<Key, Set<Object>> entry = it.next();
+            if (entry.getValue().isEmpty()) {
+                levels.remove(entry.getKey());
+                it.remove();
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enables or disables recording. While disabled, the loaders do not
+     * even read the clock.
+     *
+     * @param enabled
+     */
+    public void setEnabled(final boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public MetricsSnapshot snapshot() {
+        synchronized (this) {
+            removeUnowned();
+        }
+        final List<MetricsSnapshot.LevelSnapshot> snapshots = new ArrayList<>();
+        for (final LevelMetrics metrics : levels.values())
+            snapshots.add(metrics.snapshot());
+        snapshots.sort(Comparator.comparing(MetricsSnapshot.LevelSnapshot::getSource)
+            .thenComparingInt(MetricsSnapshot.LevelSnapshot::getSetupId)
+            .thenComparingInt(MetricsSnapshot.LevelSnapshot::getLevel));
+        return new MetricsSnapshot(System.currentTimeMillis(), snapshots);
+    }
+
+    /**
+     * Sets all counters and histograms to zero. Reads that are in flight
+     * stay in flight.
+     */
+    public void reset() {
+        for (final LevelMetrics metrics : levels.values())
+            metrics.reset();
+    }
+
+    public void addSink(final MetricsSink sink) {
+        sinks.add(sink);
+        sink.start(this);
+    }
+
+    public void removeSink(final MetricsSink sink) {
+        if (sinks.remove(sink))
+            sink.stop();
+    }
+
+    public List<MetricsSink> getSinks() {
+        return new ArrayList<>(sinks);
+    }
+
+    /**
+     * @param n5
+     * @return a name of the container n5 reads from, to tell the metrics of
+     * different containers apart
+     */
+    public static String describe(final N5Reader n5) {
+        if (n5 instanceof N5FSReader)
+            return ((N5FSReader) n5).getBasePath();
+        if (n5 instanceof N5S3OmeZarrReader) {
+            final N5S3OmeZarrReader reader = (N5S3OmeZarrReader) n5;
+            return "s3://" + reader.getBucketName() + "/" + reader.getContainerPath();
+        }
+        return n5.getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(n5));
+    }
+
+    private static class Key {
+        private final String source;
+        private final int setupId;
+        private final int level;
+
+        Key(final String source, final int setupId, final int level) {
+            this.source = source;
+            this.setupId = setupId;
+            this.level = level;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            final Key key = (Key) o;
+            return setupId == key.setupId && level == key.level && source.equals(key.source);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(source, setupId, level);
+        }
+    }
+}
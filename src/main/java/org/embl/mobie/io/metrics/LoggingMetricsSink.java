@@ -0,0 +1,89 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Logs the metrics of the levels that were read from since the previous
+ * report, every period.
+ */
+@Slf4j
+public class LoggingMetricsSink implements MetricsSink {
+    public static final long DEFAULT_PERIOD_SECONDS = 60;
+
+    private final long periodSeconds;
+    private final Map<String, Long> reportedReads = new HashMap<>();
+    private ScheduledExecutorService executor;
+
+    public LoggingMetricsSink() {
+        this(DEFAULT_PERIOD_SECONDS);
+    }
+
+    public LoggingMetricsSink(final long periodSeconds) {
+        if (periodSeconds <= 0)
+            throw new IllegalArgumentException("periodSeconds must be positive: " + periodSeconds);
+        this.periodSeconds = periodSeconds;
+    }
+
+    @Override
+    public synchronized void start(final LoaderMetrics metrics) {
+        if (executor != null)
+            throw new IllegalStateException("LoggingMetricsSink has already been started");
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "mobie-io-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(() -> report(metrics.snapshot()), periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    synchronized void report(final MetricsSnapshot snapshot) {
+        for (final MetricsSnapshot.LevelSnapshot level : snapshot.getLevels()) {
+            final String key = level.getSource() + "/" + level.getSetupId() + "/" + level.getLevel();
+            final Long previous = reportedReads.put(key, level.getReads());
+            if (level.getReads() != (previous == null ? 0 : previous) || level.getInFlight() > 0)
+                log.info(level.toString());
+        }
+    }
+}
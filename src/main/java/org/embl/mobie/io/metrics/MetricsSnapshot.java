@@ -0,0 +1,171 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.metrics;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The metrics of all levels of all loaders at one point in time.
+ */
+public class MetricsSnapshot {
+    private final long timeMillis;
+    private final List<LevelSnapshot> levels;
+
+    MetricsSnapshot(final long timeMillis, final List<LevelSnapshot> levels) {
+        this.timeMillis = timeMillis;
+        this.levels = Collections.unmodifiableList(levels);
+    }
+
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+
+    /**
+     * @return the levels, sorted by source, setup and level
+     */
+    public List<LevelSnapshot> getLevels() {
+        return levels;
+    }
+
+    public LevelSnapshot getLevel(final String source, final int setupId, final int level) {
+        for (final LevelSnapshot snapshot : levels)
+            if (snapshot.getSource().equals(source) && snapshot.getSetupId() == setupId && snapshot.getLevel() == level)
+                return snapshot;
+        return null;
+    }
+
+    public static class LevelSnapshot {
+        private final String source;
+        private final int setupId;
+        private final int level;
+        private final long reads;
+        private final long bytes;
+        private final long misses;
+        private final long errors;
+        private final long sdkClientErrors;
+        private final long prefetchReads;
+        private final int inFlight;
+        private final LatencyHistogram.Snapshot readLatency;
+        private final LatencyHistogram.Snapshot decodeLatency;
+        private final LatencyHistogram.Snapshot arrayLatency;
+
+        LevelSnapshot(final String source, final int setupId, final int level, final long reads, final long bytes, final long misses, final long errors, final long sdkClientErrors, final long prefetchReads, final int inFlight, final LatencyHistogram.Snapshot readLatency, final LatencyHistogram.Snapshot decodeLatency, final LatencyHistogram.Snapshot arrayLatency) {
+            this.source = source;
+            this.setupId = setupId;
+            this.level = level;
+            this.reads = reads;
+            this.bytes = bytes;
+            this.misses = misses;
+            this.errors = errors;
+            this.sdkClientErrors = sdkClientErrors;
+            this.prefetchReads = prefetchReads;
+            this.inFlight = inFlight;
+            this.readLatency = readLatency;
+            this.decodeLatency = decodeLatency;
+            this.arrayLatency = arrayLatency;
+        }
+
+        /**
+         * @return the container the level belongs to, see {@link LoaderMetrics#describe}
+         */
+        public String getSource() {
+            return source;
+        }
+
+        public int getSetupId() {
+            return setupId;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        /**
+         * @return the number of finished reads, including misses and errors
+         */
+        public long getReads() {
+            return reads;
+        }
+
+        /**
+         * @return the uncompressed size of all blocks read
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public long getSdkClientErrors() {
+            return sdkClientErrors;
+        }
+
+        public long getPrefetchReads() {
+            return prefetchReads;
+        }
+
+        public int getInFlight() {
+            return inFlight;
+        }
+
+        public LatencyHistogram.Snapshot getReadLatency() {
+            return readLatency;
+        }
+
+        /**
+         * @return the latency of decompressing blocks, which is part of the
+         * read latency and only recorded for readers that support it
+         */
+        public LatencyHistogram.Snapshot getDecodeLatency() {
+            return decodeLatency;
+        }
+
+        /**
+         * @return the latency of turning blocks into the arrays of cells
+         */
+        public LatencyHistogram.Snapshot getArrayLatency() {
+            return arrayLatency;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s setup %d level %d: %d reads (%d missing, %d errors, %d prefetched), %.3f MB, read %.2f/%.2f/%.2f ms (p50/p99/max), decode %.2f ms (p50), array %.2f ms (p50), %d in flight",
+                source, setupId, level, reads, misses, errors, prefetchReads, bytes / 1e6,
+                readLatency.getP50Millis(), readLatency.getP99Millis(), readLatency.getMaxMillis(),
+                decodeLatency.getP50Millis(), arrayLatency.getP50Millis(), inFlight);
+        }
+    }
+}
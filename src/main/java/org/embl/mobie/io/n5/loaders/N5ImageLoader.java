@@ -37,7 +37,13 @@ import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.function.Function;
 
+import org.embl.mobie.io.metrics.LevelMetrics;
+import org.embl.mobie.io.metrics.LoaderMetrics;
+import org.embl.mobie.io.n5.util.N5DataTypeSize;
 import org.embl.mobie.io.ome.zarr.util.OmeZarrMultiscales;
+import org.embl.mobie.io.util.RawBlockReader;
+import org.embl.mobie.io.util.SharedFetchQueue;
+import org.embl.mobie.io.util.SharedQueueCellCache;
 import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
 import org.janelia.saalfeldlab.n5.DataBlock;
 import org.janelia.saalfeldlab.n5.DataType;
@@ -54,7 +60,6 @@ import bdv.AbstractViewerSetupImgLoader;
 import bdv.ViewerImgLoader;
 import bdv.cache.CacheControl;
 import bdv.img.cache.SimpleCacheArrayLoader;
-import bdv.img.cache.VolatileGlobalCellCache;
 import bdv.util.ConstantRandomAccessible;
 import bdv.util.MipmapTransforms;
 import lombok.extern.slf4j.Slf4j;
@@ -127,7 +132,7 @@ public class N5ImageLoader implements ViewerImgLoader, MultiResolutionImgLoader
     protected ViewRegistrations viewRegistrations;
     private volatile boolean isOpen = false;
     private FetcherThreads fetchers;
-    private VolatileGlobalCellCache cache;
+    private SharedQueueCellCache cache;
     private BlockingFetchQueues<Callable<?>> queue;
 
 
@@ -150,29 +155,33 @@ public class N5ImageLoader implements ViewerImgLoader, MultiResolutionImgLoader
     }
 
     public static SimpleCacheArrayLoader<?> createCacheArrayLoader(final N5Reader n5, final String pathName) throws IOException {
+        return createCacheArrayLoader(n5, pathName, LevelMetrics.NONE);
+    }
+
+    public static SimpleCacheArrayLoader<?> createCacheArrayLoader(final N5Reader n5, final String pathName, final LevelMetrics metrics) throws IOException {
         final DatasetAttributes attributes = n5.getDatasetAttributes(pathName);
         switch (attributes.getDataType()) {
             case UINT8:
             case INT8:
-                return new N5CacheArrayLoader<>(n5, pathName, attributes,
+                return new N5CacheArrayLoader<>(n5, pathName, attributes, metrics,
                     dataBlock -> new VolatileByteArray(Cast.unchecked(dataBlock.getData()), true));
             case UINT16:
             case INT16:
-                return new N5CacheArrayLoader<>(n5, pathName, attributes,
+                return new N5CacheArrayLoader<>(n5, pathName, attributes, metrics,
                     dataBlock -> new VolatileShortArray(Cast.unchecked(dataBlock.getData()), true));
             case UINT32:
             case INT32:
-                return new N5CacheArrayLoader<>(n5, pathName, attributes,
+                return new N5CacheArrayLoader<>(n5, pathName, attributes, metrics,
                     dataBlock -> new VolatileIntArray(Cast.unchecked(dataBlock.getData()), true));
             case UINT64:
             case INT64:
-                return new N5CacheArrayLoader<>(n5, pathName, attributes,
+                return new N5CacheArrayLoader<>(n5, pathName, attributes, metrics,
                     dataBlock -> new VolatileLongArray(Cast.unchecked(dataBlock.getData()), true));
             case FLOAT32:
-                return new N5CacheArrayLoader<>(n5, pathName, attributes,
+                return new N5CacheArrayLoader<>(n5, pathName, attributes, metrics,
                     dataBlock -> new VolatileFloatArray(Cast.unchecked(dataBlock.getData()), true));
             case FLOAT64:
-                return new N5CacheArrayLoader<>(n5, pathName, attributes,
+                return new N5CacheArrayLoader<>(n5, pathName, attributes, metrics,
                     dataBlock -> new VolatileDoubleArray(Cast.unchecked(dataBlock.getData()), true));
             default:
                 throw new IllegalArgumentException();
@@ -218,12 +227,14 @@ public class N5ImageLoader implements ViewerImgLoader, MultiResolutionImgLoader
                             maxNumLevels = Math.max(maxNumLevels, setupImgLoader.numMipmapLevels());
                         }
                     }
+                    if (queue == null)
+                        queue = SharedFetchQueue.get(maxNumLevels);
                     if (queue == null) {
                         final int numFetcherThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
                         queue = new BlockingFetchQueues<>(maxNumLevels, numFetcherThreads);
                         fetchers = new FetcherThreads(queue, numFetcherThreads);
                     }
-                    cache = new VolatileGlobalCellCache(queue);
+                    cache = new SharedQueueCellCache(queue);
                 } catch (IOException e) {
                     throw new RuntimeException(e);
                 }
@@ -251,9 +262,14 @@ public class N5ImageLoader implements ViewerImgLoader, MultiResolutionImgLoader
             synchronized (this) {
                 if (!isOpen)
                     return;
-                if (fetchers != null)
+                if (fetchers != null) {
                     fetchers.shutdown();
-                cache.clearCache();
+                    cache.clearCache();
+                } else {
+                    // the queue may be shared with other loaders, whose requests must stay in it
+                    cache.invalidateAll();
+                }
+                LoaderMetrics.getInstance().release(this);
                 isOpen = false;
             }
         }
@@ -303,12 +319,14 @@ public class N5ImageLoader implements ViewerImgLoader, MultiResolutionImgLoader
         private final N5Reader n5;
         private final String pathName;
         private final DatasetAttributes attributes;
+        private final LevelMetrics metrics;
         private final Function<DataBlock<?>, A> createArray;
 
-        N5CacheArrayLoader(final N5Reader n5, final String pathName, final DatasetAttributes attributes, final Function<DataBlock<?>, A> createArray) {
+        N5CacheArrayLoader(final N5Reader n5, final String pathName, final DatasetAttributes attributes, final LevelMetrics metrics, final Function<DataBlock<?>, A> createArray) {
             this.n5 = n5;
             this.pathName = pathName;
             this.attributes = attributes;
+            this.metrics = metrics;
             this.createArray = createArray;
         }
 
@@ -316,9 +334,15 @@ public class N5ImageLoader implements ViewerImgLoader, MultiResolutionImgLoader
         public A loadArray(final long[] gridPosition, int[] cellDimensions) throws IOException {
             DataBlock<?> block = null;
 
+            final long start = metrics.readStarted();
             try {
-                block = n5.readBlock(pathName, attributes, gridPosition);
+                block = RawBlockReader.readBlock(n5, pathName, attributes, metrics, gridPosition);
+                if (block == null)
+                    metrics.readMissing(start);
+                else
+                    metrics.readFinished(start, (long) block.getNumElements() * N5DataTypeSize.getNumBytesPerElement(attributes.getDataType()));
             } catch (Exception e) {
+                metrics.readFailed(start, e);
                 log.error("Error loading " + pathName + " at block " + Arrays.toString(gridPosition) + ": " + e);
             }
 
@@ -432,7 +456,7 @@ public class N5ImageLoader implements ViewerImgLoader, MultiResolutionImgLoader
                 final int priority = numMipmapLevels() - 1 - level;
                 final CacheHints cacheHints = new CacheHints(loadingStrategy, priority, false);
 
-                final SimpleCacheArrayLoader<?> loader = createCacheArrayLoader(n5, pathName);
+                final SimpleCacheArrayLoader<?> loader = createCacheArrayLoader(n5, pathName, LoaderMetrics.getInstance().forLevel(N5ImageLoader.this, LoaderMetrics.describe(n5), setupId, level));
                 return cache.createImg(grid, timepointId, setupId, level, cacheHints, loader, type);
             } catch (IOException e) {
                 log.error(String.format(
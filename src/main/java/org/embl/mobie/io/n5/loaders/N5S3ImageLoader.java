@@ -30,6 +30,7 @@ package org.embl.mobie.io.n5.loaders;
 
 import java.io.IOException;
 
+import org.embl.mobie.io.n5.readers.N5AmazonS3CachingReader;
 import org.embl.mobie.io.util.S3Utils;
 import org.janelia.saalfeldlab.n5.s3.N5AmazonS3Reader;
 
@@ -80,7 +81,7 @@ public class N5S3ImageLoader extends N5ImageLoader implements S3ImageLoader {
 
         public N5AmazonS3Reader create(String serviceEndpoint, String signingRegion, String bucketName, String key) throws IOException {
             final AmazonS3 s3 = S3Utils.getS3Client(serviceEndpoint, signingRegion, bucketName);
-            return new N5AmazonS3Reader(s3, bucketName, key);
+            return new N5AmazonS3CachingReader(s3, serviceEndpoint, bucketName, key);
         }
     }
 
@@ -30,6 +30,7 @@ package org.embl.mobie.io.n5.loaders;
 
 import java.io.IOException;
 
+import org.embl.mobie.io.metrics.LoaderMetrics;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.N5Reader;
 
@@ -135,7 +136,7 @@ public class SetupImgLoader<T extends NativeType<T>, V extends Volatile<T> & Nat
             final int priority = numMipmapLevels() - 1 - level;
             final CacheHints cacheHints = new CacheHints(loadingStrategy, priority, false);
 
-            final SimpleCacheArrayLoader<?> loader = N5ImageLoader.createCacheArrayLoader(n5, pathName);
+            final SimpleCacheArrayLoader<?> loader = N5ImageLoader.createCacheArrayLoader(n5, pathName, LoaderMetrics.getInstance().forLevel(this, LoaderMetrics.describe(n5), setupId, level));
             return cache.createImg(grid, timepointId, setupId, level, cacheHints, loader, type);
         } catch (IOException e) {
             log.error(String.format(
@@ -36,11 +36,10 @@ import java.util.Map;
 
 import org.embl.mobie.io.OpenerLogging;
 import org.embl.mobie.io.n5.loaders.N5FSImageLoader;
-import org.embl.mobie.io.util.IOHelper;
+import org.embl.mobie.io.util.XmlDocumentCache;
 import org.jdom2.Document;
 import org.jdom2.Element;
 import org.jdom2.JDOMException;
-import org.jdom2.input.SAXBuilder;
 
 import bdv.cache.SharedQueue;
 import mpicbg.spim.data.SpimData;
@@ -131,10 +130,9 @@ public class N5Opener extends OpenerLogging
     }
 
     public SpimData setSettings(String url, SharedQueue sharedQueue) throws IOException {
-        final SAXBuilder sax = new SAXBuilder();
         Document doc;
         try {
-            doc = sax.build(IOHelper.getInputStream(url));
+            doc = XmlDocumentCache.getDefault().getDocument(url);
             final Element root = doc.getRootElement();
             final Element sequenceDescriptionElement = root.getChild("SequenceDescription");
             final Element imageLoaderElement = sequenceDescriptionElement.getChild("ImageLoader");
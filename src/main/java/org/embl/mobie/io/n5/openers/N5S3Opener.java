@@ -29,17 +29,15 @@
 package org.embl.mobie.io.n5.openers;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 
 import org.embl.mobie.io.n5.loaders.N5S3ImageLoader;
-import org.embl.mobie.io.util.IOHelper;
+import org.embl.mobie.io.util.XmlDocumentCache;
 import org.jdom2.Document;
 import org.jdom2.Element;
 import org.jdom2.JDOMException;
-import org.jdom2.input.SAXBuilder;
 
 import bdv.cache.SharedQueue;
 import lombok.extern.slf4j.Slf4j;
@@ -137,10 +135,8 @@ public class N5S3Opener extends S3Opener {
     }
 
     public SpimData readURLData(String url, SharedQueue sharedQueue) throws IOException {
-        InputStream stream = IOHelper.getInputStream(url);
-        final SAXBuilder sax = new SAXBuilder();
         try {
-            Document doc = sax.build(stream);
+            Document doc = XmlDocumentCache.getDefault().getDocument(url);
             final Element root = doc.getRootElement();
             final Element sequenceDescriptionElement = root.getChild("SequenceDescription");
             final Element elem = sequenceDescriptionElement.getChild("ImageLoader");
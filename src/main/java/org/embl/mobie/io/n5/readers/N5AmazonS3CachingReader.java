@@ -0,0 +1,129 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.n5.readers;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.embl.mobie.io.util.DiskBlockCache;
+import org.embl.mobie.io.util.RawBlockReader;
+import org.embl.mobie.io.util.S3ChunkReader;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DefaultBlockReader;
+import org.janelia.saalfeldlab.n5.s3.N5AmazonS3Reader;
+
+import com.amazonaws.services.s3.AmazonS3;
+
+/**
+ * {@link N5AmazonS3Reader} that reads blocks through a {@link DiskBlockCache},
+ * if one is set or a default cache is configured.
+ */
+public class N5AmazonS3CachingReader extends N5AmazonS3Reader implements RawBlockReader {
+
+    private final String serviceEndpoint;
+    private DiskBlockCache diskBlockCache;
+
+    public N5AmazonS3CachingReader(final AmazonS3 s3, final String serviceEndpoint, final String bucketName, final String containerPath) throws IOException {
+        super(s3, bucketName, containerPath);
+        this.serviceEndpoint = serviceEndpoint;
+    }
+
+    public String getServiceEndpoint() {
+        return serviceEndpoint;
+    }
+
+    /**
+     * Sets the disk cache for the raw block bytes of this reader. If none is
+     * set, {@link DiskBlockCache#getDefault()} is used.
+     *
+     * @param diskBlockCache
+     */
+    public void setDiskBlockCache(final DiskBlockCache diskBlockCache) {
+        this.diskBlockCache = diskBlockCache;
+    }
+
+    public DiskBlockCache getDiskBlockCache() {
+        return diskBlockCache != null ? diskBlockCache : DiskBlockCache.getDefault();
+    }
+
+    @Override
+    public DataBlock<?> readBlock(
+        final String pathName,
+        final DatasetAttributes datasetAttributes,
+        final long... gridPosition) throws IOException {
+
+        final byte[] bytes = readRawBlock(pathName, datasetAttributes, gridPosition);
+        if (bytes == null)
+            return null;
+
+        return decodeBlock(bytes, pathName, datasetAttributes, gridPosition);
+    }
+
+    @Override
+    public byte[] readRawBlock(
+        final String pathName,
+        final DatasetAttributes datasetAttributes,
+        final long... gridPosition) throws IOException {
+
+        return S3ChunkReader.read(s3, serviceEndpoint, bucketName, getDataBlockKey(pathName, gridPosition), getDiskBlockCache());
+    }
+
+    @Override
+    public DataBlock<?> decodeBlock(
+        final byte[] bytes,
+        final String pathName,
+        final DatasetAttributes datasetAttributes,
+        final long... gridPosition) throws IOException {
+
+        return DefaultBlockReader.readBlock(new ByteArrayInputStream(bytes), datasetAttributes, gridPosition);
+    }
+
+    /**
+     * @return the object key of a block, containerPath/pathName/x/y/z
+     */
+    private String getDataBlockKey(final String pathName, final long... gridPosition) {
+        final StringBuilder sb = new StringBuilder();
+        append(sb, containerPath);
+        append(sb, pathName);
+        for (final long p : gridPosition)
+            append(sb, Long.toString(p));
+        return sb.toString();
+    }
+
+    private static void append(final StringBuilder sb, final String path) {
+        for (final String part : path.split("/")) {
+            if (part.isEmpty())
+                continue;
+            if (sb.length() > 0)
+                sb.append('/');
+            sb.append(part);
+        }
+    }
+}
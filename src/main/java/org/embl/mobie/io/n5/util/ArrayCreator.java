@@ -28,6 +28,7 @@
  */
 package org.embl.mobie.io.n5.util;
 
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
 
 import org.janelia.saalfeldlab.n5.DataBlock;
@@ -48,6 +49,9 @@ import net.imglib2.type.NativeType;
 import net.imglib2.util.Cast;
 
 public abstract class ArrayCreator<A, T extends NativeType<T>> {
+    private static final AtomicLong wrappedBlocks = new AtomicLong();
+    private static final AtomicLong copiedBlocks = new AtomicLong();
+
     protected final CellGrid cellGrid;
     protected final DataType dataType;
     protected final BiConsumer<ArrayImg<T, ?>, DataBlock<?>> copyFromBlock;
@@ -58,8 +62,21 @@ public abstract class ArrayCreator<A, T extends NativeType<T>> {
         this.copyFromBlock = N5CellLoader.createCopy(dataType);
     }
 
+    /**
+     * Creates the array of a cell from a block. If the block has exactly the
+     * shape of the cell, its data is used as is, otherwise the cell is
+     * copied out of the block.
+     */
     @NotNull
     public A VolatileDoubleArray(DataBlock<?> dataBlock, long[] cellDims, int n) {
+        if (hasCellShape(dataBlock, cellDims, n)) {
+            final A array = wrap(dataBlock.getData(), n);
+            if (array != null) {
+                wrappedBlocks.incrementAndGet();
+                return array;
+            }
+        }
+        copiedBlocks.incrementAndGet();
         switch (dataType) {
             case UINT8:
             case INT8:
@@ -94,6 +111,71 @@ public abstract class ArrayCreator<A, T extends NativeType<T>> {
         }
     }
 
+    /**
+     * @return whether the block holds exactly the n elements of a cell of
+     * size cellDims in the same order, ignoring dimensions of size 1
+     */
+    protected static boolean hasCellShape(DataBlock<?> dataBlock, long[] cellDims, int n) {
+        if (dataBlock.getNumElements() != n)
+            return false;
+        final int[] blockSize = dataBlock.getSize();
+        int d = 0;
+        for (long cellDim : cellDims) {
+            if (cellDim == 1)
+                continue;
+            while (d < blockSize.length && blockSize[d] == 1)
+                d++;
+            if (d == blockSize.length || blockSize[d] != cellDim)
+                return false;
+            d++;
+        }
+        // the remaining block dimensions have size 1, as the number of elements match
+        return true;
+    }
+
+    private A wrap(Object data, int n) {
+        switch (dataType) {
+            case UINT8:
+            case INT8:
+                return data instanceof byte[] && ((byte[]) data).length == n ? Cast.unchecked(new VolatileByteArray((byte[]) data, true)) : null;
+            case UINT16:
+            case INT16:
+                return data instanceof short[] && ((short[]) data).length == n ? Cast.unchecked(new VolatileShortArray((short[]) data, true)) : null;
+            case UINT32:
+            case INT32:
+                return data instanceof int[] && ((int[]) data).length == n ? Cast.unchecked(new VolatileIntArray((int[]) data, true)) : null;
+            case UINT64:
+            case INT64:
+                return data instanceof long[] && ((long[]) data).length == n ? Cast.unchecked(new VolatileLongArray((long[]) data, true)) : null;
+            case FLOAT32:
+                return data instanceof float[] && ((float[]) data).length == n ? Cast.unchecked(new VolatileFloatArray((float[]) data, true)) : null;
+            case FLOAT64:
+                return data instanceof double[] && ((double[]) data).length == n ? Cast.unchecked(new VolatileDoubleArray((double[]) data, true)) : null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return how many blocks were used as cell arrays without copying
+     */
+    public static long getNumWrappedBlocks() {
+        return wrappedBlocks.get();
+    }
+
+    /**
+     * @return how many blocks had to be copied into a new cell array, e.g.
+     * because they were cropped at the border of the image
+     */
+    public static long getNumCopiedBlocks() {
+        return copiedBlocks.get();
+    }
+
+    public static void resetBlockCounts() {
+        wrappedBlocks.set(0);
+        copiedBlocks.set(0);
+    }
+
     public A createEmptyArray(long[] gridPosition) {
         long[] cellDims = getCellDims(gridPosition);
         int n = (int) (cellDims[0] * cellDims[1] * cellDims[2]);
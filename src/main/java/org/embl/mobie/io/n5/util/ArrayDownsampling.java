@@ -0,0 +1,442 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.n5.util;
+
+import java.lang.reflect.Array;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Fraction;
+
+/**
+ * Average downsampling that works directly on the primitive arrays of the
+ * input and output, for uint8, uint16 and float32 images stored in a single
+ * array ({@link ArrayImg}, or the {@link SingleCellArrayImg} of a block of
+ * the previous level) or in one array per plane ({@link PlanarImg}, e.g.
+ * an ImageJ stack, or a cell image with one cell per plane, e.g. a virtual
+ * stack read through a {@link PlaneCache}), and downsampling factors of 1 or
+ * 2 per dimension. This avoids the per pixel RandomAccess and
+ * {@link net.imglib2.type.numeric.real.DoubleType} calls of the Average
+ * {@link DownsampleBlock}. Other sources, e.g. cell images with block shaped
+ * cells like a level that was written and is read back, are not supported.
+ * <p>
+ * The results are the same as those of the Average DownsampleBlock on the input
+ * extended by its border: integer types are summed exactly and divided with
+ * rounding, as the number of summed pixels is a power of two, and float
+ * pixels are summed in the same order as there.
+ * <p>
+ * Mode downsampling of uint32 and uint64 label images is done the same way,
+ * for any downsampling factors, counting the labels of every output pixel
+ * in a LabelHistogram like the Mode DownsampleBlock does.
+ * <p>
+ * Blocks of the full resolution level are copied row by row with
+ * {@link #copy}, instead of pixel by pixel with a CopyBlock.
+ */
+public class ArrayDownsampling {
+
+    private ArrayDownsampling() {
+    }
+
+    /**
+     * Downsamples the pixels of source from sourceMin on into target, if
+     * that is supported for this input, see the class documentation.
+     *
+     * @param source      the image to downsample, extended by its border
+     * @param type        the pixel type of source and target
+     * @param sourceMin   position of the first input pixel, relative to the min of source
+     * @param factors     the downsampling factors
+     * @param method      the downsampling method
+     * @param target      the output block, its size determines the number of input pixels
+     * @return false if this is not supported and nothing was done, in which case
+     * {@link DownsampleBlock} should be used
+     */
+    public static <T extends RealType<T> & NativeType<T>> boolean downsample(
+        final RandomAccessibleInterval<T> source,
+        final T type,
+        final long[] sourceMin,
+        final int[] factors,
+        final DownsampleBlock.DownsamplingMethod method,
+        final SingleCellArrayImg<T, ?> target) {
+        final int n = source.numDimensions();
+        if (n < 1 || n > 3 || target.numDimensions() != n)
+            return false;
+        final Object dst = storageArray(target.update(null));
+        if (dst == null)
+            return false;
+
+        final Class<?> typeClass = type.getClass();
+        switch (method) {
+            case Average:
+                int shift = 0;
+                for (int d = 0; d < n; ++d) {
+                    if (factors[d] != 1 && factors[d] != 2)
+                        return false;
+                    shift += factors[d] - 1;
+                }
+                final Geometry g = new Geometry(source, sourceMin, factors, target);
+                final Object src = sourcePlanes(source, g);
+                if (typeClass == UnsignedByteType.class && src instanceof byte[][] && dst instanceof byte[])
+                    averageUnsignedBytes((byte[][]) src, (byte[]) dst, g, shift);
+                else if (typeClass == UnsignedShortType.class && src instanceof short[][] && dst instanceof short[])
+                    averageUnsignedShorts((short[][]) src, (short[]) dst, g, shift);
+                else if (typeClass == FloatType.class && src instanceof float[][] && dst instanceof float[])
+                    averageFloats((float[][]) src, (float[]) dst, g, 1.0 / (1 << shift));
+                else
+                    return false;
+                return true;
+            case Mode:
+                final Geometry m = new Geometry(source, sourceMin, factors, target);
+                final Object labels = sourcePlanes(source, m);
+                if (typeClass == UnsignedIntType.class && labels instanceof int[][] && dst instanceof int[])
+                    modeUnsignedInts((int[][]) labels, (int[]) dst, m);
+                else if (typeClass == UnsignedLongType.class && labels instanceof long[][] && dst instanceof long[])
+                    modeLongs((long[][]) labels, (long[]) dst, m);
+                else
+                    return false;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Copies the pixels of source from sourceMin on into target, if source
+     * is stored in arrays like target, see the class documentation. This
+     * works for all pixel types with one array element per pixel.
+     *
+     * @param source    the image to copy, extended by its border
+     * @param type      the pixel type of source and target
+     * @param sourceMin position of the first pixel, relative to the min of source
+     * @param target    the output block
+     * @return false if this is not supported and nothing was done, in which case
+     * {@link bdv.export.CopyBlock} should be used
+     */
+    public static <T extends NativeType<T>> boolean copy(
+        final RandomAccessibleInterval<T> source,
+        final T type,
+        final long[] sourceMin,
+        final SingleCellArrayImg<T, ?> target) {
+        final int n = source.numDimensions();
+        if (n < 1 || n > 3 || target.numDimensions() != n)
+            return false;
+        final Fraction entitiesPerPixel = type.getEntitiesPerPixel();
+        if (entitiesPerPixel.getNumerator() != 1 || entitiesPerPixel.getDenominator() != 1)
+            return false;
+        final Object dst = storageArray(target.update(null));
+        if (dst == null)
+            return false;
+        final Geometry g = new Geometry(source, sourceMin, new int[] {1, 1, 1}, target);
+        final Object src = sourcePlanes(source, g);
+        if (src == null || src.getClass().getComponentType() != dst.getClass())
+            return false;
+
+        final Object[] planes = (Object[]) src;
+        final int[] rowPlanes = new int[1];
+        final int[] rows = new int[1];
+        final boolean inside = g.ox >= 0 && g.ox + g.ax <= g.sx;
+        int o = 0;
+        for (int z = 0; z < g.az; ++z) {
+            for (int y = 0; y < g.ay; ++y) {
+                g.rows(y, z, rowPlanes, rows);
+                final Object row = planes[rowPlanes[0]];
+                if (inside) {
+                    System.arraycopy(row, rows[0] + g.ox, dst, o, g.ax);
+                } else {
+                    for (int x = 0; x < g.ax; ++x)
+                        System.arraycopy(row, rows[0] + g.x(x, 0), dst, o + x, 1);
+                }
+                o += g.ax;
+            }
+        }
+        return true;
+    }
+
+    private static Object storageArray(final Object access) {
+        return access instanceof ArrayDataAccess ? ((ArrayDataAccess<?>) access).getCurrentStorageArray() : null;
+    }
+
+    /**
+     * The storage arrays of the source planes g.zMin to g.zMax, as an array of
+     * primitive arrays, e.g. byte[][]. An {@link ArrayImg} or
+     * {@link SingleCellArrayImg} has one plane. The cells of a cell image
+     * that are needed are loaded.
+     *
+     * @return null if source is not stored in arrays
+     */
+    private static Object sourcePlanes(final RandomAccessibleInterval<?> source, final Geometry g) {
+        if (source instanceof ArrayImg || source instanceof SingleCellArrayImg) {
+            final Object array = storageArray(source instanceof ArrayImg ?
+                ((ArrayImg<?, ?>) source).update(null) :
+                ((SingleCellArrayImg<?, ?>) source).update(null));
+            if (array == null)
+                return null;
+            final Object planes = Array.newInstance(array.getClass(), 1);
+            Array.set(planes, 0, array);
+            return planes;
+        }
+        if (source instanceof PlanarImg) {
+            final PlanarImg<?, ?> img = (PlanarImg<?, ?>) source;
+            Object planes = null;
+            for (int z = g.zMin; z <= g.zMax; ++z) {
+                final Object array = storageArray(img.getPlane(z));
+                if (array == null)
+                    return null;
+                if (planes == null)
+                    planes = Array.newInstance(array.getClass(), g.zMax - g.zMin + 1);
+                else if (array.getClass() != planes.getClass().getComponentType())
+                    return null;
+                Array.set(planes, z - g.zMin, array);
+            }
+            return planes;
+        }
+        if (source instanceof AbstractCellImg && hasPlaneCells((AbstractCellImg<?, ?, ?, ?>) source))
+            return cellPlanes((AbstractCellImg<?, ?, ?, ?>) source, g);
+        return null;
+    }
+
+    /**
+     * Whether every cell of img holds whole xy planes, one plane per cell if
+     * img is 3D, such that the cells can be read like the planes of a
+     * {@link PlanarImg}.
+     */
+    private static boolean hasPlaneCells(final AbstractCellImg<?, ?, ?, ?> img) {
+        final CellGrid grid = img.getCellGrid();
+        for (int d = 0; d < grid.numDimensions(); ++d)
+            if (grid.cellDimension(d) != (d < 2 ? grid.imgDimension(d) : 1))
+                return false;
+        return true;
+    }
+
+    private static <C extends Cell<?>> Object cellPlanes(final AbstractCellImg<?, ?, C, ?> img, final Geometry g) {
+        final RandomAccess<C> cells = img.getCells().randomAccess();
+        final long[] position = new long[img.numDimensions()];
+        Object planes = null;
+        for (int z = g.zMin; z <= g.zMax; ++z) {
+            if (position.length > 2)
+                position[2] = z;
+            cells.setPosition(position);
+            final Object array = storageArray(cells.get().getData());
+            if (array == null)
+                return null;
+            if (planes == null)
+                planes = Array.newInstance(array.getClass(), g.zMax - g.zMin + 1);
+            else if (array.getClass() != planes.getClass().getComponentType())
+                return null;
+            Array.set(planes, z - g.zMin, array);
+        }
+        return planes;
+    }
+
+    private static void averageUnsignedBytes(final byte[][] src, final byte[] dst, final Geometry g, final int shift) {
+        final int[] rowPlanes = new int[g.fy * g.fz];
+        final int[] rows = new int[g.fy * g.fz];
+        final int half = (1 << shift) >> 1;
+        int o = 0;
+        for (int z = 0; z < g.az; ++z) {
+            for (int y = 0; y < g.ay; ++y) {
+                final int numRows = g.rows(y, z, rowPlanes, rows);
+                for (int x = 0; x < g.ax; ++x) {
+                    final int x0 = g.x(x, 0);
+                    final int x1 = g.x(x, 1);
+                    int sum = 0;
+                    for (int r = 0; r < numRows; ++r) {
+                        sum += src[rowPlanes[r]][rows[r] + x0] & 0xff;
+                        if (g.fx == 2)
+                            sum += src[rowPlanes[r]][rows[r] + x1] & 0xff;
+                    }
+                    dst[o++] = (byte) ((sum + half) >> shift);
+                }
+            }
+        }
+    }
+
+    private static void averageUnsignedShorts(final short[][] src, final short[] dst, final Geometry g, final int shift) {
+        final int[] rowPlanes = new int[g.fy * g.fz];
+        final int[] rows = new int[g.fy * g.fz];
+        final int half = (1 << shift) >> 1;
+        int o = 0;
+        for (int z = 0; z < g.az; ++z) {
+            for (int y = 0; y < g.ay; ++y) {
+                final int numRows = g.rows(y, z, rowPlanes, rows);
+                for (int x = 0; x < g.ax; ++x) {
+                    final int x0 = g.x(x, 0);
+                    final int x1 = g.x(x, 1);
+                    int sum = 0;
+                    for (int r = 0; r < numRows; ++r) {
+                        sum += src[rowPlanes[r]][rows[r] + x0] & 0xffff;
+                        if (g.fx == 2)
+                            sum += src[rowPlanes[r]][rows[r] + x1] & 0xffff;
+                    }
+                    dst[o++] = (short) ((sum + half) >> shift);
+                }
+            }
+        }
+    }
+
+    private static void averageFloats(final float[][] src, final float[] dst, final Geometry g, final double scale) {
+        final int[] rowPlanes = new int[g.fy * g.fz];
+        final int[] rows = new int[g.fy * g.fz];
+        int o = 0;
+        for (int z = 0; z < g.az; ++z) {
+            for (int y = 0; y < g.ay; ++y) {
+                final int numRows = g.rows(y, z, rowPlanes, rows);
+                for (int x = 0; x < g.ax; ++x) {
+                    final int x0 = g.x(x, 0);
+                    final int x1 = g.x(x, 1);
+                    double sum = 0;
+                    for (int r = 0; r < numRows; ++r) {
+                        sum += src[rowPlanes[r]][rows[r] + x0];
+                        if (g.fx == 2)
+                            sum += src[rowPlanes[r]][rows[r] + x1];
+                    }
+                    dst[o++] = (float) (sum * scale);
+                }
+            }
+        }
+    }
+
+    private static void modeUnsignedInts(final int[][] src, final int[] dst, final Geometry g) {
+        final int[] rowPlanes = new int[g.fy * g.fz];
+        final int[] rows = new int[g.fy * g.fz];
+        final LabelHistogram histogram = new LabelHistogram(g.fx * g.fy * g.fz);
+        int o = 0;
+        for (int z = 0; z < g.az; ++z) {
+            for (int y = 0; y < g.ay; ++y) {
+                final int numRows = g.rows(y, z, rowPlanes, rows);
+                for (int x = 0; x < g.ax; ++x) {
+                    for (int r = 0; r < numRows; ++r)
+                        for (int j = 0; j < g.fx; ++j)
+                            histogram.add(src[rowPlanes[r]][rows[r] + g.x(x, j)] & 0xffffffffL);
+                    dst[o++] = (int) histogram.mode();
+                    histogram.clear();
+                }
+            }
+        }
+    }
+
+    private static void modeLongs(final long[][] src, final long[] dst, final Geometry g) {
+        final int[] rowPlanes = new int[g.fy * g.fz];
+        final int[] rows = new int[g.fy * g.fz];
+        final LabelHistogram histogram = new LabelHistogram(g.fx * g.fy * g.fz);
+        int o = 0;
+        for (int z = 0; z < g.az; ++z) {
+            for (int y = 0; y < g.ay; ++y) {
+                final int numRows = g.rows(y, z, rowPlanes, rows);
+                for (int x = 0; x < g.ax; ++x) {
+                    for (int r = 0; r < numRows; ++r)
+                        for (int j = 0; j < g.fx; ++j)
+                            histogram.add(src[rowPlanes[r]][rows[r] + g.x(x, j)]);
+                    dst[o++] = histogram.mode();
+                    histogram.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Sizes of the source and target as 3D, and the mapping of target to
+     * source pixels, clamped to the source like an extendBorder view.
+     * <p>
+     * For a {@link PlanarImg}, rows are addressed by the index of their
+     * plane, counted from zMin, and their offset in the plane. Otherwise
+     * there is only one plane.
+     */
+    private static class Geometry {
+        final int sx, sy, sz;
+        final int ox, oy, oz;
+        final int fx, fy, fz;
+        final int ax, ay, az;
+        final boolean planar;
+        final int zMin, zMax;
+
+        Geometry(final RandomAccessibleInterval<?> source, final long[] sourceMin, final int[] factors, final RandomAccessibleInterval<?> target) {
+            final int n = source.numDimensions();
+            sx = (int) source.dimension(0);
+            sy = n > 1 ? (int) source.dimension(1) : 1;
+            sz = n > 2 ? (int) source.dimension(2) : 1;
+            ox = (int) sourceMin[0];
+            oy = n > 1 ? (int) sourceMin[1] : 0;
+            oz = n > 2 ? (int) sourceMin[2] : 0;
+            fx = factors[0];
+            fy = n > 1 ? factors[1] : 1;
+            fz = n > 2 ? factors[2] : 1;
+            ax = (int) target.dimension(0);
+            ay = n > 1 ? (int) target.dimension(1) : 1;
+            az = n > 2 ? (int) target.dimension(2) : 1;
+            planar = n == 3 && (source instanceof PlanarImg || source instanceof AbstractCellImg);
+            zMin = planar ? clamp(oz, sz) : 0;
+            zMax = planar ? clamp(oz + az * fz - 1, sz) : 0;
+        }
+
+        /**
+         * @return the source index of the j-th input pixel of target pixel x
+         */
+        int x(final int x, final int j) {
+            return clamp(ox + x * fx + j, sx);
+        }
+
+        /**
+         * Fills rowPlanes and rows with the planes and offsets of the source
+         * rows that target row (y, z) is computed from, in z, y order.
+         *
+         * @return the number of rows
+         */
+        int rows(final int y, final int z, final int[] rowPlanes, final int[] rows) {
+            int r = 0;
+            for (int bz = 0; bz < fz; ++bz) {
+                final int sourceZ = clamp(oz + z * fz + bz, sz);
+                final int plane = planar ? sourceZ - zMin : 0;
+                final int zOffset = planar ? 0 : sourceZ * sy;
+                for (int by = 0; by < fy; ++by) {
+                    rowPlanes[r] = plane;
+                    rows[r++] = (zOffset + clamp(oy + y * fy + by, sy)) * sx;
+                }
+            }
+            return r;
+        }
+
+        private static int clamp(final int i, final int size) {
+            return i < 0 ? 0 : i >= size ? size - 1 : i;
+        }
+    }
+}
@@ -0,0 +1,384 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.n5.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import bdv.export.ExportMipmapInfo;
+import lombok.extern.slf4j.Slf4j;
+import net.imglib2.Interval;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.util.IntervalIndexer;
+
+/**
+ * Records which chunks of an export are completely written, one bit per
+ * chunk of every resolution level of every setup and timepoint, so that an
+ * interrupted export can be resumed without writing those chunks again, see
+ * {@link ResumableDatasetIO}.
+ * <p>
+ * The manifest is kept in a small binary file, next to the container by
+ * default ({@link #forContainer}). It is saved when a level is flushed and,
+ * while chunks are written, at most every {@link #getSaveIntervalMillis()}
+ * milliseconds. A chunk is only recorded after it was written, so the saved
+ * manifest never lists a chunk that is missing in the container.
+ * <p>
+ * The manifest is written outside of the lock that guards it, so threads that
+ * record chunks do not wait for the file system.
+ * <p>
+ * For an incremental export, {@link #invalidate} the region of the original
+ * image that changed before exporting again; only the chunks of all levels
+ * that are computed from that region are then written.
+ */
+@Slf4j
+public class ChunkManifest {
+    public static final String EXTENSION = ".manifest";
+    public static final long DEFAULT_SAVE_INTERVAL_MILLIS = 10_000;
+
+    private static final int MAGIC = 0x4d4f4243; // "MOBC"
+    private static final int VERSION = 2;
+
+    private final Path file;
+    private final Map<String, Level> levels = new LinkedHashMap<>();
+    // serializes the writes of the file, so that a newer state is never overwritten by an older one
+    private final ReentrantLock saveLock = new ReentrantLock();
+    private long saveIntervalMillis = DEFAULT_SAVE_INTERVAL_MILLIS;
+    private long lastSaveMillis = System.currentTimeMillis();
+    private boolean modified;
+
+    private ChunkManifest(final Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens the manifest stored in file, or creates an empty one if file does
+     * not exist.
+     */
+    public static ChunkManifest open(final File file) throws IOException {
+        final ChunkManifest manifest = new ChunkManifest(file.toPath());
+        if (file.exists())
+            manifest.read();
+        return manifest;
+    }
+
+    /**
+     * Opens the manifest for the container at containerFile, which is stored
+     * next to it with {@link #EXTENSION} appended to its name.
+     */
+    public static ChunkManifest forContainer(final File containerFile) throws IOException {
+        final File absolute = containerFile.getAbsoluteFile();
+        return open(new File(absolute.getParentFile(), absolute.getName() + EXTENSION));
+    }
+
+    public File getFile() {
+        return file.toFile();
+    }
+
+    public synchronized long getSaveIntervalMillis() {
+        return saveIntervalMillis;
+    }
+
+    public synchronized void setSaveIntervalMillis(final long saveIntervalMillis) {
+        this.saveIntervalMillis = saveIntervalMillis;
+    }
+
+    /**
+     * Returns the chunks of level of setupId and timepointId, for an export
+     * without further settings.
+     */
+    public Level getLevel(final int setupId, final int timepointId, final int level, final long[] dimensions, final int[] chunkSize) {
+        return getLevel(setupId, timepointId, level, dimensions, chunkSize, "");
+    }
+
+    /**
+     * Returns the chunks of level of setupId and timepointId. If the manifest
+     * has them for different dimensions, chunk sizes or settings, they are
+     * discarded, as the image or the export settings have changed.
+     *
+     * @param settings the other settings the chunks of the level depend on,
+     *                 e.g. compression and downsampling method
+     */
+    public synchronized Level getLevel(final int setupId, final int timepointId, final int level, final long[] dimensions, final int[] chunkSize, final String settings) {
+        final String key = key(setupId, timepointId, level);
+        final Level existing = levels.get(key);
+        if (existing != null && Arrays.equals(existing.dimensions, dimensions) && Arrays.equals(existing.chunkSize, chunkSize) && existing.settings.equals(settings))
+            return existing;
+        if (existing != null)
+            log.warn("Dimensions, chunk size or settings of " + key + " changed, writing all of its chunks again");
+        final Level created = new Level(dimensions.clone(), chunkSize.clone(), settings, new BitSet());
+        levels.put(key, created);
+        modified = true;
+        return created;
+    }
+
+    /**
+     * Marks all chunks of setupId and timepointId as not written that are
+     * computed from the pixels of the original image in region, so that the
+     * next export writes them again.
+     *
+     * @param mipmapInfo the downsampling factors of the levels, as used for the export
+     * @param region     the changed region of the full resolution image
+     * @return the number of chunks that were written before
+     */
+    public synchronized long invalidate(final int setupId, final int timepointId, final ExportMipmapInfo mipmapInfo, final Interval region) {
+        final int[][] resolutions = mipmapInfo.getExportResolutions();
+        long numInvalidated = 0;
+        for (int l = 0; l < mipmapInfo.getNumLevels(); ++l) {
+            final Level level = levels.get(key(setupId, timepointId, l));
+            if (level != null)
+                numInvalidated += level.invalidate(region, resolutions[l]);
+        }
+        if (numInvalidated > 0)
+            modified = true;
+        return numInvalidated;
+    }
+
+    /**
+     * Forgets all chunks of setupId and timepointId.
+     */
+    public synchronized void clear(final int setupId, final int timepointId) {
+        modified |= levels.keySet().removeIf(key -> key.startsWith(setupId + "/" + timepointId + "/"));
+    }
+
+    /**
+     * Writes the manifest to its file, if it changed since it was last
+     * saved.
+     */
+    public void save() throws IOException {
+        saveLock.lock();
+        try {
+            final byte[] bytes;
+            synchronized (this) {
+                if (!modified)
+                    return;
+                bytes = toByteArray();
+                modified = false;
+                lastSaveMillis = System.currentTimeMillis();
+            }
+            try {
+                write(bytes);
+            } catch (final IOException e) {
+                synchronized (this) {
+                    modified = true;
+                }
+                throw e;
+            }
+        } finally {
+            saveLock.unlock();
+        }
+    }
+
+    /**
+     * Saves the manifest if the save interval has passed and no other thread
+     * is saving it.
+     */
+    private void saveIfDue() {
+        synchronized (this) {
+            if (!modified || System.currentTimeMillis() - lastSaveMillis < saveIntervalMillis)
+                return;
+        }
+        if (!saveLock.tryLock())
+            return;
+        try {
+            save();
+        } catch (final IOException e) {
+            // try again after the next interval, or when the level is flushed
+            log.warn("Could not save " + file + ": " + e.getMessage());
+        } finally {
+            saveLock.unlock();
+        }
+    }
+
+    private byte[] toByteArray() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(levels.size());
+            for (final Map.Entry<String, Level> entry : levels.entrySet()) {
+                final Level level = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeUTF(level.settings);
+                out.writeInt(level.dimensions.length);
+                for (int d = 0; d < level.dimensions.length; ++d) {
+                    out.writeLong(level.dimensions[d]);
+                    out.writeInt(level.chunkSize[d]);
+                }
+                final long[] words = level.written.toLongArray();
+                out.writeInt(words.length);
+                for (final long word : words)
+                    out.writeLong(word);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private void write(final byte[] bytes) throws IOException {
+        final Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        final Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            Files.write(tmp, bytes);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private void read() throws IOException {
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException(file + " is not a chunk manifest");
+            final int version = in.readInt();
+            if (version != 1 && version != VERSION)
+                throw new IOException(file + ": unsupported chunk manifest version " + version);
+            final int numLevels = in.readInt();
+            for (int i = 0; i < numLevels; ++i) {
+                final String key = in.readUTF();
+                // version 1 did not record settings, so its levels are only kept for exports without settings
+                final String settings = version == 1 ? "" : in.readUTF();
+                final int n = in.readInt();
+                final long[] dimensions = new long[n];
+                final int[] chunkSize = new int[n];
+                for (int d = 0; d < n; ++d) {
+                    dimensions[d] = in.readLong();
+                    chunkSize[d] = in.readInt();
+                }
+                final long[] words = new long[in.readInt()];
+                for (int w = 0; w < words.length; ++w)
+                    words[w] = in.readLong();
+                levels.put(key, new Level(dimensions, chunkSize, settings, BitSet.valueOf(words)));
+            }
+        }
+    }
+
+    private static String key(final int setupId, final int timepointId, final int level) {
+        return setupId + "/" + timepointId + "/" + level;
+    }
+
+    /**
+     * The chunks of one resolution level of a setup and timepoint.
+     */
+    public class Level {
+        private final long[] dimensions;
+        private final int[] chunkSize;
+        private final String settings;
+        private final long[] gridDimensions;
+        private final BitSet written;
+
+        private Level(final long[] dimensions, final int[] chunkSize, final String settings, final BitSet written) {
+            this.dimensions = dimensions;
+            this.chunkSize = chunkSize;
+            this.settings = settings;
+            this.gridDimensions = new CellGrid(dimensions, chunkSize).getGridDimensions();
+            this.written = written;
+        }
+
+        public long[] getGridDimensions() {
+            return gridDimensions.clone();
+        }
+
+        public boolean isWritten(final long[] gridPosition) {
+            final int index = index(gridPosition);
+            synchronized (ChunkManifest.this) {
+                return written.get(index);
+            }
+        }
+
+        /**
+         * Records that the chunk at gridPosition was written and saves the
+         * manifest if the save interval has passed.
+         */
+        public void setWritten(final long[] gridPosition) {
+            final int index = index(gridPosition);
+            synchronized (ChunkManifest.this) {
+                if (!written.get(index)) {
+                    written.set(index);
+                    modified = true;
+                }
+            }
+            saveIfDue();
+        }
+
+        public long getNumWritten() {
+            synchronized (ChunkManifest.this) {
+                return written.cardinality();
+            }
+        }
+
+        private int index(final long[] gridPosition) {
+            final long index = IntervalIndexer.positionToIndex(gridPosition, gridDimensions);
+            if (index > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("Too many chunks: " + Arrays.toString(gridDimensions));
+            return (int) index;
+        }
+
+        private long invalidate(final Interval region, final int[] resolution) {
+            final int n = gridDimensions.length;
+            final long[] min = new long[n];
+            final long[] max = new long[n];
+            for (int d = 0; d < n; ++d) {
+                // level pixel x is computed from the original pixels [x * resolution, (x + 1) * resolution)
+                min[d] = Math.max(region.min(d), 0) / resolution[d] / chunkSize[d];
+                max[d] = Math.min(region.max(d) / resolution[d] / chunkSize[d], gridDimensions[d] - 1);
+                if (max[d] < min[d])
+                    return 0;
+            }
+            long numInvalidated = 0;
+            final long[] position = min.clone();
+            while (true) {
+                final int index = index(position);
+                if (written.get(index)) {
+                    written.clear(index);
+                    ++numInvalidated;
+                }
+                int d = 0;
+                while (d < n && position[d] == max[d]) {
+                    position[d] = min[d];
+                    ++d;
+                }
+                if (d == n)
+                    return numInvalidated;
+                ++position[d];
+            }
+        }
+    }
+}
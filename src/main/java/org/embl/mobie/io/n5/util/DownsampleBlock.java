@@ -31,15 +31,11 @@ package org.embl.mobie.io.n5.util;
 
 import java.util.Arrays;
 
-import gnu.trove.iterator.TLongLongIterator;
-import gnu.trove.map.hash.TLongLongHashMap;
-import net.imglib2.AbstractLocalizableInt;
 import net.imglib2.Cursor;
-import net.imglib2.Localizable;
 import net.imglib2.RandomAccess;
-import net.imglib2.Sampler;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.loops.ClassCopyProvider;
+import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.util.Intervals;
@@ -383,12 +379,19 @@ class DownsampleBlockInstances {
         }
     }
 
+    /**
+     * Sets every output pixel to the most frequent label of the input pixels
+     * it is computed from, see {@link LabelHistogram}. Integer pixels are
+     * read and written as integers, so that uint64 labels are not rounded.
+     */
     public static class ModeDownsampler<T extends RealType<T>> implements DownsampleBlock<T> {
         private final int n;
 
         private final int[] downsamplingFactors;
 
-        private final TLongLongHashMapRandomAccess acc;
+        private final LabelHistogram histogram;
+
+        private boolean integer;
 
         public ModeDownsampler(
             final int[] blockDimensions,
@@ -399,10 +402,7 @@ class DownsampleBlockInstances {
 
             this.downsamplingFactors = downsamplingFactors;
 
-            final int[] dims = new int[n];
-            Arrays.setAll(dims, d -> blockDimensions[d]);
-
-            acc = new TLongLongHashMapRandomAccess(dims);
+            histogram = new LabelHistogram((int) Intervals.numElements(downsamplingFactors));
         }
 
         @Override
@@ -410,238 +410,51 @@ class DownsampleBlockInstances {
             final RandomAccess<T> in,
             final Cursor<T> out, // must be flat iteration order
             final int[] dimensions) {
-            clearAccumulator();
-
-            if (n == 3) {
-                downsampleBlock3D(acc, dimensions[0], dimensions[1], dimensions[2], in);
-                writeOutput3D(out, dimensions[0], dimensions[1], dimensions[2], acc);
-            } else if (n == 2) {
-                downsampleBlock2D(acc, dimensions[0], dimensions[1], in);
-                writeOutput2D(out, dimensions[0], dimensions[1], acc);
-            } else {
-                downsampleBlock1D(acc, dimensions[0], in);
-                writeOutput1D(out, dimensions[0], acc);
-            }
+            integer = in.get() instanceof IntegerType;
+            downsample(n - 1, in, out, dimensions);
         }
 
-        private void clearAccumulator() {
-            acc.init();
-        }
-
-        private void downsampleBlock3D(
-            final TLongLongHashMapRandomAccess acc,
-            final int asx, // size of output (resp accumulator) image
-            final int asy,
-            final int asz,
-            final RandomAccess<T> in) {
-            final int bsz = downsamplingFactors[2];
-            final int sz = asz * bsz;
-            for (int z = 0, bz = 0; z < sz; ++z) {
-                downsampleBlock2D(acc, asx, asy, in);
-                in.fwd(2);
-                if (++bz == bsz) {
-                    bz = 0;
-                    acc.fwd(2);
-                }
-            }
-            in.move(-sz, 2);
-            acc.move(-asz, 2);
-        }
-
-        private void downsampleBlock2D(
-            final TLongLongHashMapRandomAccess acc,
-            final int asx, // size of output (resp accumulator) image
-            final int asy,
-            final RandomAccess<T> in) {
-            final int bsy = downsamplingFactors[1];
-            final int sy = asy * bsy;
-            for (int y = 0, by = 0; y < sy; ++y) {
-                downsampleBlock1D(acc, asx, in);
-                in.fwd(1);
-                if (++by == bsy) {
-                    by = 0;
-                    acc.fwd(1);
-                }
-            }
-            in.move(-sy, 1);
-            acc.move(-asy, 1);
-        }
-
-        private void downsampleBlock1D(
-            final TLongLongHashMapRandomAccess acc,
-            final int asx, // size of output (resp accumulator) image
-            final RandomAccess<T> in) {
-            final int bsx = downsamplingFactors[0];
-            final int sx = asx * bsx;
-            for (int x = 0, bx = 0; x < sx; ++x) {
-                final long value = (long) in.get().getRealDouble();
-                final TLongLongHashMap map = acc.get();
-                final long newCount = map.get(value) + 1;
-                map.put(value, newCount);
-
-                in.fwd(0);
-                if (++bx == bsx) {
-                    bx = 0;
-                    acc.fwd(0);
-                }
-            }
-            in.move(-sx, 0);
-            acc.move(-asx, 0);
-        }
-
-        private void writeOutput3D(
-            final Cursor<T> out, // must be flat iteration order
-            final int asx, // size of output (resp accumulator) image
-            final int asy,
-            final int asz,
-            final TLongLongHashMapRandomAccess acc) {
-            for (int z = 0; z < asz; ++z) {
-                writeOutput2D(out, asx, asy, acc);
-                acc.fwd(2);
-            }
-            acc.move(-asz, 2);
-        }
-
-        private void writeOutput2D(
-            final Cursor<T> out, // must be flat iteration order
-            final int asx, // size of output (resp accumulator) image
-            final int asy,
-            final TLongLongHashMapRandomAccess acc) {
-            for (int y = 0; y < asy; ++y) {
-                writeOutput1D(out, asx, acc);
-                acc.fwd(1);
-            }
-            acc.move(-asy, 1);
-        }
-
-        private void writeOutput1D(
+        private void downsample(
+            final int d,
+            final RandomAccess<T> in,
             final Cursor<T> out, // must be flat iteration order
-            final int asx, // size of output (resp accumulator) image
-            final TLongLongHashMapRandomAccess acc) {
-            for (int x = 0; x < asx; ++x) {
-                long label = getLabel(acc);
-                out.next().setReal(label);
-                acc.fwd(0);
+            final int[] dimensions) { // size of output image
+            final int f = downsamplingFactors[d];
+            final int size = dimensions[d];
+            for (int a = 0; a < size; ++a) {
+                if (d == 0) {
+                    accumulate(n - 1, in);
+                    writeOutput(out.next(), histogram.mode());
+                    histogram.clear();
+                } else {
+                    downsample(d - 1, in, out, dimensions);
+                }
+                in.move(f, d);
             }
-            acc.move(-asx, 0);
+            in.move(-f * size, d);
         }
 
-        private long getLabel(TLongLongHashMapRandomAccess acc) {
-            final TLongLongIterator iterator = acc.get().iterator();
-            long maxCount = 0;
-            long label = 0;
-            while (iterator.hasNext()) {
-                iterator.advance();
-                if (iterator.value() > maxCount) {
-                    maxCount = iterator.value();
-                    label = iterator.key();
-                }
+        private void accumulate(final int d, final RandomAccess<T> in) {
+            final int f = downsamplingFactors[d];
+            for (int b = 0; b < f; ++b) {
+                if (d == 0)
+                    histogram.add(readInput(in.get()));
+                else
+                    accumulate(d - 1, in);
+                in.fwd(d);
             }
-            return label;
+            in.move(-f, d);
         }
-    }
-
-    public static class TLongLongHashMapRandomAccess extends AbstractLocalizableInt implements RandomAccess<TLongLongHashMap> {
-        private final int[] dims;
-        private TLongLongHashMap[][][] maps;
-
-        public TLongLongHashMapRandomAccess(int[] dims) {
-            super(dims.length);
 
-            this.dims = dims;
-            init();
+        private long readInput(final T t) {
+            return integer ? ((IntegerType<?>) t).getIntegerLong() : (long) t.getRealDouble();
         }
 
-        public void init() {
-            if (dims.length == 1)
-                maps = new TLongLongHashMap[dims[0]][1][1];
-            else if (dims.length == 2)
-                maps = new TLongLongHashMap[dims[0]][dims[1]][1];
-            else if (dims.length == 3)
-                maps = new TLongLongHashMap[dims[0]][dims[1]][dims[2]];
+        private void writeOutput(final T t, final long label) {
+            if (integer)
+                ((IntegerType<?>) t).setInteger(label);
             else
-                throw new UnsupportedOperationException("The number of dimensions must be  <= 3");
-
-            for (int x = 0; x < dims[0]; x++)
-                for (int y = 0; y < dims[1]; y++)
-                    for (int z = 0; z < dims[2]; z++)
-                        maps[x][y][z] = new TLongLongHashMap();
-        }
-
-        @Override
-        public RandomAccess<TLongLongHashMap> copyRandomAccess() {
-            throw new UnsupportedOperationException();
-        }
-
-        @Override
-        public void fwd(int d) {
-            position[d]++;
-        }
-
-        @Override
-        public void bck(int d) {
-            position[d]--;
-        }
-
-        @Override
-        public void move(int distance, int d) {
-            position[d] += distance;
-        }
-
-        @Override
-        public void move(long distance, int d) {
-            position[d] += distance;
-        }
-
-        @Override
-        public void move(Localizable distance) {
-            throw new UnsupportedOperationException();
-        }
-
-        @Override
-        public void move(int[] distance) {
-            throw new UnsupportedOperationException();
-        }
-
-        @Override
-        public void move(long[] distance) {
-            throw new UnsupportedOperationException();
-        }
-
-        @Override
-        public void setPosition(Localizable position) {
-            throw new UnsupportedOperationException();
-        }
-
-        @Override
-        public void setPosition(int[] position) {
-            throw new UnsupportedOperationException();
-        }
-
-        @Override
-        public void setPosition(long[] position) {
-            throw new UnsupportedOperationException();
-        }
-
-        @Override
-        public void setPosition(int position, int d) {
-            throw new UnsupportedOperationException();
-        }
-
-        @Override
-        public void setPosition(long position, int d) {
-            throw new UnsupportedOperationException();
-        }
-
-        @Override
-        public TLongLongHashMap get() {
-            return maps[position[0]][position[1]][position[2]];
-        }
-
-        @Override
-        public Sampler<TLongLongHashMap> copy() {
-            throw new UnsupportedOperationException();
+                t.setReal(label);
         }
     }
 }
-
@@ -0,0 +1,134 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.n5.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import bdv.export.ExportMipmapInfo;
+
+/**
+ * The amount of heap an export may use, and the peak heap usage observed
+ * while exporting.
+ * <p>
+ * Half of the budget is given to the cache of source planes, see
+ * {@link PlaneCache}. The other half is left for the blocks that are being
+ * downsampled, encoded and written. It bounds the number of views that are
+ * written in parallel, see {@link #getNumParallelViews}.
+ * <p>
+ * The used heap is sampled with {@link #sample()}, e.g. after each "plane of
+ * blocks". As it includes garbage that has not been collected yet, the peak
+ * is an upper bound of what the export actually needed.
+ */
+public class ExportMemoryBudget {
+
+    private final long budgetInBytes;
+    private final AtomicLong peakUsedBytes = new AtomicLong();
+
+    public ExportMemoryBudget(final long budgetInBytes) {
+        if (budgetInBytes <= 0)
+            throw new IllegalArgumentException("budgetInBytes must be positive: " + budgetInBytes);
+        this.budgetInBytes = budgetInBytes;
+    }
+
+    public long getBudgetInBytes() {
+        return budgetInBytes;
+    }
+
+    public long getPlaneCacheBudgetInBytes() {
+        return budgetInBytes / 2;
+    }
+
+    public long getBlockBudgetInBytes() {
+        return budgetInBytes - getPlaneCacheBudgetInBytes();
+    }
+
+    /**
+     * An estimate of the heap that writing the scale pyramid of one view
+     * takes at least: for every level, one z row of its blocks. With a
+     * {@link ExportScalePyramid.SinglePassHeuristic}, these are the blocks
+     * of the coarser levels that are partially downsampled from the blocks
+     * of the previous level. If not even this fits, the export is rejected,
+     * see {@link #getNumParallelViews}.
+     *
+     * @param dimensions    size of the full resolution image
+     * @param mipmapInfo    the levels of the export
+     * @param bytesPerPixel size of one pixel of the exported data type
+     */
+    public static long getMinViewWorkingSetInBytes(final long[] dimensions, final ExportMipmapInfo mipmapInfo, final int bytesPerPixel) {
+        final int[][] resolutions = mipmapInfo.getExportResolutions();
+        final int[][] subdivisions = mipmapInfo.getSubdivisions();
+        long numPixels = 0;
+        for (int level = 0; level < mipmapInfo.getNumLevels(); ++level) {
+            final long width = Math.max(dimensions[0] / resolutions[level][0], 1);
+            final long height = Math.max(dimensions[1] / resolutions[level][1], 1);
+            numPixels += width * height * subdivisions[level][2];
+        }
+        return numPixels * bytesPerPixel;
+    }
+
+    /**
+     * The number of views that fit into the part of the budget that is left
+     * for blocks, see {@link #getBlockBudgetInBytes()}.
+     *
+     * @param viewWorkingSetInBytes the heap one view takes at least, see
+     *                              {@link #getMinViewWorkingSetInBytes}
+     * @param numRequestedViews     the number of views that should be
+     *                              written in parallel
+     * @return numRequestedViews or, if they do not fit, fewer
+     * @throws IllegalArgumentException if not even one view fits
+     */
+    public int getNumParallelViews(final long viewWorkingSetInBytes, final int numRequestedViews) {
+        final long numViews = getBlockBudgetInBytes() / Math.max(viewWorkingSetInBytes, 1);
+        if (numViews < 1)
+            throw new IllegalArgumentException("Memory budget of " + toMegaBytes(budgetInBytes)
+                + " is too small, writing a view takes at least " + toMegaBytes(viewWorkingSetInBytes)
+                + " but only " + toMegaBytes(getBlockBudgetInBytes()) + " are left for blocks");
+        return (int) Math.min(numRequestedViews, numViews);
+    }
+
+    /**
+     * Samples the used heap and updates the peak.
+     *
+     * @return the used heap in bytes
+     */
+    public long sample() {
+        final Runtime runtime = Runtime.getRuntime();
+        final long usedBytes = runtime.totalMemory() - runtime.freeMemory();
+        peakUsedBytes.accumulateAndGet(usedBytes, Math::max);
+        return usedBytes;
+    }
+
+    public long getPeakUsedBytes() {
+        return peakUsedBytes.get();
+    }
+
+    public static String toMegaBytes(final long bytes) {
+        return String.format("%.1f MB", bytes / 1000000.0);
+    }
+}
@@ -63,6 +63,14 @@ import net.imglib2.view.Views;
 public class ExportScalePyramid {
     /**
      * Write an image to a chunked mipmap representation.
+     * <p>
+     * Blocks are copied and downsampled on the primitive arrays of img if it
+     * is stored in arrays, e.g. an ImageJ stack or a virtual stack with one
+     * cell per plane, see {@link ArrayDownsampling}. Levels that are
+     * downsampled from a level read back through the loopback heuristic
+     * take the slower per pixel path, while with a {@link SinglePassHeuristic}
+     * every coarser level is downsampled from the arrays of the blocks of the
+     * previous level.
      *
      * @param img               the image to be written.
      * @param type              instance of the pixel type of the image.
@@ -75,7 +83,9 @@ public class ExportScalePyramid {
      * @param loopbackHeuristic heuristic to decide whether to create each resolution level by
      *                          reading pixels from the original image or by reading back a
      *                          finer resolution level already written to the hdf5. may be
-     *                          null (in this case always use the original image).
+     *                          null (in this case always use the original image). A
+     *                          {@link SinglePassHeuristic} creates all levels in a single
+     *                          pass over the original image.
      * @param afterEachPlane    this is called after each "plane of blocks" is written, giving
      *                          the opportunity to clear caches, etc. may be null.
      * @param progressWriter    completion ratio and status output will be directed here. may
@@ -100,6 +110,12 @@ public class ExportScalePyramid {
         if (progressWriter == null)
             progressWriter = new ProgressWriterNull();
 
+        if (loopbackHeuristic instanceof SinglePassHeuristic && supportsSinglePass(mipmapInfo)) {
+            progressWriter.out().println("writing levels 0 to " + (mipmapInfo.getNumLevels() - 1));
+            new SinglePassScalePyramid<>(img, type, mipmapInfo, downsamplingMethod, io).write(executorService, numThreads, afterEachPlane, progressWriter);
+            return;
+        }
+
         // for progressWriter
         final int numTasks = mipmapInfo.getNumLevels();
         int numCompletedTasks = 0;
@@ -218,20 +234,26 @@ public class ExportScalePyramid {
                         for (int i = nextCellInPlane.getAndIncrement(); i < numBlocksPerPlane; i = nextCellInPlane.getAndIncrement()) {
                             final long index = planeBaseIndex + i;
 
-                            grid.getCellDimensions(index, currentCellMin, currentCellDim);
                             grid.getCellGridPositionFlat(index, currentCellPos);
+                            if (io.isBlockDone(dataset, currentCellPos))
+                                continue;
+                            grid.getCellDimensions(index, currentCellMin, currentCellDim);
                             final Block<T> block = blockCreator.create(currentCellDim, currentCellMin, currentCellPos);
 
                             if (fullResolution) {
-                                final RandomAccess<T> out = block.getData().randomAccess();
-                                in.setPosition(currentCellMin);
-                                out.setPosition(currentCellMin);
-                                copyBlock.copyBlock(in, out, currentCellDim);
+                                if (!ArrayDownsampling.copy(sourceImg, type, currentCellMin, block.getData())) {
+                                    final RandomAccess<T> out = block.getData().randomAccess();
+                                    in.setPosition(currentCellMin);
+                                    out.setPosition(currentCellMin);
+                                    copyBlock.copyBlock(in, out, currentCellDim);
+                                }
                             } else {
                                 for (int d = 0; d < n; ++d)
                                     blockMin[d] = currentCellMin[d] * factor[d];
-                                in.setPosition(blockMin);
-                                downsampleBlock.downsampleBlock(in, block.getData().cursor(), currentCellDim);
+                                if (!ArrayDownsampling.downsample(sourceImg, type, blockMin, factor, downsamplingMethod, block.getData())) {
+                                    in.setPosition(blockMin);
+                                    downsampleBlock.downsampleBlock(in, block.getData().cursor(), currentCellDim);
+                                }
                             }
 
                             io.writeBlock(dataset, block);
@@ -258,6 +280,32 @@ public class ExportScalePyramid {
         }
     }
 
+    /**
+     * Whether all levels of mipmapInfo can be written in a single pass, see
+     * {@link SinglePassHeuristic}. This is the case if the downsampling
+     * factors of every level are multiples of those of the previous level,
+     * every chunk of a level is computed from whole chunks of the previous
+     * level, and the chunks of the previous level are multiples of the
+     * factors, so that no pixel is computed from two of them, e.g. for
+     * factors of 2 and the same even chunk size for all levels.
+     */
+    public static boolean supportsSinglePass(final ExportMipmapInfo mipmapInfo) {
+        final int[][] resolutions = mipmapInfo.getExportResolutions();
+        final int[][] subdivisions = mipmapInfo.getSubdivisions();
+        for (int level = 1; level < mipmapInfo.getNumLevels(); ++level) {
+            for (int d = 0; d < 3; ++d) {
+                if (resolutions[level][d] % resolutions[level - 1][d] != 0)
+                    return false;
+                final int factor = resolutions[level][d] / resolutions[level - 1][d];
+                if (subdivisions[level][d] * factor % subdivisions[level - 1][d] != 0)
+                    return false;
+                if (subdivisions[level - 1][d] % factor != 0)
+                    return false;
+            }
+        }
+        return true;
+    }
+
     private static long numElements(final long[] size, final int mind, final int maxd) {
         long numElements = 1;
         for (int d = mind; d < maxd; ++d)
@@ -328,6 +376,15 @@ public class ExportScalePyramid {
          */
         void flush(D dataset) throws IOException;
 
+        /**
+         * Whether the block at {@code gridPosition} of {@code dataset} was
+         * already written by an earlier export, so that it is neither
+         * computed nor written again, see {@link ResumableDatasetIO}.
+         */
+        default boolean isBlockDone(final D dataset, final long[] gridPosition) {
+            return false;
+        }
+
         /**
          * Opens a dataset that was already written as a
          * {@code RaπdomAccessibleInterval}.
@@ -337,7 +394,53 @@ public class ExportScalePyramid {
         }
     }
 
-    private interface BlockCreator<T extends NativeType<T>> {
+    /**
+     * A {@link DatasetIO} that can compress a block separately from storing
+     * it, so that {@link WriteBehindDatasetIO} can run the two steps in
+     * different threads.
+     *
+     * @param <D> Dataset handle
+     * @param <T> Pixel type
+     */
+    public interface EncodingDatasetIO<D, T extends NativeType<T>> extends DatasetIO<D, T> {
+        /**
+         * Compress the given {@code dataBlock} for the {@code dataset}. This
+         * must not do any I/O.
+         */
+        EncodedBlock encodeBlock(
+            final D dataset,
+            final Block<T> dataBlock) throws IOException;
+
+        /**
+         * Store a block that was compressed by {@link #encodeBlock}.
+         */
+        void writeEncodedBlock(
+            final D dataset,
+            final EncodedBlock encodedBlock) throws IOException;
+    }
+
+    /**
+     * The compressed bytes of a block, as they are stored in the dataset.
+     */
+    public static class EncodedBlock {
+        final long[] gridPosition;
+        final byte[] bytes;
+
+        public EncodedBlock(final long[] gridPosition, final byte[] bytes) {
+            this.gridPosition = gridPosition;
+            this.bytes = bytes;
+        }
+
+        public long[] getGridPosition() {
+            return gridPosition;
+        }
+
+        public byte[] getBytes() {
+            return bytes;
+        }
+    }
+
+    interface BlockCreator<T extends NativeType<T>> {
         static <T extends NativeType<T> & RealType<T>, A extends ArrayDataAccess<A>> BlockCreator<T> forType(final T type) {
             final A accessFactory = Cast.unchecked(ArrayDataAccessFactory.get(type));
             final NativeTypeFactory<T, A> nativeTypeFactory = Cast.unchecked(type.getNativeTypeFactory());
@@ -369,6 +472,24 @@ public class ExportScalePyramid {
         }
     }
 
+    /**
+     * Create every resolution level from the previous one, all in a single
+     * pass over the original image: every chunk is downsampled into the
+     * chunk of the next coarser level it belongs to as soon as it has been
+     * written, and that chunk is written once all of its input chunks are
+     * done. So every pixel of the original image is read once and nothing is
+     * read back from the output.
+     * <p>
+     * Falls back to writing one level after the other, reading back the
+     * previous level, if {@link #supportsSinglePass} is false.
+     */
+    public static class SinglePassHeuristic implements LoopbackHeuristic {
+        @Override
+        public boolean decide(final RandomAccessibleInterval<?> originalImg, final int[] factorsToOriginalImg, final int previousLevel, final int[] factorsToPreviousLevel, final int[] chunkSize) {
+            return previousLevel >= 0;
+        }
+    }
+
     /**
      * A block to be written. See {@link DatasetIO#writeBlock(Object, Block)
      * DatasetIO.writeBlock()}.
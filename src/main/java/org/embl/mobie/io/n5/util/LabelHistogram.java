@@ -0,0 +1,120 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.n5.util;
+
+import java.util.Arrays;
+
+/**
+ * Counts the labels of the pixels that one output pixel is downsampled from,
+ * for {@link DownsampleBlock.DownsamplingMethod#Mode}.
+ * <p>
+ * This is an open addressing hash table with linear probing, sized for a
+ * fixed maximum number of pixels, so that adding labels neither allocates
+ * nor boxes, and that can be reused for every output pixel.
+ * <p>
+ * Labels are 64 bit values, which are compared as unsigned, so that uint64
+ * labels are handled correctly.
+ * <p>
+ * This is public because the downsamplers that use it are loaded by
+ * {@link net.imglib2.loops.ClassCopyProvider} in a different class loader.
+ */
+public class LabelHistogram {
+    private static final long FIBONACCI = 0x9E3779B97F4A7C15L;
+
+    private final int maxNumValues;
+    private final int shift;
+    private final long[] labels;
+    private final int[] counts;
+    // the slots in use, to clear and scan only those
+    private final int[] usedSlots;
+    private int numUsedSlots;
+    private int numValues;
+
+    /**
+     * @param maxNumValues the maximum number of labels that are added between
+     *                     two calls to {@link #clear()}
+     */
+    public LabelHistogram(final int maxNumValues) {
+        if (maxNumValues < 1 || maxNumValues > (1 << 29))
+            throw new IllegalArgumentException("maxNumValues must be in [1, 2^29]: " + maxNumValues);
+        this.maxNumValues = maxNumValues;
+        // at least twice as many slots as values keeps the probe sequences short
+        final int capacity = Integer.highestOneBit(2 * maxNumValues - 1) << 1;
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        labels = new long[capacity];
+        counts = new int[capacity];
+        usedSlots = new int[maxNumValues];
+    }
+
+    public void add(final long label) {
+        if (numValues == maxNumValues)
+            throw new IllegalStateException("more than " + maxNumValues + " labels added");
+        ++numValues;
+
+        final int mask = counts.length - 1;
+        int slot = (int) ((label * FIBONACCI) >>> shift);
+        while (counts[slot] != 0 && labels[slot] != label)
+            slot = (slot + 1) & mask;
+        if (counts[slot] == 0) {
+            labels[slot] = label;
+            usedSlots[numUsedSlots++] = slot;
+        }
+        ++counts[slot];
+    }
+
+    /**
+     * @return the most frequent label since the last {@link #clear()}; if
+     * there are several, the smallest of them; 0 if none was added
+     */
+    public long mode() {
+        long mode = 0;
+        int maxCount = 0;
+        for (int i = 0; i < numUsedSlots; ++i) {
+            final int slot = usedSlots[i];
+            final int count = counts[slot];
+            final long label = labels[slot];
+            if (count > maxCount || (count == maxCount && Long.compareUnsigned(label, mode) < 0)) {
+                maxCount = count;
+                mode = label;
+            }
+        }
+        return mode;
+    }
+
+    public void clear() {
+        if (numUsedSlots > counts.length / 4) {
+            Arrays.fill(counts, 0);
+        } else {
+            for (int i = 0; i < numUsedSlots; ++i)
+                counts[usedSlots[i]] = 0;
+        }
+        numUsedSlots = 0;
+        numValues = 0;
+    }
+}
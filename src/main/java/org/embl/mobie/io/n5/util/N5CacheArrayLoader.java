@@ -31,6 +31,8 @@ package org.embl.mobie.io.n5.util;
 import java.util.Arrays;
 import java.util.function.Function;
 
+import org.embl.mobie.io.metrics.LevelMetrics;
+import org.embl.mobie.io.util.RawBlockReader;
 import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
 import org.janelia.saalfeldlab.n5.DataBlock;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
@@ -50,21 +52,33 @@ public class N5CacheArrayLoader<A> implements SimpleCacheArrayLoader<A> {
     private final String pathName;
     private final DatasetAttributes attributes;
     private final Function<DataBlock<?>, A> createArray;
+    private final LevelMetrics metrics;
 
     public N5CacheArrayLoader(final N5Reader n5, final String pathName, final DatasetAttributes attributes, final Function<DataBlock<?>, A> createArray) {
+        this(n5, pathName, attributes, createArray, LevelMetrics.NONE);
+    }
+
+    public N5CacheArrayLoader(final N5Reader n5, final String pathName, final DatasetAttributes attributes, final Function<DataBlock<?>, A> createArray, final LevelMetrics metrics) {
         this.n5 = n5;
         this.pathName = pathName;
         this.attributes = attributes;
         this.createArray = createArray;
+        this.metrics = metrics;
     }
 
     @Override
     public A loadArray(final long[] gridPosition, int[] cellDimensions) {
         DataBlock<?> block = null;
 
+        final long start = metrics.readStarted();
         try {
-            block = n5.readBlock(pathName, attributes, gridPosition);
+            block = RawBlockReader.readBlock(n5, pathName, attributes, metrics, gridPosition);
+            if (block == null)
+                metrics.readMissing(start);
+            else
+                metrics.readFinished(start, (long) block.getNumElements() * N5DataTypeSize.getNumBytesPerElement(attributes.getDataType()));
         } catch (Exception e) {
+            metrics.readFailed(start, e);
             log.error("Error loading " + pathName + " at block " + Arrays.toString(gridPosition) + ": " + e);
         }
 
@@ -0,0 +1,172 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.n5.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * A cache for the planes of an image stack that holds at most a fixed number
+ * of planes and evicts the least recently used plane when it is full.
+ * <p>
+ * Unlike the soft reference caches of the image loaders, the memory this
+ * cache takes is bounded by {@code maxNumPlanes * planeSizeInBytes}, no
+ * matter how much heap is available. Planes are loaded outside of the lock,
+ * such that block tasks that need different planes load them in parallel,
+ * while tasks that need a plane that is being loaded wait for that load
+ * instead of loading the plane twice.
+ *
+ * @param <A> plane data, e.g. a primitive array
+ */
+public class PlaneCache<A> {
+
+    public interface PlaneLoader<A> {
+        A load(int index);
+    }
+
+    private final PlaneLoader<A> loader;
+    private final long planeSizeInBytes;
+    private final int maxNumPlanes;
+    // in access order, the least recently used plane comes first; planes that are being loaded are not completed yet
+    private final LinkedHashMap<Integer, CompletableFuture<A>> planes = new LinkedHashMap<>(16, 0.75f, true);
+    private long numLoads;
+    private long numHits;
+    private int peakNumPlanes;
+
+    /**
+     * @param loader           loads the plane with a given index
+     * @param planeSizeInBytes size of one plane, for reporting
+     * @param maxNumPlanes     maximum number of planes held by the cache
+     */
+    public PlaneCache(final PlaneLoader<A> loader, final long planeSizeInBytes, final int maxNumPlanes) {
+        if (maxNumPlanes < 1)
+            throw new IllegalArgumentException("maxNumPlanes must be at least 1: " + maxNumPlanes);
+        this.loader = loader;
+        this.planeSizeInBytes = planeSizeInBytes;
+        this.maxNumPlanes = maxNumPlanes;
+    }
+
+    /**
+     * The number of planes that fit into a memory budget, but at least
+     * minNumPlanes.
+     */
+    public static int numPlanesForBudget(final long budgetInBytes, final long planeSizeInBytes, final int minNumPlanes) {
+        final long numPlanes = budgetInBytes / Math.max(planeSizeInBytes, 1);
+        return (int) Math.max(minNumPlanes, Math.min(numPlanes, Integer.MAX_VALUE));
+    }
+
+    public A get(final int index) {
+        final CompletableFuture<A> cached;
+        final CompletableFuture<A> plane;
+        synchronized (this) {
+            cached = planes.get(index);
+            if (cached != null) {
+                ++numHits;
+                plane = null;
+            } else {
+                plane = new CompletableFuture<>();
+                ++numLoads;
+                if (planes.size() >= maxNumPlanes) {
+                    final Iterator<Map.Entry<Integer, CompletableFuture<A>>> eldest = planes.entrySet().iterator();
+                    eldest.next();
+                    eldest.remove();
+                }
+                planes.put(index, plane);
+                peakNumPlanes = Math.max(peakNumPlanes, planes.size());
+            }
+        }
+        if (cached != null)
+            return join(cached);
+
+        try {
+            plane.complete(loader.load(index));
+        } catch (RuntimeException | Error e) {
+            synchronized (this) {
+                planes.remove(index, plane);
+            }
+            plane.completeExceptionally(e);
+            throw e;
+        }
+        return plane.join();
+    }
+
+    private static <A> A join(final CompletableFuture<A> plane) {
+        try {
+            return plane.join();
+        } catch (CompletionException e) {
+            // rethrow what the loading thread got
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw e;
+        }
+    }
+
+    public synchronized void clear() {
+        planes.clear();
+    }
+
+    public int getMaxNumPlanes() {
+        return maxNumPlanes;
+    }
+
+    public long getPlaneSizeInBytes() {
+        return planeSizeInBytes;
+    }
+
+    public long getMaxSizeInBytes() {
+        return maxNumPlanes * planeSizeInBytes;
+    }
+
+    public synchronized int getNumPlanes() {
+        return planes.size();
+    }
+
+    /**
+     * How often a plane was loaded. If this is much larger than the number of
+     * planes of the stack, the cache is too small for the order in which the
+     * planes are requested.
+     */
+    public synchronized long getNumLoads() {
+        return numLoads;
+    }
+
+    public synchronized long getNumHits() {
+        return numHits;
+    }
+
+    public synchronized long getPeakSizeInBytes() {
+        return peakNumPlanes * planeSizeInBytes;
+    }
+}
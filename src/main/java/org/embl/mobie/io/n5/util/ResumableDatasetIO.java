@@ -0,0 +1,240 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.n5.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.util.IntervalIndexer;
+
+/**
+ * A {@link ExportScalePyramid.DatasetIO} that records the written blocks of
+ * one setup and timepoint in a {@link ChunkManifest} and reports the blocks
+ * that the manifest already has as done, so that
+ * {@link ExportScalePyramid#writeScalePyramid} neither computes nor writes
+ * them again.
+ * <p>
+ * Blocks are recorded after the wrapped io wrote them, so wrap the io that
+ * does the actual writing, i.e. use this inside of a
+ * {@link WriteBehindDatasetIO}, not around it. Use {@link #wrap} to keep
+ * an {@link ExportScalePyramid.EncodingDatasetIO} one.
+ * <p>
+ * If the wrapped io packs chunks into shards, a chunk is only written once
+ * all chunks of its shard were passed to it, or when the dataset is flushed.
+ * So the chunks of a shard are only recorded together, at one of these two
+ * points.
+ *
+ * @param <D> Dataset handle
+ * @param <T> Pixel type
+ */
+public class ResumableDatasetIO<D, T extends NativeType<T>> implements ExportScalePyramid.DatasetIO<D, T> {
+    private final ExportScalePyramid.DatasetIO<D, T> io;
+    private final ChunkManifest manifest;
+    private final int setupId;
+    private final int timepointId;
+    private final int[] chunksPerShard;
+    private final IntFunction<String> levelSettings;
+    private final Map<D, ChunkManifest.Level> levels = new ConcurrentHashMap<>();
+    // chunks that were passed to io, by dataset and shard, whose shard is not written yet
+    private final Map<D, Map<Long, List<long[]>>> pendingShards = new ConcurrentHashMap<>();
+
+    /**
+     * @param chunksPerShard number of chunks per shard, or null if io does
+     *                       not use shards
+     */
+    public ResumableDatasetIO(
+        final ExportScalePyramid.DatasetIO<D, T> io,
+        final ChunkManifest manifest,
+        final int setupId,
+        final int timepointId,
+        final int[] chunksPerShard) {
+        this(io, manifest, setupId, timepointId, chunksPerShard, level -> "");
+    }
+
+    /**
+     * @param chunksPerShard number of chunks per shard, or null if io does
+     *                       not use shards
+     * @param levelSettings  the settings the chunks of a level depend on
+     *                       besides their size, e.g. compression and
+     *                       downsampling method; chunks that were written
+     *                       with other settings are written again
+     */
+    public ResumableDatasetIO(
+        final ExportScalePyramid.DatasetIO<D, T> io,
+        final ChunkManifest manifest,
+        final int setupId,
+        final int timepointId,
+        final int[] chunksPerShard,
+        final IntFunction<String> levelSettings) {
+        this.io = io;
+        this.manifest = manifest;
+        this.setupId = setupId;
+        this.timepointId = timepointId;
+        this.chunksPerShard = chunksPerShard;
+        this.levelSettings = levelSettings;
+    }
+
+    /**
+     * @return a ResumableDatasetIO for io that is an
+     * {@link ExportScalePyramid.EncodingDatasetIO} if io is one.
+     */
+    public static <D, T extends NativeType<T>> ResumableDatasetIO<D, T> wrap(
+        final ExportScalePyramid.DatasetIO<D, T> io,
+        final ChunkManifest manifest,
+        final int setupId,
+        final int timepointId,
+        final int[] chunksPerShard) {
+        return wrap(io, manifest, setupId, timepointId, chunksPerShard, level -> "");
+    }
+
+    /**
+     * @return a ResumableDatasetIO for io that is an
+     * {@link ExportScalePyramid.EncodingDatasetIO} if io is one.
+     */
+    public static <D, T extends NativeType<T>> ResumableDatasetIO<D, T> wrap(
+        final ExportScalePyramid.DatasetIO<D, T> io,
+        final ChunkManifest manifest,
+        final int setupId,
+        final int timepointId,
+        final int[] chunksPerShard,
+        final IntFunction<String> levelSettings) {
+        if (io instanceof ExportScalePyramid.EncodingDatasetIO)
+            return new Encoding<>((ExportScalePyramid.EncodingDatasetIO<D, T>) io, manifest, setupId, timepointId, chunksPerShard, levelSettings);
+        return new ResumableDatasetIO<>(io, manifest, setupId, timepointId, chunksPerShard, levelSettings);
+    }
+
+    @Override
+    public D createDataset(final int level, final long[] dimensions, final int[] blockSize) throws IOException {
+        final D dataset = io.createDataset(level, dimensions, blockSize);
+        levels.put(dataset, manifest.getLevel(setupId, timepointId, level, dimensions, blockSize, levelSettings.apply(level)));
+        return dataset;
+    }
+
+    @Override
+    public boolean isBlockDone(final D dataset, final long[] gridPosition) {
+        final ChunkManifest.Level level = levels.get(dataset);
+        return level != null && level.isWritten(gridPosition);
+    }
+
+    @Override
+    public void writeBlock(final D dataset, final ExportScalePyramid.Block<T> dataBlock) throws IOException {
+        io.writeBlock(dataset, dataBlock);
+        written(dataset, dataBlock.getGridPosition());
+    }
+
+    protected void written(final D dataset, final long[] gridPosition) {
+        final ChunkManifest.Level level = levels.get(dataset);
+        if (level == null)
+            return;
+        if (chunksPerShard == null) {
+            level.setWritten(gridPosition);
+            return;
+        }
+
+        final long[] gridDimensions = level.getGridDimensions();
+        final int n = gridDimensions.length;
+        final long[] shardPosition = new long[n];
+        final long[] shardGridDimensions = new long[n];
+        long numShardChunks = 1;
+        for (int d = 0; d < n; ++d) {
+            shardPosition[d] = gridPosition[d] / chunksPerShard[d];
+            shardGridDimensions[d] = (gridDimensions[d] + chunksPerShard[d] - 1) / chunksPerShard[d];
+            // shards at the border of the image have fewer chunks
+            numShardChunks *= Math.min(chunksPerShard[d], gridDimensions[d] - shardPosition[d] * chunksPerShard[d]);
+        }
+        final long shardIndex = IntervalIndexer.positionToIndex(shardPosition, shardGridDimensions);
+        final Map<Long, List<long[]>> shards = pendingShards.computeIfAbsent(dataset, k -> new ConcurrentHashMap<>());
+        List<long[]> complete = null;
+        synchronized (shards) {
+            final List<long[]> chunks = shards.computeIfAbsent(shardIndex, k -> new ArrayList<>());
+            chunks.add(gridPosition.clone());
+            if (chunks.size() == numShardChunks)
+                complete = shards.remove(shardIndex);
+        }
+        if (complete != null)
+            for (final long[] chunk : complete)
+                level.setWritten(chunk);
+    }
+
+    /**
+     * Flushes the wrapped io and then saves the manifest.
+     */
+    @Override
+    public void flush(final D dataset) throws IOException {
+        io.flush(dataset);
+        final Map<Long, List<long[]>> shards = pendingShards.remove(dataset);
+        final ChunkManifest.Level level = levels.get(dataset);
+        if (shards != null && level != null) {
+            // flushing wrote the incomplete shards
+            synchronized (shards) {
+                for (final List<long[]> chunks : shards.values())
+                    for (final long[] chunk : chunks)
+                        level.setWritten(chunk);
+            }
+        }
+        manifest.save();
+    }
+
+    @Override
+    public RandomAccessibleInterval<T> getImage(final int level) throws IOException {
+        return io.getImage(level);
+    }
+
+    private static class Encoding<D, T extends NativeType<T>> extends ResumableDatasetIO<D, T> implements ExportScalePyramid.EncodingDatasetIO<D, T> {
+        private final ExportScalePyramid.EncodingDatasetIO<D, T> encodingIo;
+
+        Encoding(
+            final ExportScalePyramid.EncodingDatasetIO<D, T> io,
+            final ChunkManifest manifest,
+            final int setupId,
+            final int timepointId,
+            final int[] chunksPerShard,
+            final IntFunction<String> levelSettings) {
+            super(io, manifest, setupId, timepointId, chunksPerShard, levelSettings);
+            this.encodingIo = io;
+        }
+
+        @Override
+        public ExportScalePyramid.EncodedBlock encodeBlock(final D dataset, final ExportScalePyramid.Block<T> dataBlock) throws IOException {
+            return encodingIo.encodeBlock(dataset, dataBlock);
+        }
+
+        @Override
+        public void writeEncodedBlock(final D dataset, final ExportScalePyramid.EncodedBlock encodedBlock) throws IOException {
+            encodingIo.writeEncodedBlock(dataset, encodedBlock);
+            written(dataset, encodedBlock.getGridPosition());
+        }
+    }
+}
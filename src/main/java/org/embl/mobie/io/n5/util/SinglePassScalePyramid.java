@@ -0,0 +1,382 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.n5.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import bdv.export.CopyBlock;
+import bdv.export.ExportMipmapInfo;
+import bdv.export.ProgressWriter;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Writes all resolution levels of a scale pyramid in one traversal of the
+ * full resolution image, see {@link ExportScalePyramid.SinglePassHeuristic}.
+ * <p>
+ * Every level is downsampled from the previous level. The cells of level 0
+ * are visited plane-major: one z row of cells after the other, so the source
+ * is read front to back and only the planes of one row of cells are needed
+ * at a time, e.g. in a {@link PlaneCache}. A finished child is downsampled
+ * straight into the part of the block of its parent that it is the input of,
+ * and the parent is written and handed on to its own parent as soon as the
+ * last of its children is done. So only the blocks of the parents that are
+ * partially computed, about one z row of cells per level, are kept in
+ * memory, see {@link ExportMemoryBudget#getMinViewWorkingSetInBytes}, and no
+ * level is read back from the output.
+ * <p>
+ * This requires that the downsampling factors of every level are multiples
+ * of those of the previous level, that every cell of a level covers whole
+ * cells of the previous level and that every output pixel is computed from
+ * the pixels of a single cell of the previous level, see
+ * {@link ExportScalePyramid#supportsSinglePass}.
+ */
+class SinglePassScalePyramid<T extends RealType<T> & NativeType<T>, D> {
+    private static final int n = 3;
+
+    private final RandomAccessibleInterval<T> img;
+    private final T type;
+    private final DownsampleBlock.DownsamplingMethod downsamplingMethod;
+    private final ExportScalePyramid.DatasetIO<D, T> io;
+    private final ExportScalePyramid.BlockCreator<T> blockCreator;
+
+    private final int numLevels;
+    private final long[][] dimensions;
+    private final int[][] cellDimensions;
+    // downsampling factors relative to the previous level
+    private final int[][] factors;
+    private final CellGrid[] grids;
+    private final List<D> datasets = new ArrayList<>();
+    private final List<Map<Long, Parent>> pendingParents = new ArrayList<>();
+
+    SinglePassScalePyramid(
+        final RandomAccessibleInterval<T> img,
+        final T type,
+        final ExportMipmapInfo mipmapInfo,
+        final DownsampleBlock.DownsamplingMethod downsamplingMethod,
+        final ExportScalePyramid.DatasetIO<D, T> io) {
+        this.img = Views.zeroMin(img);
+        this.type = type;
+        this.downsamplingMethod = downsamplingMethod;
+        this.io = io;
+        this.blockCreator = ExportScalePyramid.BlockCreator.forType(type);
+
+        final int[][] resolutions = mipmapInfo.getExportResolutions();
+        numLevels = mipmapInfo.getNumLevels();
+        dimensions = new long[numLevels][n];
+        cellDimensions = mipmapInfo.getSubdivisions();
+        factors = new int[numLevels][];
+        grids = new CellGrid[numLevels];
+        for (int level = 0; level < numLevels; ++level) {
+            if (level == 0) {
+                this.img.dimensions(dimensions[0]);
+            } else {
+                factors[level] = new int[n];
+                for (int d = 0; d < n; ++d) {
+                    factors[level][d] = resolutions[level][d] / resolutions[level - 1][d];
+                    dimensions[level][d] = Math.max(dimensions[level - 1][d] / factors[level][d], 1);
+                }
+            }
+            grids[level] = new CellGrid(dimensions[level], cellDimensions[level]);
+            pendingParents.add(new ConcurrentHashMap<>());
+        }
+    }
+
+    void write(
+        final ExecutorService executorService,
+        final int numThreads,
+        final ExportScalePyramid.AfterEachPlane afterEachPlane,
+        final ProgressWriter progressWriter) throws IOException {
+        for (int level = 0; level < numLevels; ++level)
+            datasets.add(io.createDataset(level, dimensions[level], cellDimensions[level]));
+
+        final long[] gridDimensions = grids[0].getGridDimensions();
+        final long numCells = Intervals.numElements(gridDimensions);
+        final AtomicLong numWrittenCells = new AtomicLong();
+        // enough cells to keep all threads busy
+        final int batchSize = Math.max(64, 8 * numThreads);
+        final List<long[]> batch = new ArrayList<>();
+
+        // whether the subtrees of the roots of the traversal were written by an earlier export
+        final List<Map<Long, Boolean>> doneRoots = new ArrayList<>();
+        for (int level = 0; level < numLevels; ++level)
+            doneRoots.add(new HashMap<>());
+        for (long z = 0; z < gridDimensions[2]; ++z) {
+            for (long y = 0; y < gridDimensions[1]; ++y) {
+                for (long x = 0; x < gridDimensions[0]; ++x) {
+                    final long[] position = {x, y, z};
+                    if (isRootDone(position, doneRoots))
+                        continue;
+                    batch.add(position);
+                    if (batch.size() >= batchSize) {
+                        writeLevel0Cells(batch, executorService, numThreads, numWrittenCells);
+                        batch.clear();
+                        if (afterEachPlane != null)
+                            afterEachPlane.afterEachPlane(false);
+                        progressWriter.setProgress((double) numWrittenCells.get() / numCells);
+                    }
+                }
+            }
+        }
+        writeLevel0Cells(batch, executorService, numThreads, numWrittenCells);
+        if (afterEachPlane != null)
+            afterEachPlane.afterEachPlane(false);
+
+        for (int level = 1; level < numLevels; ++level)
+            if (!pendingParents.get(level).isEmpty())
+                throw new IllegalStateException(pendingParents.get(level).size() + " cells of level " + level + " were not written");
+
+        for (int level = 0; level < numLevels; ++level)
+            io.flush(datasets.get(level));
+        progressWriter.setProgress(1.0);
+    }
+
+    /**
+     * @return whether the cell of level at position and all cells it is
+     * computed from were written by an earlier export, see
+     * {@link ExportScalePyramid.DatasetIO#isBlockDone}. Cells of a subtree
+     * that is not done are all computed, as their parents need them, but
+     * only those that are not done are written.
+     */
+    private boolean isSubtreeDone(final int level, final long[] position) {
+        if (!io.isBlockDone(datasets.get(level), position))
+            return false;
+        if (level == 0)
+            return true;
+        final long[][] region = region(level, position);
+        final int[] childCellDimensions = cellDimensions[level - 1];
+        final long[] first = new long[n];
+        final long[] last = new long[n];
+        for (int d = 0; d < n; ++d) {
+            first[d] = region[0][d] / childCellDimensions[d];
+            last[d] = (region[1][d] - 1) / childCellDimensions[d];
+        }
+        for (long z = first[2]; z <= last[2]; ++z)
+            for (long y = first[1]; y <= last[1]; ++y)
+                for (long x = first[0]; x <= last[0]; ++x)
+                    if (!isSubtreeDone(level - 1, new long[]{x, y, z}))
+                        return false;
+        return true;
+    }
+
+    /**
+     * @return whether the subtree of the root of the traversal that the cell
+     * of level 0 at position belongs to is done, see {@link #isSubtreeDone}.
+     * The roots are the cells of the coarsest level and the cells of finer
+     * levels that are not needed for any coarser cell, e.g. because the image
+     * size is not divisible by the downsampling factor.
+     */
+    private boolean isRootDone(final long[] position, final List<Map<Long, Boolean>> doneRoots) {
+        int level = 0;
+        long[] rootPosition = position;
+        while (level < numLevels - 1) {
+            final long[] parentPosition = parentPosition(level + 1, rootPosition);
+            if (parentPosition == null)
+                break;
+            ++level;
+            rootPosition = parentPosition;
+        }
+        final int rootLevel = level;
+        final long[] root = rootPosition;
+        final long key = IntervalIndexer.positionToIndex(root, grids[rootLevel].getGridDimensions());
+        return doneRoots.get(rootLevel).computeIfAbsent(key, k -> isSubtreeDone(rootLevel, root));
+    }
+
+    private void writeLevel0Cells(
+        final List<long[]> cells,
+        final ExecutorService executorService,
+        final int numThreads,
+        final AtomicLong numWrittenCells) throws IOException {
+        if (cells.isEmpty())
+            return;
+        final AtomicInteger nextCell = new AtomicInteger();
+        final List<Callable<Void>> tasks = new ArrayList<>();
+        for (int threadNum = 0; threadNum < numThreads; ++threadNum) {
+            tasks.add(() -> {
+                final long[] cellMin = new long[n];
+                final int[] cellDim = new int[n];
+                final RandomAccess<T> in = Views.extendBorder(img).randomAccess();
+                final CopyBlock<T> copyBlock = CopyBlock.create(n, type.getClass(), in.getClass());
+                for (int i = nextCell.getAndIncrement(); i < cells.size(); i = nextCell.getAndIncrement()) {
+                    final long[] cellPosition = cells.get(i);
+                    grids[0].getCellDimensions(cellPosition, cellMin, cellDim);
+                    final ExportScalePyramid.Block<T> block = blockCreator.create(cellDim.clone(), cellMin.clone(), cellPosition);
+                    if (!ArrayDownsampling.copy(img, type, cellMin, block.getData())) {
+                        final RandomAccess<T> out = block.getData().randomAccess();
+                        in.setPosition(cellMin);
+                        out.setPosition(cellMin);
+                        copyBlock.copyBlock(in, out, cellDim);
+                    }
+                    written(0, block);
+                    numWrittenCells.incrementAndGet();
+                }
+                return null;
+            });
+        }
+        try {
+            final List<Future<Void>> futures = executorService.invokeAll(tasks);
+            for (final Future<Void> future : futures)
+                future.get();
+        } catch (final InterruptedException | ExecutionException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Writes block of level and, if it is the last missing child of its
+     * parent, computes and writes the parent, and so on.
+     */
+    private void written(final int level, final ExportScalePyramid.Block<T> block) throws IOException {
+        if (!io.isBlockDone(datasets.get(level), block.getGridPosition()))
+            io.writeBlock(datasets.get(level), block);
+        if (level == numLevels - 1)
+            return;
+
+        final long[] parentPosition = parentPosition(level + 1, block.getGridPosition());
+        if (parentPosition == null)
+            return;
+
+        final long key = IntervalIndexer.positionToIndex(parentPosition, grids[level + 1].getGridDimensions());
+        final Parent parent = pendingParents.get(level + 1).computeIfAbsent(key, k -> new Parent(level + 1, parentPosition));
+        parent.downsample(block);
+        if (parent.numMissingChildren.decrementAndGet() == 0) {
+            pendingParents.get(level + 1).remove(key);
+            written(level + 1, parent.block);
+        }
+    }
+
+    /**
+     * @return the position of the cell of parentLevel that is computed from
+     * the cell of the previous level at childPosition, or null if none is.
+     */
+    private long[] parentPosition(final int parentLevel, final long[] childPosition) {
+        final long[] parentPosition = new long[n];
+        for (int d = 0; d < n; ++d) {
+            final long childMin = childPosition[d] * cellDimensions[parentLevel - 1][d];
+            parentPosition[d] = childMin / ((long) cellDimensions[parentLevel][d] * factors[parentLevel][d]);
+            if (parentPosition[d] >= grids[parentLevel].gridDimension(d))
+                return null;
+        }
+        final long[][] region = region(parentLevel, parentPosition);
+        for (int d = 0; d < n; ++d)
+            if (childPosition[d] * cellDimensions[parentLevel - 1][d] >= region[1][d])
+                return null;
+        return parentPosition;
+    }
+
+    /**
+     * @return min (inclusive) and max (exclusive) of the pixels of the
+     * previous level the cell of level at position is computed from.
+     */
+    private long[][] region(final int level, final long[] position) {
+        final long[][] region = new long[2][n];
+        for (int d = 0; d < n; ++d) {
+            final long cellMin = position[d] * cellDimensions[level][d];
+            final long cellMax = Math.min(cellMin + cellDimensions[level][d], dimensions[level][d]);
+            region[0][d] = cellMin * factors[level][d];
+            region[1][d] = Math.min(cellMax * factors[level][d], dimensions[level - 1][d]);
+        }
+        return region;
+    }
+
+    /**
+     * A cell of a level &gt; 0 whose children are being written.
+     */
+    private class Parent {
+        final int level;
+        final ExportScalePyramid.Block<T> block;
+        final AtomicInteger numMissingChildren;
+
+        Parent(final int level, final long[] position) {
+            this.level = level;
+            final long[][] region = region(level, position);
+            int numChildren = 1;
+            for (int d = 0; d < n; ++d) {
+                final int childCellDimension = cellDimensions[level - 1][d];
+                numChildren *= (int) ((region[1][d] - 1) / childCellDimension - region[0][d] / childCellDimension + 1);
+            }
+            final long[] cellMin = new long[n];
+            final int[] cellDim = new int[n];
+            grids[level].getCellDimensions(position, cellMin, cellDim);
+            this.block = blockCreator.create(cellDim, cellMin, position);
+            this.numMissingChildren = new AtomicInteger(numChildren);
+        }
+
+        /**
+         * Computes the pixels of this cell whose input pixels are in child.
+         * Children of one parent cover disjoint parts of it, so they may be
+         * downsampled concurrently.
+         */
+        void downsample(final ExportScalePyramid.Block<T> child) {
+            final SingleCellArrayImg<T, ?> source = child.getData();
+            final SingleCellArrayImg<T, ?> target = block.getData();
+            final int[] factor = factors[level];
+            final long[] min = new long[n];
+            final int[] size = new int[n];
+            final long[] sourceMin = new long[n];
+            for (int d = 0; d < n; ++d) {
+                min[d] = Math.max(source.min(d) / factor[d], target.min(d));
+                final long max = Math.min((source.max(d) + factor[d]) / factor[d], target.max(d) + 1);
+                size[d] = (int) (max - min[d]);
+                sourceMin[d] = min[d] * factor[d];
+            }
+            final ExportScalePyramid.Block<T> part = blockCreator.create(size, min, block.getGridPosition());
+
+            final long[] relativeSourceMin = new long[n];
+            for (int d = 0; d < n; ++d)
+                relativeSourceMin[d] = sourceMin[d] - source.min(d);
+            if (!ArrayDownsampling.downsample(source, type, relativeSourceMin, factor, downsamplingMethod, part.getData())) {
+                final RandomAccess<T> in = Views.extendBorder(source).randomAccess();
+                final DownsampleBlock<T> downsampleBlock = DownsampleBlock.create(size, factor, downsamplingMethod, type.getClass(), in.getClass());
+                in.setPosition(sourceMin);
+                downsampleBlock.downsampleBlock(in, part.getData().cursor(), size);
+            }
+            LoopBuilder.setImages(part.getData(), Views.interval(target, part.getData())).forEachPixel((i, o) -> o.set(i));
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.n5.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.extern.slf4j.Slf4j;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+
+/**
+ * Writes the blocks of a {@link ExportScalePyramid.DatasetIO} in the
+ * background, so that the threads that compute the blocks do not wait for
+ * compression and storage.
+ * <p>
+ * {@link #writeBlock} returns as soon as the block was queued. If the
+ * wrapped io is an {@link ExportScalePyramid.EncodingDatasetIO}, blocks are
+ * compressed by numEncoderThreads threads and then stored by numWriterThreads
+ * threads, otherwise the writer threads do both. At most maxPendingBlocks
+ * blocks are queued or being written; further calls of {@link #writeBlock}
+ * wait until one of them is done.
+ * <p>
+ * {@link #flush} waits until all blocks of the dataset were written and
+ * throws the first exception of any of its writes. Blocks must not be
+ * modified after they were passed to {@link #writeBlock}.
+ *
+ * @param <D> Dataset handle
+ * @param <T> Pixel type
+ */
+@Slf4j
+public class WriteBehindDatasetIO<D, T extends NativeType<T>> implements ExportScalePyramid.DatasetIO<D, T>, Closeable {
+    public static final int DEFAULT_NUM_WRITER_THREADS = 2;
+
+    private final ExportScalePyramid.DatasetIO<D, T> io;
+    private final ExportScalePyramid.EncodingDatasetIO<D, T> encodingIo;
+    private final ExecutorService encoders;
+    private final ExecutorService writers;
+    private final Semaphore pendingBlocks;
+    private final Map<D, Pending> pending = new ConcurrentHashMap<>();
+
+    /**
+     * @param io                the io that is used to write the blocks.
+     * @param numEncoderThreads the number of threads that compress blocks.
+     *                          Unused if io is not an
+     *                          {@link ExportScalePyramid.EncodingDatasetIO}.
+     * @param numWriterThreads  the number of threads that store blocks.
+     * @param maxPendingBlocks  the maximum number of blocks that are not
+     *                          written yet.
+     */
+    public WriteBehindDatasetIO(
+        final ExportScalePyramid.DatasetIO<D, T> io,
+        final int numEncoderThreads,
+        final int numWriterThreads,
+        final int maxPendingBlocks) {
+        if (numEncoderThreads < 1 || numWriterThreads < 1 || maxPendingBlocks < 1)
+            throw new IllegalArgumentException("Thread and block numbers must be positive");
+        this.io = io;
+        if (io instanceof ExportScalePyramid.EncodingDatasetIO) {
+            this.encodingIo = (ExportScalePyramid.EncodingDatasetIO<D, T>) io;
+            this.encoders = createExecutor("block-encoder", numEncoderThreads);
+        } else {
+            this.encodingIo = null;
+            this.encoders = null;
+        }
+        this.writers = createExecutor("block-writer", numWriterThreads);
+        this.pendingBlocks = new Semaphore(maxPendingBlocks);
+    }
+
+    /**
+     * Uses numThreads encoder threads, {@link #DEFAULT_NUM_WRITER_THREADS}
+     * writer threads and allows four pending blocks per thread.
+     */
+    public WriteBehindDatasetIO(final ExportScalePyramid.DatasetIO<D, T> io, final int numThreads) {
+        this(io, numThreads, DEFAULT_NUM_WRITER_THREADS);
+    }
+
+    /**
+     * Uses numThreads encoder threads and allows four pending blocks per
+     * thread. Use more writer threads for storage with a high latency per
+     * write, e.g. S3.
+     */
+    public WriteBehindDatasetIO(final ExportScalePyramid.DatasetIO<D, T> io, final int numThreads, final int numWriterThreads) {
+        this(io, numThreads, numWriterThreads, 4 * (numThreads + numWriterThreads));
+    }
+
+    private static ExecutorService createExecutor(final String name, final int numThreads) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return new ThreadPoolExecutor(
+            numThreads, numThreads,
+            0, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            runnable -> {
+                final Thread thread = new Thread(runnable, name + "-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+    }
+
+    @Override
+    public D createDataset(final int level, final long[] dimensions, final int[] blockSize) throws IOException {
+        return io.createDataset(level, dimensions, blockSize);
+    }
+
+    @Override
+    public void writeBlock(final D dataset, final ExportScalePyramid.Block<T> dataBlock) throws IOException {
+        final Pending datasetPending = pending.computeIfAbsent(dataset, k -> new Pending());
+        datasetPending.throwFailure();
+        try {
+            pendingBlocks.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for pending blocks");
+        }
+        datasetPending.started();
+        try {
+            if (encodingIo == null)
+                writers.execute(() -> {
+                    try {
+                        io.writeBlock(dataset, dataBlock);
+                        done(datasetPending, null);
+                    } catch (Throwable t) {
+                        done(datasetPending, t);
+                    }
+                });
+            else
+                encoders.execute(() -> {
+                    try {
+                        final ExportScalePyramid.EncodedBlock encodedBlock = encodingIo.encodeBlock(dataset, dataBlock);
+                        writers.execute(() -> {
+                            try {
+                                encodingIo.writeEncodedBlock(dataset, encodedBlock);
+                                done(datasetPending, null);
+                            } catch (Throwable t) {
+                                done(datasetPending, t);
+                            }
+                        });
+                    } catch (Throwable t) {
+                        done(datasetPending, t);
+                    }
+                });
+        } catch (RejectedExecutionException e) {
+            done(datasetPending, e);
+            throw new IOException("Writer was closed", e);
+        }
+    }
+
+    private void done(final Pending datasetPending, final Throwable failure) {
+        if (failure != null)
+            log.error("Writing block failed", failure);
+        datasetPending.finished(failure);
+        pendingBlocks.release();
+    }
+
+    /**
+     * Waits until all blocks of dataset were written and then flushes the
+     * wrapped io.
+     *
+     * @throws IOException if writing any block of dataset failed
+     */
+    @Override
+    public void flush(final D dataset) throws IOException {
+        final Pending datasetPending = pending.get(dataset);
+        if (datasetPending != null) {
+            datasetPending.await();
+            pending.remove(dataset);
+            datasetPending.throwFailure();
+        }
+        io.flush(dataset);
+    }
+
+    @Override
+    public boolean isBlockDone(final D dataset, final long[] gridPosition) {
+        return io.isBlockDone(dataset, gridPosition);
+    }
+
+    @Override
+    public RandomAccessibleInterval<T> getImage(final int level) throws IOException {
+        return io.getImage(level);
+    }
+
+    /**
+     * @return the number of blocks that are queued or being written
+     */
+    public int getNumPendingBlocks() {
+        int n = 0;
+        for (final Pending datasetPending : pending.values())
+            n += datasetPending.getCount();
+        return n;
+    }
+
+    /**
+     * Waits for the pending blocks of all datasets and stops the threads.
+     * Datasets that were not flushed are not flushed by this.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            for (final Pending datasetPending : pending.values())
+                datasetPending.await();
+        } finally {
+            if (encoders != null)
+                encoders.shutdown();
+            writers.shutdown();
+        }
+    }
+
+    /**
+     * The number of blocks of a dataset that are not written yet and the
+     * first failure.
+     */
+    private static class Pending {
+        private int count;
+        private Throwable failure;
+
+        synchronized int getCount() {
+            return count;
+        }
+
+        synchronized void started() {
+            ++count;
+        }
+
+        synchronized void finished(final Throwable t) {
+            if (t != null && failure == null)
+                failure = t;
+            if (--count == 0)
+                notifyAll();
+        }
+
+        synchronized void await() throws InterruptedIOException {
+            try {
+                while (count > 0)
+                    wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for pending blocks");
+            }
+        }
+
+        synchronized void throwFailure() throws IOException {
+            if (failure instanceof IOException)
+                throw new IOException(failure.getMessage(), failure);
+            else if (failure != null)
+                throw new IOException(failure);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.n5.writers;
+
+import java.util.function.Function;
+
+import org.embl.mobie.io.n5.util.PlaneCache;
+
+import ij.ImagePlus;
+import mpicbg.spim.data.generic.sequence.BasicSetupImgLoader;
+import mpicbg.spim.data.generic.sequence.ImgLoaderHint;
+import mpicbg.spim.data.generic.sequence.TypedBasicImgLoader;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.basictypeaccess.DataAccess;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.img.cell.LazyCellImg;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Exposes the channels of a (virtual) {@link ImagePlus} as setups, like
+ * {@link bdv.img.virtualstack.VirtualStackImageLoader}, but reads the planes
+ * through a {@link PlaneCache} of fixed size, so that exporting a virtual
+ * stack takes a predictable amount of memory.
+ * <p>
+ * The images have one cell per plane. The cache is shared by all setups and
+ * timepoints.
+ *
+ * @param <T> pixel type
+ * @param <A> access type
+ */
+public class BoundedVirtualStackImageLoader<T extends NativeType<T>, A extends DataAccess> implements TypedBasicImgLoader<T> {
+
+    private final ImagePlus imp;
+    private final T type;
+    private final Function<Object, A> wrapPixels;
+    private final PlaneCache<Object> planeCache;
+
+    private BoundedVirtualStackImageLoader(final ImagePlus imp, final T type, final Function<Object, A> wrapPixels, final int maxNumPlanes) {
+        this.imp = imp;
+        this.type = type;
+        this.wrapPixels = wrapPixels;
+        final long planeSizeInBytes = (long) imp.getWidth() * imp.getHeight() * imp.getBytesPerPixel();
+        this.planeCache = new PlaneCache<>(index -> imp.getStack().getPixels(index), planeSizeInBytes, maxNumPlanes);
+    }
+
+    public static BoundedVirtualStackImageLoader<UnsignedByteType, ByteArray> createUnsignedByteInstance(final ImagePlus imp, final int maxNumPlanes) {
+        return new BoundedVirtualStackImageLoader<>(imp, new UnsignedByteType(), pixels -> new ByteArray((byte[]) pixels), maxNumPlanes);
+    }
+
+    public static BoundedVirtualStackImageLoader<UnsignedShortType, ShortArray> createUnsignedShortInstance(final ImagePlus imp, final int maxNumPlanes) {
+        return new BoundedVirtualStackImageLoader<>(imp, new UnsignedShortType(), pixels -> new ShortArray((short[]) pixels), maxNumPlanes);
+    }
+
+    public static BoundedVirtualStackImageLoader<FloatType, FloatArray> createFloatInstance(final ImagePlus imp, final int maxNumPlanes) {
+        return new BoundedVirtualStackImageLoader<>(imp, new FloatType(), pixels -> new FloatArray((float[]) pixels), maxNumPlanes);
+    }
+
+    public PlaneCache<Object> getPlaneCache() {
+        return planeCache;
+    }
+
+    @Override
+    public BasicSetupImgLoader<T> getSetupImgLoader(final int setupId) {
+        return new BasicSetupImgLoader<T>() {
+            @Override
+            public RandomAccessibleInterval<T> getImage(final int timepointId, final ImgLoaderHint... hints) {
+                return createImage(setupId, timepointId);
+            }
+
+            @Override
+            public T getImageType() {
+                return type;
+            }
+        };
+    }
+
+    private RandomAccessibleInterval<T> createImage(final int channel, final int frame) {
+        final int width = imp.getWidth();
+        final int height = imp.getHeight();
+        final CellGrid grid = new CellGrid(new long[] {width, height, imp.getNSlices()}, new int[] {width, height, 1});
+        final int[] cellDimensions = {width, height, 1};
+        return new LazyCellImg<>(grid, type.createVariable(), index -> {
+            final int z = (int) index;
+            final Object pixels = planeCache.get(imp.getStackIndex(channel + 1, z + 1, frame + 1));
+            return new Cell<>(cellDimensions, new long[] {0, 0, z}, wrapPixels.apply(pixels));
+        });
+    }
+}
@@ -35,7 +35,9 @@ import java.util.HashMap;
 import java.util.Map;
 
 import org.embl.mobie.io.n5.util.DownsampleBlock;
+import org.embl.mobie.io.n5.util.ExportMemoryBudget;
 import org.embl.mobie.io.n5.util.ExportScalePyramid;
+import org.embl.mobie.io.n5.util.PlaneCache;
 import org.janelia.saalfeldlab.n5.Compression;
 
 import bdv.export.ExportMipmapInfo;
@@ -72,6 +74,51 @@ import net.imglib2.util.Intervals;
 
 public class WriteImagePlusToN5 {
 
+    private boolean singlePass = false;
+
+    /**
+     * Write all resolution levels in a single pass over the image, instead of
+     * one level after the other. Every pixel of the image is then read only
+     * once, and every level is downsampled from the previous one, see
+     * {@link ExportScalePyramid.SinglePassHeuristic}. As the previous level
+     * is held in memory, this also lets the downsampling of all levels work
+     * on primitive arrays, see {@link org.embl.mobie.io.n5.util.ArrayDownsampling},
+     * whereas otherwise only levels that are downsampled from the image
+     * itself do.
+     *
+     * @param singlePass
+     */
+    public void setSinglePass(boolean singlePass) {
+        this.singlePass = singlePass;
+    }
+
+    public boolean isSinglePass() {
+        return singlePass;
+    }
+
+    private long memoryBudget = 0;
+
+    /**
+     * Limit the heap used for exporting virtual stacks. Half of the budget
+     * is used for a cache of source planes with least recently used
+     * eviction, see {@link BoundedVirtualStackImageLoader}. Resolution levels
+     * whose "plane of blocks" needs more source planes than fit into that
+     * cache are downsampled from the previous level instead. The other half
+     * bounds the number of views that are written in parallel. The export
+     * fails if the source planes or the blocks of a single view do not fit.
+     * The peak heap usage is reported at the end of the export.
+     *
+     * @param memoryBudget budget in bytes, or 0 to size caches from the
+     *                     available heap
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
     // export, generating default source transform, and default resolutions / subdivisions
     public void export(ImagePlus imp, String xmlPath, DownsampleBlock.DownsamplingMethod downsamplingMethod, Compression compression) {
         if (!WriteImagePlusToN5Helper.isImageSuitable(imp)) {
@@ -196,11 +243,41 @@ public class WriteImagePlusToN5 {
         final ProgressWriter progressWriter = new ProgressWriterIJ();
         progressWriter.out().println("starting export...");
 
+        final long planeSizeInBytes = (long) imp.getWidth() * imp.getHeight() * imp.getBytesPerPixel();
+        final ExportMemoryBudget budget = new ExportMemoryBudget(memoryBudget > 0 ? memoryBudget : Runtime.getRuntime().maxMemory());
+        budget.sample();
+
         // create ImgLoader wrapping the image
         final TypedBasicImgLoader<?> imgLoader;
         final Runnable clearCache;
+        final PlaneCache<?> planeCache;
         final boolean isVirtual = imp.getStack() != null && imp.getStack().isVirtual();
-        if (isVirtual) {
+        if (isVirtual && memoryBudget > 0) {
+            // the source planes of one "plane of blocks" of the first level
+            // must fit, otherwise they are read again for every block
+            final int minNumPlanes = params.resolutions[0][2] * params.subdivisions[0][2];
+            final int maxNumPlanes = PlaneCache.numPlanesForBudget(budget.getPlaneCacheBudgetInBytes(), planeSizeInBytes, minNumPlanes);
+            final BoundedVirtualStackImageLoader<?, ?> il;
+            switch (imp.getType()) {
+                case ImagePlus.GRAY8:
+                    il = BoundedVirtualStackImageLoader.createUnsignedByteInstance(imp, maxNumPlanes);
+                    break;
+                case ImagePlus.GRAY16:
+                    il = BoundedVirtualStackImageLoader.createUnsignedShortInstance(imp, maxNumPlanes);
+                    break;
+                case ImagePlus.GRAY32:
+                default:
+                    il = BoundedVirtualStackImageLoader.createFloatInstance(imp, maxNumPlanes);
+                    break;
+            }
+            imgLoader = il;
+            planeCache = il.getPlaneCache();
+            clearCache = planeCache::clear;
+            if (planeCache.getMaxSizeInBytes() > budget.getPlaneCacheBudgetInBytes())
+                throw new IllegalArgumentException("Memory budget of " + ExportMemoryBudget.toMegaBytes(memoryBudget)
+                    + " is too small, caching the " + maxNumPlanes + " source planes of the first level takes "
+                    + ExportMemoryBudget.toMegaBytes(planeCache.getMaxSizeInBytes()) + ", which is more than half of it");
+        } else if (isVirtual) {
             final VirtualStackImageLoader<?, ?, ?> il;
             switch (imp.getType()) {
                 case ImagePlus.GRAY8:
@@ -215,6 +292,7 @@ public class WriteImagePlusToN5 {
                     break;
             }
             imgLoader = il;
+            planeCache = null;
             clearCache = il.getCacheControl()::clearCache;
         } else {
             switch (imp.getType()) {
@@ -229,6 +307,7 @@ public class WriteImagePlusToN5 {
                     imgLoader = ImageStackImageLoader.createFloatInstance(imp);
                     break;
             }
+            planeCache = null;
             clearCache = () -> {
             };
         }
@@ -263,17 +342,23 @@ public class WriteImagePlusToN5 {
         for (final BasicViewSetup setup : seq.getViewSetupsOrdered())
             perSetupExportMipmapInfo.put(setup.getId(), mipmapInfo);
 
+        // fail before writing anything if not even a single view fits
+        if (memoryBudget > 0)
+            budget.getNumParallelViews(ExportMemoryBudget.getMinViewWorkingSetInBytes(
+                Intervals.dimensionsAsLongArray(size), mipmapInfo, imp.getBytesPerPixel()), 1);
+
         // LoopBackHeuristic:
         // - If saving more than 8x on pixel reads use the loopback image over
         //   original image
         // - For virtual stacks also consider the cache size that would be
         //   required for all original planes contributing to a "plane of
         //   blocks" at the current level. If this is more than 1/4 of
-        //   available memory, use the loopback image.
-        final long planeSizeInBytes = imp.getWidth() * imp.getHeight() * imp.getBytesPerPixel();
+        //   available memory, use the loopback image. With a memory budget,
+        //   use the loopback image if these planes do not fit into the plane
+        //   cache.
         final long ijMaxMemory = IJ.maxMemory();
         final int numCellCreatorThreads = Math.max(1, PluginHelper.numThreads() - 1);
-        final ExportScalePyramid.LoopbackHeuristic loopbackHeuristic = new ExportScalePyramid.LoopbackHeuristic() {
+        final ExportScalePyramid.LoopbackHeuristic loopbackHeuristic = singlePass ? new ExportScalePyramid.SinglePassHeuristic() : new ExportScalePyramid.LoopbackHeuristic() {
             @Override
             public boolean decide(final RandomAccessibleInterval<?> originalImg, final int[] factorsToOriginalImg, final int previousLevel, final int[] factorsToPreviousLevel, final int[] chunkSize) {
                 if (previousLevel < 0)
@@ -284,7 +369,8 @@ public class WriteImagePlusToN5 {
 
                 if (isVirtual) {
                     final long requiredCacheSize = planeSizeInBytes * factorsToOriginalImg[2] * chunkSize[2];
-                    if (requiredCacheSize > ijMaxMemory / 4)
+                    final long availableCacheSize = planeCache != null ? planeCache.getMaxSizeInBytes() : ijMaxMemory / 4;
+                    if (requiredCacheSize > availableCacheSize)
                         return true;
                 }
 
@@ -295,7 +381,9 @@ public class WriteImagePlusToN5 {
         final ExportScalePyramid.AfterEachPlane afterEachPlane = new ExportScalePyramid.AfterEachPlane() {
             @Override
             public void afterEachPlane(final boolean usedLoopBack) {
-                if (!usedLoopBack && isVirtual) {
+                budget.sample();
+                // the plane cache is bounded and evicts the planes that are not needed anymore by itself
+                if (!usedLoopBack && isVirtual && planeCache == null) {
                     final long free = Runtime.getRuntime().freeMemory();
                     final long total = Runtime.getRuntime().totalMemory();
                     final long max = Runtime.getRuntime().maxMemory();
@@ -310,17 +398,25 @@ public class WriteImagePlusToN5 {
 
         try {
             writeFiles(seq, perSetupExportMipmapInfo, params, loopbackHeuristic, afterEachPlane, numCellCreatorThreads,
-                progressWriter, numTimepoints, numSetups);
+                memoryBudget > 0 ? budget : null, progressWriter, numTimepoints, numSetups);
         } catch (final SpimDataException | IOException e) {
             throw new RuntimeException(e);
         }
+        budget.sample();
+        progressWriter.out().println("peak memory used: " + ExportMemoryBudget.toMegaBytes(budget.getPeakUsedBytes())
+            + (memoryBudget > 0 ? " (budget " + ExportMemoryBudget.toMegaBytes(memoryBudget) + ")" : ""));
+        if (planeCache != null)
+            progressWriter.out().println("plane cache: peak " + ExportMemoryBudget.toMegaBytes(planeCache.getPeakSizeInBytes())
+                + " of " + ExportMemoryBudget.toMegaBytes(planeCache.getMaxSizeInBytes()) + ", "
+                + planeCache.getNumLoads() + " planes read, " + planeCache.getNumHits() + " cache hits");
         progressWriter.out().println("done");
     }
 
     protected void writeFiles(SequenceDescriptionMinimal seq, Map<Integer, ExportMipmapInfo> perSetupExportMipmapInfo,
                               Parameters params, ExportScalePyramid.LoopbackHeuristic loopbackHeuristic,
                               ExportScalePyramid.AfterEachPlane afterEachPlane, int numCellCreatorThreads,
-                              ProgressWriter progressWriter, int numTimepoints, int numSetups) throws IOException, SpimDataException {
+                              ExportMemoryBudget memoryBudget, ProgressWriter progressWriter,
+                              int numTimepoints, int numSetups) throws IOException, SpimDataException {
         WriteSequenceToN5.writeN5File(seq, perSetupExportMipmapInfo,
             params.downsamplingMethod,
             params.compression, params.n5File,
@@ -40,6 +40,8 @@ import java.util.stream.Collectors;
 
 import org.embl.mobie.io.n5.util.DownsampleBlock;
 import org.embl.mobie.io.n5.util.ExportScalePyramid;
+import org.embl.mobie.io.n5.util.WriteBehindDatasetIO;
+import org.embl.mobie.io.util.S3Utils;
 import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
 import org.janelia.saalfeldlab.n5.Compression;
 import org.janelia.saalfeldlab.n5.DataBlock;
@@ -53,6 +55,7 @@ import org.janelia.saalfeldlab.n5.N5FSWriter;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.s3.N5AmazonS3Writer;
 
 import bdv.export.ExportMipmapInfo;
 import bdv.export.ProgressWriter;
@@ -125,6 +128,24 @@ public class WriteSequenceToN5 {
         final ExportScalePyramid.AfterEachPlane afterEachPlane,
         final int numCellCreatorThreads,
         ProgressWriter progressWriter) throws IOException {
+        writeN5File(seq, perSetupMipmapInfo, downsamplingMethod, compression, new N5FSWriter(n5File.getAbsolutePath()),
+            loopbackHeuristic, afterEachPlane, numCellCreatorThreads, progressWriter);
+    }
+
+    /**
+     * Same as above, but writes into the container of n5, e.g. an
+     * {@link N5AmazonS3Writer} to write directly into an S3 bucket.
+     */
+    public static void writeN5File(
+        final AbstractSequenceDescription<?, ?, ?> seq,
+        final Map<Integer, ExportMipmapInfo> perSetupMipmapInfo,
+        final DownsampleBlock.DownsamplingMethod downsamplingMethod,
+        final Compression compression,
+        final N5Writer n5,
+        final ExportScalePyramid.LoopbackHeuristic loopbackHeuristic,
+        final ExportScalePyramid.AfterEachPlane afterEachPlane,
+        final int numCellCreatorThreads,
+        ProgressWriter progressWriter) throws IOException {
         if (progressWriter == null)
             progressWriter = new ProgressWriterNull();
         progressWriter.setProgress(0);
@@ -146,8 +167,6 @@ public class WriteSequenceToN5 {
             .map(BasicViewSetup::getId)
             .collect(Collectors.toList());
 
-        N5Writer n5 = new N5FSWriter(n5File.getAbsolutePath());
-
         // write Mipmap descriptions
         for (final int setupId : setupIds) {
             final String pathName = getPathName(setupId);
@@ -236,10 +255,18 @@ public class WriteSequenceToN5 {
         final RandomAccessibleInterval<T> img = setupImgLoader.getImage(timepointId);
         final T type = setupImgLoader.getImageType();
         final N5DatasetIO<T> io = new N5DatasetIO<>(n5, compression, setupId, timepointId, type);
-        ExportScalePyramid.writeScalePyramid(
-            img, type, mipmapInfo, downsamplingMethod, io,
-            executorService, numThreads,
-            loopbackHeuristic, afterEachPlane, progressWriter);
+        // N5Writer compresses and stores a block in one call, so the writer threads do both and
+        // there are as many of them as threads that compute blocks, otherwise compression is the bottleneck.
+        // Every write is a request with a high latency on S3, so use at least as many writer threads as connections
+        final int numWriterThreads = n5 instanceof N5AmazonS3Writer ?
+            Math.max(numThreads, S3Utils.getClientConfiguration().getMaxConnections()) :
+            Math.max(numThreads, WriteBehindDatasetIO.DEFAULT_NUM_WRITER_THREADS);
+        try (final WriteBehindDatasetIO<N5Dataset, T> writeBehindIo = new WriteBehindDatasetIO<>(io, numThreads, numWriterThreads)) {
+            ExportScalePyramid.writeScalePyramid(
+                img, type, mipmapInfo, downsamplingMethod, writeBehindIo,
+                executorService, numThreads,
+                loopbackHeuristic, afterEachPlane, progressWriter);
+        }
     }
 
     static class N5Dataset {
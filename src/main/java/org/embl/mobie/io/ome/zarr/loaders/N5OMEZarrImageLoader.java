@@ -35,22 +35,37 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 
-import org.embl.mobie.io.ome.zarr.readers.N5OmeZarrReader;
+import org.embl.mobie.io.metrics.LevelMetrics;
+import org.embl.mobie.io.metrics.LoaderMetrics;
+import org.embl.mobie.io.n5.util.N5DataTypeSize;
 import org.embl.mobie.io.ome.zarr.readers.N5S3OmeZarrReader;
+import org.embl.mobie.io.ome.zarr.util.BlockPrefetcher;
 import org.embl.mobie.io.ome.zarr.util.N5OMEZarrCacheArrayLoader;
+import org.embl.mobie.io.ome.zarr.util.N5ZarrImageReader;
 import org.embl.mobie.io.ome.zarr.util.OmeZarrMultiscales;
+import org.embl.mobie.io.ome.zarr.util.PrefetchPolicy;
+import org.embl.mobie.io.ome.zarr.util.PrefetchStatistics;
 import org.embl.mobie.io.ome.zarr.util.ZarrAxes;
 import org.embl.mobie.io.ome.zarr.util.ZarrAxis;
+import org.embl.mobie.io.util.BoundedRequestExecutor;
+import org.embl.mobie.io.util.SharedFetchQueue;
+import org.embl.mobie.io.util.SharedQueueCellCache;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.jetbrains.annotations.NotNull;
 
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+
 import bdv.AbstractViewerSetupImgLoader;
 import bdv.ViewerImgLoader;
 import bdv.cache.CacheControl;
 import bdv.img.cache.SimpleCacheArrayLoader;
-import bdv.img.cache.VolatileGlobalCellCache;
 import bdv.util.ConstantRandomAccessible;
 import bdv.util.MipmapTransforms;
 import lombok.extern.slf4j.Slf4j;
@@ -75,12 +90,14 @@ import mpicbg.spim.data.sequence.VoxelDimensions;
 import net.imglib2.Dimensions;
 import net.imglib2.FinalDimensions;
 import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.Volatile;
 import net.imglib2.cache.queue.BlockingFetchQueues;
 import net.imglib2.cache.queue.FetcherThreads;
 import net.imglib2.cache.volatiles.CacheHints;
 import net.imglib2.cache.volatiles.LoadingStrategy;
+import net.imglib2.img.cell.Cell;
 import net.imglib2.img.cell.CellGrid;
 import net.imglib2.img.cell.CellImg;
 import net.imglib2.realtransform.AffineTransform3D;
@@ -116,11 +133,17 @@ public class N5OMEZarrImageLoader implements ViewerImgLoader, MultiResolutionImg
     private static final int C = 3;
     private static final int T = 4;
     public static boolean logging = false;
+    /**
+     * Maximum number of metadata reads that run in parallel while the
+     * setups of the image and its labels are discovered.
+     */
+    public static int maxParallelMetadataReads = 8;
+    private static final Gson GSON = N5ZarrImageReader.initGsonBuilder(new GsonBuilder()).create();
     public final N5Reader n5;
     /**
      * Maps setup id to {@link SetupImgLoader}.
      */
-    private final Map<Integer, SetupImgLoader<?, ?>> setupImgLoaders = new HashMap<>();
+    private final Map<Integer, SetupImgLoader<?, ?>> setupImgLoaders = new ConcurrentHashMap<>();
     private final Map<Integer, String> setupToPathname = new HashMap<>();
     private final Map<Integer, OmeZarrMultiscales> setupToMultiscale = new HashMap<>();
     private final Map<Integer, DatasetAttributes> setupToAttributes = new HashMap<>();
@@ -130,8 +153,10 @@ public class N5OMEZarrImageLoader implements ViewerImgLoader, MultiResolutionImg
     private volatile boolean isOpen = false;
     private int sequenceTimepoints = 0;
     private FetcherThreads fetchers;
-    private VolatileGlobalCellCache cache;
+    private SharedQueueCellCache cache;
     private BlockingFetchQueues<Callable<?>> queue;
+    private final BlockPrefetcher prefetcher = new BlockPrefetcher();
+    private volatile int readAhead = N5OMEZarrCacheArrayLoader.DEFAULT_READ_AHEAD;
 
     /**
      * The sequenceDescription and viewRegistrations are known already, typically read from xml.
@@ -201,60 +226,75 @@ public class N5OMEZarrImageLoader implements ViewerImgLoader, MultiResolutionImg
     }
 
     private void initSetups() throws IOException {
-        int setupId = -1;
-        OmeZarrMultiscales[] multiscales = getMultiscale(""); // returns multiscales[ 0 ]
-        for (OmeZarrMultiscales multiscale : multiscales) {
-            DatasetAttributes attributes = getDatasetAttributes(multiscale.datasets[0].path);
-
-            // TODO: Maybe AbstractOmeZarrReader which has .getAxes()
-            ZarrAxes zarrAxes = n5 instanceof N5OmeZarrReader ? ((N5OmeZarrReader) n5).getAxes() :
-                n5 instanceof N5S3OmeZarrReader ? ((N5S3OmeZarrReader) n5).getAxes() : ZarrAxes.TCZYX;
-            List<ZarrAxis> zarrAxesList = n5 instanceof N5OmeZarrReader ? ((N5OmeZarrReader) n5).getZarrAxes() :
-                n5 instanceof N5S3OmeZarrReader ? ((N5S3OmeZarrReader) n5).getZarrAxes() : null;
-
-            multiscale.axes = zarrAxes;
-            multiscale.zarrAxisList = zarrAxesList;
-
-            long nC = 1;
-            if (zarrAxes.hasChannels()) {
-                nC = attributes.getDimensions()[zarrAxes.channelIndex()];
+        // the multiscales and level 0 attributes of the image and of all labels
+        // are independent of each other and thus read in parallel
+        final BoundedRequestExecutor executor = new BoundedRequestExecutor("n5-ome-zarr-metadata", Math.max(1, maxParallelMetadataReads));
+        try {
+            final CompletableFuture<List<MultiscaleMetadata>> imageMetadata = executor.submit(() -> readMultiscaleMetadata(""));
+            final List<String> labels = n5.getAttribute("labels", "labels", List.class);
+            final List<CompletableFuture<List<MultiscaleMetadata>>> labelMetadata = new ArrayList<>();
+            if (labels != null) {
+                for (String label : labels) {
+                    labelMetadata.add(executor.submit(() -> readMultiscaleMetadata("labels/" + label)));
+                }
             }
 
-            for (int c = 0; c < nC; c++) {
-                // each channel is one setup
-                setupId++;
-                setupToChannel.put(setupId, c);
+            int setupId = -1;
+            for (MultiscaleMetadata metadata : join(imageMetadata)) {
+                ZarrAxes zarrAxes = metadata.multiscale.axes;
+                long nC = 1;
+                if (zarrAxes.hasChannels()) {
+                    nC = metadata.attributes.getDimensions()[zarrAxes.channelIndex()];
+                }
+
+                for (int c = 0; c < nC; c++) {
+                    // each channel is one setup
+                    setupId++;
+                    setupToChannel.put(setupId, c);
 
-                // all channels have the same multiscale and attributes
-                setupToMultiscale.put(setupId, multiscale);
-                setupToAttributes.put(setupId, attributes);
-                setupToPathname.put(setupId, "");
+                    // all channels have the same multiscale and attributes
+                    setupToMultiscale.put(setupId, metadata.multiscale);
+                    setupToAttributes.put(setupId, metadata.attributes);
+                    setupToPathname.put(setupId, "");
+                }
             }
-        }
 
-        List<String> labels = n5.getAttribute("labels", "labels", List.class);
-        if (labels != null) {
-            for (String label : labels) {
+            for (CompletableFuture<List<MultiscaleMetadata>> future : labelMetadata) {
                 setupId++;
                 setupToChannel.put(setupId, 0); // TODO: https://github.com/ome/ngff/issues/19
-                String pathName = "labels/" + label;
-                multiscales = getMultiscale(pathName);
-                for (OmeZarrMultiscales multiscale : multiscales) {
-                    DatasetAttributes attributes = getDatasetAttributes(pathName + "/" + multiscale.datasets[0].path);
-
-                    ZarrAxes zarrAxes = n5 instanceof N5OmeZarrReader ? ((N5OmeZarrReader) n5).getAxes() :
-                        n5 instanceof N5S3OmeZarrReader ? ((N5S3OmeZarrReader) n5).getAxes() : ZarrAxes.TCZYX;
-                    List<ZarrAxis> zarrAxesList = n5 instanceof N5OmeZarrReader ? ((N5OmeZarrReader) n5).getZarrAxes() :
-                        n5 instanceof N5S3OmeZarrReader ? ((N5S3OmeZarrReader) n5).getZarrAxes() : null;
-
-                    multiscale.axes = zarrAxes;
-                    multiscale.zarrAxisList = zarrAxesList;
-
-                    setupToMultiscale.put(setupId, multiscale);
-                    setupToAttributes.put(setupId, attributes);
-                    setupToPathname.put(setupId, pathName);
+                for (MultiscaleMetadata metadata : join(future)) {
+                    setupToMultiscale.put(setupId, metadata.multiscale);
+                    setupToAttributes.put(setupId, metadata.attributes);
+                    setupToPathname.put(setupId, metadata.pathName);
                 }
             }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private List<MultiscaleMetadata> readMultiscaleMetadata(String pathName) throws IOException {
+        final List<MultiscaleMetadata> metadata = new ArrayList<>();
+        for (OmeZarrMultiscales multiscale : getMultiscale(pathName)) {
+            String datasetPath = pathName.isEmpty() ? multiscale.datasets[0].path : pathName + "/" + multiscale.datasets[0].path;
+            metadata.add(new MultiscaleMetadata(pathName, multiscale, getDatasetAttributes(datasetPath)));
+        }
+        return metadata;
+    }
+
+    private static <T> T join(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
         }
     }
 
@@ -290,12 +330,11 @@ public class N5OMEZarrImageLoader implements ViewerImgLoader, MultiResolutionImg
      * @throws IOException
      */
     private OmeZarrMultiscales[] getMultiscale(String pathName) throws IOException {
-        OmeZarrMultiscales[] multiscales = n5.getAttribute(pathName, MULTI_SCALE_KEY, OmeZarrMultiscales[].class);
-        if (multiscales == null) {
+        JsonElement multiscalesJson = n5.getAttribute(pathName, MULTI_SCALE_KEY, JsonElement.class);
+        if (multiscalesJson == null) {
             String location = "";
             if (n5 instanceof N5S3OmeZarrReader) {
                 final N5S3OmeZarrReader s3ZarrReader = (N5S3OmeZarrReader) n5;
-                s3ZarrReader.setDimensionSeparator("/");
                 location += "service endpoint: " + s3ZarrReader.getServiceEndpoint();
                 location += "; bucket: " + s3ZarrReader.getBucketName();
                 location += "; container path: " + s3ZarrReader.getContainerPath();
@@ -306,6 +345,20 @@ public class N5OMEZarrImageLoader implements ViewerImgLoader, MultiResolutionImg
             }
             throw new UnsupportedOperationException("Could not find multiscales at " + location);
         }
+
+        // The axes are parsed here rather than taken from the reader,
+        // which only remembers the axes of the multiscales it read last.
+        OmeZarrMultiscales[] multiscales = GSON.fromJson(multiscalesJson, OmeZarrMultiscales[].class);
+        try {
+            ZarrAxes zarrAxes = N5ZarrImageReader.parseAxes(multiscalesJson);
+            List<ZarrAxis> zarrAxesList = N5ZarrImageReader.parseZarrAxisList(multiscalesJson);
+            for (OmeZarrMultiscales multiscale : multiscales) {
+                multiscale.axes = zarrAxes;
+                multiscale.zarrAxisList = zarrAxesList;
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Error while getting the axes of " + pathName, e);
+        }
         return multiscales;
     }
 
@@ -325,27 +378,26 @@ public class N5OMEZarrImageLoader implements ViewerImgLoader, MultiResolutionImg
                 if (isOpen)
                     return;
 
-                try {
-                    int maxNumLevels = 0;
-                    final List<? extends BasicViewSetup> setups = seq.getViewSetupsOrdered();
-                    for (final BasicViewSetup setup : setups) {
-                        final int setupId = setup.getId();
-                        final SetupImgLoader<?, ?> setupImgLoader = createSetupImgLoader(setupId);
-                        setupImgLoaders.put(setupId, setupImgLoader);
-                        if (setupImgLoader != null) {
-                            maxNumLevels = Math.max(maxNumLevels, setupImgLoader.numMipmapLevels());
-                        }
+                // The SetupImgLoaders are created on demand in getSetupImgLoader,
+                // such that opening does not read the attributes of all resolution
+                // levels of all setups. The number of levels is known from the multiscales.
+                int maxNumLevels = 0;
+                final List<? extends BasicViewSetup> setups = seq.getViewSetupsOrdered();
+                for (final BasicViewSetup setup : setups) {
+                    final OmeZarrMultiscales multiscale = setupToMultiscale.get(setup.getId());
+                    if (multiscale != null) {
+                        maxNumLevels = Math.max(maxNumLevels, multiscale.datasets.length);
                     }
-                    if (queue == null) {
-                        final int numFetcherThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
-                        queue = new BlockingFetchQueues<>(maxNumLevels, numFetcherThreads);
-                        fetchers = new FetcherThreads(queue, numFetcherThreads);
-                    }
-                    cache = new VolatileGlobalCellCache(queue);
-
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
                 }
+                if (queue == null)
+                    queue = SharedFetchQueue.get(maxNumLevels);
+                if (queue == null) {
+                    final int numFetcherThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+                    queue = new BlockingFetchQueues<>(maxNumLevels, numFetcherThreads);
+                    fetchers = new FetcherThreads(queue, numFetcherThreads);
+                }
+                prefetcher.setQueue(queue);
+                cache = new SharedQueueCellCache(queue);
 
                 isOpen = true;
             }
@@ -470,18 +522,92 @@ public class N5OMEZarrImageLoader implements ViewerImgLoader, MultiResolutionImg
             synchronized (this) {
                 if (!isOpen)
                     return;
-                if (fetchers != null)
+                prefetcher.clear();
+                if (fetchers != null) {
                     fetchers.shutdown();
-                cache.clearCache();
+                    cache.clearCache();
+                } else {
+                    // the queue may be shared with other loaders, whose requests must stay in it
+                    cache.invalidateAll();
+                }
+                LoaderMetrics.getInstance().release(this);
                 isOpen = false;
             }
         }
     }
 
+    /**
+     * Sets the policy that decides which cells are read ahead of the viewer.
+     * Prefetches only use idle fetcher threads. By default, nothing is
+     * prefetched.
+     *
+     * @param policy the policy, e.g. a {@link org.embl.mobie.io.ome.zarr.util.DirectionalPrefetchPolicy},
+     *               or null to switch prefetching off
+     */
+    public void setPrefetchPolicy(PrefetchPolicy policy) {
+        prefetcher.setPolicy(policy);
+    }
+
+    /**
+     * Sets how many cells are read at the same time when a cell is loaded
+     * from a reader that reads asynchronously, e.g. from S3, see
+     * {@link N5OMEZarrCacheArrayLoader#setReadAhead}. Applies to the images
+     * that are obtained from this loader afterwards.
+     *
+     * @param readAhead the number of cells per read, 1 to only read the requested cell
+     */
+    public void setReadAhead(int readAhead) {
+        if (readAhead < 1)
+            throw new IllegalArgumentException("readAhead must be positive: " + readAhead);
+        this.readAhead = readAhead;
+    }
+
+    public int getReadAhead() {
+        return readAhead;
+    }
+
+    /**
+     * Sets how many bytes of prefetched cells may be requested from the
+     * cell cache but not loaded yet.
+     *
+     * @param budgetBytes
+     */
+    public void setPrefetchBudget(long budgetBytes) {
+        prefetcher.setBudget(budgetBytes);
+    }
+
+    public PrefetchStatistics getPrefetchStatistics() {
+        return prefetcher.getStatistics();
+    }
+
     @Override
     public SetupImgLoader<?, ?> getSetupImgLoader(final int setupId) {
         open();
-        return setupImgLoaders.get(setupId);
+        SetupImgLoader<?, ?> setupImgLoader = setupImgLoaders.get(setupId);
+        if (setupImgLoader == null && setupToAttributes.containsKey(setupId)) {
+            synchronized (setupImgLoaders) {
+                setupImgLoader = setupImgLoaders.get(setupId);
+                if (setupImgLoader == null) {
+                    try {
+                        setupImgLoader = createSetupImgLoader(setupId);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    if (setupImgLoader != null) {
+                        setupImgLoaders.put(setupId, setupImgLoader);
+                    }
+                }
+            }
+        }
+        return setupImgLoader;
+    }
+
+    /**
+     * @return the number of setups whose {@link SetupImgLoader} has been created,
+     * i.e. that have been accessed since this loader was constructed
+     */
+    public int getNumOpenedSetups() {
+        return setupImgLoaders.size();
     }
 
     private <T extends NativeType<T>, V extends Volatile<T> & NativeType<V>> SetupImgLoader<T, V> createSetupImgLoader(final int setupId) throws IOException {
@@ -534,10 +660,25 @@ public class N5OMEZarrImageLoader implements ViewerImgLoader, MultiResolutionImg
         return tmp;
     }
 
-    private SimpleCacheArrayLoader<?> createCacheArrayLoader(final N5Reader n5, final String pathName, int setupId, int channel, int timepointId, CellGrid grid) throws IOException {
+    private SimpleCacheArrayLoader<?> createCacheArrayLoader(final N5Reader n5, final String pathName, int setupId, int level, int channel, int timepointId, CellGrid grid) throws IOException {
         final DatasetAttributes attributes = n5.getDatasetAttributes(pathName);
         ZarrAxes zarrAxes = setupToMultiscale.get(setupId).axes;
-        return new N5OMEZarrCacheArrayLoader<>(n5, pathName, channel, timepointId, attributes, grid, zarrAxes);
+        final LevelMetrics metrics = LoaderMetrics.getInstance().forLevel(this, LoaderMetrics.describe(n5), setupId, level);
+        final N5OMEZarrCacheArrayLoader<?> loader = new N5OMEZarrCacheArrayLoader<>(n5, pathName, channel, timepointId, attributes, grid, zarrAxes, metrics);
+        loader.setReadAhead(readAhead);
+        return loader;
+    }
+
+    private static class MultiscaleMetadata {
+        private final String pathName;
+        private final OmeZarrMultiscales multiscale;
+        private final DatasetAttributes attributes;
+
+        private MultiscaleMetadata(String pathName, OmeZarrMultiscales multiscale, DatasetAttributes attributes) {
+            this.pathName = pathName;
+            this.multiscale = multiscale;
+            this.attributes = attributes;
+        }
     }
 
     private class SetupImgLoader<T extends NativeType<T>, V extends Volatile<T> & NativeType<V>>
@@ -584,7 +725,8 @@ public class N5OMEZarrImageLoader implements ViewerImgLoader, MultiResolutionImg
 
         @Override
         public RandomAccessibleInterval<V> getVolatileImage(final int timepointId, final int level, final ImgLoaderHint... hints) {
-            return prepareCachedImage(timepointId, level, LoadingStrategy.BUDGETED, volatileType);
+            // the viewer reads the volatile images, reads of prefetched cells from them are hits
+            return prefetcher.countHits(setupId, timepointId, level, prepareCachedImage(timepointId, level, LoadingStrategy.BUDGETED, volatileType), volatileType);
         }
 
         @Override
@@ -649,7 +791,20 @@ public class N5OMEZarrImageLoader implements ViewerImgLoader, MultiResolutionImg
                 final int priority = numMipmapLevels() - 1 - level;
                 final CacheHints cacheHints = new CacheHints(loadingStrategy, priority, false);
 
-                final SimpleCacheArrayLoader<?> loader = createCacheArrayLoader(n5, pathName, setupId, setupToChannel.get(setupId), timepointId, grid);
+                final SimpleCacheArrayLoader<?> loader = createCacheArrayLoader(n5, pathName, setupId, level, setupToChannel.get(setupId), timepointId, grid);
+                if (loader instanceof N5OMEZarrCacheArrayLoader) {
+                    final long bytesPerCell = Arrays.stream(cellDimensions).asLongStream().reduce(1, (a, b) -> a * b) * N5DataTypeSize.getNumBytesPerElement(attributes.getDataType());
+                    prefetcher.register(setupId, timepointId, level, (N5OMEZarrCacheArrayLoader<?>) loader, grid, mipmapResolutions, bytesPerCell, () -> {
+                        // the cells of the viewer's images, requested without waiting at the prefetch priority
+                        final CacheHints prefetchHints = new CacheHints(LoadingStrategy.VOLATILE, prefetcher.getPriority(), false);
+                        final RandomAccessibleInterval<? extends Cell<?>> cells = cache.createImg(grid, timepointId, setupId, level, prefetchHints, loader, volatileType).getCells();
+                        return gridPosition -> {
+                            final RandomAccess<? extends Cell<?>> access = cells.randomAccess();
+                            access.setPosition(gridPosition);
+                            access.get();
+                        };
+                    });
+                }
                 return cache.createImg(grid, timepointId, setupId, level, cacheHints, loader, type);
             } catch (IOException e) {
                 log.error(String.format(
@@ -32,6 +32,7 @@ import java.io.IOException;
 
 import org.embl.mobie.io.n5.loaders.S3ImageLoader;
 import org.embl.mobie.io.ome.zarr.readers.N5S3OmeZarrReader;
+import org.embl.mobie.io.ome.zarr.util.ZarrMetadataCache;
 import org.embl.mobie.io.util.S3Utils;
 
 import com.amazonaws.services.s3.AmazonS3;
@@ -91,7 +92,12 @@ public class N5S3OMEZarrImageLoader extends N5OMEZarrImageLoader implements S3Im
     static class N5S3ZarrReaderCreator {
         public N5S3OmeZarrReader create(String serviceEndpoint, String signingRegion, String bucketName, String key, String dimensionSeparator) throws IOException {
             final AmazonS3 s3 = S3Utils.getS3Client(serviceEndpoint, signingRegion, bucketName);
-            return new N5S3OmeZarrReader(s3, serviceEndpoint, bucketName, key, dimensionSeparator);
+            final N5S3OmeZarrReader reader = new N5S3OmeZarrReader(s3, serviceEndpoint, bucketName, key, dimensionSeparator);
+            // each metadata file is then requested from S3 only once
+            reader.setMetadataCache(new ZarrMetadataCache());
+            // if the container has consolidated metadata, all of it is read with this one request
+            reader.readConsolidatedMetadata();
+            return reader;
         }
     }
 }
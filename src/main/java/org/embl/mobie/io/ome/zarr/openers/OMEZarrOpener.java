@@ -34,6 +34,7 @@ import java.io.IOException;
 import org.embl.mobie.io.OpenerLogging;
 import org.embl.mobie.io.ome.zarr.loaders.N5OMEZarrImageLoader;
 import org.embl.mobie.io.ome.zarr.readers.N5OmeZarrReader;
+import org.embl.mobie.io.ome.zarr.util.ZarrMetadataCache;
 
 import com.google.gson.GsonBuilder;
 
@@ -60,9 +61,17 @@ public class OMEZarrOpener extends OpenerLogging
         return omeZarrOpener.readFile(sharedQueue);
     }
 
+    private N5OmeZarrReader createReader() throws IOException {
+        N5OmeZarrReader reader = new N5OmeZarrReader(this.filePath, new GsonBuilder());
+        // the loader reads the .zattrs and .zarray of each setup several times
+        reader.setMetadataCache(new ZarrMetadataCache());
+        reader.readConsolidatedMetadata();
+        return reader;
+    }
+
     private SpimData readFile(SharedQueue sharedQueue) throws IOException {
         N5OMEZarrImageLoader.logging = logging;
-        N5OmeZarrReader reader = new N5OmeZarrReader(this.filePath, new GsonBuilder());
+        N5OmeZarrReader reader = createReader();
         N5OMEZarrImageLoader imageLoader = new N5OMEZarrImageLoader(reader, sharedQueue);
         return new SpimData(
             new File(this.filePath),
@@ -72,7 +81,7 @@ public class OMEZarrOpener extends OpenerLogging
 
     private SpimData readFile() throws IOException {
         N5OMEZarrImageLoader.logging = logging;
-        N5OmeZarrReader reader = new N5OmeZarrReader(this.filePath, new GsonBuilder());
+        N5OmeZarrReader reader = createReader();
         N5OMEZarrImageLoader imageLoader = new N5OMEZarrImageLoader(reader);
         return new SpimData(
             new File(this.filePath),
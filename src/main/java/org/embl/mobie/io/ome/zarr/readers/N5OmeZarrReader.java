@@ -53,9 +53,12 @@
  */
 package org.embl.mobie.io.ome.zarr.readers;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.Reader;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -68,10 +71,14 @@ import java.util.stream.Stream;
 import org.embl.mobie.io.ome.zarr.util.N5ZarrImageReader;
 import org.embl.mobie.io.ome.zarr.util.N5ZarrImageReaderHelper;
 import org.embl.mobie.io.ome.zarr.util.OmeZArrayAttributes;
+import org.embl.mobie.io.ome.zarr.util.ShardIndex;
 import org.embl.mobie.io.ome.zarr.util.ZArrayAttributes;
 import org.embl.mobie.io.ome.zarr.util.ZarrAxes;
 import org.embl.mobie.io.ome.zarr.util.ZarrAxis;
+import org.embl.mobie.io.ome.zarr.util.ZarrConsolidatedMetadata;
 import org.embl.mobie.io.ome.zarr.util.ZarrDatasetAttributes;
+import org.embl.mobie.io.ome.zarr.util.ZarrMetadataCache;
+import org.embl.mobie.io.ome.zarr.util.ZarrV3ArrayMetadata;
 import org.janelia.saalfeldlab.n5.DataBlock;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.GsonAttributesParser;
@@ -90,9 +97,16 @@ import lombok.extern.slf4j.Slf4j;
 public class N5OmeZarrReader extends N5FSReader implements N5ZarrImageReader {
     protected final boolean mapN5DatasetAttributes;
     final N5ZarrImageReaderHelper n5ZarrImageReaderHelper;
-    protected String dimensionSeparator;
+    /**
+     * Separator for datasets created by a writer; existing datasets
+     * carry their own separator in their {@link ZarrDatasetAttributes}.
+     */
+    protected final String dimensionSeparator;
     private ZarrAxes zarrAxes;
     private List<ZarrAxis> zarrAxesList;
+    private ZarrMetadataCache metadataCache;
+    private volatile ZarrConsolidatedMetadata consolidatedMetadata;
+    private final ShardIndex.Cache shardIndexCache = new ShardIndex.Cache();
 
     /**
      * Opens an {@link N5OmeZarrReader} at a given base path with a custom
@@ -188,39 +202,121 @@ public class N5OmeZarrReader extends N5FSReader implements N5ZarrImageReader {
         this(basePath, new GsonBuilder());
     }
 
+    /**
+     * Enables caching of the .zarray, .zattrs and .zgroup files read by this
+     * reader, or disables it if metadataCache is null (the default).
+     * A cache can be shared between readers of the same container.
+     *
+     * @param metadataCache
+     */
+    public void setMetadataCache(final ZarrMetadataCache metadataCache) {
+        this.metadataCache = metadataCache;
+    }
+
+    public ZarrMetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+
+    /**
+     * Reads the consolidated metadata file at the container root, if there
+     * is one. All metadata that it lists is then taken from it rather than
+     * from the individual .zarray, .zattrs and .zgroup files, until metadata
+     * is written through this reader. Files that it does not list are still
+     * read directly.
+     *
+     * @return whether the container has consolidated metadata
+     * @throws IOException
+     */
+    public boolean readConsolidatedMetadata() throws IOException {
+        final HashMap<String, JsonElement> zmetadata = readJsonFile(Paths.get(basePath, ZarrConsolidatedMetadata.ZMETADATA_FILE));
+        consolidatedMetadata = zmetadata == null ? null : ZarrConsolidatedMetadata.fromJson(zmetadata);
+        return consolidatedMetadata != null;
+    }
+
+    /**
+     * Sets the metadata of the whole container, or reads the individual
+     * metadata files if consolidatedMetadata is null (the default).
+     *
+     * @param consolidatedMetadata
+     */
+    public void setConsolidatedMetadata(final ZarrConsolidatedMetadata consolidatedMetadata) {
+        this.consolidatedMetadata = consolidatedMetadata;
+    }
+
+    public ZarrConsolidatedMetadata getConsolidatedMetadata() {
+        return consolidatedMetadata;
+    }
+
     @Override
     public Version getVersion() throws IOException {
 
-        final Path path;
-        if (groupExists("/")) {
-            path = Paths.get(basePath, zgroupFile);
-        } else if (datasetExists("/")) {
-            path = Paths.get(basePath, zarrayFile);
-        } else {
-            return VERSION;
+        HashMap<String, JsonElement> attributes = readMetadata("", ZarrMetadataCache.FileKind.ZGROUP);
+        if (attributes == null)
+            attributes = readMetadata("", ZarrMetadataCache.FileKind.ZARRAY);
+
+        if (attributes != null) {
+
+            final Integer zarr_format = GsonAttributesParser.parseAttribute(
+                attributes,
+                "zarr_format",
+                Integer.class,
+                gson);
+
+            if (zarr_format != null)
+                return new Version(zarr_format, 0, 0);
         }
+        return VERSION;
+    }
 
-        if (Files.exists(path)) {
+    /**
+     * Reads one of the metadata files of pathName, through the metadata
+     * cache if it is enabled. The returned map must not be modified.
+     *
+     * @return the attributes, or null if the file does not exist
+     */
+    protected HashMap<String, JsonElement> readMetadata(final String pathName, final ZarrMetadataCache.FileKind kind) throws IOException {
+
+        final ZarrConsolidatedMetadata consolidatedMetadata = this.consolidatedMetadata;
+        if (consolidatedMetadata != null) {
+            final HashMap<String, JsonElement> attributes = consolidatedMetadata.get(pathName, kind);
+            // files that are not listed may have been added after the metadata was consolidated
+            if (attributes != null)
+                return attributes;
+        }
+        if (metadataCache == null)
+            return readMetadataFile(pathName, kind);
+        return metadataCache.get(pathName, kind, () -> readMetadataFile(pathName, kind));
+    }
 
-            try (final LockedFileChannel lockedFileChannel = LockedFileChannel.openForReading(path)) {
-                final HashMap<String, JsonElement> attributes =
-                    GsonAttributesParser.readAttributes(
-                        Channels.newReader(
-                            lockedFileChannel.getFileChannel(),
-                            StandardCharsets.UTF_8.name()),
-                        gson);
+    private HashMap<String, JsonElement> readMetadataFile(final String pathName, final ZarrMetadataCache.FileKind kind) throws IOException {
 
-                final Integer zarr_format = GsonAttributesParser.parseAttribute(
-                    attributes,
-                    "zarr_format",
-                    Integer.class,
-                    gson);
+        return readJsonFile(Paths.get(basePath, removeLeadingSlash(pathName), kind.getFileName()));
+    }
 
-                if (zarr_format != null)
-                    return new Version(zarr_format, 0, 0);
-            }
+    private HashMap<String, JsonElement> readJsonFile(final Path path) throws IOException {
+
+        if (!Files.isRegularFile(path))
+            return null;
+
+        try (final LockedFileChannel lockedFileChannel = LockedFileChannel.openForReading(path)) {
+            return GsonAttributesParser.readAttributes(
+                Channels.newReader(
+                    lockedFileChannel.getFileChannel(),
+                    StandardCharsets.UTF_8.name()),
+                gson);
         }
-        return VERSION;
+    }
+
+    protected void invalidateMetadata(final String pathName, final ZarrMetadataCache.FileKind kind) {
+        consolidatedMetadata = null;
+        if (metadataCache != null)
+            metadataCache.invalidate(pathName, kind);
+    }
+
+    protected void invalidateMetadata(final String pathName) {
+        consolidatedMetadata = null;
+        if (metadataCache != null)
+            metadataCache.invalidate(pathName);
     }
 
     /**
@@ -234,6 +330,14 @@ public class N5OmeZarrReader extends N5FSReader implements N5ZarrImageReader {
 
     public boolean groupExists(final String pathName) {
 
+        if (metadataCache != null || consolidatedMetadata != null) {
+            try {
+                return readMetadata(pathName, ZarrMetadataCache.FileKind.ZGROUP) != null;
+            } catch (final IOException e) {
+                return false;
+            }
+        }
+
         final Path path = Paths.get(basePath, removeLeadingSlash(pathName), zgroupFile);
         return Files.exists(path) && Files.isRegularFile(path);
     }
@@ -245,34 +349,50 @@ public class N5OmeZarrReader extends N5FSReader implements N5ZarrImageReader {
 
     public ZArrayAttributes getZArrayAttributes(final String pathName) throws IOException {
 
-        final Path path = Paths.get(basePath, removeLeadingSlash(pathName), zarrayFile);
-        OmeZArrayAttributes zArrayAttributes = null;
-        if (Files.exists(path)) {
-            try (final LockedFileChannel lockedFileChannel = LockedFileChannel.openForReading(path);
-                 final Reader reader = Channels.newReader(lockedFileChannel.getFileChannel(), StandardCharsets.UTF_8.name())) {
-                zArrayAttributes = gson.fromJson(reader, OmeZArrayAttributes.class);
-            }
-        } else {
-            log.warn(path + " does not exist.");
+        final HashMap<String, JsonElement> attributes = readMetadata(pathName, ZarrMetadataCache.FileKind.ZARRAY);
+        if (attributes == null) {
+            log.warn(Paths.get(basePath, removeLeadingSlash(pathName), zarrayFile) + " does not exist.");
+            return null;
         }
-        this.dimensionSeparator = zArrayAttributes == null || zArrayAttributes.getDimensionSeparator() == null ?
-            DEFAULT_SEPARATOR : zArrayAttributes.getDimensionSeparator();
+        return parseZArrayAttributes(attributes);
+    }
+
+    private ZArrayAttributes parseZArrayAttributes(final HashMap<String, JsonElement> attributes) {
 
-        return zArrayAttributes;
+        return gson.fromJson(gson.toJsonTree(attributes), OmeZArrayAttributes.class);
+    }
+
+    /**
+     * Reads the attributes of a zarr v2 array from its .zarray or, if there
+     * is none, of a zarr v3 array from its zarr.json, see
+     * {@link ZarrV3ArrayMetadata}.
+     *
+     * @return the attributes, or null if pathName is not an array
+     */
+    public ZarrDatasetAttributes getZarrDatasetAttributes(final String pathName) throws IOException {
+
+        final HashMap<String, JsonElement> zarray = readMetadata(pathName, ZarrMetadataCache.FileKind.ZARRAY);
+        if (zarray != null)
+            return parseZArrayAttributes(zarray).getDatasetAttributes();
+        final HashMap<String, JsonElement> zarrJson = readMetadata(pathName, ZarrMetadataCache.FileKind.ZARR_JSON);
+        if (zarrJson != null && ZarrV3ArrayMetadata.isArray(zarrJson))
+            return ZarrV3ArrayMetadata.parse(zarrJson, gson);
+        return null;
     }
 
     @Override
     public DatasetAttributes getDatasetAttributes(final String pathName) throws IOException {
 
-        final ZArrayAttributes zArrayAttributes = getZArrayAttributes(pathName);
-        return zArrayAttributes == null ? null : zArrayAttributes.getDatasetAttributes();
+        final ZarrDatasetAttributes datasetAttributes = getZarrDatasetAttributes(pathName);
+        if (datasetAttributes == null)
+            log.warn("Neither " + zarrayFile + " nor " + zarrJsonFile + " of an array exist in " + Paths.get(basePath, removeLeadingSlash(pathName)));
+        return datasetAttributes;
     }
 
     @Override
     public boolean datasetExists(final String pathName) throws IOException {
 
-        final Path path = Paths.get(basePath, removeLeadingSlash(pathName), zarrayFile);
-        return Files.exists(path) && Files.isRegularFile(path) && getDatasetAttributes(pathName) != null;
+        return getZarrDatasetAttributes(pathName) != null;
     }
 
     /**
@@ -297,18 +417,10 @@ public class N5OmeZarrReader extends N5FSReader implements N5ZarrImageReader {
     @Override
     public HashMap<String, JsonElement> getAttributes(final String pathName) throws IOException {
 
-        final Path path = Paths.get(basePath, removeLeadingSlash(pathName), zattrsFile);
         final HashMap<String, JsonElement> attributes = new HashMap<>();
-        if (Files.exists(path)) {
-            try (final LockedFileChannel lockedFileChannel = LockedFileChannel.openForReading(path)) {
-                attributes.putAll(
-                    GsonAttributesParser.readAttributes(
-                        Channels.newReader(
-                            lockedFileChannel.getFileChannel(),
-                            StandardCharsets.UTF_8.name()),
-                        gson));
-            }
-        }
+        final HashMap<String, JsonElement> zattrs = readMetadata(pathName, ZarrMetadataCache.FileKind.ZATTRS);
+        if (zattrs != null)
+            attributes.putAll(zattrs);
 
         try {
             getDimensions(attributes);
@@ -316,9 +428,10 @@ public class N5OmeZarrReader extends N5FSReader implements N5ZarrImageReader {
             throw new IOException("Error while getting datasets dimensions", e);
         }
 
-        if (mapN5DatasetAttributes && datasetExists(pathName)) {
-            final DatasetAttributes datasetAttributes = getZArrayAttributes(pathName).getDatasetAttributes();
-            n5ZarrImageReaderHelper.putAttributes(attributes, datasetAttributes);
+        if (mapN5DatasetAttributes) {
+            final DatasetAttributes datasetAttributes = getZarrDatasetAttributes(pathName);
+            if (datasetAttributes != null)
+                n5ZarrImageReaderHelper.putAttributes(attributes, datasetAttributes);
         }
 
         return attributes;
@@ -361,15 +474,15 @@ public class N5OmeZarrReader extends N5FSReader implements N5ZarrImageReader {
         if (datasetAttributes instanceof ZarrDatasetAttributes)
             zarrDatasetAttributes = (ZarrDatasetAttributes) datasetAttributes;
         else
-            zarrDatasetAttributes = getZArrayAttributes(pathName).getDatasetAttributes();
+            zarrDatasetAttributes = getZarrDatasetAttributes(pathName);
+
+        if (zarrDatasetAttributes.isSharded())
+            return readShardedBlock(pathName, zarrDatasetAttributes, gridPosition);
 
         Path path = Paths.get(
             basePath,
             removeLeadingSlash(pathName),
-            getZarrDataBlockString(
-                gridPosition,
-                dimensionSeparator,
-                zarrDatasetAttributes.isRowMajor()));
+            getChunkKey(zarrDatasetAttributes, gridPosition));
         if (!Files.exists(path)) {
             return null;
         }
@@ -379,6 +492,69 @@ public class N5OmeZarrReader extends N5FSReader implements N5ZarrImageReader {
         }
     }
 
+    /**
+     * Reads a chunk out of its shard, using the index of the shard.
+     */
+    protected DataBlock<?> readShardedBlock(
+        final String pathName,
+        final ZarrDatasetAttributes zarrDatasetAttributes,
+        final long... gridPosition) throws IOException {
+
+        final int[] chunksPerShard = zarrDatasetAttributes.getChunksPerShard();
+        final Path path = getShardPath(pathName, zarrDatasetAttributes, gridPosition);
+        if (!Files.exists(path))
+            return null;
+
+        try (final LockedFileChannel lockedChannel = LockedFileChannel.openForReading(path)) {
+            final FileChannel channel = lockedChannel.getFileChannel();
+            final ShardIndex index = readShardIndex(path, channel, ShardIndex.getNumChunks(chunksPerShard), zarrDatasetAttributes.getShardIndexLayout());
+            final int chunk = ShardIndex.getChunkIndex(gridPosition, chunksPerShard, zarrDatasetAttributes.isRowMajor());
+            if (index.isEmpty(chunk))
+                return null;
+
+            final byte[] bytes = readFully(channel, index.getOffset(chunk), (int) index.getNumBytes(chunk));
+            return readBlock(new ByteArrayInputStream(bytes), zarrDatasetAttributes, gridPosition);
+        }
+    }
+
+    /**
+     * @return the path of the shard that holds the chunk at gridPosition
+     */
+    protected Path getShardPath(final String pathName, final ZarrDatasetAttributes zarrDatasetAttributes, final long[] gridPosition) {
+        return Paths.get(
+            basePath,
+            removeLeadingSlash(pathName),
+            getChunkKey(zarrDatasetAttributes, ShardIndex.getShardPosition(gridPosition, zarrDatasetAttributes.getChunksPerShard())));
+    }
+
+    protected ShardIndex readShardIndex(final Path path, final FileChannel channel, final int numChunks, final ShardIndex.Layout layout) throws IOException {
+        final String key = path.toString();
+        final long size = channel.size();
+        final String version = size + ":" + Files.getLastModifiedTime(path).toMillis();
+        ShardIndex index = shardIndexCache.get(key, version);
+        if (index == null) {
+            final int indexSize = layout.getByteSize(numChunks);
+            if (size < indexSize)
+                throw new IOException(path + " is too small to hold a shard index of " + numChunks + " chunks");
+            index = ShardIndex.read(readFully(channel, layout.getIndexOffset(size, numChunks), indexSize), numChunks, layout);
+            shardIndexCache.put(key, version, index);
+        }
+        return index;
+    }
+
+    protected void invalidateShardIndex(final Path path) {
+        shardIndexCache.invalidate(path.toString());
+    }
+
+    protected static byte[] readFully(final FileChannel channel, final long position, final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException("Unexpected end of file at " + (position + buffer.position()));
+        }
+        return buffer.array();
+    }
+
     @Override
     public String[] list(final String pathName) throws IOException {
 
@@ -53,19 +53,30 @@
  */
 package org.embl.mobie.io.ome.zarr.readers;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
+import org.embl.mobie.io.ome.zarr.util.AsyncBlockReader;
 import org.embl.mobie.io.ome.zarr.util.N5ZarrImageReader;
 import org.embl.mobie.io.ome.zarr.util.N5ZarrImageReaderHelper;
+import org.embl.mobie.io.ome.zarr.util.ShardIndex;
 import org.embl.mobie.io.ome.zarr.util.ZArrayAttributes;
 import org.embl.mobie.io.ome.zarr.util.ZarrAxes;
 import org.embl.mobie.io.ome.zarr.util.ZarrAxis;
+import org.embl.mobie.io.ome.zarr.util.ZarrConsolidatedMetadata;
 import org.embl.mobie.io.ome.zarr.util.ZarrDatasetAttributes;
+import org.embl.mobie.io.ome.zarr.util.ZarrMetadataCache;
+import org.embl.mobie.io.ome.zarr.util.ZarrV3ArrayMetadata;
+import org.embl.mobie.io.util.BoundedRequestExecutor;
+import org.embl.mobie.io.util.DiskBlockCache;
+import org.embl.mobie.io.util.S3ChunkReader;
+import org.embl.mobie.io.util.S3Utils;
 import org.janelia.saalfeldlab.n5.DataBlock;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.GsonAttributesParser;
@@ -73,6 +84,7 @@ import org.janelia.saalfeldlab.n5.s3.N5AmazonS3Reader;
 
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
 
@@ -83,7 +95,9 @@ import lombok.extern.slf4j.Slf4j;
  * Attempt at a diamond inheritance solution for S3+Zarr.
  */
 @Slf4j
-public class N5S3OmeZarrReader extends N5AmazonS3Reader implements N5ZarrImageReader {
+public class N5S3OmeZarrReader extends N5AmazonS3Reader implements N5ZarrImageReader, AsyncBlockReader {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 32;
 
     final protected boolean mapN5DatasetAttributes;
     private final String serviceEndpoint;
@@ -91,10 +105,16 @@ public class N5S3OmeZarrReader extends N5AmazonS3Reader implements N5ZarrImageRe
     protected String dimensionSeparator;
     List<ZarrAxis> zarrAxesList = new ArrayList<>();
     private ZarrAxes zarrAxes;
+    private ZarrMetadataCache metadataCache;
+    private volatile ZarrConsolidatedMetadata consolidatedMetadata;
+    private int maxInFlightRequests = DEFAULT_MAX_IN_FLIGHT_REQUESTS;
+    private BoundedRequestExecutor requestExecutor;
+    private DiskBlockCache diskBlockCache;
+    private final ShardIndex.Cache shardIndexCache = new ShardIndex.Cache();
 
     public N5S3OmeZarrReader(AmazonS3 s3, String serviceEndpoint, String bucketName, String containerPath, String dimensionSeparator) throws IOException {
         super(s3, bucketName, containerPath, N5ZarrImageReader.initGsonBuilder(new GsonBuilder()));
-        this.serviceEndpoint = serviceEndpoint; // for debugging
+        this.serviceEndpoint = serviceEndpoint; // for debugging and the disk block cache
         this.dimensionSeparator = dimensionSeparator;
         mapN5DatasetAttributes = true;
         this.n5ZarrImageReaderHelper = new N5ZarrImageReaderHelper(N5ZarrImageReader.initGsonBuilder(new GsonBuilder()));
@@ -122,6 +142,12 @@ public class N5S3OmeZarrReader extends N5AmazonS3Reader implements N5ZarrImageRe
         return this.zarrAxesList;
     }
 
+    /**
+     * @deprecated the separator of each dataset is read from its .zarray
+     * and carried by its {@link ZarrDatasetAttributes}; this value is not
+     * used for reading blocks.
+     */
+    @Deprecated
     public void setDimensionSeparator(String dimensionSeparator) {
         this.dimensionSeparator = dimensionSeparator;
     }
@@ -142,6 +168,120 @@ public class N5S3OmeZarrReader extends N5AmazonS3Reader implements N5ZarrImageRe
         return serviceEndpoint;
     }
 
+    /**
+     * Enables caching of the .zarray, .zattrs and .zgroup objects read by this
+     * reader, or disables it if metadataCache is null (the default).
+     * A cache can be shared between readers of the same container.
+     *
+     * @param metadataCache
+     */
+    public void setMetadataCache(final ZarrMetadataCache metadataCache) {
+        this.metadataCache = metadataCache;
+    }
+
+    public ZarrMetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+
+    /**
+     * Reads the consolidated metadata object at the container root, if there
+     * is one. All metadata that it lists is then taken from it rather than
+     * from the individual .zarray, .zattrs and .zgroup objects, which saves a
+     * request for each of them, until metadata is written through this
+     * reader. Objects that it does not list are still read directly.
+     *
+     * @return whether the container has consolidated metadata
+     * @throws IOException
+     */
+    public boolean readConsolidatedMetadata() throws IOException {
+        HashMap<String, JsonElement> zmetadata;
+        try {
+            zmetadata = readJson(objectFile("", ZarrConsolidatedMetadata.ZMETADATA_FILE));
+        } catch (AmazonS3Exception e) {
+            if (!S3Utils.isMissingObject(e))
+                throw e;
+            zmetadata = null;
+        }
+        consolidatedMetadata = zmetadata == null ? null : ZarrConsolidatedMetadata.fromJson(zmetadata);
+        return consolidatedMetadata != null;
+    }
+
+    /**
+     * Sets the metadata of the whole container, or reads the individual
+     * metadata objects if consolidatedMetadata is null (the default).
+     *
+     * @param consolidatedMetadata
+     */
+    public void setConsolidatedMetadata(final ZarrConsolidatedMetadata consolidatedMetadata) {
+        this.consolidatedMetadata = consolidatedMetadata;
+    }
+
+    public ZarrConsolidatedMetadata getConsolidatedMetadata() {
+        return consolidatedMetadata;
+    }
+
+    /**
+     * Sets the disk cache for the raw chunk bytes of this reader. If none is
+     * set, {@link DiskBlockCache#getDefault()} is used.
+     *
+     * @param diskBlockCache
+     */
+    public void setDiskBlockCache(final DiskBlockCache diskBlockCache) {
+        this.diskBlockCache = diskBlockCache;
+    }
+
+    public DiskBlockCache getDiskBlockCache() {
+        return diskBlockCache != null ? diskBlockCache : DiskBlockCache.getDefault();
+    }
+
+    /**
+     * Sets how many block requests of {@link #readBlockAsync} may be running
+     * at the same time. The AWS client is blocking, so each running request
+     * occupies one thread; the connection pool of the client should allow at
+     * least as many connections.
+     *
+     * @param maxInFlightRequests
+     */
+    public synchronized void setMaxInFlightRequests(final int maxInFlightRequests) {
+        if (maxInFlightRequests < 1)
+            throw new IllegalArgumentException("maxInFlightRequests must be positive: " + maxInFlightRequests);
+        this.maxInFlightRequests = maxInFlightRequests;
+        if (requestExecutor != null) {
+            requestExecutor.shutdown();
+            requestExecutor = null;
+        }
+    }
+
+    public synchronized int getMaxInFlightRequests() {
+        return maxInFlightRequests;
+    }
+
+    private synchronized BoundedRequestExecutor getRequestExecutor() {
+        if (requestExecutor == null)
+            requestExecutor = new BoundedRequestExecutor("n5-s3-zarr-reader", maxInFlightRequests);
+        return requestExecutor;
+    }
+
+    /**
+     * Reads one of the metadata objects of pathName, through the metadata
+     * cache if it is enabled. The returned map must not be modified.
+     *
+     * @return the attributes, or null if the object does not exist
+     */
+    protected HashMap<String, JsonElement> readMetadata(final String pathName, final ZarrMetadataCache.FileKind kind) throws IOException {
+        final ZarrConsolidatedMetadata consolidatedMetadata = this.consolidatedMetadata;
+        if (consolidatedMetadata != null) {
+            final HashMap<String, JsonElement> attributes = consolidatedMetadata.get(pathName, kind);
+            // files that are not listed may have been added after the metadata was consolidated
+            if (attributes != null)
+                return attributes;
+        }
+        final String objectPath = objectFile(pathName, kind.getFileName());
+        if (metadataCache == null)
+            return readJson(objectPath);
+        return metadataCache.get(pathName, kind, () -> readJson(objectPath));
+    }
+
     /**
      * Helper to encapsulate building the object key for a file like
      * .zarray or .zgroup within any given path.
@@ -150,7 +290,7 @@ public class N5S3OmeZarrReader extends N5AmazonS3Reader implements N5ZarrImageRe
      * @param file     One of .zarray, .zgroup or .zattrs
      * @return
      */
-    private String objectFile(final String pathName, String file) {
+    protected String objectFile(final String pathName, String file) {
         StringBuilder sb = new StringBuilder();
         sb.append(containerPath);
         String cleaned = removeLeadingSlash(pathName);
@@ -163,14 +303,26 @@ public class N5S3OmeZarrReader extends N5AmazonS3Reader implements N5ZarrImageRe
         return sb.toString();
     }
 
+    protected void invalidateMetadata(final String pathName, final ZarrMetadataCache.FileKind kind) {
+        consolidatedMetadata = null;
+        if (metadataCache != null)
+            metadataCache.invalidate(pathName, kind);
+    }
+
+    protected void invalidateMetadata(final String pathName) {
+        consolidatedMetadata = null;
+        if (metadataCache != null)
+            metadataCache.invalidate(pathName);
+    }
+
     // remove getBasePath
 
     @Override
     public Version getVersion() throws IOException {
         HashMap<String, JsonElement> meta;
-        meta = readJson(objectFile("", zgroupFile));
+        meta = readMetadata("", ZarrMetadataCache.FileKind.ZGROUP);
         if (meta == null) {
-            meta = readJson(objectFile("", zarrayFile));
+            meta = readMetadata("", ZarrMetadataCache.FileKind.ZARRAY);
         }
 
         if (meta != null) {
@@ -189,33 +341,54 @@ public class N5S3OmeZarrReader extends N5AmazonS3Reader implements N5ZarrImageRe
     }
 
     public boolean groupExists(final String pathName) {
+        if (metadataCache != null || consolidatedMetadata != null) {
+            try {
+                return readMetadata(pathName, ZarrMetadataCache.FileKind.ZGROUP) != null;
+            } catch (final IOException e) {
+                return false;
+            }
+        }
         return exists(objectFile(pathName, zgroupFile));
     }
 
     public ZArrayAttributes getZArrayAttributes(final String pathName) throws IOException {
-        final String path = objectFile(pathName, zarrayFile);
-        HashMap<String, JsonElement> attributes = readJson(path);
+        HashMap<String, JsonElement> attributes = readMetadata(pathName, ZarrMetadataCache.FileKind.ZARRAY);
 
         if (attributes == null) {
-            log.warn(path + " does not exist.");
+            log.warn(objectFile(pathName, zarrayFile) + " does not exist.");
             attributes = new HashMap<>();
         }
-
-        JsonElement dimSep = attributes.get("dimension_separator");
-        this.dimensionSeparator = dimSep == null ? DEFAULT_SEPARATOR : dimSep.getAsString();
         return n5ZarrImageReaderHelper.getN5DatasetAttributes(attributes);
     }
 
+    /**
+     * Reads the attributes of a zarr v2 array from its .zarray or, if there
+     * is none, of a zarr v3 array from its zarr.json, see
+     * {@link ZarrV3ArrayMetadata}.
+     *
+     * @return the attributes, or null if pathName is not an array
+     */
+    public ZarrDatasetAttributes getZarrDatasetAttributes(final String pathName) throws IOException {
+        final HashMap<String, JsonElement> zarray = readMetadata(pathName, ZarrMetadataCache.FileKind.ZARRAY);
+        if (zarray != null)
+            return n5ZarrImageReaderHelper.getN5DatasetAttributes(zarray).getDatasetAttributes();
+        final HashMap<String, JsonElement> zarrJson = readMetadata(pathName, ZarrMetadataCache.FileKind.ZARR_JSON);
+        if (zarrJson != null && ZarrV3ArrayMetadata.isArray(zarrJson))
+            return ZarrV3ArrayMetadata.parse(zarrJson, gson);
+        return null;
+    }
+
     @Override
     public DatasetAttributes getDatasetAttributes(final String pathName) throws IOException {
-        final ZArrayAttributes zArrayAttributes = getZArrayAttributes(pathName);
-        return zArrayAttributes == null ? null : zArrayAttributes.getDatasetAttributes();
+        final ZarrDatasetAttributes datasetAttributes = getZarrDatasetAttributes(pathName);
+        if (datasetAttributes == null)
+            log.warn("Neither " + objectFile(pathName, zarrayFile) + " nor " + objectFile(pathName, zarrJsonFile) + " of an array exist.");
+        return datasetAttributes;
     }
 
     @Override
     public boolean datasetExists(final String pathName) throws IOException {
-        final String path = objectFile(pathName, zarrayFile);
-        return readJson(path) != null;
+        return getZarrDatasetAttributes(pathName) != null;
     }
 
     /**
@@ -241,12 +414,8 @@ public class N5S3OmeZarrReader extends N5AmazonS3Reader implements N5ZarrImageRe
      */
     @Override
     public HashMap<String, JsonElement> getAttributes(final String pathName) throws IOException {
-        final String path = objectFile(pathName, zattrsFile);
-        HashMap<String, JsonElement> attributes = readJson(path);
-
-        if (attributes == null) {
-            attributes = new HashMap<>();
-        }
+        final HashMap<String, JsonElement> zattrs = readMetadata(pathName, ZarrMetadataCache.FileKind.ZATTRS);
+        final HashMap<String, JsonElement> attributes = zattrs == null ? new HashMap<>() : new HashMap<>(zattrs);
 
         try {
             getDimensions(attributes);
@@ -254,9 +423,10 @@ public class N5S3OmeZarrReader extends N5AmazonS3Reader implements N5ZarrImageRe
             throw new IOException("Error while getting datasets dimensions", e);
         }
 
-        if (mapN5DatasetAttributes && datasetExists(pathName)) {
-            final DatasetAttributes datasetAttributes = getZArrayAttributes(pathName).getDatasetAttributes();
-            n5ZarrImageReaderHelper.putAttributes(attributes, datasetAttributes);
+        if (mapN5DatasetAttributes) {
+            final DatasetAttributes datasetAttributes = getZarrDatasetAttributes(pathName);
+            if (datasetAttributes != null)
+                n5ZarrImageReaderHelper.putAttributes(attributes, datasetAttributes);
         }
         return attributes;
     }
@@ -266,33 +436,126 @@ public class N5S3OmeZarrReader extends N5AmazonS3Reader implements N5ZarrImageRe
         final String pathName,
         final DatasetAttributes datasetAttributes,
         final long... gridPosition) throws IOException {
-        final ZarrDatasetAttributes zarrDatasetAttributes;
-        if (datasetAttributes instanceof ZarrDatasetAttributes)
-            zarrDatasetAttributes = (ZarrDatasetAttributes) datasetAttributes;
-        else
-            zarrDatasetAttributes = getZArrayAttributes(pathName).getDatasetAttributes();
+        final byte[] bytes = readRawBlock(pathName, datasetAttributes, gridPosition);
+        if (bytes == null)
+            return null;
 
-        final String dataBlockKey =
-            objectFile(pathName,
-                getZarrDataBlockString(
-                    gridPosition,
-                    dimensionSeparator,
-                    zarrDatasetAttributes.isRowMajor()));
+        return decodeBlock(bytes, pathName, datasetAttributes, gridPosition);
+    }
+
+    @Override
+    public byte[] readRawBlock(
+        final String pathName,
+        final DatasetAttributes datasetAttributes,
+        final long... gridPosition) throws IOException {
+        final ZarrDatasetAttributes zarrDatasetAttributes = toZarrDatasetAttributes(pathName, datasetAttributes);
+
+        if (zarrDatasetAttributes.isSharded())
+            return readShardedChunk(pathName, zarrDatasetAttributes, gridPosition);
+
+        final String dataBlockKey = objectFile(pathName, getChunkKey(zarrDatasetAttributes, gridPosition));
 
         // Currently exists() appends "/"
         //		if (!exists(dataBlockKey))
         //			return null;
 
-        try {
-            try (final InputStream in = this.readS3Object(dataBlockKey)) {
-                return readBlock(in, zarrDatasetAttributes, gridPosition);
+        return S3ChunkReader.read(s3, serviceEndpoint, bucketName, dataBlockKey, getDiskBlockCache());
+    }
+
+    @Override
+    public DataBlock<?> decodeBlock(
+        final byte[] bytes,
+        final String pathName,
+        final DatasetAttributes datasetAttributes,
+        final long... gridPosition) throws IOException {
+        return readBlock(new ByteArrayInputStream(bytes), toZarrDatasetAttributes(pathName, datasetAttributes), gridPosition);
+    }
+
+    private ZarrDatasetAttributes toZarrDatasetAttributes(final String pathName, final DatasetAttributes datasetAttributes) throws IOException {
+        if (datasetAttributes instanceof ZarrDatasetAttributes)
+            return (ZarrDatasetAttributes) datasetAttributes;
+        return getZarrDatasetAttributes(pathName);
+    }
+
+    /**
+     * Reads the bytes of a chunk out of its shard with a ranged GET. The
+     * index of the shard is read once, also with a ranged GET, and then kept
+     * in memory together with the ETag of the shard. If the shard changes in
+     * the meantime, the index is read again.
+     */
+    protected byte[] readShardedChunk(
+        final String pathName,
+        final ZarrDatasetAttributes zarrDatasetAttributes,
+        final long... gridPosition) throws IOException {
+
+        final int[] chunksPerShard = zarrDatasetAttributes.getChunksPerShard();
+        final int numChunks = ShardIndex.getNumChunks(chunksPerShard);
+        final ShardIndex.Layout layout = zarrDatasetAttributes.getShardIndexLayout();
+        final int chunk = ShardIndex.getChunkIndex(gridPosition, chunksPerShard, zarrDatasetAttributes.isRowMajor());
+        final String shardKey = getShardKey(pathName, zarrDatasetAttributes, gridPosition);
+
+        for (int attempt = 0; attempt < 2; ++attempt) {
+            String eTag = shardIndexCache.getVersion(shardKey);
+            ShardIndex index = eTag == null ? null : shardIndexCache.get(shardKey, eTag);
+            if (index == null) {
+                final ObjectMetadata metadata;
+                try {
+                    metadata = s3.getObjectMetadata(bucketName, shardKey);
+                } catch (AmazonS3Exception e) {
+                    if (S3Utils.isMissingObject(e))
+                        return null;
+                    throw e;
+                }
+                eTag = metadata.getETag();
+                final long size = metadata.getContentLength();
+                final int indexSize = layout.getByteSize(numChunks);
+                if (size < indexSize)
+                    throw new IOException(shardKey + " is too small to hold a shard index of " + numChunks + " chunks");
+                final byte[] indexBytes = S3ChunkReader.readRange(s3, serviceEndpoint, bucketName, shardKey, eTag, layout.getIndexOffset(size, numChunks), indexSize, getDiskBlockCache());
+                if (indexBytes == null)
+                    continue;
+                index = ShardIndex.read(indexBytes, numChunks, layout);
+                shardIndexCache.put(shardKey, eTag, index);
             }
-        } catch (AmazonS3Exception ase) {
-            if ("NoSuchKey".equals(ase.getErrorCode())) {
+
+            if (index.isEmpty(chunk))
                 return null;
-            }
-            throw ase;
+
+            final byte[] bytes = S3ChunkReader.readRange(s3, serviceEndpoint, bucketName, shardKey, eTag, index.getOffset(chunk), (int) index.getNumBytes(chunk), getDiskBlockCache());
+            if (bytes != null)
+                return bytes;
+
+            // the shard was replaced or removed after its index was read
+            shardIndexCache.invalidate(shardKey);
         }
+        throw new IOException(shardKey + " changed repeatedly while reading from it");
+    }
+
+    protected String getShardKey(final String pathName, final ZarrDatasetAttributes zarrDatasetAttributes, final long[] gridPosition) {
+        return objectFile(pathName,
+            getChunkKey(zarrDatasetAttributes, ShardIndex.getShardPosition(gridPosition, zarrDatasetAttributes.getChunksPerShard())));
+    }
+
+    protected void invalidateShardIndex(final String shardKey) {
+        shardIndexCache.invalidate(shardKey);
+    }
+
+    @Override
+    public CompletableFuture<DataBlock<?>> readBlockAsync(
+        final String pathName,
+        final DatasetAttributes datasetAttributes,
+        final long... gridPosition) {
+        final long[] position = gridPosition.clone();
+        return getRequestExecutor().submit(() -> readBlock(pathName, datasetAttributes, position));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> readRawBlockAsync(
+        final String pathName,
+        final DatasetAttributes datasetAttributes,
+        final long... gridPosition) {
+        final long[] position = gridPosition.clone();
+        return getRequestExecutor().submit(() -> readRawBlock(pathName, datasetAttributes, position));
     }
 
     /**
@@ -0,0 +1,58 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.ome.zarr.util;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.embl.mobie.io.util.RawBlockReader;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+
+/**
+ * Readers that can fetch blocks without blocking the calling thread.
+ */
+public interface AsyncBlockReader extends RawBlockReader {
+
+    /**
+     * Starts reading a block in the background.
+     *
+     * @return a future that completes with the block, with null if the block
+     * does not exist, or exceptionally if reading it failed
+     */
+    CompletableFuture<DataBlock<?>> readBlockAsync(String pathName, DatasetAttributes datasetAttributes, long... gridPosition);
+
+    /**
+     * Starts reading the encoded bytes of a block in the background, see
+     * {@link #readRawBlock}, leaving the decoding to the caller.
+     *
+     * @return a future that completes with the bytes, with null if the block
+     * does not exist, or exceptionally if reading it failed
+     */
+    CompletableFuture<byte[]> readRawBlockAsync(String pathName, DatasetAttributes datasetAttributes, long... gridPosition);
+}
@@ -0,0 +1,459 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.ome.zarr.util;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+
+import lombok.extern.slf4j.Slf4j;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.queue.BlockingFetchQueues;
+import net.imglib2.img.basictypeaccess.DataAccess;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.img.cell.LazyCellImg;
+import net.imglib2.type.NativeType;
+import net.imglib2.util.IntervalIndexer;
+
+/**
+ * Reads cells ahead of the viewer into the cell cache of an image loader.
+ * <p>
+ * Every cell that is loaded for the viewer is reported by the
+ * {@link N5OMEZarrCacheArrayLoader} that loads it. The {@link PrefetchPolicy}
+ * then proposes cells that are likely to be requested next, and these are
+ * requested from the cell cache at the lowest priority of the fetch queue,
+ * such that they are only read when the fetcher threads have nothing else
+ * to do, and cells that are cached already are not read again. The bytes of
+ * prefetches that have been requested but not loaded yet are limited by a
+ * budget; such prefetches no longer count against it once they are loaded,
+ * once the requests jump elsewhere or after {@link #PENDING_TTL_MILLIS}.
+ * <p>
+ * Loaded prefetches are remembered, and the images of the viewer that are
+ * wrapped with {@link #countHits} report the cells they read, such that a
+ * prefetched cell that the viewer reads from the cache counts as a hit, see
+ * {@link PrefetchStatistics#getHitRate()}.
+ * <p>
+ * Prefetching is off until a policy is set.
+ */
+@Slf4j
+public class BlockPrefetcher {
+
+    public static final long DEFAULT_BUDGET_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Time after which a requested prefetch that was not loaded, e.g.
+     * because the fetch queue dropped it, no longer counts as pending.
+     */
+    public static final long PENDING_TTL_MILLIS = 10000;
+
+    private static final int HISTORY_LENGTH = 32;
+
+    private static final int MAX_KNOWN_CELLS = 4096;
+
+    private static final int MIN_JUMP_CELLS = 2;
+
+    /**
+     * Requests a cell from the cell cache without waiting for it.
+     */
+    @FunctionalInterface
+    public interface CellRequester {
+        void request(long[] gridPosition);
+    }
+
+    private final Map<String, Level> levels = new ConcurrentHashMap<>();
+    private final Map<String, double[][]> mipmapResolutions = new ConcurrentHashMap<>();
+    private final PrefetchStatistics statistics = new PrefetchStatistics();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private volatile BlockingFetchQueues<Callable<?>> queue;
+    private volatile int priority;
+    private volatile PrefetchPolicy policy;
+    private volatile long budgetBytes = DEFAULT_BUDGET_BYTES;
+
+    /**
+     * @param queue the fetch queue of the image loader; prefetches are
+     *              requested at its lowest priority
+     */
+    public void setQueue(final BlockingFetchQueues<Callable<?>> queue) {
+        this.priority = Math.max(0, queue.getNumPriorities() - 1);
+        this.queue = queue;
+    }
+
+    /**
+     * @return the priority at which prefetched cells are to be requested
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * @param policy the policy, or null to switch prefetching off
+     */
+    public void setPolicy(final PrefetchPolicy policy) {
+        this.policy = policy;
+        if (policy == null)
+            cancelAll();
+    }
+
+    public PrefetchPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Sets how many bytes of prefetched cells may be requested but not
+     * loaded yet.
+     *
+     * @param budgetBytes
+     */
+    public void setBudget(final long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    public long getBudget() {
+        return budgetBytes;
+    }
+
+    public PrefetchStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Makes an opened image level known to the prefetcher. All loaders of
+     * the level report the cells they load; the requester is only created
+     * when the level is registered for the first time.
+     *
+     * @param setupId           the setup
+     * @param timepoint         the timepoint
+     * @param level             the mipmap level
+     * @param loader            a loader of the cells of this level
+     * @param grid              the cell grid of this level
+     * @param mipmapResolutions the downsampling factors of all levels of the setup
+     * @param bytesPerCell      the size of a full cell of this level
+     * @param requester         creates the requester of cells of this level
+     *                          from the cell cache, at {@link #getPriority()}
+     */
+    public void register(final int setupId, final int timepoint, final int level, final N5OMEZarrCacheArrayLoader<?> loader, final CellGrid grid, final double[][] mipmapResolutions, final long bytesPerCell, final Supplier<CellRequester> requester) {
+        this.mipmapResolutions.put(setupId + "/" + timepoint, mipmapResolutions);
+        levels.computeIfAbsent(key(setupId, timepoint, level), k -> new Level(grid, bytesPerCell, requester.get()));
+        loader.setPrefetcher(this, setupId, level);
+    }
+
+    /**
+     * Wraps an image of the viewer of a registered level, such that reads of
+     * prefetched cells from it count as hits. The cells are still read from
+     * img, with its cache hints, so the reads of the requester, which do not
+     * go through this image, do not count.
+     *
+     * @param img  a cell image of the level
+     * @param type the pixel type of img
+     * @return the wrapped image, or img if it is not a cell image
+     */
+    public <T extends NativeType<T>> RandomAccessibleInterval<T> countHits(final int setupId, final int timepoint, final int level, final RandomAccessibleInterval<T> img, final T type) {
+        if (!(img instanceof AbstractCellImg))
+            return img;
+        final String key = key(setupId, timepoint, level);
+        return countHits((AbstractCellImg<T, ?, ?, ?>) img, type, index -> cellRead(key, index));
+    }
+
+    private static <T extends NativeType<T>, A extends DataAccess, C extends Cell<A>> LazyCellImg<T, A> countHits(final AbstractCellImg<T, A, C, ?> img, final T type, final LongConsumer cellRead) {
+        final RandomAccessible<C> cells = img.getCells();
+        final long[] gridDimensions = img.getCellGrid().getGridDimensions();
+        return new LazyCellImg<>(img.getCellGrid(), type, index -> {
+            final long[] position = new long[gridDimensions.length];
+            IntervalIndexer.indexToPosition(index, gridDimensions, position);
+            final RandomAccess<C> access = cells.randomAccess();
+            access.setPosition(position);
+            final C cell = access.get();
+            cellRead.accept(index);
+            return cell;
+        });
+    }
+
+    /**
+     * Counts a hit if the cell at index had been prefetched and was not read
+     * by the viewer since.
+     */
+    private void cellRead(final String key, final long index) {
+        final Level level = levels.get(key);
+        if (level != null && !level.prefetched.isEmpty() && level.prefetched.remove(index) != null)
+            statistics.hit();
+    }
+
+    /**
+     * Forgets all prefetches that have not been loaded yet.
+     */
+    public void cancelAll() {
+        for (final Level level : levels.values())
+            cancel(level);
+    }
+
+    /**
+     * Cancels all prefetches and forgets the registered levels.
+     */
+    public void clear() {
+        cancelAll();
+        levels.clear();
+        mipmapResolutions.clear();
+    }
+
+    /**
+     * @return the bytes of prefetched cells that are requested but not loaded yet
+     */
+    public long getPendingBytes() {
+        final long now = System.currentTimeMillis();
+        for (final Level level : levels.values())
+            expire(level, now);
+        return pendingBytes.get();
+    }
+
+    /**
+     * Reports a cell that was loaded into the cell cache.
+     *
+     * @return whether the cell had been prefetched
+     */
+    boolean cellLoaded(final CellRequest request) {
+        final String key = key(request.getSetupId(), request.getTimepoint(), request.getLevel());
+        final Level level = levels.get(key);
+        final long[] position = request.getGridPosition();
+        if (level != null) {
+            synchronized (level) {
+                if (level.pending.remove(Arrays.toString(position)) != null) {
+                    pendingBytes.addAndGet(-level.bytesPerCell);
+                    statistics.loaded();
+                    level.markPrefetched(IntervalIndexer.positionToIndex(position, level.grid.getGridDimensions()));
+                    return true;
+                }
+            }
+        }
+        statistics.request();
+
+        final PrefetchPolicy policy = this.policy;
+        if (policy == null || queue == null || level == null)
+            return false;
+
+        final double[] centroid;
+        int cancelled = 0;
+        synchronized (level) {
+            if (!level.history.isEmpty() && isFar(position, level.history)) {
+                level.history.clear();
+                level.known.clear();
+                cancelled = level.pending.size();
+                level.pending.clear();
+            }
+            centroid = level.history.isEmpty() ? null : centroid(level.history, position.length);
+            level.history.addLast(position);
+            if (level.history.size() > HISTORY_LENGTH)
+                level.history.removeFirst();
+            level.known.put(Arrays.toString(position), Boolean.TRUE);
+        }
+        if (cancelled > 0) {
+            pendingBytes.addAndGet(-cancelled * level.bytesPerCell);
+            statistics.cancelled(cancelled);
+        }
+
+        final List<CellRequest> proposals;
+        try {
+            proposals = policy.propose(request, new Context(request, centroid));
+        } catch (RuntimeException e) {
+            log.warn("Prefetch policy failed for " + request + ": " + e);
+            return false;
+        }
+
+        final long now = System.currentTimeMillis();
+        for (final CellRequest proposal : proposals) {
+            final Level target = levels.get(key(proposal.getSetupId(), proposal.getTimepoint(), proposal.getLevel()));
+            if (target == null)
+                continue;
+            expire(target, now);
+            final long[] proposedPosition = proposal.getGridPosition();
+            synchronized (target) {
+                final String cell = Arrays.toString(proposedPosition);
+                if (target.known.containsKey(cell))
+                    continue;
+                if (pendingBytes.get() + target.bytesPerCell > budgetBytes) {
+                    statistics.skipped();
+                    break;
+                }
+                target.known.put(cell, Boolean.TRUE);
+                target.pending.put(cell, now);
+            }
+            pendingBytes.addAndGet(target.bytesPerCell);
+            // a cell that is cached already is not read again
+            target.requester.request(proposedPosition);
+            statistics.issued();
+        }
+        return false;
+    }
+
+    /**
+     * Forgets the pending prefetches of level. Their requests stay in the
+     * fetch queue at the lowest priority, from which the viewer drops them
+     * when it moves on.
+     */
+    private void cancel(final Level level) {
+        final int n;
+        synchronized (level) {
+            level.history.clear();
+            level.known.clear();
+            n = level.pending.size();
+            level.pending.clear();
+        }
+        pendingBytes.addAndGet(-n * level.bytesPerCell);
+        statistics.cancelled(n);
+    }
+
+    private void expire(final Level level, final long now) {
+        int n = 0;
+        synchronized (level) {
+            final Iterator<Long> requested = level.pending.values().iterator();
+            while (requested.hasNext() && now - requested.next() > PENDING_TTL_MILLIS) {
+                requested.remove();
+                n++;
+            }
+        }
+        if (n > 0) {
+            pendingBytes.addAndGet(-n * level.bytesPerCell);
+            statistics.cancelled(n);
+        }
+    }
+
+    /**
+     * @return whether position lies further outside the bounding box of the
+     * history than the box is large, i.e. whether the view jumped elsewhere
+     */
+    private static boolean isFar(final long[] position, final ArrayDeque<long[]> history) {
+        long extent = 0;
+        long distance = 0;
+        for (int d = 0; d < position.length; d++) {
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (final long[] p : history) {
+                min = Math.min(min, p[d]);
+                max = Math.max(max, p[d]);
+            }
+            extent = Math.max(extent, max - min + 1);
+            distance = Math.max(distance, Math.max(min - position[d], position[d] - max));
+        }
+        return distance > Math.max(MIN_JUMP_CELLS, extent);
+    }
+
+    private static double[] centroid(final ArrayDeque<long[]> history, final int n) {
+        final double[] centroid = new double[n];
+        for (final long[] p : history)
+            for (int d = 0; d < n; d++)
+                centroid[d] += p[d];
+        for (int d = 0; d < n; d++)
+            centroid[d] /= history.size();
+        return centroid;
+    }
+
+    private static String key(final int setupId, final int timepoint, final int level) {
+        return setupId + "/" + timepoint + "/" + level;
+    }
+
+    private static final class Level {
+        private final CellGrid grid;
+        private final long bytesPerCell;
+        private final CellRequester requester;
+        private final ArrayDeque<long[]> history = new ArrayDeque<>();
+        // cells that were requested or prefetched recently
+        private final LinkedHashMap<String, Boolean> known = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > MAX_KNOWN_CELLS;
+            }
+        };
+        // prefetched cells that are not loaded yet, with the time they were requested
+        private final LinkedHashMap<String, Long> pending = new LinkedHashMap<>();
+        // prefetched cells that are loaded but were not read by the viewer yet, by index
+        private final Map<Long, Boolean> prefetched = new ConcurrentHashMap<>();
+
+        private Level(final CellGrid grid, final long bytesPerCell, final CellRequester requester) {
+            this.grid = grid;
+            this.bytesPerCell = bytesPerCell;
+            this.requester = requester;
+        }
+
+        private void markPrefetched(final long index) {
+            // cells that were prefetched long ago are most likely not cached anymore
+            if (prefetched.size() >= MAX_KNOWN_CELLS) {
+                final Iterator<Long> cells = prefetched.keySet().iterator();
+                if (cells.hasNext()) {
+                    cells.next();
+                    cells.remove();
+                }
+            }
+            prefetched.put(index, Boolean.TRUE);
+        }
+    }
+
+    private final class Context implements PrefetchPolicy.Context {
+        private final CellRequest request;
+        private final double[] centroid;
+        private final double[][] resolutions;
+
+        private Context(final CellRequest request, final double[] centroid) {
+            this.request = request;
+            this.centroid = centroid;
+            this.resolutions = mipmapResolutions.get(request.getSetupId() + "/" + request.getTimepoint());
+        }
+
+        @Override
+        public int numLevels() {
+            return resolutions == null ? 0 : resolutions.length;
+        }
+
+        @Override
+        public CellGrid getGrid(final int level) {
+            final Level l = levels.get(key(request.getSetupId(), request.getTimepoint(), level));
+            return l == null ? null : l.grid;
+        }
+
+        @Override
+        public double[] getMipmapResolution(final int level) {
+            return resolutions[level];
+        }
+
+        @Override
+        public double[] getRecentCentroid() {
+            return centroid;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.ome.zarr.util;
+
+import java.util.Arrays;
+
+/**
+ * A cell of the image pyramid of one setup and timepoint, identified by its
+ * mipmap level and its position in the cell grid of that level.
+ */
+public final class CellRequest {
+
+    private final int setupId;
+    private final int timepoint;
+    private final int level;
+    private final long[] gridPosition;
+
+    public CellRequest(final int setupId, final int timepoint, final int level, final long[] gridPosition) {
+        this.setupId = setupId;
+        this.timepoint = timepoint;
+        this.level = level;
+        this.gridPosition = gridPosition.clone();
+    }
+
+    public int getSetupId() {
+        return setupId;
+    }
+
+    public int getTimepoint() {
+        return timepoint;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public long[] getGridPosition() {
+        return gridPosition.clone();
+    }
+
+    /**
+     * @return a request for the cell at gridPosition on the given level of
+     * the same setup and timepoint
+     */
+    public CellRequest at(final int level, final long[] gridPosition) {
+        return new CellRequest(setupId, timepoint, level, gridPosition);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof CellRequest))
+            return false;
+        final CellRequest that = (CellRequest) o;
+        return setupId == that.setupId && timepoint == that.timepoint && level == that.level && Arrays.equals(gridPosition, that.gridPosition);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = setupId;
+        result = 31 * result + timepoint;
+        result = 31 * result + level;
+        result = 31 * result + Arrays.hashCode(gridPosition);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "setup " + setupId + ", timepoint " + timepoint + ", level " + level + ", cell " + Arrays.toString(gridPosition);
+    }
+}
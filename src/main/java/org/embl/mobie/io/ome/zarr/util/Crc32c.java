@@ -0,0 +1,62 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+package org.embl.mobie.io.ome.zarr.util;
+
+/**
+ * CRC-32C (Castagnoli) checksum, as used by the crc32c codec of zarr v3,
+ * e.g. for the index of a shard. java.util.zip.CRC32C only exists from
+ * Java 9 on.
+ */
+public final class Crc32c {
+
+    private static final int POLYNOMIAL = 0x82F63B78;
+
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; ++i) {
+            int crc = i;
+            for (int k = 0; k < 8; ++k)
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            TABLE[i] = crc;
+        }
+    }
+
+    private Crc32c() {
+    }
+
+    /**
+     * @return the checksum of length bytes of bytes, starting at offset
+     */
+    public static int compute(final byte[] bytes, final int offset, final int length) {
+        int crc = 0xFFFFFFFF;
+        for (int i = offset; i < offset + length; ++i)
+            crc = (crc >>> 8) ^ TABLE[(crc ^ bytes[i]) & 0xFF];
+        return ~crc;
+    }
+}
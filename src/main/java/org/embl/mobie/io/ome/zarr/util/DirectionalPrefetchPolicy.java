@@ -0,0 +1,130 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.ome.zarr.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.imglib2.img.cell.CellGrid;
+
+/**
+ * Prefetches the cells ahead of the motion of the view, plus the cell that
+ * covers the requested cell on the next coarser level.
+ * <p>
+ * The motion is estimated from the offset of the requested cell to the
+ * centroid of the recent requests on the same level: while the view is
+ * panned, the viewer only asks for cells that have just become visible,
+ * which lie on the leading edge of the visible region.
+ */
+public class DirectionalPrefetchPolicy implements PrefetchPolicy {
+
+    public static final int DEFAULT_DEPTH = 1;
+
+    private final int depth;
+    private final boolean prefetchParents;
+
+    public DirectionalPrefetchPolicy() {
+        this(DEFAULT_DEPTH, true);
+    }
+
+    /**
+     * @param depth           how many cells to read ahead along the motion
+     * @param prefetchParents whether to read the covering cell of the next
+     *                        coarser level
+     */
+    public DirectionalPrefetchPolicy(final int depth, final boolean prefetchParents) {
+        if (depth < 0)
+            throw new IllegalArgumentException("depth must not be negative: " + depth);
+        this.depth = depth;
+        this.prefetchParents = prefetchParents;
+    }
+
+    @Override
+    public List<CellRequest> propose(final CellRequest request, final Context context) {
+        final List<CellRequest> proposals = new ArrayList<>();
+        final int level = request.getLevel();
+        final CellGrid grid = context.getGrid(level);
+        if (grid == null)
+            return proposals;
+
+        final long[] position = request.getGridPosition();
+        final long[] gridDimensions = grid.getGridDimensions();
+        final double[] centroid = context.getRecentCentroid();
+        if (centroid != null && depth > 0) {
+            final int[] direction = new int[position.length];
+            boolean moving = false;
+            for (int d = 0; d < position.length; d++) {
+                final double offset = position[d] - centroid[d];
+                direction[d] = offset >= 0.5 ? 1 : offset <= -0.5 ? -1 : 0;
+                moving |= direction[d] != 0;
+            }
+            if (moving) {
+                for (int k = 1; k <= depth; k++) {
+                    final long[] ahead = new long[position.length];
+                    boolean inside = true;
+                    for (int d = 0; d < position.length; d++) {
+                        ahead[d] = position[d] + (long) k * direction[d];
+                        inside &= ahead[d] >= 0 && ahead[d] < gridDimensions[d];
+                    }
+                    if (!inside)
+                        break;
+                    proposals.add(request.at(level, ahead));
+                }
+            }
+        }
+
+        if (prefetchParents && level + 1 < context.numLevels()) {
+            final CellGrid parentGrid = context.getGrid(level + 1);
+            if (parentGrid != null) {
+                final long[] parent = parentPosition(position, grid, context.getMipmapResolution(level), parentGrid, context.getMipmapResolution(level + 1));
+                proposals.add(request.at(level + 1, parent));
+            }
+        }
+        return proposals;
+    }
+
+    /**
+     * @return the position of the cell on the coarser level that contains
+     * the center of the given cell
+     */
+    static long[] parentPosition(final long[] position, final CellGrid grid, final double[] resolution, final CellGrid parentGrid, final double[] parentResolution) {
+        final int n = position.length;
+        final int[] cellDimensions = new int[n];
+        final int[] parentCellDimensions = new int[n];
+        grid.cellDimensions(cellDimensions);
+        parentGrid.cellDimensions(parentCellDimensions);
+        final long[] parentGridDimensions = parentGrid.getGridDimensions();
+        final long[] parent = new long[n];
+        for (int d = 0; d < n; d++) {
+            final double center = (position[d] + 0.5) * cellDimensions[d] * resolution[d] / parentResolution[d];
+            parent[d] = Math.min(parentGridDimensions[d] - 1, Math.max(0, (long) Math.floor(center / parentCellDimensions[d])));
+        }
+        return parent;
+    }
+}
@@ -30,10 +30,15 @@ package org.embl.mobie.io.ome.zarr.util;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
+import org.embl.mobie.io.metrics.LevelMetrics;
 import org.embl.mobie.io.n5.util.N5DataTypeSize;
 import org.embl.mobie.io.ome.zarr.loaders.N5OMEZarrImageLoader;
+import org.embl.mobie.io.util.RawBlockReader;
 import org.janelia.saalfeldlab.n5.DataBlock;
 import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
@@ -47,6 +52,15 @@ import net.imglib2.img.cell.CellGrid;
 
 @Slf4j
 public class N5OMEZarrCacheArrayLoader<A> implements SimpleCacheArrayLoader<A> {
+
+    /**
+     * The number of cells that a read starts, the cell that is to be loaded
+     * and the next cells along x.
+     */
+    public static final int DEFAULT_READ_AHEAD = 8;
+
+    private static final int MAX_RECENT_CELLS = 4096;
+
     private final N5Reader n5;
     private final String pathName;
     private final int channel;
@@ -54,8 +68,35 @@ public class N5OMEZarrCacheArrayLoader<A> implements SimpleCacheArrayLoader<A> {
     private final DatasetAttributes attributes;
     private final ZarrArrayCreator<A, ?> zarrArrayCreator;
     private final ZarrAxes zarrAxes;
+    private final LevelMetrics metrics;
+    private final long[] gridDimensions;
+    private volatile BlockPrefetcher prefetcher;
+    private int setupId;
+    private int level;
+    private volatile int readAhead = DEFAULT_READ_AHEAD;
+    // reads of cells that were started before the cells were loaded, dropped if they are not loaded soon
+    private final LinkedHashMap<String, CompletableFuture<byte[]>> readsAhead = new LinkedHashMap<String, CompletableFuture<byte[]>>() {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, CompletableFuture<byte[]>> eldest) {
+            if (size() <= 4 * readAhead)
+                return false;
+            eldest.getValue().cancel(false);
+            return true;
+        }
+    };
+    // cells that were loaded recently, which are most likely still cached and are not read ahead
+    private final LinkedHashMap<String, Boolean> recentCells = new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_RECENT_CELLS;
+        }
+    };
 
     public N5OMEZarrCacheArrayLoader(final N5Reader n5, final String pathName, final int channel, final int timepoint, final DatasetAttributes attributes, CellGrid grid, ZarrAxes zarrAxes) {
+        this(n5, pathName, channel, timepoint, attributes, grid, zarrAxes, LevelMetrics.NONE);
+    }
+
+    public N5OMEZarrCacheArrayLoader(final N5Reader n5, final String pathName, final int channel, final int timepoint, final DatasetAttributes attributes, CellGrid grid, ZarrAxes zarrAxes, final LevelMetrics metrics) {
         this.n5 = n5;
         this.pathName = pathName; // includes the level
         this.channel = channel;
@@ -64,6 +105,28 @@ public class N5OMEZarrCacheArrayLoader<A> implements SimpleCacheArrayLoader<A> {
         final DataType dataType = attributes.getDataType();
         this.zarrArrayCreator = new ZarrArrayCreator<>(grid, dataType, zarrAxes);
         this.zarrAxes = zarrAxes;
+        this.metrics = metrics;
+        this.gridDimensions = grid.getGridDimensions();
+    }
+
+    /**
+     * Sets how many cells are read at the same time when a cell is loaded
+     * through a reader that supports {@link AsyncBlockReader}: the cell
+     * itself and the next readAhead - 1 cells along x, unless they were
+     * loaded recently. The viewer requests the cells of a view row by row,
+     * so the fetcher threads usually find the next cells in flight or read
+     * already, and a single fetcher thread keeps several requests in flight.
+     *
+     * @param readAhead the number of cells per read, 1 to only read the requested cell
+     */
+    public void setReadAhead(final int readAhead) {
+        if (readAhead < 1)
+            throw new IllegalArgumentException("readAhead must be positive: " + readAhead);
+        this.readAhead = readAhead;
+    }
+
+    public int getReadAhead() {
+        return readAhead;
     }
 
     @Override
@@ -76,11 +139,27 @@ public class N5OMEZarrCacheArrayLoader<A> implements SimpleCacheArrayLoader<A> {
         if (N5OMEZarrImageLoader.logging)
             start = System.currentTimeMillis();
 
+        final long readStart = metrics.readStarted();
+        boolean failed = false;
         try {
-            block = n5.readBlock(pathName, attributes, dataBlockIndices);
+            block = readBlock(gridPosition, dataBlockIndices);
         } catch (SdkClientException e) {
+            failed = true;
+            metrics.readFailed(readStart, e);
             log.error(e.getMessage()); // this happens sometimes, not sure yet why...
+        } catch (IOException | RuntimeException e) {
+            metrics.readFailed(readStart, e);
+            throw e;
         }
+        if (!failed) {
+            if (block == null)
+                metrics.readMissing(readStart);
+            else
+                metrics.readFinished(readStart, (long) block.getNumElements() * N5DataTypeSize.getNumBytesPerElement(attributes.getDataType()));
+        }
+        final BlockPrefetcher prefetcher = this.prefetcher;
+        if (prefetcher != null && prefetcher.cellLoaded(new CellRequest(setupId, timepoint, level, gridPosition)))
+            metrics.prefetchRead();
         if (N5OMEZarrImageLoader.logging) {
             if (block != null) {
                 final long millis = System.currentTimeMillis() - start;
@@ -93,11 +172,70 @@ public class N5OMEZarrCacheArrayLoader<A> implements SimpleCacheArrayLoader<A> {
                 log.warn(pathName + " " + Arrays.toString(dataBlockIndices) + ": Missing, returning zeros.");
         }
 
+        final long arrayStart = metrics.arrayStarted();
+        final A array;
         if (block == null) {
-            return (A) zarrArrayCreator.createEmptyArray(gridPosition);
+            array = (A) zarrArrayCreator.createEmptyArray(gridPosition);
         } else {
-            return zarrArrayCreator.createArray(block, gridPosition);
+            array = zarrArrayCreator.createArray(block, gridPosition);
+        }
+        metrics.arrayFinished(arrayStart);
+        return array;
+    }
+
+    /**
+     * Reports the loaded cells to prefetcher, see
+     * {@link BlockPrefetcher#register}.
+     */
+    void setPrefetcher(final BlockPrefetcher prefetcher, final int setupId, final int level) {
+        this.setupId = setupId;
+        this.level = level;
+        this.prefetcher = prefetcher;
+    }
+
+    /**
+     * Reads through {@link AsyncBlockReader#readRawBlockAsync} if the reader
+     * supports it, such that reads of all fetcher threads and prefetches
+     * share the reader's limit on requests in flight. The reads of the next
+     * cells are started before waiting for this one, see
+     * {@link #setReadAhead}. The bytes are decoded on the calling thread,
+     * which records the decode latency separately from the read latency.
+     */
+    private DataBlock<?> readBlock(final long[] gridPosition, final long[] dataBlockIndices) throws IOException {
+        if (!(n5 instanceof AsyncBlockReader))
+            return RawBlockReader.readBlock(n5, pathName, attributes, metrics, dataBlockIndices);
+
+        final AsyncBlockReader reader = (AsyncBlockReader) n5;
+        final CompletableFuture<byte[]> future;
+        synchronized (readsAhead) {
+            final String cell = Arrays.toString(gridPosition);
+            recentCells.put(cell, Boolean.TRUE);
+            final CompletableFuture<byte[]> started = readsAhead.remove(cell);
+            future = started != null ? started : reader.readRawBlockAsync(pathName, attributes, dataBlockIndices);
+
+            final long[] next = gridPosition.clone();
+            for (int i = 1; i < this.readAhead && ++next[0] < gridDimensions[0]; i++) {
+                final String nextCell = Arrays.toString(next);
+                if (!readsAhead.containsKey(nextCell) && !recentCells.containsKey(nextCell))
+                    readsAhead.put(nextCell, reader.readRawBlockAsync(pathName, attributes, toZarrChunkIndices(next)));
+            }
+        }
+        final byte[] bytes;
+        try {
+            bytes = future.get();
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
         }
+        return RawBlockReader.decode(reader, bytes, pathName, attributes, metrics, dataBlockIndices);
     }
 
     private long[] toZarrChunkIndices(long[] gridPosition) {
@@ -52,6 +52,7 @@ public interface N5ZarrImageReader extends N5Reader {
     String zarrayFile = ".zarray";
     String zattrsFile = ".zattrs";
     String zgroupFile = ".zgroup";
+    String zarrJsonFile = "zarr.json";
     List<ZarrAxis> zarrAxes = new ArrayList<>();
 
 
@@ -80,36 +81,59 @@ public interface N5ZarrImageReader extends N5Reader {
         if (multiscales == null) {
             return;
         }
-        String version = multiscales.getAsJsonArray().get(0).getAsJsonObject().get("version").getAsString();
-        if (version.equals("0.3")) {
-            JsonElement axes = multiscales.getAsJsonArray().get(0).getAsJsonObject().get("axes");
-            setAxes(axes);
-        } else if (version.equals("0.4")) {
-            JsonArray axes = multiscales.getAsJsonArray().get(0).getAsJsonObject().get("axes").getAsJsonArray();
-            int index = 0;
-            List<ZarrAxis> zarrAxes = new ArrayList<>();
-            for (JsonElement axis : axes) {
-                String name = axis.getAsJsonObject().get("name").getAsString();
-                String type = axis.getAsJsonObject().get("type").getAsString();
-                if (name.isEmpty() || type.isEmpty() || !AxesTypes.contains(type)) {
-                    throw new IllegalArgumentException("Unsupported multiscales axes: " + name + ", " + type);
-                }
-                ZarrAxis zarrAxis;
-                if (axis.getAsJsonObject().get("unit") != null && axis.getAsJsonObject().get("unit").isJsonPrimitive()) {
-                    String unit = axis.getAsJsonObject().get("unit").getAsString();
-                    zarrAxis = new ZarrAxis(index, name, type, unit);
-                } else {
-                    zarrAxis = new ZarrAxis(index, name, type);
-                }
-                index++;
-                zarrAxes.add(zarrAxis);
-            }
+        List<ZarrAxis> zarrAxes = parseZarrAxisList(multiscales);
+        if (zarrAxes != null) {
             setAxes(zarrAxes);
             setAxes(ZarrAxis.convertToJson(zarrAxes));
         } else {
-            JsonElement axes = multiscales.getAsJsonArray().get(0).getAsJsonObject().get("axes");
-            setAxes(axes);
+            setAxes(multiscales.getAsJsonArray().get(0).getAsJsonObject().get("axes"));
+        }
+    }
+
+    /**
+     * Parses the axes of the first multiscale without changing the state of
+     * a reader, such that the metadata of several images can be read concurrently.
+     *
+     * @param multiscales the "multiscales" attribute
+     * @return the axes, {@link ZarrAxes#TCZYX} if none are given
+     */
+    static ZarrAxes parseAxes(JsonElement multiscales) throws IllegalArgumentException {
+        List<ZarrAxis> zarrAxes = parseZarrAxisList(multiscales);
+        JsonElement axes = zarrAxes != null ? ZarrAxis.convertToJson(zarrAxes) :
+            multiscales.getAsJsonArray().get(0).getAsJsonObject().get("axes");
+        return axes != null ? ZarrAxes.decode(axes.toString()) : ZarrAxes.TCZYX;
+    }
+
+    /**
+     * @param multiscales the "multiscales" attribute
+     * @return the axes of the first multiscale including their types and units,
+     * or null for versions before 0.4, which only list the axis names
+     */
+    static List<ZarrAxis> parseZarrAxisList(JsonElement multiscales) throws IllegalArgumentException {
+        JsonElement version = multiscales.getAsJsonArray().get(0).getAsJsonObject().get("version");
+        if (version == null || !version.getAsString().equals("0.4")) {
+            return null;
+        }
+        JsonArray axes = multiscales.getAsJsonArray().get(0).getAsJsonObject().get("axes").getAsJsonArray();
+        int index = 0;
+        List<ZarrAxis> zarrAxes = new ArrayList<>();
+        for (JsonElement axis : axes) {
+            String name = axis.getAsJsonObject().get("name").getAsString();
+            String type = axis.getAsJsonObject().get("type").getAsString();
+            if (name.isEmpty() || type.isEmpty() || !AxesTypes.contains(type)) {
+                throw new IllegalArgumentException("Unsupported multiscales axes: " + name + ", " + type);
+            }
+            ZarrAxis zarrAxis;
+            if (axis.getAsJsonObject().get("unit") != null && axis.getAsJsonObject().get("unit").isJsonPrimitive()) {
+                String unit = axis.getAsJsonObject().get("unit").getAsString();
+                zarrAxis = new ZarrAxis(index, name, type, unit);
+            } else {
+                zarrAxis = new ZarrAxis(index, name, type);
+            }
+            index++;
+            zarrAxes.add(zarrAxis);
         }
+        return zarrAxes;
     }
 
     void setAxes(JsonElement axesJson);
@@ -159,6 +183,19 @@ public interface N5ZarrImageReader extends N5Reader {
         return pathStringBuilder.toString();
     }
 
+    /**
+     * @return the key of the chunk, or of the shard, at gridPosition relative
+     * to the dataset path, including the chunk key prefix of zarr v3 arrays
+     */
+    default String getChunkKey(
+        final org.embl.mobie.io.ome.zarr.util.ZarrDatasetAttributes datasetAttributes,
+        final long[] gridPosition) {
+        return datasetAttributes.getChunkKeyPrefix() + getZarrDataBlockString(
+            gridPosition,
+            datasetAttributes.getDimensionSeparator(),
+            datasetAttributes.isRowMajor());
+    }
+
     /**
      * Reads a {@link DataBlock} from an {@link InputStream}.
      *
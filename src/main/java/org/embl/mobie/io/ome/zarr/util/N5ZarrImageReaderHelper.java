@@ -58,7 +58,8 @@ public class N5ZarrImageReaderHelper extends N5FSReader {
         if (attributes.isEmpty()) {
             throw new IOException("Empty ZArray attributes");
         }
-        return new ZArrayAttributes(
+        final JsonElement dimensionSeparator = attributes.get("dimension_separator");
+        return new OmeZArrayAttributes(
             attributes.get("zarr_format").getAsInt(),
             gson.fromJson(attributes.get("shape"), long[].class),
             gson.fromJson(attributes.get("chunks"), int[].class),
@@ -66,7 +67,8 @@ public class N5ZarrImageReaderHelper extends N5FSReader {
             gson.fromJson(attributes.get("compressor"), ZarrCompressor.class),
             attributes.get("fill_value").getAsString(),
             attributes.get("order").getAsCharacter(),
-            gson.fromJson(attributes.get("filters"), TypeToken.getParameterized(Collection.class, Filter.class).getType()));
+            gson.fromJson(attributes.get("filters"), TypeToken.getParameterized(Collection.class, Filter.class).getType()),
+            dimensionSeparator == null || dimensionSeparator.isJsonNull() ? null : dimensionSeparator.getAsString());
 
     }
 
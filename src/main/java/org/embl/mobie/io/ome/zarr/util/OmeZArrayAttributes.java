@@ -53,6 +53,11 @@ public class OmeZArrayAttributes extends ZArrayAttributes {
         return dimensionSeparator;
     }
 
+    @Override
+    public ZarrDatasetAttributes getDatasetAttributes() {
+        return getDatasetAttributes(dimensionSeparator == null ? N5ZarrImageReader.DEFAULT_SEPARATOR : dimensionSeparator);
+    }
+
     public HashMap<String, Object> asMap() {
 
         final HashMap<String, Object> map = super.asMap();
@@ -0,0 +1,80 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.ome.zarr.util;
+
+import java.util.List;
+
+import net.imglib2.img.cell.CellGrid;
+
+/**
+ * Decides which cells are worth reading ahead of time after a cell was
+ * requested by the viewer.
+ * <p>
+ * Implementations must be thread-safe, as they are called from the fetcher
+ * threads of the image loader.
+ */
+@FunctionalInterface
+public interface PrefetchPolicy {
+
+    /**
+     * What a policy knows about the pyramid of the requested setup and
+     * timepoint and about the recent requests on the requested level.
+     */
+    interface Context {
+        /**
+         * @return the number of mipmap levels
+         */
+        int numLevels();
+
+        /**
+         * @return the cell grid of the level, or null if no image of that level
+         * has been opened
+         */
+        CellGrid getGrid(int level);
+
+        /**
+         * @return the downsampling factors of the level relative to level 0
+         */
+        double[] getMipmapResolution(int level);
+
+        /**
+         * @return the mean grid position of the recent requests on the level
+         * of the current request, not including the current request, or null
+         * if there were none
+         */
+        double[] getRecentCentroid();
+    }
+
+    /**
+     * @param request the cell that was just requested
+     * @param context the pyramid and the request history
+     * @return the cells to prefetch, most important first
+     */
+    List<CellRequest> propose(CellRequest request, Context context);
+}
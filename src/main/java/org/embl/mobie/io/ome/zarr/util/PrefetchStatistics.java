@@ -0,0 +1,139 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.ome.zarr.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of a {@link BlockPrefetcher}.
+ */
+public class PrefetchStatistics {
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong issued = new AtomicLong();
+    private final AtomicLong loaded = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+
+    void request() {
+        requests.incrementAndGet();
+    }
+
+    void issued() {
+        issued.incrementAndGet();
+    }
+
+    void loaded() {
+        loaded.incrementAndGet();
+    }
+
+    void cancelled(final long n) {
+        cancelled.addAndGet(n);
+    }
+
+    void skipped() {
+        skipped.incrementAndGet();
+    }
+
+    void hit() {
+        hits.incrementAndGet();
+    }
+
+    /**
+     * @return the number of cells that were loaded because the viewer asked
+     * for them, i.e. that had not been prefetched
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of prefetches that were requested from the cell cache
+     */
+    public long getIssuedCount() {
+        return issued.get();
+    }
+
+    /**
+     * @return the number of prefetched cells that were loaded into the cell cache
+     */
+    public long getLoadedCount() {
+        return loaded.get();
+    }
+
+    /**
+     * @return the number of prefetches that were forgotten because the view
+     * moved on or they were not loaded in time
+     */
+    public long getCancelledCount() {
+        return cancelled.get();
+    }
+
+    /**
+     * @return the number of proposed prefetches that were not started
+     * because the byte budget was exhausted
+     */
+    public long getSkippedCount() {
+        return skipped.get();
+    }
+
+    /**
+     * @return the number of prefetched cells that the viewer read from the
+     * cell cache after they were loaded
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the fraction of the loaded prefetches that the viewer read,
+     * i.e. hits / loaded, or 0 if nothing was prefetched
+     */
+    public double getHitRate() {
+        final long loaded = getLoadedCount();
+        return loaded == 0 ? 0 : Math.min(1.0, (double) getHitCount() / loaded);
+    }
+
+    public void reset() {
+        requests.set(0);
+        issued.set(0);
+        loaded.set(0);
+        cancelled.set(0);
+        skipped.set(0);
+        hits.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("requests=%d, issued=%d, loaded=%d, cancelled=%d, skipped=%d, hits=%d (%.0f%%)",
+            getRequestCount(), getIssuedCount(), getLoadedCount(), getCancelledCount(), getSkippedCount(),
+            getHitCount(), 100 * getHitRate());
+    }
+}
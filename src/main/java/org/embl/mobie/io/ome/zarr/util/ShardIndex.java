@@ -0,0 +1,295 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.ome.zarr.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Index of a shard, i.e. of a file or object that packs several chunks.
+ * <p>
+ * The layout follows the zarr v3 sharding_indexed codec: the index holds an
+ * (offset, nbytes) pair of unsigned 64-bit little-endian integers per chunk
+ * and, with the crc32c index codec, is followed by the CRC-32C of these
+ * pairs. Chunks within the shard are numbered in C order of the zarr
+ * dimensions. Missing chunks have both values set to 2^64 - 1. Offsets are
+ * relative to the start of the shard, wherever the index is stored, see
+ * {@link Layout}.
+ */
+public class ShardIndex {
+
+    public static final long EMPTY = -1L;
+
+    public static final int BYTES_PER_ENTRY = 16;
+
+    private final long[] offsets;
+    private final long[] numBytes;
+
+    /**
+     * Creates an index of numChunks missing chunks.
+     */
+    public ShardIndex(final int numChunks) {
+        offsets = new long[numChunks];
+        numBytes = new long[numChunks];
+        Arrays.fill(offsets, EMPTY);
+        Arrays.fill(numBytes, EMPTY);
+    }
+
+    /**
+     * @param bytes the encoded index, including its checksum if the layout has one
+     * @throws IOException if the index does not match its checksum
+     */
+    public static ShardIndex read(final byte[] bytes, final int numChunks, final Layout layout) throws IOException {
+        final int size = BYTES_PER_ENTRY * numChunks;
+        if (bytes.length != layout.getByteSize(numChunks))
+            throw new IOException("Expected a shard index of " + layout.getByteSize(numChunks) + " bytes, got " + bytes.length);
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        if (layout.hasChecksum() && buffer.getInt(size) != Crc32c.compute(bytes, 0, size))
+            throw new IOException("The shard index does not match its crc32c checksum");
+        final ShardIndex index = new ShardIndex(numChunks);
+        for (int i = 0; i < numChunks; ++i) {
+            index.offsets[i] = buffer.getLong();
+            index.numBytes[i] = buffer.getLong();
+        }
+        return index;
+    }
+
+    public byte[] toByteArray(final Layout layout) {
+        final ByteBuffer buffer = ByteBuffer.allocate(layout.getByteSize(offsets.length)).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < offsets.length; ++i) {
+            buffer.putLong(offsets[i]);
+            buffer.putLong(numBytes[i]);
+        }
+        if (layout.hasChecksum())
+            buffer.putInt(Crc32c.compute(buffer.array(), 0, buffer.position()));
+        return buffer.array();
+    }
+
+    public int getNumChunks() {
+        return offsets.length;
+    }
+
+    public boolean isEmpty(final int chunk) {
+        return offsets[chunk] == EMPTY && numBytes[chunk] == EMPTY;
+    }
+
+    public long getOffset(final int chunk) {
+        return offsets[chunk];
+    }
+
+    public long getNumBytes(final int chunk) {
+        return numBytes[chunk];
+    }
+
+    public void set(final int chunk, final long offset, final long numBytes) {
+        this.offsets[chunk] = offset;
+        this.numBytes[chunk] = numBytes;
+    }
+
+    public void clear(final int chunk) {
+        set(chunk, EMPTY, EMPTY);
+    }
+
+    /**
+     * @return the number of chunks in a shard
+     */
+    public static int getNumChunks(final int[] chunksPerShard) {
+        int n = 1;
+        for (final int c : chunksPerShard)
+            n *= c;
+        return n;
+    }
+
+    /**
+     * @param gridPosition   position of a chunk in the chunk grid, in n5 order
+     * @param chunksPerShard in n5 order
+     * @return the position of the shard that holds the chunk
+     */
+    public static long[] getShardPosition(final long[] gridPosition, final int[] chunksPerShard) {
+        final long[] shardPosition = new long[gridPosition.length];
+        for (int d = 0; d < gridPosition.length; ++d)
+            shardPosition[d] = gridPosition[d] / chunksPerShard[d];
+        return shardPosition;
+    }
+
+    /**
+     * @param gridPosition   position of a chunk in the chunk grid, in n5 order
+     * @param chunksPerShard in n5 order
+     * @param isRowMajor     whether the n5 order is the reverse of the zarr order
+     * @return the number of the chunk within its shard, i.e. its entry in the index
+     */
+    public static int getChunkIndex(final long[] gridPosition, final int[] chunksPerShard, final boolean isRowMajor) {
+        final int n = gridPosition.length;
+        int index = 0;
+        // C order of the zarr dimensions: the last zarr dimension varies fastest
+        for (int i = 0; i < n; ++i) {
+            final int d = isRowMajor ? n - 1 - i : i;
+            index = index * chunksPerShard[d] + (int) (gridPosition[d] % chunksPerShard[d]);
+        }
+        return index;
+    }
+
+    /**
+     * @param dimensions     of the dataset, in n5 order
+     * @param blockSize      in n5 order
+     * @param chunksPerShard in n5 order
+     * @param shardPosition  in n5 order
+     * @return how many chunks of the dataset fall into the shard, which is less
+     * than a full shard at the border of the dataset
+     */
+    public static int getNumChunksInShard(final long[] dimensions, final int[] blockSize, final int[] chunksPerShard, final long[] shardPosition) {
+        int n = 1;
+        for (int d = 0; d < dimensions.length; ++d) {
+            final long numChunks = (dimensions[d] + blockSize[d] - 1) / blockSize[d];
+            n *= (int) Math.min(chunksPerShard[d], numChunks - shardPosition[d] * chunksPerShard[d]);
+        }
+        return n;
+    }
+
+    /**
+     * Where the index is stored in a shard and whether it is followed by a
+     * checksum, i.e. the "index_location" and "index_codecs" of the
+     * sharding_indexed codec.
+     */
+    public static final class Layout {
+
+        /**
+         * The index at the end of the shard, followed by its CRC-32C. This is
+         * the default of the sharding codec and written by this library.
+         */
+        public static final Layout DEFAULT = new Layout(false, true);
+
+        public static final int CHECKSUM_BYTES = 4;
+
+        private final boolean indexAtStart;
+        private final boolean checksum;
+
+        public Layout(final boolean indexAtStart, final boolean checksum) {
+            this.indexAtStart = indexAtStart;
+            this.checksum = checksum;
+        }
+
+        public boolean isIndexAtStart() {
+            return indexAtStart;
+        }
+
+        /**
+         * @return whether the index is followed by its crc32c checksum
+         */
+        public boolean hasChecksum() {
+            return checksum;
+        }
+
+        /**
+         * @return the size of the encoded index in bytes
+         */
+        public int getByteSize(final int numChunks) {
+            return numChunks * BYTES_PER_ENTRY + (checksum ? CHECKSUM_BYTES : 0);
+        }
+
+        /**
+         * @param shardSize the size of the shard in bytes
+         * @return the position of the index in the shard
+         */
+        public long getIndexOffset(final long shardSize, final int numChunks) {
+            return indexAtStart ? 0 : shardSize - getByteSize(numChunks);
+        }
+    }
+
+    /**
+     * Bounded cache of shard indices. Entries carry a version, e.g. the
+     * modification time or ETag of the shard, and are only returned while the
+     * version matches.
+     */
+    public static class Cache {
+
+        public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+        private final LinkedHashMap<String, Versioned> entries;
+
+        public Cache() {
+            this(DEFAULT_MAX_ENTRIES);
+        }
+
+        public Cache(final int maxEntries) {
+            entries = new LinkedHashMap<String, Versioned>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Versioned> eldest) {
+                    return size() > maxEntries;
+                }
+            };
+        }
+
+        /**
+         * @param version the current version of the shard, or null to accept
+         *                any cached version
+         * @return the cached index, or null
+         */
+        public synchronized ShardIndex get(final String key, final String version) {
+            final Versioned entry = entries.get(key);
+            if (entry == null || (version != null && !version.equals(entry.version)))
+                return null;
+            return entry.index;
+        }
+
+        /**
+         * @return the version of the cached index, or null if none is cached
+         */
+        public synchronized String getVersion(final String key) {
+            final Versioned entry = entries.get(key);
+            return entry == null ? null : entry.version;
+        }
+
+        public synchronized void put(final String key, final String version, final ShardIndex index) {
+            entries.put(key, new Versioned(version, index));
+        }
+
+        public synchronized void invalidate(final String key) {
+            entries.remove(key);
+        }
+
+        public synchronized void clear() {
+            entries.clear();
+        }
+
+        private static final class Versioned {
+            private final String version;
+            private final ShardIndex index;
+
+            private Versioned(final String version, final ShardIndex index) {
+                this.version = version;
+                this.index = index;
+            }
+        }
+    }
+}
@@ -82,6 +82,10 @@ public class ZArrayAttributes {
     }
 
     public ZarrDatasetAttributes getDatasetAttributes() {
+        return getDatasetAttributes(N5ZarrImageReader.DEFAULT_SEPARATOR);
+    }
+
+    protected ZarrDatasetAttributes getDatasetAttributes(final String dimensionSeparator) {
         final boolean isRowMajor = order == 'C';
         final long[] dimensions = shape.clone();
         final int[] blockSize = chunks.clone();
@@ -99,7 +103,8 @@ public class ZArrayAttributes {
             dtype,
             compression,
             isRowMajor,
-            fill_value);
+            fill_value,
+            dimensionSeparator);
     }
 
     public long[] getShape() {
@@ -0,0 +1,138 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.ome.zarr.util;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * The .zarray, .zattrs and .zgroup files of a whole zarr container, as
+ * stored in one consolidated .zmetadata file at the container root:
+ * <pre>
+ * {
+ *   "metadata": {
+ *     ".zgroup": {...},
+ *     ".zattrs": {...},
+ *     "s0/.zarray": {...},
+ *     ...
+ *   },
+ *   "zarr_consolidated_format": 1
+ * }
+ * </pre>
+ * A reader that uses consolidated metadata still reads the files that are
+ * not listed directly, as arrays may have been added to the container after
+ * its metadata was consolidated.
+ * <p>
+ * Returned values are shared between callers and must not be modified.
+ */
+public class ZarrConsolidatedMetadata {
+
+    public static final String ZMETADATA_FILE = ".zmetadata";
+    public static final String FORMAT_KEY = "zarr_consolidated_format";
+    public static final String METADATA_KEY = "metadata";
+    public static final int FORMAT = 1;
+
+    private final Map<String, HashMap<String, JsonElement>> files = new TreeMap<>();
+
+    /**
+     * Parses the contents of a .zmetadata file.
+     *
+     * @param zmetadata the attributes of the .zmetadata file
+     * @return the consolidated metadata
+     * @throws IOException if the file is not in the consolidated format
+     */
+    public static ZarrConsolidatedMetadata fromJson(final Map<String, JsonElement> zmetadata) throws IOException {
+        final JsonElement format = zmetadata.get(FORMAT_KEY);
+        if (format == null || !format.isJsonPrimitive() || format.getAsInt() != FORMAT)
+            throw new IOException("Unsupported consolidated metadata format: " + format);
+
+        final JsonElement metadata = zmetadata.get(METADATA_KEY);
+        if (metadata == null || !metadata.isJsonObject())
+            throw new IOException("Consolidated metadata without " + METADATA_KEY);
+
+        final ZarrConsolidatedMetadata consolidated = new ZarrConsolidatedMetadata();
+        for (final Map.Entry<String, JsonElement> file : metadata.getAsJsonObject().entrySet()) {
+            if (!file.getValue().isJsonObject())
+                throw new IOException("Invalid consolidated metadata of " + file.getKey());
+            final HashMap<String, JsonElement> attributes = new HashMap<>();
+            for (final Map.Entry<String, JsonElement> attribute : file.getValue().getAsJsonObject().entrySet())
+                attributes.put(attribute.getKey(), attribute.getValue());
+            consolidated.files.put(ZarrMetadataCache.normalize(file.getKey()), attributes);
+        }
+        return consolidated;
+    }
+
+    /**
+     * @return the contents of a .zmetadata file with this metadata
+     */
+    public HashMap<String, JsonElement> toJson() {
+        final JsonObject metadata = new JsonObject();
+        for (final Map.Entry<String, HashMap<String, JsonElement>> file : files.entrySet()) {
+            final JsonObject attributes = new JsonObject();
+            for (final Map.Entry<String, JsonElement> attribute : file.getValue().entrySet())
+                attributes.add(attribute.getKey(), attribute.getValue());
+            metadata.add(file.getKey(), attributes);
+        }
+        final HashMap<String, JsonElement> zmetadata = new HashMap<>();
+        zmetadata.put(METADATA_KEY, metadata);
+        zmetadata.put(FORMAT_KEY, new JsonPrimitive(FORMAT));
+        return zmetadata;
+    }
+
+    /**
+     * @param pathName group or array path, relative to the container root
+     * @param kind     the metadata file
+     * @return the metadata, or null if the file does not exist
+     */
+    public HashMap<String, JsonElement> get(final String pathName, final ZarrMetadataCache.FileKind kind) {
+        return files.get(key(pathName, kind));
+    }
+
+    public void put(final String pathName, final ZarrMetadataCache.FileKind kind, final HashMap<String, JsonElement> attributes) {
+        files.put(key(pathName, kind), attributes);
+    }
+
+    /**
+     * @return the number of metadata files
+     */
+    public int size() {
+        return files.size();
+    }
+
+    private static String key(final String pathName, final ZarrMetadataCache.FileKind kind) {
+        final String path = ZarrMetadataCache.normalize(pathName);
+        return path.isEmpty() ? kind.getFileName() : path + "/" + kind.getFileName();
+    }
+}
@@ -58,6 +58,10 @@ import org.janelia.saalfeldlab.n5.zarr.DType;
 
 public class ZarrDatasetAttributes extends org.janelia.saalfeldlab.n5.zarr.ZarrDatasetAttributes {
     private final transient String fillValue;
+    private final transient String dimensionSeparator;
+    private final transient int[] shardSize;
+    private final transient String chunkKeyPrefix;
+    private final transient ShardIndex.Layout shardIndexLayout;
 
     public ZarrDatasetAttributes(
         final long[] dimensions,
@@ -66,11 +70,114 @@ public class ZarrDatasetAttributes extends org.janelia.saalfeldlab.n5.zarr.ZarrD
         final Compression compression,
         final boolean isRowMajor,
         final String fill_value) {
+        this(dimensions, blockSize, dType, compression, isRowMajor, fill_value, N5ZarrImageReader.DEFAULT_SEPARATOR);
+    }
+
+    public ZarrDatasetAttributes(
+        final long[] dimensions,
+        final int[] blockSize,
+        final DType dType,
+        final Compression compression,
+        final boolean isRowMajor,
+        final String fill_value,
+        final String dimensionSeparator) {
+        this(dimensions, blockSize, dType, compression, isRowMajor, fill_value, dimensionSeparator, null);
+    }
+
+    /**
+     * @param shardSize size of the shards in elements, in the order of
+     *                  dimensions, or null if the dataset is not sharded
+     */
+    public ZarrDatasetAttributes(
+        final long[] dimensions,
+        final int[] blockSize,
+        final DType dType,
+        final Compression compression,
+        final boolean isRowMajor,
+        final String fill_value,
+        final String dimensionSeparator,
+        final int[] shardSize) {
+        this(dimensions, blockSize, dType, compression, isRowMajor, fill_value, dimensionSeparator, shardSize, "", ShardIndex.Layout.DEFAULT);
+    }
+
+    /**
+     * @param shardSize        size of the shards in elements, in the order of
+     *                         dimensions, or null if the dataset is not sharded
+     * @param chunkKeyPrefix   prepended to the grid position in the keys of
+     *                         chunks or shards, e.g. "c/" for zarr v3 arrays
+     * @param shardIndexLayout where the index is stored in a shard
+     */
+    public ZarrDatasetAttributes(
+        final long[] dimensions,
+        final int[] blockSize,
+        final DType dType,
+        final Compression compression,
+        final boolean isRowMajor,
+        final String fill_value,
+        final String dimensionSeparator,
+        final int[] shardSize,
+        final String chunkKeyPrefix,
+        final ShardIndex.Layout shardIndexLayout) {
         super(dimensions, blockSize, dType, compression, isRowMajor, fill_value);
         this.fillValue = fill_value;
+        this.dimensionSeparator = dimensionSeparator == null ? N5ZarrImageReader.DEFAULT_SEPARATOR : dimensionSeparator;
+        this.shardSize = shardSize;
+        this.chunkKeyPrefix = chunkKeyPrefix == null ? "" : chunkKeyPrefix;
+        this.shardIndexLayout = shardIndexLayout == null ? ShardIndex.Layout.DEFAULT : shardIndexLayout;
     }
 
     public String getFillValue() {
         return fillValue;
     }
+
+    /**
+     * @return the separator used in the chunk keys of this dataset, "." or "/"
+     */
+    public String getDimensionSeparator() {
+        return dimensionSeparator;
+    }
+
+    /**
+     * @return the prefix of the keys of chunks or shards, "" for zarr v2
+     * arrays
+     */
+    public String getChunkKeyPrefix() {
+        return chunkKeyPrefix;
+    }
+
+    /**
+     * @return where the index is stored in the shards of this dataset
+     */
+    public ShardIndex.Layout getShardIndexLayout() {
+        return shardIndexLayout;
+    }
+
+    /**
+     * @return whether the chunks of this dataset are packed into shards
+     */
+    public boolean isSharded() {
+        return shardSize != null;
+    }
+
+    /**
+     * @return the size of the shards in elements, or null if the dataset is
+     * not sharded
+     */
+    public int[] getShardSize() {
+        return shardSize;
+    }
+
+    /**
+     * @return the number of chunks per shard along each dimension, or null if
+     * the dataset is not sharded
+     */
+    public int[] getChunksPerShard() {
+        if (shardSize == null)
+            return null;
+        final int[] blockSize = getBlockSize();
+        final int[] chunksPerShard = new int[shardSize.length];
+        for (int d = 0; d < shardSize.length; ++d)
+            chunksPerShard[d] = shardSize[d] / blockSize[d];
+        return chunksPerShard;
+    }
 }
@@ -0,0 +1,220 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.ome.zarr.util;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, least-recently-used cache for the small JSON metadata files of a
+ * zarr container (.zarray, .zattrs and .zgroup, and zarr.json of zarr v3
+ * arrays).
+ * <p>
+ * Entries are keyed by the normalized group or array path and the kind of
+ * metadata file. Files that do not exist are remembered as well, such that
+ * repeated existence checks do not go back to the storage. Writers must
+ * invalidate the affected paths after modifying metadata.
+ * <p>
+ * Cached values are shared between callers and must not be modified.
+ */
+public class ZarrMetadataCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    private static final Object MISSING = new Object();
+
+    public enum FileKind {
+        ZARRAY(N5ZarrImageReader.zarrayFile),
+        ZATTRS(N5ZarrImageReader.zattrsFile),
+        ZGROUP(N5ZarrImageReader.zgroupFile),
+        /**
+         * The metadata of a zarr v3 array, see {@link ZarrV3ArrayMetadata}.
+         */
+        ZARR_JSON(N5ZarrImageReader.zarrJsonFile);
+
+        private final String fileName;
+
+        FileKind(String fileName) {
+            this.fileName = fileName;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+    }
+
+    @FunctionalInterface
+    public interface Loader<V> {
+        /**
+         * @return the parsed metadata, or null if the file does not exist
+         */
+        V load() throws IOException;
+    }
+
+    private final int maxEntries;
+    private final LinkedHashMap<String, Object> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private long generation = 0;
+
+    public ZarrMetadataCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public ZarrMetadataCache(final int maxEntries) {
+        if (maxEntries < 1)
+            throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+                return size() > ZarrMetadataCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached metadata of the given kind for pathName, or loads
+     * and caches it.
+     *
+     * @param pathName group or array path, relative to the container root
+     * @param kind     the metadata file
+     * @param loader   reads the metadata if it is not cached
+     * @return the metadata, or null if the file does not exist
+     */
+    @SuppressWarnings("unchecked")
+    public <V> V get(final String pathName, final FileKind kind, final Loader<V> loader) throws IOException {
+        final String key = key(normalize(pathName), kind);
+        final long loadGeneration;
+        synchronized (entries) {
+            final Object value = entries.get(key);
+            if (value != null) {
+                hits.incrementAndGet();
+                return value == MISSING ? null : (V) value;
+            }
+            loadGeneration = generation;
+        }
+
+        misses.incrementAndGet();
+        final V value = loader.load();
+        synchronized (entries) {
+            // do not resurrect an entry that was invalidated while loading
+            if (generation == loadGeneration)
+                entries.put(key, value == null ? MISSING : value);
+        }
+        return value;
+    }
+
+    /**
+     * Invalidates one metadata file of pathName.
+     */
+    public void invalidate(final String pathName, final FileKind kind) {
+        synchronized (entries) {
+            entries.remove(key(normalize(pathName), kind));
+            ++generation;
+        }
+    }
+
+    /**
+     * Invalidates all metadata of pathName and of everything below it.
+     */
+    public void invalidate(final String pathName) {
+        final String path = normalize(pathName);
+        synchronized (entries) {
+            final Iterator<String> keys = entries.keySet().iterator();
+            while (keys.hasNext()) {
+                final String key = keys.next();
+                final String keyPath = key.substring(0, key.lastIndexOf('/'));
+                if (path.isEmpty() || keyPath.equals(path) || keyPath.startsWith(path + "/"))
+                    keys.remove();
+            }
+            ++generation;
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+            ++generation;
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public void resetStatistics() {
+        hits.set(0);
+        misses.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "ZarrMetadataCache{entries=" + size() + "/" + maxEntries + ", hits=" + getHitCount() + ", misses=" + getMissCount() + "}";
+    }
+
+    private static String key(final String normalizedPath, final FileKind kind) {
+        return normalizedPath + "/" + kind.getFileName();
+    }
+
+    /**
+     * Maps "", "/", "a/b/", "/a//b" etc. to a canonical form without leading
+     * or trailing slashes.
+     */
+    static String normalize(final String pathName) {
+        if (pathName == null)
+            return "";
+        final StringBuilder sb = new StringBuilder();
+        for (final String part : pathName.replace('\\', '/').split("/")) {
+            if (part.isEmpty() || part.equals("."))
+                continue;
+            if (sb.length() > 0)
+                sb.append('/');
+            sb.append(part);
+        }
+        return sb.toString();
+    }
+}
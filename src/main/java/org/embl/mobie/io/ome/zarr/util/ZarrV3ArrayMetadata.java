@@ -0,0 +1,386 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+package org.embl.mobie.io.ome.zarr.util;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.zarr.DType;
+import org.janelia.saalfeldlab.n5.zarr.Utils;
+import org.janelia.saalfeldlab.n5.zarr.ZarrCompressor;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Maps the zarr.json of a zarr v3 array to {@link ZarrDatasetAttributes}
+ * and back.
+ * <p>
+ * Supported are regular chunk grids, the "default" and "v2" chunk key
+ * encodings, the bytes codec followed by an optional gzip or blosc codec
+ * and the sharding_indexed codec with such inner codecs. The index of a
+ * shard may be stored at its start or end and be followed by a crc32c
+ * checksum. Other codecs, e.g. transpose or zstd, are rejected rather than
+ * read as garbage.
+ */
+public final class ZarrV3ArrayMetadata {
+
+    public static final int ZARR_FORMAT = 3;
+
+    public static final String SHARDING_CODEC = "sharding_indexed";
+
+    private static final String[] BLOSC_SHUFFLES = {"noshuffle", "shuffle", "bitshuffle"};
+
+    private ZarrV3ArrayMetadata() {
+    }
+
+    /**
+     * @param zarrJson the attributes of a zarr.json file
+     * @return whether they describe a zarr v3 array rather than a group
+     */
+    public static boolean isArray(final Map<String, JsonElement> zarrJson) {
+        final JsonElement format = zarrJson.get("zarr_format");
+        final JsonElement nodeType = zarrJson.get("node_type");
+        return format != null && format.isJsonPrimitive() && format.getAsInt() == ZARR_FORMAT
+            && nodeType != null && nodeType.isJsonPrimitive() && nodeType.getAsString().equals("array");
+    }
+
+    /**
+     * @param zarrJson the attributes of the zarr.json file of an array
+     * @param gson     with the adapters of {@link N5ZarrImageReader#initGsonBuilder}
+     * @return the attributes of the array, in n5 order
+     * @throws IOException if the array uses a feature that is not supported
+     */
+    public static ZarrDatasetAttributes parse(final Map<String, JsonElement> zarrJson, final Gson gson) throws IOException {
+        if (!isArray(zarrJson))
+            throw new IOException("Not a zarr v3 array");
+        final JsonElement storageTransformers = zarrJson.get("storage_transformers");
+        if (storageTransformers != null && storageTransformers.isJsonArray() && storageTransformers.getAsJsonArray().size() > 0)
+            throw new IOException("Unsupported zarr v3 storage transformers: " + storageTransformers);
+
+        final long[] dimensions = gson.fromJson(zarrJson.get("shape"), long[].class);
+        final JsonObject chunkGrid = getObject(zarrJson, "chunk_grid");
+        if (!getName(chunkGrid).equals("regular"))
+            throw new IOException("Unsupported zarr v3 chunk grid: " + getName(chunkGrid));
+        final int[] gridChunkShape = gson.fromJson(getConfiguration(chunkGrid).get("chunk_shape"), int[].class);
+
+        final JsonObject chunkKeyEncoding = getObject(zarrJson, "chunk_key_encoding");
+        final JsonElement separatorElement = getConfiguration(chunkKeyEncoding).get("separator");
+        final String separator;
+        final String chunkKeyPrefix;
+        switch (getName(chunkKeyEncoding)) {
+            case "default":
+                separator = separatorElement == null ? "/" : separatorElement.getAsString();
+                chunkKeyPrefix = "c" + separator;
+                break;
+            case "v2":
+                separator = separatorElement == null ? "." : separatorElement.getAsString();
+                chunkKeyPrefix = "";
+                break;
+            default:
+                throw new IOException("Unsupported zarr v3 chunk key encoding: " + getName(chunkKeyEncoding));
+        }
+
+        final String dataType = zarrJson.get("data_type").getAsString();
+        final JsonElement fillValue = zarrJson.get("fill_value");
+
+        JsonArray codecs = zarrJson.get("codecs").getAsJsonArray();
+        int[] blockSize = gridChunkShape;
+        int[] shardSize = null;
+        ShardIndex.Layout shardIndexLayout = ShardIndex.Layout.DEFAULT;
+        if (codecs.size() > 0 && getName(codecs.get(0).getAsJsonObject()).equals(SHARDING_CODEC)) {
+            if (codecs.size() > 1)
+                throw new IOException("Unsupported zarr v3 codecs after " + SHARDING_CODEC + ": " + codecs);
+            final JsonObject sharding = getConfiguration(codecs.get(0).getAsJsonObject());
+            blockSize = gson.fromJson(sharding.get("chunk_shape"), int[].class);
+            shardSize = gridChunkShape;
+            if (blockSize.length != shardSize.length)
+                throw new IOException("The chunks and shards of a zarr v3 array differ in length");
+            for (int d = 0; d < shardSize.length; ++d)
+                if (blockSize[d] <= 0 || shardSize[d] % blockSize[d] != 0)
+                    throw new IOException("The shards of a zarr v3 array must be multiples of its chunks");
+            shardIndexLayout = parseShardIndexLayout(sharding);
+            codecs = sharding.get("codecs").getAsJsonArray();
+        }
+
+        final DType dType = parseDType(dataType, codecs);
+        final Compression compression = parseCompression(codecs, gson);
+
+        // zarr v3 arrays are in C order, n5 order is the reverse
+        Utils.reorder(dimensions);
+        blockSize = blockSize.clone();
+        Utils.reorder(blockSize);
+        if (shardSize != null) {
+            shardSize = shardSize.clone();
+            Utils.reorder(shardSize);
+        }
+
+        return new ZarrDatasetAttributes(
+            dimensions,
+            blockSize,
+            dType,
+            compression,
+            true,
+            fillValue == null || fillValue.isJsonNull() ? "0" : fillValue.getAsString(),
+            separator,
+            shardSize,
+            chunkKeyPrefix,
+            shardIndexLayout);
+    }
+
+    /**
+     * Creates the zarr.json of a C-order array with the default chunk key
+     * encoding, i.e. chunk or shard keys like "c/0/1/2".
+     *
+     * @param datasetAttributes the attributes of the array, in n5 order
+     * @param shardSize         size of the shards in elements, in n5 order,
+     *                          or null to store every chunk on its own
+     * @param gson              with the adapters of {@link N5ZarrImageReader#initGsonBuilder}
+     * @return the attributes of the zarr.json file
+     * @throws IllegalArgumentException if the compression has no zarr v3 codec
+     */
+    public static HashMap<String, JsonElement> toJson(
+        final DatasetAttributes datasetAttributes,
+        final int[] shardSize,
+        final Gson gson) {
+
+        final long[] shape = datasetAttributes.getDimensions().clone();
+        Utils.reorder(shape);
+        final int[] chunks = datasetAttributes.getBlockSize().clone();
+        Utils.reorder(chunks);
+
+        // chunks are encoded like those of zarr v2 arrays, see N5OMEZarrWriter#writeBlock
+        final DType dType = new DType(datasetAttributes.getDataType());
+        final JsonArray chunkCodecs = new JsonArray();
+        final JsonObject bytes = new JsonObject();
+        if (dType.getNBytes() > 1)
+            bytes.addProperty("endian", dType.getOrder() == ByteOrder.BIG_ENDIAN ? "big" : "little");
+        chunkCodecs.add(codec("bytes", bytes));
+        final JsonObject compressor = toCodec(datasetAttributes.getCompression(), dType, gson);
+        if (compressor != null)
+            chunkCodecs.add(compressor);
+
+        final JsonArray codecs;
+        final int[] gridChunkShape;
+        if (shardSize == null) {
+            codecs = chunkCodecs;
+            gridChunkShape = chunks;
+        } else {
+            gridChunkShape = shardSize.clone();
+            Utils.reorder(gridChunkShape);
+            final JsonArray indexCodecs = new JsonArray();
+            final JsonObject littleEndian = new JsonObject();
+            littleEndian.addProperty("endian", "little");
+            indexCodecs.add(codec("bytes", littleEndian));
+            indexCodecs.add(codec("crc32c", null));
+            final JsonObject sharding = new JsonObject();
+            sharding.add("chunk_shape", gson.toJsonTree(chunks));
+            sharding.add("codecs", chunkCodecs);
+            sharding.add("index_codecs", indexCodecs);
+            sharding.addProperty("index_location", "end");
+            codecs = new JsonArray();
+            codecs.add(codec(SHARDING_CODEC, sharding));
+        }
+
+        final JsonObject chunkGrid = new JsonObject();
+        chunkGrid.add("chunk_shape", gson.toJsonTree(gridChunkShape));
+        final JsonObject chunkKeyEncoding = new JsonObject();
+        chunkKeyEncoding.addProperty("separator", "/");
+
+        final HashMap<String, JsonElement> zarrJson = new HashMap<>();
+        zarrJson.put("zarr_format", new JsonPrimitive(ZARR_FORMAT));
+        zarrJson.put("node_type", new JsonPrimitive("array"));
+        zarrJson.put("shape", gson.toJsonTree(shape));
+        zarrJson.put("data_type", new JsonPrimitive(datasetAttributes.getDataType().toString()));
+        zarrJson.put("chunk_grid", codec("regular", chunkGrid));
+        zarrJson.put("chunk_key_encoding", codec("default", chunkKeyEncoding));
+        zarrJson.put("fill_value", new JsonPrimitive(0));
+        zarrJson.put("codecs", codecs);
+        zarrJson.put("attributes", new JsonObject());
+        return zarrJson;
+    }
+
+    private static ShardIndex.Layout parseShardIndexLayout(final JsonObject sharding) throws IOException {
+        final JsonElement location = sharding.get("index_location");
+        final boolean indexAtStart;
+        if (location == null || location.getAsString().equals("end"))
+            indexAtStart = false;
+        else if (location.getAsString().equals("start"))
+            indexAtStart = true;
+        else
+            throw new IOException("Unsupported shard index location: " + location);
+
+        final JsonArray indexCodecs = sharding.get("index_codecs").getAsJsonArray();
+        boolean checksum = false;
+        for (int i = 0; i < indexCodecs.size(); ++i) {
+            final JsonObject codec = indexCodecs.get(i).getAsJsonObject();
+            final String name = getName(codec);
+            if (i == 0 && name.equals("bytes")) {
+                final JsonElement endian = getConfiguration(codec).get("endian");
+                if (endian != null && !endian.getAsString().equals("little"))
+                    throw new IOException("Unsupported shard index endianness: " + endian);
+            } else if (i == 1 && name.equals("crc32c"))
+                checksum = true;
+            else
+                throw new IOException("Unsupported shard index codecs: " + indexCodecs);
+        }
+        return new ShardIndex.Layout(indexAtStart, checksum);
+    }
+
+    private static DType parseDType(final String dataType, final JsonArray codecs) throws IOException {
+        final char kind;
+        final String bits;
+        if (dataType.startsWith("uint")) {
+            kind = 'u';
+            bits = dataType.substring(4);
+        } else if (dataType.startsWith("int")) {
+            kind = 'i';
+            bits = dataType.substring(3);
+        } else if (dataType.startsWith("float")) {
+            kind = 'f';
+            bits = dataType.substring(5);
+        } else
+            throw new IOException("Unsupported zarr v3 data type: " + dataType);
+        final int numBytes;
+        try {
+            numBytes = Integer.parseInt(bits) / 8;
+        } catch (NumberFormatException e) {
+            throw new IOException("Unsupported zarr v3 data type: " + dataType);
+        }
+
+        if (codecs.size() == 0 || !getName(codecs.get(0).getAsJsonObject()).equals("bytes"))
+            throw new IOException("Unsupported zarr v3 codecs, expected bytes first: " + codecs);
+        final JsonElement endian = getConfiguration(codecs.get(0).getAsJsonObject()).get("endian");
+        final char byteOrder;
+        if (numBytes == 1)
+            byteOrder = '|';
+        else
+            byteOrder = endian != null && endian.getAsString().equals("big") ? '>' : '<';
+        return new DType(byteOrder + "" + kind + numBytes);
+    }
+
+    private static Compression parseCompression(final JsonArray codecs, final Gson gson) throws IOException {
+        if (codecs.size() > 2)
+            throw new IOException("Unsupported zarr v3 codecs: " + codecs);
+        if (codecs.size() < 2)
+            return new ZarrCompressor.Raw().getCompression();
+
+        final JsonObject codec = codecs.get(1).getAsJsonObject();
+        final JsonObject configuration = getConfiguration(codec);
+        final JsonObject compressor = new JsonObject();
+        switch (getName(codec)) {
+            case "gzip":
+                compressor.addProperty("id", "gzip");
+                compressor.add("level", configuration.get("level"));
+                break;
+            case "blosc":
+                compressor.addProperty("id", "blosc");
+                compressor.add("cname", configuration.get("cname"));
+                compressor.add("clevel", configuration.get("clevel"));
+                final JsonElement shuffle = configuration.get("shuffle");
+                int shuffleId = -1;
+                for (int i = 0; i < BLOSC_SHUFFLES.length; ++i)
+                    if (shuffle != null && BLOSC_SHUFFLES[i].equals(shuffle.getAsString()))
+                        shuffleId = i;
+                if (shuffleId < 0)
+                    throw new IOException("Unsupported blosc shuffle: " + shuffle);
+                compressor.addProperty("shuffle", shuffleId);
+                final JsonElement blockSize = configuration.get("blocksize");
+                compressor.addProperty("blocksize", blockSize == null ? 0 : blockSize.getAsInt());
+                break;
+            default:
+                throw new IOException("Unsupported zarr v3 codec: " + getName(codec));
+        }
+        return gson.fromJson(compressor, ZarrCompressor.class).getCompression();
+    }
+
+    /**
+     * @return the zarr v3 codec of compression, or null if the chunks are not compressed
+     */
+    private static JsonObject toCodec(final Compression compression, final DType dType, final Gson gson) {
+        if (compression instanceof RawCompression)
+            return null;
+        final ZarrCompressor compressor = ZarrCompressor.fromCompression(compression);
+        if (compressor == null)
+            throw new IllegalArgumentException("Unsupported compression: " + compression.getType());
+        final JsonElement json = gson.toJsonTree(compressor, ZarrCompressor.class);
+        if (json == null || !json.isJsonObject())
+            return null;
+
+        final JsonObject v2 = json.getAsJsonObject();
+        final String id = v2.get("id").getAsString();
+        final JsonObject configuration = new JsonObject();
+        switch (id) {
+            case "gzip":
+                configuration.add("level", v2.get("level"));
+                return codec("gzip", configuration);
+            case "blosc":
+                configuration.add("cname", v2.get("cname"));
+                configuration.add("clevel", v2.get("clevel"));
+                configuration.addProperty("shuffle", BLOSC_SHUFFLES[v2.get("shuffle").getAsInt()]);
+                configuration.addProperty("typesize", dType.getNBytes());
+                configuration.addProperty("blocksize", v2.has("blocksize") ? v2.get("blocksize").getAsInt() : 0);
+                return codec("blosc", configuration);
+            default:
+                throw new IllegalArgumentException("Zarr v3 has no codec for the " + id + " compression");
+        }
+    }
+
+    private static JsonObject codec(final String name, final JsonObject configuration) {
+        final JsonObject codec = new JsonObject();
+        codec.addProperty("name", name);
+        if (configuration != null)
+            codec.add("configuration", configuration);
+        return codec;
+    }
+
+    private static JsonObject getObject(final Map<String, JsonElement> zarrJson, final String key) throws IOException {
+        final JsonElement element = zarrJson.get(key);
+        if (element == null || !element.isJsonObject())
+            throw new IOException("zarr.json without " + key);
+        return element.getAsJsonObject();
+    }
+
+    private static String getName(final JsonObject codec) {
+        final JsonElement name = codec.get("name");
+        return name == null ? "" : name.getAsString();
+    }
+
+    private static JsonObject getConfiguration(final JsonObject codec) {
+        final JsonElement configuration = codec.get("configuration");
+        return configuration == null || !configuration.isJsonObject() ? new JsonObject() : configuration.getAsJsonObject();
+    }
+}
@@ -0,0 +1,104 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.ome.zarr.writers;
+
+import java.util.Arrays;
+
+import org.janelia.saalfeldlab.n5.Bzip2Compression;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.blosc.BloscCompression;
+
+/**
+ * Chooses the compression of each resolution level of an OME-Zarr export,
+ * e.g. a fast codec for the full resolution level, which is read most, and
+ * a stronger one for the coarse levels:
+ * <pre>
+ * CompressionPolicy.perLevel(
+ *     CompressionPolicy.blosc("lz4", 5, true),
+ *     CompressionPolicy.blosc("zstd", 5, true));
+ * </pre>
+ * All setups and timepoints of a level are stored in the same zarr array,
+ * which has a single compressor, so the compression can not differ between
+ * them.
+ * <p>
+ * Only compressions that zarr can describe are supported, see
+ * {@link #isSupported}. Blosc needs the native c-blosc library, also for
+ * reading.
+ */
+@FunctionalInterface
+public interface CompressionPolicy {
+
+    /**
+     * @param level the resolution level, 0 is full resolution
+     * @return the compression of that level
+     */
+    Compression getCompression(int level);
+
+    /**
+     * The same compression for all levels.
+     */
+    static CompressionPolicy of(final Compression compression) {
+        return level -> compression;
+    }
+
+    /**
+     * compressions[level] for the first levels, and the last of compressions
+     * for all further levels.
+     */
+    static CompressionPolicy perLevel(final Compression... compressions) {
+        if (compressions.length == 0)
+            throw new IllegalArgumentException("No compression given");
+        final Compression[] copy = Arrays.copyOf(compressions, compressions.length);
+        return level -> copy[Math.min(level, copy.length - 1)];
+    }
+
+    /**
+     * Blosc with the given codec, e.g. "lz4", "lz4hc", "zstd", "blosclz" or
+     * "zlib", and compression level from 0 to 9. Byte shuffling groups the
+     * bytes of the pixels by significance before compressing, which usually
+     * compresses 16 and 32 bit images much better.
+     */
+    static BloscCompression blosc(final String codec, final int level, final boolean shuffle) {
+        return new BloscCompression(codec, level, shuffle ? BloscCompression.SHUFFLE : BloscCompression.NOSHUFFLE, 0, 1);
+    }
+
+    /**
+     * Whether compression can be written to OME-Zarr. Other compressions,
+     * e.g. Lz4Compression and XzCompression of N5, have no zarr compressor
+     * and the chunks written with them could not be read.
+     */
+    static boolean isSupported(final Compression compression) {
+        return compression instanceof RawCompression ||
+            compression instanceof GzipCompression ||
+            compression instanceof Bzip2Compression ||
+            compression instanceof BloscCompression;
+    }
+}
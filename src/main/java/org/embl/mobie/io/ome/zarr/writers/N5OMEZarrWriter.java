@@ -28,10 +28,14 @@
  */
 package org.embl.mobie.io.ome.zarr.writers;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileSystemException;
@@ -39,17 +43,27 @@ import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.FileAttribute;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import org.embl.mobie.io.ome.zarr.readers.N5OmeZarrReader;
 import org.embl.mobie.io.ome.zarr.util.OmeZArrayAttributes;
+import org.embl.mobie.io.ome.zarr.util.ShardIndex;
 import org.embl.mobie.io.ome.zarr.util.ZArrayAttributes;
+import org.embl.mobie.io.ome.zarr.util.ZarrConsolidatedMetadata;
 import org.embl.mobie.io.ome.zarr.util.ZarrDatasetAttributes;
+import org.embl.mobie.io.ome.zarr.util.ZarrMetadataCache;
+import org.embl.mobie.io.ome.zarr.util.ZarrV3ArrayMetadata;
 import org.janelia.saalfeldlab.n5.BlockWriter;
 import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
 import org.janelia.saalfeldlab.n5.Compression;
@@ -76,7 +90,13 @@ import net.imglib2.type.numeric.integer.ByteType;
 import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 
-public class N5OMEZarrWriter extends N5OmeZarrReader implements N5Writer {
+public class N5OMEZarrWriter extends N5OmeZarrReader implements OmeZarrWriter {
+
+    /**
+     * Chunks of sharded datasets that have not been written yet, by shard path.
+     */
+    private final Map<String, ShardBuffer> pendingShards = new HashMap<>();
+    private volatile boolean experimentalSharding = false;
 
     /**
      * Opens an {@link N5OMEZarrWriter} at a given base path with a custom
@@ -409,6 +429,80 @@ public class N5OMEZarrWriter extends N5OmeZarrReader implements N5Writer {
         return pathName.endsWith("/") || pathName.endsWith("\\") ? pathName.substring(0, pathName.length() - 1) : pathName;
     }
 
+    /**
+     * Writes the .zarray, .zattrs and .zgroup files of all groups and arrays
+     * of the container into one .zmetadata file at its root, see
+     * {@link ZarrConsolidatedMetadata}, such that readers can take all
+     * metadata from a single file. The file is removed when metadata is
+     * written through this writer, so this should be called once the
+     * container is complete.
+     */
+    public void writeConsolidatedMetadata() throws IOException {
+
+        final ZarrConsolidatedMetadata consolidatedMetadata = new ZarrConsolidatedMetadata();
+        consolidateMetadata("", consolidatedMetadata);
+
+        /* readers that open the container meanwhile never see a partly
+         * written file: it is written next to the old one and replaces it in one step */
+        final Path path = Paths.get(basePath, ZarrConsolidatedMetadata.ZMETADATA_FILE);
+        final Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp-" + UUID.randomUUID());
+        try {
+            Files.write(tmpPath, gson.toJson(consolidatedMetadata.toJson()).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmpPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmpPath);
+        }
+    }
+
+    private void consolidateMetadata(final String pathName, final ZarrConsolidatedMetadata consolidatedMetadata) throws IOException {
+
+        for (final ZarrMetadataCache.FileKind kind : ZarrMetadataCache.FileKind.values()) {
+            // consolidated metadata only exists for zarr v2
+            if (kind == ZarrMetadataCache.FileKind.ZARR_JSON)
+                continue;
+            final HashMap<String, JsonElement> attributes = readMetadata(pathName, kind);
+            if (attributes != null)
+                consolidatedMetadata.put(pathName, kind, attributes);
+        }
+
+        // only groups have children with metadata, below arrays there are only chunks
+        if (consolidatedMetadata.get(pathName, ZarrMetadataCache.FileKind.ZGROUP) == null)
+            return;
+
+        final List<Path> children;
+        try (final Stream<Path> stream = Files.list(Paths.get(basePath, pathName))) {
+            children = stream.filter(Files::isDirectory).sorted().collect(Collectors.toList());
+        }
+        for (final Path child : children) {
+            final String name = child.getFileName().toString();
+            consolidateMetadata(pathName.isEmpty() ? name : pathName + "/" + name, consolidatedMetadata);
+        }
+    }
+
+    /**
+     * Also removes the consolidated metadata of the container, which would
+     * otherwise no longer match its metadata files.
+     */
+    @Override
+    protected void invalidateMetadata(final String pathName, final ZarrMetadataCache.FileKind kind) {
+        super.invalidateMetadata(pathName, kind);
+        removeConsolidatedMetadata();
+    }
+
+    @Override
+    protected void invalidateMetadata(final String pathName) {
+        super.invalidateMetadata(pathName);
+        removeConsolidatedMetadata();
+    }
+
+    private void removeConsolidatedMetadata() {
+        try {
+            Files.deleteIfExists(Paths.get(basePath, ZarrConsolidatedMetadata.ZMETADATA_FILE));
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     @Override
     public void createGroup(final String pathName) throws IOException {
 
@@ -433,6 +527,7 @@ public class N5OMEZarrWriter extends N5OmeZarrReader implements N5Writer {
             lockedFileChannel.getFileChannel().truncate(0);
             GsonAttributesParser.writeAttributes(Channels.newWriter(lockedFileChannel.getFileChannel(), StandardCharsets.UTF_8.name()), map, gson);
         }
+        invalidateMetadata(Paths.get(basePath).relativize(groupPath).toString(), ZarrMetadataCache.FileKind.ZGROUP);
     }
 
     public void setZArrayAttributes(
@@ -448,6 +543,29 @@ public class N5OMEZarrWriter extends N5OmeZarrReader implements N5Writer {
             lockedFileChannel.getFileChannel().truncate(0);
             GsonAttributesParser.writeAttributes(Channels.newWriter(lockedFileChannel.getFileChannel(), StandardCharsets.UTF_8.name()), map, gson);
         }
+        invalidateMetadata(pathName, ZarrMetadataCache.FileKind.ZARRAY);
+    }
+
+    /**
+     * Writes the zarr.json of a zarr v3 array, see {@link ZarrV3ArrayMetadata}.
+     */
+    private void setZarrJson(
+        final String pathName,
+        final HashMap<String, JsonElement> zarrJson) throws IOException {
+
+        final Path path = Paths.get(basePath, removeLeadingSlash(pathName), zarrJsonFile);
+        try (final N5FSReader.LockedFileChannel lockedFileChannel = N5FSReader.LockedFileChannel.openForWriting(path)) {
+
+            lockedFileChannel.getFileChannel().truncate(0);
+            GsonAttributesParser.writeAttributes(Channels.newWriter(lockedFileChannel.getFileChannel(), StandardCharsets.UTF_8.name()), zarrJson, gson);
+        }
+        invalidateMetadata(pathName, ZarrMetadataCache.FileKind.ZARR_JSON);
+    }
+
+    private void deleteMetadataFile(final String pathName, final ZarrMetadataCache.FileKind kind) throws IOException {
+
+        if (Files.deleteIfExists(Paths.get(basePath, removeLeadingSlash(pathName), kind.getFileName())))
+            invalidateMetadata(pathName, kind);
     }
 
     @Override
@@ -455,12 +573,60 @@ public class N5OMEZarrWriter extends N5OmeZarrReader implements N5Writer {
         final String pathName,
         final DatasetAttributes datasetAttributes) throws IOException {
 
+        setDatasetAttributes(pathName, datasetAttributes, null);
+    }
+
+    /**
+     * @param shardSize size of the shards in elements, in the order of the
+     *                  dataset dimensions, or null to store every chunk in its
+     *                  own file
+     * @throws IllegalStateException if shardSize is given but
+     *                               {@link #setExperimentalSharding experimental sharding} is disabled
+     */
+    public void setDatasetAttributes(
+        final String pathName,
+        final DatasetAttributes datasetAttributes,
+        final int[] shardSize) throws IOException {
+
+        if (shardSize == null) {
+            setZArrayAttributes(pathName, toZArrayAttributes(datasetAttributes, dimensionSeparator));
+            deleteMetadataFile(pathName, ZarrMetadataCache.FileKind.ZARR_JSON);
+        } else {
+            checkExperimentalSharding(this);
+            setZarrJson(pathName, ZarrV3ArrayMetadata.toJson(datasetAttributes, shardSize, gson));
+            deleteMetadataFile(pathName, ZarrMetadataCache.FileKind.ZARRAY);
+        }
+    }
+
+    @Override
+    public void setExperimentalSharding(final boolean enabled) {
+        experimentalSharding = enabled;
+    }
+
+    @Override
+    public boolean isExperimentalSharding() {
+        return experimentalSharding;
+    }
+
+    static void checkExperimentalSharding(final OmeZarrWriter writer) {
+        if (!writer.isExperimentalSharding())
+            throw new IllegalStateException("Sharded datasets are zarr v3 arrays, which are experimental in OME-Zarr containers; see OmeZarrWriter#setExperimentalSharding");
+    }
+
+    /**
+     * Converts N5 dataset attributes to the attributes of a C-order zarr
+     * array.
+     */
+    static OmeZArrayAttributes toZArrayAttributes(
+        final DatasetAttributes datasetAttributes,
+        final String dimensionSeparator) {
+
         final long[] shape = datasetAttributes.getDimensions().clone();
         Utils.reorder(shape);
         final int[] chunks = datasetAttributes.getBlockSize().clone();
         Utils.reorder(chunks);
 
-        final OmeZArrayAttributes zArrayAttributes = new OmeZArrayAttributes(
+        return new OmeZArrayAttributes(
             N5OmeZarrReader.VERSION.getMajor(),
             shape,
             chunks,
@@ -470,14 +636,34 @@ public class N5OMEZarrWriter extends N5OmeZarrReader implements N5Writer {
             'C',
             null,
             dimensionSeparator);
-
-        setZArrayAttributes(pathName, zArrayAttributes);
     }
 
     @Override
     public void createDataset(
         final String pathName,
         final DatasetAttributes datasetAttributes) throws IOException {
+
+        createDataset(pathName, datasetAttributes, null);
+    }
+
+    /**
+     * Creates a dataset whose chunks are packed into shards, i.e. files that
+     * hold several chunks and an index. Chunks written to such a dataset are
+     * buffered until their shard is complete or {@link #flush} is called.
+     *
+     * @param shardSize size of the shards in elements, in the order of the
+     *                  dataset dimensions and a multiple of the block size, or
+     *                  null to store every chunk in its own file
+     * @throws IllegalStateException if shardSize is given but
+     *                               {@link #setExperimentalSharding experimental sharding} is disabled
+     */
+    @Override
+    public void createDataset(
+        final String pathName,
+        final DatasetAttributes datasetAttributes,
+        final int[] shardSize) throws IOException {
+        if (shardSize != null)
+            checkExperimentalSharding(this);
         int lastSlashIndex = removeTrailingSlash(pathName).lastIndexOf("/");
 
         if (lastSlashIndex != -1) {
@@ -490,7 +676,7 @@ public class N5OMEZarrWriter extends N5OmeZarrReader implements N5Writer {
         final Path path = Paths.get(basePath, pathName);
         createDirectories(path);
 
-        setDatasetAttributes(pathName, datasetAttributes);
+        setDatasetAttributes(pathName, datasetAttributes, shardSize);
     }
 
     public void setAttributes(HashMap<String, JsonElement> elements, String pathName) throws IOException {
@@ -509,6 +695,7 @@ public class N5OMEZarrWriter extends N5OmeZarrReader implements N5Writer {
                 elements,
                 gson);
         }
+        invalidateMetadata(pathName, ZarrMetadataCache.FileKind.ZATTRS);
     }
 
     @Override
@@ -527,7 +714,8 @@ public class N5OMEZarrWriter extends N5OmeZarrReader implements N5Writer {
                         StandardCharsets.UTF_8.name()),
                     gson));
 
-            if (mapN5DatasetAttributes && datasetExists(pathName)) {
+            // dataset attributes are only mapped to the .zarray of zarr v2 arrays
+            if (mapN5DatasetAttributes && readMetadata(pathName, ZarrMetadataCache.FileKind.ZARRAY) != null) {
 
                 attributes = new HashMap<>(attributes);
                 ZArrayAttributes zArrayAttributes = getZArrayAttributes(pathName);
@@ -580,7 +768,8 @@ public class N5OMEZarrWriter extends N5OmeZarrReader implements N5Writer {
                     zArrayAttributes.getFillValue(),
                     zArrayAttributes.getOrder(),
                     zArrayAttributes.getFilters(),
-                    dimensionSeparator);
+                    zArrayAttributes instanceof OmeZArrayAttributes ?
+                        ((OmeZArrayAttributes) zArrayAttributes).getDimensionSeparator() : dimensionSeparator);
 
                 setZArrayAttributes(pathName, zArrayAttributes);
             }
@@ -593,6 +782,7 @@ public class N5OMEZarrWriter extends N5OmeZarrReader implements N5Writer {
                 map,
                 gson);
         }
+        invalidateMetadata(pathName, ZarrMetadataCache.FileKind.ZATTRS);
     }
 
     @Override
@@ -600,48 +790,78 @@ public class N5OMEZarrWriter extends N5OmeZarrReader implements N5Writer {
         final String pathName,
         final DatasetAttributes datasetAttributes,
         final DataBlock<T> dataBlock) throws IOException {
-        final ZarrDatasetAttributes zarrDatasetAttributes;
-        if (datasetAttributes instanceof ZarrDatasetAttributes)
-            zarrDatasetAttributes = (ZarrDatasetAttributes) datasetAttributes;
-        else
-            zarrDatasetAttributes = getZArrayAttributes(pathName).getDatasetAttributes();
+        final ZarrDatasetAttributes zarrDatasetAttributes = getZarrDatasetAttributes(pathName, datasetAttributes);
+        writeEncodedBlock(pathName, zarrDatasetAttributes, dataBlock.getGridPosition(), encodeBlock(zarrDatasetAttributes, dataBlock));
+    }
+
+    /**
+     * Compresses dataBlock into the bytes of a zarr chunk, without writing it.
+     */
+    public static <T> byte[] encodeBlock(
+        final ZarrDatasetAttributes zarrDatasetAttributes,
+        final DataBlock<T> dataBlock) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeBlock(out, zarrDatasetAttributes, dataBlock);
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes a chunk that was compressed by {@link #encodeBlock}. Chunks of
+     * sharded datasets are buffered until their shard is complete or
+     * {@link #flush} is called.
+     */
+    @Override
+    public void writeEncodedBlock(
+        final String pathName,
+        final DatasetAttributes datasetAttributes,
+        final long[] gridPosition,
+        final byte[] encodedChunk) throws IOException {
+        final ZarrDatasetAttributes zarrDatasetAttributes = getZarrDatasetAttributes(pathName, datasetAttributes);
+
+        if (zarrDatasetAttributes.isSharded()) {
+            bufferShardedBlock(pathName, zarrDatasetAttributes, gridPosition, encodedChunk);
+            return;
+        }
 
         final Path path = Paths.get(
             basePath,
             removeLeadingSlash(pathName),
-            getZarrDataBlockString(
-                dataBlock.getGridPosition(),
-                dimensionSeparator,
-                zarrDatasetAttributes.isRowMajor()));
+            getChunkKey(zarrDatasetAttributes, gridPosition));
         createDirectories(path.getParent());
         try (final N5FSReader.LockedFileChannel lockedChannel = N5FSReader.LockedFileChannel.openForWriting(path)) {
-
-            lockedChannel.getFileChannel().truncate(0);
-            writeBlock(
-                Channels.newOutputStream(lockedChannel.getFileChannel()),
-                zarrDatasetAttributes,
-                dataBlock);
+            final FileChannel channel = lockedChannel.getFileChannel();
+            channel.truncate(0);
+            writeFully(channel, encodedChunk, 0);
         }
     }
 
+    private ZarrDatasetAttributes getZarrDatasetAttributes(final String pathName, final DatasetAttributes datasetAttributes) throws IOException {
+        if (datasetAttributes instanceof ZarrDatasetAttributes)
+            return (ZarrDatasetAttributes) datasetAttributes;
+        return getZarrDatasetAttributes(pathName);
+    }
+
     @Override
     public boolean deleteBlock(final String pathName, final long... gridPosition) throws IOException {
 
-        final DatasetAttributes datasetAttributes = getDatasetAttributes(pathName);
+        final ZarrDatasetAttributes zarrDatasetAttributes = getZarrDatasetAttributes(pathName);
 
-        final ZarrDatasetAttributes zarrDatasetAttributes;
-        if (datasetAttributes instanceof ZarrDatasetAttributes)
-            zarrDatasetAttributes = (ZarrDatasetAttributes) datasetAttributes;
-        else
-            zarrDatasetAttributes = getZArrayAttributes(pathName).getDatasetAttributes();
+        if (zarrDatasetAttributes.isSharded()) {
+            final Path shardPath = getShardPath(pathName, zarrDatasetAttributes, gridPosition);
+            final ShardBuffer buffer;
+            synchronized (pendingShards) {
+                buffer = pendingShards.computeIfAbsent(shardPath.toString(), k -> newShardBuffer(shardPath, pathName, zarrDatasetAttributes, gridPosition));
+                buffer.put(ShardIndex.getChunkIndex(gridPosition, zarrDatasetAttributes.getChunksPerShard(), zarrDatasetAttributes.isRowMajor()), ShardBuffer.DELETED);
+                pendingShards.remove(shardPath.toString());
+            }
+            writeShard(buffer);
+            return true;
+        }
 
         final Path path = Paths.get(
             basePath,
             removeLeadingSlash(pathName),
-            getZarrDataBlockString(
-                gridPosition,
-                dimensionSeparator,
-                zarrDatasetAttributes.isRowMajor()));
+            getChunkKey(zarrDatasetAttributes, gridPosition));
 
         if (!Files.exists(path))
             return true;
@@ -653,6 +873,106 @@ public class N5OMEZarrWriter extends N5OmeZarrReader implements N5Writer {
         return !Files.exists(path);
     }
 
+    /**
+     * Writes the buffered chunks of all sharded datasets.
+     */
+    @Override
+    public void flush() throws IOException {
+        flushShards(null);
+    }
+
+    /**
+     * Writes the buffered chunks of a sharded dataset. Chunks are only
+     * visible to readers after their shard was written.
+     *
+     * @param pathName the dataset path that was given to {@link #writeBlock}
+     */
+    @Override
+    public void flush(final String pathName) throws IOException {
+        flushShards(removeTrailingSlash(removeLeadingSlash(pathName)));
+    }
+
+    private void flushShards(final String pathName) throws IOException {
+        final List<ShardBuffer> buffers = new ArrayList<>();
+        synchronized (pendingShards) {
+            for (final Iterator<ShardBuffer> it = pendingShards.values().iterator(); it.hasNext(); ) {
+                final ShardBuffer buffer = it.next();
+                if (pathName == null || pathName.equals(buffer.pathName)) {
+                    buffers.add(buffer);
+                    it.remove();
+                }
+            }
+        }
+        for (final ShardBuffer buffer : buffers)
+            writeShard(buffer);
+    }
+
+    private void bufferShardedBlock(
+        final String pathName,
+        final ZarrDatasetAttributes zarrDatasetAttributes,
+        final long[] gridPosition,
+        final byte[] encodedChunk) throws IOException {
+
+        final Path path = getShardPath(pathName, zarrDatasetAttributes, gridPosition);
+        final int chunk = ShardIndex.getChunkIndex(gridPosition, zarrDatasetAttributes.getChunksPerShard(), zarrDatasetAttributes.isRowMajor());
+        ShardBuffer complete = null;
+        synchronized (pendingShards) {
+            final ShardBuffer buffer = pendingShards.computeIfAbsent(path.toString(), k -> newShardBuffer(path, pathName, zarrDatasetAttributes, gridPosition));
+            if (buffer.put(chunk, encodedChunk)) {
+                pendingShards.remove(path.toString());
+                complete = buffer;
+            }
+        }
+        if (complete != null)
+            writeShard(complete);
+    }
+
+    private static ShardBuffer newShardBuffer(final Path path, final String pathName, final ZarrDatasetAttributes attributes, final long[] gridPosition) {
+        return new ShardBuffer(path.toString(), removeTrailingSlash(removeLeadingSlash(pathName)), attributes, gridPosition);
+    }
+
+    /**
+     * Writes the chunks of buffer into its shard, keeping the chunks of an
+     * existing shard that were not replaced. Shards without chunks are deleted.
+     */
+    private void writeShard(final ShardBuffer buffer) throws IOException {
+        final Path path = Paths.get(buffer.location);
+        createDirectories(path.getParent());
+        try {
+            if (Files.exists(path))
+                try (final N5FSReader.LockedFileChannel lockedChannel = N5FSReader.LockedFileChannel.openForReading(path)) {
+                    final FileChannel channel = lockedChannel.getFileChannel();
+                    if (channel.size() > 0)
+                        buffer.keepExisting(
+                            readShardIndex(path, channel, buffer.getNumChunks(), buffer.layout),
+                            (offset, length) -> readFully(channel, offset, length));
+                }
+
+            final byte[] shard = buffer.toByteArray();
+            if (shard == null) {
+                Files.deleteIfExists(path);
+                return;
+            }
+            /* readers never see a partly written shard: the new shard is
+             * written next to the old one and replaces it in one step */
+            final Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp-" + UUID.randomUUID());
+            try {
+                Files.write(tmpPath, shard);
+                Files.move(tmpPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmpPath);
+            }
+        } finally {
+            invalidateShardIndex(path);
+        }
+    }
+
+    private static void writeFully(final FileChannel channel, final byte[] bytes, final long position) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining())
+            channel.write(buffer, position + buffer.position());
+    }
+
     @Override
     public boolean remove() throws IOException {
 
@@ -663,6 +983,9 @@ public class N5OMEZarrWriter extends N5OmeZarrReader implements N5Writer {
     public boolean remove(final String pathName) throws IOException {
 
         final Path path = Paths.get(basePath, pathName);
+        synchronized (pendingShards) {
+            pendingShards.values().removeIf(buffer -> Paths.get(buffer.location).startsWith(path));
+        }
         if (Files.exists(path))
             try (final Stream<Path> pathStream = Files.walk(path)) {
                 pathStream.sorted(Comparator.reverseOrder()).forEach(
@@ -681,6 +1004,7 @@ public class N5OMEZarrWriter extends N5OmeZarrReader implements N5Writer {
                             }
                     });
             }
+        invalidateMetadata(pathName);
 
         return !Files.exists(path);
     }
@@ -0,0 +1,525 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.ome.zarr.writers;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.embl.mobie.io.ome.zarr.readers.N5OmeZarrReader;
+import org.embl.mobie.io.ome.zarr.readers.N5S3OmeZarrReader;
+import org.embl.mobie.io.ome.zarr.util.ShardIndex;
+import org.embl.mobie.io.ome.zarr.util.ZArrayAttributes;
+import org.embl.mobie.io.ome.zarr.util.ZarrDatasetAttributes;
+import org.embl.mobie.io.ome.zarr.util.ZarrMetadataCache;
+import org.embl.mobie.io.ome.zarr.util.ZarrV3ArrayMetadata;
+import org.embl.mobie.io.util.BoundedRequestExecutor;
+import org.embl.mobie.io.util.S3ChunkReader;
+import org.embl.mobie.io.util.S3Utils;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GsonAttributesParser;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Writes an OME-Zarr container directly into an S3 bucket.
+ * <p>
+ * Every chunk is uploaded with a single PUT; write chunks from several
+ * threads to upload them in parallel, e.g. with
+ * {@link org.embl.mobie.io.n5.util.WriteBehindDatasetIO}. Shards are
+ * buffered like in {@link N5OMEZarrWriter} and uploaded when they are
+ * complete or flushed. Objects of at least {@link #getMultipartThreshold()}
+ * bytes, i.e. usually shards, are uploaded in parts, of which up to
+ * {@link #getMaxInFlightRequests()} are uploaded at the same time.
+ * <p>
+ * N5 dataset attributes like "dimensions" that are set with
+ * {@link #setAttributes} are stored in .zattrs and not mapped to .zarray.
+ * Sharded datasets are zarr v3 arrays, see {@link OmeZarrWriter#setExperimentalSharding}.
+ */
+@Slf4j
+public class N5S3OMEZarrWriter extends N5S3OmeZarrReader implements OmeZarrWriter {
+
+    /**
+     * The smallest part size of a multipart upload that S3 accepts, except
+     * for the last part.
+     */
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+    public static final long DEFAULT_MULTIPART_THRESHOLD = 16 * 1024 * 1024;
+    public static final int DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+
+    private static final int MAX_KEYS_PER_DELETE = 1000;
+
+    private final Map<String, ShardBuffer> pendingShards = new HashMap<>();
+    private volatile long multipartThreshold = DEFAULT_MULTIPART_THRESHOLD;
+    private volatile int partSize = DEFAULT_PART_SIZE;
+    private volatile boolean experimentalSharding = false;
+    private BoundedRequestExecutor uploadExecutor;
+
+    public N5S3OMEZarrWriter(AmazonS3 s3, String serviceEndpoint, String bucketName, String containerPath, String dimensionSeparator) throws IOException {
+        super(s3, serviceEndpoint, bucketName, containerPath, dimensionSeparator);
+    }
+
+    /**
+     * Sets from which size on objects are uploaded in several parts, and the
+     * size of these parts.
+     *
+     * @param multipartThreshold
+     * @param partSize           at least {@link #MIN_PART_SIZE}
+     */
+    public void setMultipartUpload(final long multipartThreshold, final int partSize) {
+        if (partSize < MIN_PART_SIZE)
+            throw new IllegalArgumentException("partSize must be at least " + MIN_PART_SIZE + ": " + partSize);
+        this.multipartThreshold = multipartThreshold;
+        this.partSize = partSize;
+    }
+
+    public long getMultipartThreshold() {
+        return multipartThreshold;
+    }
+
+    public int getPartSize() {
+        return partSize;
+    }
+
+    @Override
+    public synchronized void setMaxInFlightRequests(final int maxInFlightRequests) {
+        super.setMaxInFlightRequests(maxInFlightRequests);
+        if (uploadExecutor != null) {
+            uploadExecutor.shutdown();
+            uploadExecutor = null;
+        }
+    }
+
+    private synchronized BoundedRequestExecutor getUploadExecutor() {
+        if (uploadExecutor == null)
+            uploadExecutor = new BoundedRequestExecutor("n5-s3-zarr-writer", getMaxInFlightRequests());
+        return uploadExecutor;
+    }
+
+    @Override
+    public void createGroup(final String pathName) throws IOException {
+        String path = N5OMEZarrWriter.removeTrailingSlash(removeLeadingSlash(pathName));
+        while (true) {
+            setGroupVersion(path);
+            if (path.isEmpty())
+                break;
+            final int lastSlashIndex = path.lastIndexOf('/');
+            path = lastSlashIndex == -1 ? "" : path.substring(0, lastSlashIndex);
+        }
+    }
+
+    protected void setGroupVersion(final String pathName) throws IOException {
+        final HashMap<String, JsonElement> map = new HashMap<>();
+        map.put("zarr_format", new JsonPrimitive(N5OmeZarrReader.VERSION.getMajor()));
+        putJson(pathName, ZarrMetadataCache.FileKind.ZGROUP, map);
+    }
+
+    public void setZArrayAttributes(
+        final String pathName,
+        final ZArrayAttributes attributes) throws IOException {
+
+        final HashMap<String, JsonElement> map = new HashMap<>();
+        GsonAttributesParser.insertAttributes(map, attributes.asMap(), gson);
+        putJson(pathName, ZarrMetadataCache.FileKind.ZARRAY, map);
+    }
+
+    @Override
+    public void setDatasetAttributes(
+        final String pathName,
+        final DatasetAttributes datasetAttributes) throws IOException {
+
+        setDatasetAttributes(pathName, datasetAttributes, null);
+    }
+
+    /**
+     * @param shardSize size of the shards in elements, in the order of the
+     *                  dataset dimensions, or null to store every chunk in its
+     *                  own object
+     * @throws IllegalStateException if shardSize is given but
+     *                               {@link #setExperimentalSharding experimental sharding} is disabled
+     */
+    public void setDatasetAttributes(
+        final String pathName,
+        final DatasetAttributes datasetAttributes,
+        final int[] shardSize) throws IOException {
+
+        if (shardSize == null) {
+            setZArrayAttributes(pathName, N5OMEZarrWriter.toZArrayAttributes(datasetAttributes, dimensionSeparator));
+            deleteMetadataObject(pathName, ZarrMetadataCache.FileKind.ZARR_JSON);
+        } else {
+            N5OMEZarrWriter.checkExperimentalSharding(this);
+            putJson(pathName, ZarrMetadataCache.FileKind.ZARR_JSON, ZarrV3ArrayMetadata.toJson(datasetAttributes, shardSize, gson));
+            deleteMetadataObject(pathName, ZarrMetadataCache.FileKind.ZARRAY);
+        }
+    }
+
+    private void deleteMetadataObject(final String pathName, final ZarrMetadataCache.FileKind kind) {
+        try {
+            s3.deleteObject(bucketName, objectFile(pathName, kind.getFileName()));
+        } finally {
+            invalidateMetadata(pathName, kind);
+        }
+    }
+
+    @Override
+    public void setExperimentalSharding(final boolean enabled) {
+        experimentalSharding = enabled;
+    }
+
+    @Override
+    public boolean isExperimentalSharding() {
+        return experimentalSharding;
+    }
+
+    @Override
+    public void createDataset(
+        final String pathName,
+        final DatasetAttributes datasetAttributes) throws IOException {
+
+        createDataset(pathName, datasetAttributes, null);
+    }
+
+    @Override
+    public void createDataset(
+        final String pathName,
+        final DatasetAttributes datasetAttributes,
+        final int[] shardSize) throws IOException {
+
+        if (shardSize != null)
+            N5OMEZarrWriter.checkExperimentalSharding(this);
+        final String path = N5OMEZarrWriter.removeTrailingSlash(removeLeadingSlash(pathName));
+        final int lastSlashIndex = path.lastIndexOf('/');
+        if (lastSlashIndex != -1)
+            createGroup(path.substring(0, lastSlashIndex));
+
+        setDatasetAttributes(path, datasetAttributes, shardSize);
+    }
+
+    @Override
+    public void setAttributes(
+        final String pathName,
+        final Map<String, ?> attributes) throws IOException {
+
+        synchronized (this) {
+            final HashMap<String, JsonElement> map = new HashMap<>();
+            final HashMap<String, JsonElement> existing = readJson(objectFile(pathName, zattrsFile));
+            if (existing != null)
+                map.putAll(existing);
+            GsonAttributesParser.insertAttributes(map, attributes, gson);
+            putJson(pathName, ZarrMetadataCache.FileKind.ZATTRS, map);
+        }
+    }
+
+    private void putJson(final String pathName, final ZarrMetadataCache.FileKind kind, final HashMap<String, JsonElement> map) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (final Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+            GsonAttributesParser.writeAttributes(writer, map, gson);
+        }
+        try {
+            putObject(objectFile(pathName, kind.getFileName()), out.toByteArray());
+        } finally {
+            invalidateMetadata(pathName, kind);
+        }
+    }
+
+    @Override
+    public <T> void writeBlock(
+        final String pathName,
+        final DatasetAttributes datasetAttributes,
+        final DataBlock<T> dataBlock) throws IOException {
+        final ZarrDatasetAttributes zarrDatasetAttributes = getZarrDatasetAttributes(pathName, datasetAttributes);
+        writeEncodedBlock(pathName, zarrDatasetAttributes, dataBlock.getGridPosition(), N5OMEZarrWriter.encodeBlock(zarrDatasetAttributes, dataBlock));
+    }
+
+    @Override
+    public void writeEncodedBlock(
+        final String pathName,
+        final DatasetAttributes datasetAttributes,
+        final long[] gridPosition,
+        final byte[] encodedChunk) throws IOException {
+        final ZarrDatasetAttributes zarrDatasetAttributes = getZarrDatasetAttributes(pathName, datasetAttributes);
+
+        if (zarrDatasetAttributes.isSharded()) {
+            bufferShardedBlock(pathName, zarrDatasetAttributes, gridPosition, encodedChunk);
+            return;
+        }
+
+        putObject(getBlockKey(pathName, zarrDatasetAttributes, gridPosition), encodedChunk);
+    }
+
+    @Override
+    public boolean deleteBlock(final String pathName, final long... gridPosition) throws IOException {
+        final ZarrDatasetAttributes zarrDatasetAttributes = getZarrDatasetAttributes(pathName, getDatasetAttributes(pathName));
+
+        if (zarrDatasetAttributes.isSharded()) {
+            final String shardKey = getShardKey(pathName, zarrDatasetAttributes, gridPosition);
+            final ShardBuffer buffer;
+            synchronized (pendingShards) {
+                buffer = pendingShards.computeIfAbsent(shardKey, k -> newShardBuffer(shardKey, pathName, zarrDatasetAttributes, gridPosition));
+                buffer.put(ShardIndex.getChunkIndex(gridPosition, zarrDatasetAttributes.getChunksPerShard(), zarrDatasetAttributes.isRowMajor()), ShardBuffer.DELETED);
+                pendingShards.remove(shardKey);
+            }
+            writeShard(buffer);
+            return true;
+        }
+
+        s3.deleteObject(bucketName, getBlockKey(pathName, zarrDatasetAttributes, gridPosition));
+        return true;
+    }
+
+    private String getBlockKey(final String pathName, final ZarrDatasetAttributes zarrDatasetAttributes, final long[] gridPosition) {
+        return objectFile(pathName, getChunkKey(zarrDatasetAttributes, gridPosition));
+    }
+
+    private ZarrDatasetAttributes getZarrDatasetAttributes(final String pathName, final DatasetAttributes datasetAttributes) throws IOException {
+        if (datasetAttributes instanceof ZarrDatasetAttributes)
+            return (ZarrDatasetAttributes) datasetAttributes;
+        return getZarrDatasetAttributes(pathName);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushShards(null);
+    }
+
+    @Override
+    public void flush(final String pathName) throws IOException {
+        flushShards(N5OMEZarrWriter.removeTrailingSlash(removeLeadingSlash(pathName)));
+    }
+
+    private void flushShards(final String pathName) throws IOException {
+        final List<ShardBuffer> buffers = new ArrayList<>();
+        synchronized (pendingShards) {
+            for (final Iterator<ShardBuffer> it = pendingShards.values().iterator(); it.hasNext(); ) {
+                final ShardBuffer buffer = it.next();
+                if (pathName == null || pathName.equals(buffer.pathName)) {
+                    buffers.add(buffer);
+                    it.remove();
+                }
+            }
+        }
+        for (final ShardBuffer buffer : buffers)
+            writeShard(buffer);
+    }
+
+    private void bufferShardedBlock(
+        final String pathName,
+        final ZarrDatasetAttributes zarrDatasetAttributes,
+        final long[] gridPosition,
+        final byte[] encodedChunk) throws IOException {
+
+        final String shardKey = getShardKey(pathName, zarrDatasetAttributes, gridPosition);
+        final int chunk = ShardIndex.getChunkIndex(gridPosition, zarrDatasetAttributes.getChunksPerShard(), zarrDatasetAttributes.isRowMajor());
+        ShardBuffer complete = null;
+        synchronized (pendingShards) {
+            final ShardBuffer buffer = pendingShards.computeIfAbsent(shardKey, k -> newShardBuffer(shardKey, pathName, zarrDatasetAttributes, gridPosition));
+            if (buffer.put(chunk, encodedChunk)) {
+                pendingShards.remove(shardKey);
+                complete = buffer;
+            }
+        }
+        if (complete != null)
+            writeShard(complete);
+    }
+
+    private ShardBuffer newShardBuffer(final String shardKey, final String pathName, final ZarrDatasetAttributes attributes, final long[] gridPosition) {
+        return new ShardBuffer(shardKey, N5OMEZarrWriter.removeTrailingSlash(removeLeadingSlash(pathName)), attributes, gridPosition);
+    }
+
+    /**
+     * Uploads the chunks of buffer as its shard, keeping the chunks of an
+     * existing shard that were not replaced. Shards without chunks are deleted.
+     */
+    private void writeShard(final ShardBuffer buffer) throws IOException {
+        final String shardKey = buffer.location;
+        try {
+            final ObjectMetadata metadata = getObjectMetadata(shardKey);
+            if (metadata != null) {
+                final String eTag = metadata.getETag();
+                final long size = metadata.getContentLength();
+                final int indexSize = buffer.layout.getByteSize(buffer.getNumChunks());
+                final byte[] indexBytes = S3ChunkReader.readRange(s3, getServiceEndpoint(), bucketName, shardKey, eTag, buffer.layout.getIndexOffset(size, buffer.getNumChunks()), indexSize, null);
+                if (indexBytes == null)
+                    throw new IOException(shardKey + " changed while writing to it");
+                buffer.keepExisting(
+                    ShardIndex.read(indexBytes, buffer.getNumChunks(), buffer.layout),
+                    (offset, length) -> {
+                        final byte[] bytes = S3ChunkReader.readRange(s3, getServiceEndpoint(), bucketName, shardKey, eTag, offset, length, null);
+                        if (bytes == null)
+                            throw new IOException(shardKey + " changed while writing to it");
+                        return bytes;
+                    });
+            }
+
+            final byte[] shard = buffer.toByteArray();
+            if (shard == null)
+                s3.deleteObject(bucketName, shardKey);
+            else
+                putObject(shardKey, shard);
+        } finally {
+            invalidateShardIndex(shardKey);
+        }
+    }
+
+    /**
+     * @return the metadata of the object, or null if it is missing, see
+     * {@link S3Utils#isMissingObject}
+     */
+    private ObjectMetadata getObjectMetadata(final String key) {
+        try {
+            return s3.getObjectMetadata(bucketName, key);
+        } catch (AmazonS3Exception e) {
+            if (S3Utils.isMissingObject(e))
+                return null;
+            throw e;
+        }
+    }
+
+    /**
+     * Uploads bytes with a single PUT or, if there are at least
+     * {@link #getMultipartThreshold()} bytes, in parts.
+     */
+    protected void putObject(final String key, final byte[] bytes) throws IOException {
+        if (bytes.length >= multipartThreshold) {
+            putObjectInParts(key, bytes);
+            return;
+        }
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(bytes.length);
+        s3.putObject(new PutObjectRequest(bucketName, key, new ByteArrayInputStream(bytes), metadata));
+    }
+
+    private void putObjectInParts(final String key, final byte[] bytes) throws IOException {
+        final int partSize = this.partSize;
+        final String uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, key)).getUploadId();
+        try {
+            final List<CompletableFuture<PartETag>> parts = new ArrayList<>();
+            for (int offset = 0, partNumber = 1; offset < bytes.length; offset += partSize, ++partNumber) {
+                final UploadPartRequest request = new UploadPartRequest()
+                    .withBucketName(bucketName)
+                    .withKey(key)
+                    .withUploadId(uploadId)
+                    .withPartNumber(partNumber)
+                    .withInputStream(new ByteArrayInputStream(bytes, offset, Math.min(partSize, bytes.length - offset)))
+                    .withPartSize(Math.min(partSize, bytes.length - offset));
+                parts.add(getUploadExecutor().submit(() -> s3.uploadPart(request).getPartETag()));
+            }
+            final List<PartETag> partETags = new ArrayList<>();
+            for (final CompletableFuture<PartETag> part : parts)
+                partETags.add(part.get());
+            s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, key, uploadId, partETags));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abortMultipartUpload(key, uploadId);
+            throw new IOException("Interrupted while uploading " + key, e);
+        } catch (ExecutionException e) {
+            abortMultipartUpload(key, uploadId);
+            throw new IOException("Uploading " + key + " failed", e.getCause());
+        } catch (RuntimeException e) {
+            abortMultipartUpload(key, uploadId);
+            throw e;
+        }
+    }
+
+    private void abortMultipartUpload(final String key, final String uploadId) {
+        try {
+            s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+        } catch (RuntimeException e) {
+            log.warn("Could not abort the upload of " + key + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean remove() throws IOException {
+
+        return remove("/");
+    }
+
+    /**
+     * Deletes all objects below pathName.
+     */
+    @Override
+    public boolean remove(final String pathName) throws IOException {
+
+        final String path = N5OMEZarrWriter.removeTrailingSlash(removeLeadingSlash(pathName));
+        synchronized (pendingShards) {
+            pendingShards.values().removeIf(buffer -> path.isEmpty() || buffer.pathName.equals(path) || buffer.pathName.startsWith(path + "/"));
+        }
+
+        final String prefix = objectFile(path, "");
+        final ListObjectsV2Request request = new ListObjectsV2Request()
+            .withBucketName(bucketName)
+            .withPrefix(prefix);
+        ListObjectsV2Result result;
+        do {
+            result = s3.listObjectsV2(request);
+            final List<DeleteObjectsRequest.KeyVersion> keys = new ArrayList<>();
+            for (final S3ObjectSummary object : result.getObjectSummaries()) {
+                keys.add(new DeleteObjectsRequest.KeyVersion(object.getKey()));
+                if (keys.size() == MAX_KEYS_PER_DELETE) {
+                    s3.deleteObjects(new DeleteObjectsRequest(bucketName).withKeys(keys));
+                    keys.clear();
+                }
+            }
+            if (!keys.isEmpty())
+                s3.deleteObjects(new DeleteObjectsRequest(bucketName).withKeys(keys));
+            request.setContinuationToken(result.getNextContinuationToken());
+        } while (result.isTruncated());
+        invalidateMetadata(path);
+
+        return true;
+    }
+}
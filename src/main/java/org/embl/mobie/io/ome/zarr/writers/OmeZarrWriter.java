@@ -0,0 +1,95 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.ome.zarr.writers;
+
+import java.io.IOException;
+
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+/**
+ * An {@link N5Writer} for OME-Zarr containers, on a file system
+ * ({@link N5OMEZarrWriter}) or in an S3 bucket ({@link N5S3OMEZarrWriter}).
+ */
+public interface OmeZarrWriter extends N5Writer {
+
+    /**
+     * Creates a dataset whose chunks are packed into shards, i.e. files or
+     * objects that hold several chunks and an index. Chunks written to such a
+     * dataset are buffered until their shard is complete or {@link #flush} is
+     * called.
+     * <p>
+     * Sharded datasets are stored as zarr v3 arrays with the sharding_indexed
+     * codec, see {@link #setExperimentalSharding}.
+     *
+     * @param shardSize size of the shards in elements, in the order of the
+     *                  dataset dimensions and a multiple of the block size, or
+     *                  null to store every chunk on its own
+     * @throws IllegalStateException if shardSize is given but experimental
+     *                               sharding is disabled
+     */
+    void createDataset(
+        final String pathName,
+        final DatasetAttributes datasetAttributes,
+        final int[] shardSize) throws IOException;
+
+    /**
+     * Allows to create sharded datasets. These are zarr v3 arrays, i.e. they
+     * have a zarr.json with the sharding_indexed codec instead of a .zarray,
+     * whereas the groups and multiscales metadata of the container remain
+     * zarr v2. Readers that only know OME-Zarr 0.4, i.e. zarr v2, cannot read
+     * such datasets, so sharding is disabled by default.
+     */
+    void setExperimentalSharding(final boolean enabled);
+
+    boolean isExperimentalSharding();
+
+    /**
+     * Writes a chunk that was compressed by
+     * {@link N5OMEZarrWriter#encodeBlock}.
+     */
+    void writeEncodedBlock(
+        final String pathName,
+        final DatasetAttributes datasetAttributes,
+        final long[] gridPosition,
+        final byte[] encodedChunk) throws IOException;
+
+    /**
+     * Writes the buffered chunks of all sharded datasets.
+     */
+    void flush() throws IOException;
+
+    /**
+     * Writes the buffered chunks of a sharded dataset. Chunks are only
+     * visible to readers after their shard was written.
+     *
+     * @param pathName the dataset path that was given to {@link #writeBlock}
+     */
+    void flush(final String pathName) throws IOException;
+}
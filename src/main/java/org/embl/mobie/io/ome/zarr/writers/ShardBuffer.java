@@ -0,0 +1,133 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.ome.zarr.writers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.embl.mobie.io.ome.zarr.util.ShardIndex;
+import org.embl.mobie.io.ome.zarr.util.ZarrDatasetAttributes;
+
+/**
+ * The encoded chunks of a shard that were written but not stored yet.
+ */
+class ShardBuffer {
+
+    /**
+     * Marks a chunk that is to be removed from the shard.
+     */
+    static final byte[] DELETED = new byte[0];
+
+    /**
+     * Reads a byte range of the existing shard.
+     */
+    interface RangeReader {
+        byte[] read(final long offset, final int length) throws IOException;
+    }
+
+    /**
+     * The file path or object key of the shard.
+     */
+    final String location;
+    /**
+     * The dataset path without leading and trailing slashes.
+     */
+    final String pathName;
+    /**
+     * Where the index is stored in the shard.
+     */
+    final ShardIndex.Layout layout;
+    private final byte[][] chunks;
+    private final int numChunksInShard;
+    private int numBuffered = 0;
+
+    ShardBuffer(final String location, final String pathName, final ZarrDatasetAttributes attributes, final long[] gridPosition) {
+        final int[] chunksPerShard = attributes.getChunksPerShard();
+        this.location = location;
+        this.pathName = pathName;
+        this.layout = attributes.getShardIndexLayout();
+        this.chunks = new byte[ShardIndex.getNumChunks(chunksPerShard)][];
+        this.numChunksInShard = ShardIndex.getNumChunksInShard(
+            attributes.getDimensions(),
+            attributes.getBlockSize(),
+            chunksPerShard,
+            ShardIndex.getShardPosition(gridPosition, chunksPerShard));
+    }
+
+    /**
+     * @return whether all chunks of the shard are buffered
+     */
+    boolean put(final int chunk, final byte[] encodedChunk) {
+        if (chunks[chunk] == null)
+            ++numBuffered;
+        chunks[chunk] = encodedChunk;
+        return numBuffered == numChunksInShard;
+    }
+
+    int getNumChunks() {
+        return chunks.length;
+    }
+
+    /**
+     * Keeps the chunks of the existing shard that were not replaced.
+     */
+    void keepExisting(final ShardIndex existing, final RangeReader reader) throws IOException {
+        for (int i = 0; i < chunks.length; ++i)
+            if (chunks[i] == null && !existing.isEmpty(i))
+                chunks[i] = reader.read(existing.getOffset(i), (int) existing.getNumBytes(i));
+    }
+
+    /**
+     * @return the chunks and the shard index, or null if the shard holds no
+     * chunks
+     */
+    byte[] toByteArray() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ShardIndex index = new ShardIndex(chunks.length);
+        // offsets count from the start of the shard, also if the index comes first
+        final int chunksOffset = layout.isIndexAtStart() ? layout.getByteSize(chunks.length) : 0;
+        for (int i = 0; i < chunks.length; ++i) {
+            if (chunks[i] == null || chunks[i] == DELETED)
+                continue;
+            index.set(i, chunksOffset + out.size(), chunks[i].length);
+            out.write(chunks[i]);
+        }
+        if (out.size() == 0)
+            return null;
+        final byte[] indexBytes = index.toByteArray(layout);
+        if (layout.isIndexAtStart()) {
+            final byte[] shard = new byte[indexBytes.length + out.size()];
+            System.arraycopy(indexBytes, 0, shard, 0, indexBytes.length);
+            System.arraycopy(out.toByteArray(), 0, shard, indexBytes.length, out.size());
+            return shard;
+        }
+        out.write(indexBytes);
+        return out.toByteArray();
+    }
+}
@@ -33,10 +33,15 @@ import java.io.IOException;
 import java.util.Map;
 
 import org.embl.mobie.io.n5.util.DownsampleBlock;
+import org.embl.mobie.io.n5.util.ExportMemoryBudget;
 import org.embl.mobie.io.n5.util.ExportScalePyramid;
 import org.embl.mobie.io.n5.writers.WriteImagePlusToN5;
+import org.embl.mobie.io.ome.zarr.writers.CompressionPolicy;
+import org.embl.mobie.io.ome.zarr.writers.N5OMEZarrWriter;
 import org.janelia.saalfeldlab.n5.Compression;
 
+import com.google.gson.GsonBuilder;
+
 import bdv.export.ExportMipmapInfo;
 import bdv.export.ProgressWriter;
 import bdv.export.ProposeMipmaps;
@@ -60,6 +65,45 @@ public class WriteImagePlusToN5OmeZarr extends WriteImagePlusToN5 {
     // Also, I think viewSetupNames are ignored, as they are only relevant for xml style files. Should re-write this
     // so less redundant now that the bdv xml style is removed
 
+    private CompressionPolicy compressionPolicy = null;
+
+    /**
+     * Compress each resolution level with the compression chosen by
+     * compressionPolicy. The compression passed to export must then be null,
+     * export rejects a compression and a compressionPolicy together.
+     *
+     * @param compressionPolicy the compression of each level, or null to use
+     *                          the compression passed to export for all levels
+     */
+    public void setCompressionPolicy(CompressionPolicy compressionPolicy) {
+        this.compressionPolicy = compressionPolicy;
+    }
+
+    public CompressionPolicy getCompressionPolicy() {
+        return compressionPolicy;
+    }
+
+    private int numParallelViews = 1;
+
+    /**
+     * Export up to numParallelViews views (a channel at a timepoint) at the
+     * same time, e.g. for time series of many small images. Every view holds
+     * its own blocks in memory; with a memory budget, fewer views are
+     * exported at the same time if they do not fit, see
+     * {@link #setMemoryBudget(long)}.
+     *
+     * @param numParallelViews the maximum number of views that are exported at the same time
+     */
+    public void setNumParallelViews(int numParallelViews) {
+        if (numParallelViews < 1)
+            throw new IllegalArgumentException("numParallelViews must be at least 1: " + numParallelViews);
+        this.numParallelViews = numParallelViews;
+    }
+
+    public int getNumParallelViews() {
+        return numParallelViews;
+    }
+
     // export, generating default source transform, and default resolutions / subdivisions
     @Override
     public void export(ImagePlus imp, String zarrPath, DownsampleBlock.DownsamplingMethod downsamplingMethod, Compression compression) {
@@ -108,6 +152,15 @@ public class WriteImagePlusToN5OmeZarr extends WriteImagePlusToN5 {
         export(imp, exportParameters);
     }
 
+    @Override
+    protected void export(ImagePlus imp, Parameters params) {
+        if (compressionPolicy != null && params.compression != null)
+            throw new IllegalArgumentException("Both a compression and a compression policy were given, pass null as compression to use the policy");
+        if (compressionPolicy == null && params.compression == null)
+            throw new IllegalArgumentException("No compression given");
+        super.export(imp, params);
+    }
+
     @Override
     protected Parameters generateDefaultParameters(ImagePlus imp, String zarrPath, AffineTransform3D sourceTransform, DownsampleBlock.DownsamplingMethod downsamplingMethod, Compression compression, String[] viewSetupNames) {
         FinalVoxelDimensions voxelSize = getVoxelSize(imp);
@@ -135,8 +188,10 @@ public class WriteImagePlusToN5OmeZarr extends WriteImagePlusToN5 {
     }
 
     @Override
-    protected void writeFiles(SequenceDescriptionMinimal seq, Map<Integer, ExportMipmapInfo> perSetupExportMipmapInfo, Parameters params, ExportScalePyramid.LoopbackHeuristic loopbackHeuristic, ExportScalePyramid.AfterEachPlane afterEachPlane, int numCellCreatorThreads, ProgressWriter progressWriter, int numTimepoints, int numSetups) throws IOException {
-        WriteSequenceToN5OmeZarr.writeOmeZarrFile(seq, perSetupExportMipmapInfo, params.downsamplingMethod, params.compression, params.timeUnit, params.frameInterval, params.n5File, loopbackHeuristic, afterEachPlane, numCellCreatorThreads, new SubTaskProgressWriter(progressWriter, 0, 0.95));
+    protected void writeFiles(SequenceDescriptionMinimal seq, Map<Integer, ExportMipmapInfo> perSetupExportMipmapInfo, Parameters params, ExportScalePyramid.LoopbackHeuristic loopbackHeuristic, ExportScalePyramid.AfterEachPlane afterEachPlane, int numCellCreatorThreads, ExportMemoryBudget memoryBudget, ProgressWriter progressWriter, int numTimepoints, int numSetups) throws IOException {
+        final CompressionPolicy policy = compressionPolicy != null ? compressionPolicy : CompressionPolicy.of(params.compression);
+        final N5OMEZarrWriter zarrWriter = new N5OMEZarrWriter(params.n5File.getAbsolutePath(), new GsonBuilder(), "/");
+        WriteSequenceToN5OmeZarr.writeOmeZarrFile(seq, perSetupExportMipmapInfo, params.downsamplingMethod, policy, null, params.timeUnit, params.frameInterval, zarrWriter, params.n5File.getName().split("\\.")[0], null, loopbackHeuristic, afterEachPlane, numCellCreatorThreads, numParallelViews, memoryBudget, new SubTaskProgressWriter(progressWriter, 0, 0.95));
 
         progressWriter.setProgress(1.0);
     }
@@ -30,21 +30,36 @@ package org.embl.mobie.io.ome.zarr.writers.imageplus;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
+import org.embl.mobie.io.n5.util.ChunkManifest;
 import org.embl.mobie.io.n5.util.DownsampleBlock;
+import org.embl.mobie.io.n5.util.ExportMemoryBudget;
 import org.embl.mobie.io.n5.util.ExportScalePyramid;
+import org.embl.mobie.io.n5.util.N5DataTypeSize;
+import org.embl.mobie.io.n5.util.ResumableDatasetIO;
+import org.embl.mobie.io.n5.util.WriteBehindDatasetIO;
+import org.embl.mobie.io.ome.zarr.readers.N5S3OmeZarrReader;
 import org.embl.mobie.io.ome.zarr.util.N5OMEZarrCacheArrayLoader;
 import org.embl.mobie.io.ome.zarr.util.OmeZarrMultiscales;
 import org.embl.mobie.io.ome.zarr.util.ZarrAxes;
 import org.embl.mobie.io.ome.zarr.util.ZarrDatasetAttributes;
+import org.embl.mobie.io.ome.zarr.writers.CompressionPolicy;
 import org.embl.mobie.io.ome.zarr.writers.N5OMEZarrWriter;
+import org.embl.mobie.io.ome.zarr.writers.N5S3OMEZarrWriter;
+import org.embl.mobie.io.ome.zarr.writers.OmeZarrWriter;
 import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
 import org.janelia.saalfeldlab.n5.Compression;
 import org.janelia.saalfeldlab.n5.DataBlock;
@@ -56,13 +71,13 @@ import org.janelia.saalfeldlab.n5.IntArrayDataBlock;
 import org.janelia.saalfeldlab.n5.LongArrayDataBlock;
 import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.zarr.ZarrCompressor;
 
 import com.google.gson.GsonBuilder;
 
 import bdv.export.ExportMipmapInfo;
 import bdv.export.ProgressWriter;
 import bdv.export.ProgressWriterNull;
-import bdv.export.SubTaskProgressWriter;
 import bdv.img.cache.SimpleCacheArrayLoader;
 import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
 import mpicbg.spim.data.generic.sequence.BasicImgLoader;
@@ -77,6 +92,7 @@ import net.imglib2.img.cell.CellGrid;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.util.Cast;
+import net.imglib2.util.Intervals;
 
 import static net.imglib2.cache.img.ReadOnlyCachedCellImgOptions.options;
 import static org.embl.mobie.io.ome.zarr.util.OmeZarrMultiscales.MULTI_SCALE_KEY;
@@ -124,6 +140,172 @@ public class WriteSequenceToN5OmeZarr {
         final ExportScalePyramid.AfterEachPlane afterEachPlane,
         final int numCellCreatorThreads,
         ProgressWriter progressWriter) throws IOException {
+        final OmeZarrWriter zarrWriter = new N5OMEZarrWriter(zarrFile.getAbsolutePath(), new GsonBuilder(), "/");
+        writeOmeZarrFile(seq, perSetupMipmapInfo, downsamplingMethod, compression, null, timeUnit, frameInterval,
+            zarrWriter, zarrFile.getName().split("\\.")[0], loopbackHeuristic, afterEachPlane, numCellCreatorThreads, progressWriter);
+    }
+
+    /**
+     * Same as above, but writes into the container of zarrWriter, e.g. a
+     * {@link N5S3OMEZarrWriter} to write directly into an S3 bucket, and
+     * optionally packs the chunks of every resolution level into shards of
+     * chunksPerShard chunks, which reduces the number of files. Sharded
+     * levels are zarr v3 arrays, which zarrWriter must allow with
+     * {@link OmeZarrWriter#setExperimentalSharding}.
+     *
+     * @param chunksPerShard number of chunks per shard in x, y and z, or null
+     *                       to store every chunk on its own
+     * @param zarrWriter     writer of the container, with "/" as dimension separator
+     * @param name           name of the image in the multiscales metadata
+     */
+    public static void writeOmeZarrFile(
+        final AbstractSequenceDescription<?, ?, ?> seq,
+        final Map<Integer, ExportMipmapInfo> perSetupMipmapInfo,
+        final DownsampleBlock.DownsamplingMethod downsamplingMethod,
+        final Compression compression,
+        final int[] chunksPerShard,
+        final String timeUnit,
+        final double frameInterval,
+        final OmeZarrWriter zarrWriter,
+        final String name,
+        final ExportScalePyramid.LoopbackHeuristic loopbackHeuristic,
+        final ExportScalePyramid.AfterEachPlane afterEachPlane,
+        final int numCellCreatorThreads,
+        final ProgressWriter progressWriter) throws IOException {
+        writeOmeZarrFile(seq, perSetupMipmapInfo, downsamplingMethod, compression, chunksPerShard, timeUnit, frameInterval,
+            zarrWriter, name, null, loopbackHeuristic, afterEachPlane, numCellCreatorThreads, progressWriter);
+    }
+
+    /**
+     * Same as above, but records the written chunks in manifest and skips
+     * the chunks that it already has. So an export that was interrupted can
+     * be resumed by calling this again with the same arguments and manifest,
+     * e.g. {@link ChunkManifest#forContainer ChunkManifest.forContainer(zarrFile)}.
+     * <p>
+     * To update an export after part of the image changed, first
+     * {@link ChunkManifest#invalidate invalidate} the changed region in the
+     * manifest; only the chunks computed from it are then written.
+     *
+     * @param manifest the chunks that were already written, or null to write all chunks
+     */
+    public static void writeOmeZarrFile(
+        final AbstractSequenceDescription<?, ?, ?> seq,
+        final Map<Integer, ExportMipmapInfo> perSetupMipmapInfo,
+        final DownsampleBlock.DownsamplingMethod downsamplingMethod,
+        final Compression compression,
+        final int[] chunksPerShard,
+        final String timeUnit,
+        final double frameInterval,
+        final OmeZarrWriter zarrWriter,
+        final String name,
+        final ChunkManifest manifest,
+        final ExportScalePyramid.LoopbackHeuristic loopbackHeuristic,
+        final ExportScalePyramid.AfterEachPlane afterEachPlane,
+        final int numCellCreatorThreads,
+        final ProgressWriter progressWriter) throws IOException {
+        writeOmeZarrFile(seq, perSetupMipmapInfo, downsamplingMethod, compression, chunksPerShard, timeUnit, frameInterval,
+            zarrWriter, name, manifest, loopbackHeuristic, afterEachPlane, numCellCreatorThreads, 1, progressWriter);
+    }
+
+    /**
+     * Same as above, but exports up to numParallelViews views (a setup at a
+     * timepoint) at the same time. The cells of all views are computed by the
+     * same numCellCreatorThreads threads, so these keep busy while a view
+     * waits for the end of a plane of cells or for its levels to be flushed,
+     * e.g. for time series of many small images. The levels of a view are
+     * still written one after the other, as a level may be computed from the
+     * previous one.
+     * <p>
+     * Every view that is exported in parallel holds its own blocks and
+     * caches in memory, and afterEachPlane may be called concurrently from
+     * the threads of different views.
+     *
+     * @param numParallelViews the maximum number of views that are exported at the same time
+     */
+    public static void writeOmeZarrFile(
+        final AbstractSequenceDescription<?, ?, ?> seq,
+        final Map<Integer, ExportMipmapInfo> perSetupMipmapInfo,
+        final DownsampleBlock.DownsamplingMethod downsamplingMethod,
+        final Compression compression,
+        final int[] chunksPerShard,
+        final String timeUnit,
+        final double frameInterval,
+        final OmeZarrWriter zarrWriter,
+        final String name,
+        final ChunkManifest manifest,
+        final ExportScalePyramid.LoopbackHeuristic loopbackHeuristic,
+        final ExportScalePyramid.AfterEachPlane afterEachPlane,
+        final int numCellCreatorThreads,
+        final int numParallelViews,
+        final ProgressWriter progressWriter) throws IOException {
+        writeOmeZarrFile(seq, perSetupMipmapInfo, downsamplingMethod, CompressionPolicy.of(compression), chunksPerShard, timeUnit, frameInterval,
+            zarrWriter, name, manifest, loopbackHeuristic, afterEachPlane, numCellCreatorThreads, numParallelViews, progressWriter);
+    }
+
+    /**
+     * Same as above, but compresses each resolution level with the
+     * compression chosen by compressionPolicy, e.g. a fast codec for the
+     * full resolution and a stronger one for the coarse levels.
+     *
+     * @param compressionPolicy the compression of each level
+     */
+    public static void writeOmeZarrFile(
+        final AbstractSequenceDescription<?, ?, ?> seq,
+        final Map<Integer, ExportMipmapInfo> perSetupMipmapInfo,
+        final DownsampleBlock.DownsamplingMethod downsamplingMethod,
+        final CompressionPolicy compressionPolicy,
+        final int[] chunksPerShard,
+        final String timeUnit,
+        final double frameInterval,
+        final OmeZarrWriter zarrWriter,
+        final String name,
+        final ChunkManifest manifest,
+        final ExportScalePyramid.LoopbackHeuristic loopbackHeuristic,
+        final ExportScalePyramid.AfterEachPlane afterEachPlane,
+        final int numCellCreatorThreads,
+        final int numParallelViews,
+        final ProgressWriter progressWriter) throws IOException {
+        writeOmeZarrFile(seq, perSetupMipmapInfo, downsamplingMethod, compressionPolicy, chunksPerShard, timeUnit, frameInterval,
+            zarrWriter, name, manifest, loopbackHeuristic, afterEachPlane, numCellCreatorThreads, numParallelViews, null, progressWriter);
+    }
+
+    /**
+     * Same as above, but writes fewer than numParallelViews views at the
+     * same time if their blocks would not fit into memoryBudget.
+     *
+     * @param memoryBudget the heap the export may use, or null to write
+     *                     numParallelViews views regardless of their size
+     * @throws IllegalArgumentException if not even a single view fits into
+     *                                  memoryBudget
+     */
+    public static void writeOmeZarrFile(
+        final AbstractSequenceDescription<?, ?, ?> seq,
+        final Map<Integer, ExportMipmapInfo> perSetupMipmapInfo,
+        final DownsampleBlock.DownsamplingMethod downsamplingMethod,
+        final CompressionPolicy compressionPolicy,
+        final int[] chunksPerShard,
+        final String timeUnit,
+        final double frameInterval,
+        final OmeZarrWriter zarrWriter,
+        final String name,
+        final ChunkManifest manifest,
+        final ExportScalePyramid.LoopbackHeuristic loopbackHeuristic,
+        final ExportScalePyramid.AfterEachPlane afterEachPlane,
+        final int numCellCreatorThreads,
+        final int numParallelViews,
+        final ExportMemoryBudget memoryBudget,
+        ProgressWriter progressWriter) throws IOException {
+        if (numParallelViews < 1)
+            throw new IllegalArgumentException("numParallelViews must be positive: " + numParallelViews);
+        if (chunksPerShard != null && !zarrWriter.isExperimentalSharding())
+            throw new IllegalArgumentException("chunksPerShard requires a zarrWriter with experimental sharding, see OmeZarrWriter#setExperimentalSharding");
+        for (final ExportMipmapInfo mipmapInfo : perSetupMipmapInfo.values()) {
+            for (int level = 0; level < mipmapInfo.getNumLevels(); ++level) {
+                final Compression compression = compressionPolicy.getCompression(level);
+                if (compression != null && !CompressionPolicy.isSupported(compression))
+                    throw new IllegalArgumentException("Unsupported compression for OME-Zarr at level " + level + ": " + compression.getType());
+            }
+        }
         if (progressWriter == null)
             progressWriter = new ProgressWriterNull();
         progressWriter.setProgress(0);
@@ -145,8 +327,6 @@ public class WriteSequenceToN5OmeZarr {
             .map(BasicViewSetup::getId)
             .collect(Collectors.toList());
 
-        N5OMEZarrWriter zarrWriter = new N5OMEZarrWriter(zarrFile.getAbsolutePath(), new GsonBuilder(), "/");
-
         ZarrAxes axes;
         if (timepointIds.size() > 1 && setupIds.size() > 1) {
             axes = ZarrAxes.TCZYX;
@@ -162,60 +342,90 @@ public class WriteSequenceToN5OmeZarr {
         // Currently we write v0.4 ome-zarr
         // Assumes persetupmipmapinfo is the same for every setup, and unit same for every setup
         OmeZarrMultiscales[] multiscales = new OmeZarrMultiscales[1];
-        multiscales[0] = new OmeZarrMultiscales(axes, zarrFile.getName().split("\\.")[0], downsamplingMethod.name(), "0.4", seq.getViewSetupsOrdered().get(0).getVoxelSize(), perSetupMipmapInfo.get(0).getResolutions(), timeUnit, frameInterval);
+        multiscales[0] = new OmeZarrMultiscales(axes, name, downsamplingMethod.name(), "0.4", seq.getViewSetupsOrdered().get(0).getVoxelSize(), perSetupMipmapInfo.get(0).getResolutions(), timeUnit, frameInterval);
 
         zarrWriter.createGroup("");
         zarrWriter.setAttribute("", MULTI_SCALE_KEY, multiscales);
 
-        // calculate number of tasks for progressWriter
-        int numTasks = 0; // first task is for writing mipmap descriptions etc...
-        for (final int timepointIdSequence : timepointIds)
-            for (final int setupIdSequence : setupIds)
-                if (seq.getViewDescriptions().get(new ViewId(timepointIdSequence, setupIdSequence)).isPresent())
-                    numTasks++;
-        int numCompletedTasks = 0;
-
+        // the views to write, timepoint by timepoint, and the number of setups that are present in each timepoint
+        final List<ViewId> views = new ArrayList<>();
+        final Map<Integer, Integer> numSetupsTimepoint = new HashMap<>();
+        for (final int timepointId : timepointIds)
+            for (final int setupId : setupIds)
+                if (seq.getViewDescriptions().get(new ViewId(timepointId, setupId)).isPresent()) {
+                    views.add(new ViewId(timepointId, setupId));
+                    numSetupsTimepoint.merge(timepointId, 1, Integer::sum);
+                }
+        final int numTimepoints = timepointIds.size();
+
+        final ViewProgress viewProgress = new ViewProgress(progressWriter, views.size());
+        int numViewThreads = Math.min(numParallelViews, Math.max(views.size(), 1));
+        if (memoryBudget != null) {
+            long viewWorkingSet = 0;
+            for (final BasicViewSetup setup : seq.getViewSetupsOrdered()) {
+                final BasicSetupImgLoader<?> setupImgLoader = imgLoader.getSetupImgLoader(setup.getId());
+                final long[] dimensions = setup.hasSize() ?
+                    Intervals.dimensionsAsLongArray(setup.getSize()) :
+                    Intervals.dimensionsAsLongArray(setupImgLoader.getImage(timepointIds.get(0)));
+                final int bytesPerPixel = N5DataTypeSize.getNumBytesPerElement(N5Utils.dataType(Cast.unchecked(setupImgLoader.getImageType())));
+                viewWorkingSet = Math.max(viewWorkingSet,
+                    ExportMemoryBudget.getMinViewWorkingSetInBytes(dimensions, perSetupMipmapInfo.get(setup.getId()), bytesPerPixel));
+            }
+            final int numFittingViews = memoryBudget.getNumParallelViews(viewWorkingSet, numViewThreads);
+            if (numFittingViews < numViewThreads)
+                progressWriter.out().println("writing " + numFittingViews + " instead of " + numViewThreads
+                    + " views in parallel to stay within the memory budget of " + ExportMemoryBudget.toMegaBytes(memoryBudget.getBudgetInBytes()));
+            numViewThreads = numFittingViews;
+        }
+        // with several views in parallel, each gets a share of the encoder threads of its write-behind io
+        final int numEncoderThreads = Math.max(numCellCreatorThreads / numViewThreads, 1);
         final ExecutorService executorService = Executors.newFixedThreadPool(numCellCreatorThreads);
+        final ExecutorService viewExecutorService = Executors.newFixedThreadPool(numViewThreads);
         try {
-            // write image data for all views
-            final int numTimepoints = timepointIds.size();
-            int timepointIndex = 0;
-            for (final int timepointId : timepointIds) {
-                progressWriter.out().printf("proccessing timepoint %d / %d\n", ++timepointIndex, numTimepoints);
-
-                // assemble the viewsetups that are present in this timepoint
-                final ArrayList<Integer> setupsTimePoint = new ArrayList<>();
-                for (final int setupId : setupIds)
-                    if (seq.getViewDescriptions().get(new ViewId(timepointId, setupId)).isPresent())
-                        setupsTimePoint.add(setupId);
-
-                final int numSetups = setupsTimePoint.size();
-                int setupIndex = 0;
-                for (final int setupId : setupsTimePoint) {
-                    progressWriter.out().printf("proccessing setup %d / %d\n", ++setupIndex, numSetups);
-
-                    final ExportMipmapInfo mipmapInfo = perSetupMipmapInfo.get(setupId);
-                    final double startCompletionRatio = (double) numCompletedTasks++ / numTasks;
-                    final double endCompletionRatio = (double) numCompletedTasks / numTasks;
-                    final ProgressWriter subProgressWriter = new SubTaskProgressWriter(progressWriter, startCompletionRatio, endCompletionRatio);
+            final List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < views.size(); ++i) {
+                final int viewIndex = i;
+                final ViewId view = views.get(i);
+                futures.add(viewExecutorService.submit(() -> {
+                    final int timepointId = view.getTimePointId();
+                    final int setupId = view.getViewSetupId();
+                    final int numSetups = numSetupsTimepoint.get(timepointId);
+                    viewProgress.out().printf("proccessing timepoint %d / %d, setup %d / %d\n",
+                        timepointIds.indexOf(timepointId) + 1, numTimepoints, setupIds.indexOf(setupId) + 1, setupIds.size());
                     writeScalePyramid(
-                        zarrWriter, compression, downsamplingMethod,
-                        imgLoader, setupId, timepointId, numSetups, numTimepoints, axes,
-                        mipmapInfo,
-                        executorService, numCellCreatorThreads,
-                        loopbackHeuristic, afterEachPlane, subProgressWriter);
-                }
+                        zarrWriter, compressionPolicy, chunksPerShard, downsamplingMethod,
+                        imgLoader, setupId, timepointId, numSetups, numTimepoints, axes, manifest,
+                        perSetupMipmapInfo.get(setupId),
+                        executorService, numCellCreatorThreads, numEncoderThreads,
+                        loopbackHeuristic, afterEachPlane, viewProgress.forView(viewIndex));
+                    return null;
+                }));
             }
+            for (final Future<Void> future : futures)
+                future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while exporting views");
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
         } finally {
+            viewExecutorService.shutdownNow();
             executorService.shutdown();
         }
 
+        // lets readers open the container from a single file
+        if (zarrWriter instanceof N5OMEZarrWriter)
+            ((N5OMEZarrWriter) zarrWriter).writeConsolidatedMetadata();
+
         progressWriter.setProgress(1.0);
     }
 
     static <T extends RealType<T> & NativeType<T>> void writeScalePyramid(
-        final N5OMEZarrWriter zarrWriter,
-        final Compression compression,
+        final OmeZarrWriter zarrWriter,
+        final CompressionPolicy compressionPolicy,
+        final int[] chunksPerShard,
         final DownsampleBlock.DownsamplingMethod downsamplingMethod,
         final BasicImgLoader imgLoader,
         final int setupId,
@@ -223,21 +433,86 @@ public class WriteSequenceToN5OmeZarr {
         final int totalNSetups,
         final int totalNTimepoints,
         final ZarrAxes axes,
+        final ChunkManifest manifest,
         final ExportMipmapInfo mipmapInfo,
         final ExecutorService executorService,
         final int numThreads,
+        final int numEncoderThreads,
         final ExportScalePyramid.LoopbackHeuristic loopbackHeuristic,
         final ExportScalePyramid.AfterEachPlane afterEachPlane,
         ProgressWriter progressWriter) throws IOException {
         final BasicSetupImgLoader<T> setupImgLoader = Cast.unchecked(imgLoader.getSetupImgLoader(setupId));
         final RandomAccessibleInterval<T> img = setupImgLoader.getImage(timepointId);
         final T type = setupImgLoader.getImageType();
-        final OmeZarrDatasetIO<T> io = new OmeZarrDatasetIO<>(zarrWriter, compression, setupId, timepointId, type,
+        final ExportScalePyramid.DatasetIO<OmeZarrDataset, T> zarrIo = new OmeZarrDatasetIO<>(zarrWriter, compressionPolicy, chunksPerShard, setupId, timepointId, type,
             totalNSetups, totalNTimepoints, axes);
-        ExportScalePyramid.writeScalePyramid(
-            img, type, mipmapInfo, downsamplingMethod, io,
-            executorService, numThreads,
-            loopbackHeuristic, afterEachPlane, progressWriter);
+        final ExportScalePyramid.DatasetIO<OmeZarrDataset, T> io = manifest == null ? zarrIo :
+            ResumableDatasetIO.wrap(zarrIo, manifest, setupId, timepointId, chunksPerShard,
+                level -> levelSettings(compressionPolicy.getCompression(level), downsamplingMethod, chunksPerShard));
+        // every write is a request with a high latency on S3, so use as many writer threads as requests may be in flight
+        final int numWriterThreads = zarrWriter instanceof N5S3OmeZarrReader ?
+            ((N5S3OmeZarrReader) zarrWriter).getMaxInFlightRequests() : WriteBehindDatasetIO.DEFAULT_NUM_WRITER_THREADS;
+        try (final WriteBehindDatasetIO<OmeZarrDataset, T> writeBehindIo = new WriteBehindDatasetIO<>(io, numEncoderThreads, numWriterThreads)) {
+            ExportScalePyramid.writeScalePyramid(
+                img, type, mipmapInfo, downsamplingMethod, writeBehindIo,
+                executorService, numThreads,
+                loopbackHeuristic, afterEachPlane, progressWriter);
+        }
+    }
+
+    /**
+     * @return the settings that the chunks of a level depend on besides
+     * their size, to tell in the {@link ChunkManifest} whether chunks of an
+     * earlier export can be kept
+     */
+    static String levelSettings(final Compression compression, final DownsampleBlock.DownsamplingMethod downsamplingMethod, final int[] chunksPerShard) {
+        return compression.getClass().getSimpleName() + new GsonBuilder().create().toJson(ZarrCompressor.fromCompression(compression))
+            + " " + downsamplingMethod
+            + " " + Arrays.toString(chunksPerShard);
+    }
+
+    /**
+     * Combines the progress of views that are written in parallel.
+     */
+    private static class ViewProgress {
+        private final ProgressWriter progressWriter;
+        private final double[] progress;
+
+        ViewProgress(final ProgressWriter progressWriter, final int numViews) {
+            this.progressWriter = progressWriter;
+            this.progress = new double[numViews];
+        }
+
+        PrintStream out() {
+            return progressWriter.out();
+        }
+
+        ProgressWriter forView(final int viewIndex) {
+            return new ProgressWriter() {
+                @Override
+                public PrintStream out() {
+                    return progressWriter.out();
+                }
+
+                @Override
+                public PrintStream err() {
+                    return progressWriter.err();
+                }
+
+                @Override
+                public void setProgress(final double completionRatio) {
+                    setViewProgress(viewIndex, completionRatio);
+                }
+            };
+        }
+
+        private synchronized void setViewProgress(final int viewIndex, final double completionRatio) {
+            progress[viewIndex] = completionRatio;
+            double sum = 0;
+            for (final double p : progress)
+                sum += p;
+            progressWriter.setProgress(sum / progress.length);
+        }
     }
 
     static class OmeZarrDataset {
@@ -250,9 +525,10 @@ public class WriteSequenceToN5OmeZarr {
         }
     }
 
-    static class OmeZarrDatasetIO<T extends RealType<T> & NativeType<T>> implements ExportScalePyramid.DatasetIO<OmeZarrDataset, T> {
-        private final N5OMEZarrWriter zarrWriter;
-        private final Compression compression;
+    static class OmeZarrDatasetIO<T extends RealType<T> & NativeType<T>> implements ExportScalePyramid.EncodingDatasetIO<OmeZarrDataset, T> {
+        private final OmeZarrWriter zarrWriter;
+        private final CompressionPolicy compressionPolicy;
+        private final int[] chunksPerShard;
         private final int setupId;
         private final int timepointId;
         private final DataType dataType;
@@ -262,11 +538,12 @@ public class WriteSequenceToN5OmeZarr {
         private final int totalNTimepoints;
         private final ZarrAxes axes;
 
-        public OmeZarrDatasetIO(final N5OMEZarrWriter zarrWriter, final Compression compression, final int setupId,
-                                final int timepointId, final T type,
+        public OmeZarrDatasetIO(final OmeZarrWriter zarrWriter, final CompressionPolicy compressionPolicy, final int[] chunksPerShard,
+                                final int setupId, final int timepointId, final T type,
                                 final int totalNSetups, final int totalNTimepoints, ZarrAxes axes) {
             this.zarrWriter = zarrWriter;
-            this.compression = compression;
+            this.compressionPolicy = compressionPolicy;
+            this.chunksPerShard = chunksPerShard;
             this.setupId = setupId;
             this.timepointId = timepointId;
             this.dataType = N5Utils.dataType(type);
@@ -323,6 +600,19 @@ public class WriteSequenceToN5OmeZarr {
             }
         }
 
+        /**
+         * @return the time point and channel of this view as the leading grid
+         * coordinates of a chunk key, in the order of {@link #getPathName}
+         */
+        private String getTimeAndChannelKey(final String separator) {
+            final StringBuilder key = new StringBuilder();
+            if (totalNTimepoints > 1)
+                key.append(timepointId).append(separator);
+            if (totalNSetups > 1)
+                key.append(setupId).append(separator);
+            return key.toString();
+        }
+
         private int[] addSingletonDimensionsToChunks(int[] zyxChunks) {
             // add any required dimensions for time or channels (we enforce a chunk size of 1 for these axes)
             int[] chunks;
@@ -395,24 +685,51 @@ public class WriteSequenceToN5OmeZarr {
 
         @Override
         public OmeZarrDataset createDataset(final int level, final long[] zyxDimensions, final int[] zyxBlockSize) throws IOException {
-            // create dataset directory + metadata
-            final String pathName = "s" + level;
-            zarrWriter.createDataset(pathName, addSetupAndTimeToShape(zyxDimensions),
-                addSingletonDimensionsToChunks(zyxBlockSize), dataType, compression);
-
-            // TODO - ideally this would go inside zarrWriter.createDataset(), but it's a bit complicated to get it there
-            zarrWriter.setAttribute(pathName, ARRAY_DIMENSIONS_KEY, axes);
-
-            // here we have to get the zarr attributes that were written, and re-set the shape/chunks to just zyx, as
-            // all the chunking etc operates only in 3D
-            final ZarrDatasetAttributes zarrDatasetAttributes = (ZarrDatasetAttributes) zarrWriter.getDatasetAttributes(pathName);
-            final DatasetAttributes datasetAttributes = new ZarrDatasetAttributes(zyxDimensions, zyxBlockSize,
-                zarrDatasetAttributes.getDType(), compression,
-                zarrDatasetAttributes.isRowMajor(),
-                zarrDatasetAttributes.getFillValue());
-
-            // we provide the full path, including any time or channels to actually write blocks
-            return new OmeZarrDataset(getPathName(level), datasetAttributes);
+            // views that are written in parallel create the same datasets, and read back their attributes
+            synchronized (zarrWriter) {
+                // create dataset directory + metadata
+                final String pathName = "s" + level;
+                final Compression compression = compressionPolicy.getCompression(level);
+                final int[] chunks = addSingletonDimensionsToChunks(zyxBlockSize);
+                int[] zyxShardSize = null;
+                if (chunksPerShard == null) {
+                    zarrWriter.createDataset(pathName, addSetupAndTimeToShape(zyxDimensions), chunks, dataType, compression);
+                } else {
+                    // shards hold a single time point and channel, like the chunks
+                    final int[] shardSize = chunks.clone();
+                    zyxShardSize = new int[3];
+                    for (int d = 0; d < 3; d++) {
+                        shardSize[d] *= chunksPerShard[d];
+                        zyxShardSize[d] = shardSize[d];
+                    }
+                    zarrWriter.createDataset(pathName,
+                        new DatasetAttributes(addSetupAndTimeToShape(zyxDimensions), chunks, dataType, compression), shardSize);
+                }
+
+                // TODO - ideally this would go inside zarrWriter.createDataset(), but it's a bit complicated to get it there
+                zarrWriter.setAttribute(pathName, ARRAY_DIMENSIONS_KEY, axes);
+
+                // here we have to get the zarr attributes that were written, and re-set the shape/chunks to just zyx, as
+                // all the chunking etc operates only in 3D
+                final ZarrDatasetAttributes zarrDatasetAttributes = (ZarrDatasetAttributes) zarrWriter.getDatasetAttributes(pathName);
+                // the sharded datasets are zarr v3 arrays, whose chunk keys hold all grid coordinates after
+                // their prefix, e.g. "s0/c/<t>/<c>/<z>/<y>/<x>": the time point and channel go into the prefix
+                final String chunkKeyPrefix = zarrDatasetAttributes.getChunkKeyPrefix();
+                final boolean isZarrV3 = !chunkKeyPrefix.isEmpty();
+                final String zyxChunkKeyPrefix = isZarrV3 ?
+                    chunkKeyPrefix + getTimeAndChannelKey(zarrDatasetAttributes.getDimensionSeparator()) : "";
+                final DatasetAttributes datasetAttributes = new ZarrDatasetAttributes(zyxDimensions, zyxBlockSize,
+                    zarrDatasetAttributes.getDType(), compression,
+                    zarrDatasetAttributes.isRowMajor(),
+                    zarrDatasetAttributes.getFillValue(),
+                    zarrDatasetAttributes.getDimensionSeparator(),
+                    zyxShardSize,
+                    zyxChunkKeyPrefix,
+                    zarrDatasetAttributes.getShardIndexLayout());
+
+                // we provide the full path, including any time or channels to actually write blocks
+                return new OmeZarrDataset(isZarrV3 ? pathName : getPathName(level), datasetAttributes);
+            }
         }
 
         @Override
@@ -421,7 +738,20 @@ public class WriteSequenceToN5OmeZarr {
         }
 
         @Override
-        public void flush(final OmeZarrDataset dataset) {
+        public ExportScalePyramid.EncodedBlock encodeBlock(final OmeZarrDataset dataset, final ExportScalePyramid.Block<T> dataBlock) throws IOException {
+            final DataBlock<?> block = getDataBlock.apply(dataBlock);
+            return new ExportScalePyramid.EncodedBlock(block.getGridPosition(),
+                N5OMEZarrWriter.encodeBlock((ZarrDatasetAttributes) dataset.attributes, block));
+        }
+
+        @Override
+        public void writeEncodedBlock(final OmeZarrDataset dataset, final ExportScalePyramid.EncodedBlock encodedBlock) throws IOException {
+            zarrWriter.writeEncodedBlock(dataset.pathName, dataset.attributes, encodedBlock.getGridPosition(), encodedBlock.getBytes());
+        }
+
+        @Override
+        public void flush(final OmeZarrDataset dataset) throws IOException {
+            zarrWriter.flush(dataset.pathName);
         }
 
         @Override
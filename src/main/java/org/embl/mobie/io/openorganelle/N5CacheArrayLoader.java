@@ -30,6 +30,9 @@ package org.embl.mobie.io.openorganelle;
 
 import java.util.Arrays;
 
+import org.embl.mobie.io.metrics.LevelMetrics;
+import org.embl.mobie.io.n5.util.N5DataTypeSize;
+import org.embl.mobie.io.util.RawBlockReader;
 import org.janelia.saalfeldlab.n5.DataBlock;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.N5Reader;
@@ -44,11 +47,13 @@ public class N5CacheArrayLoader<A> implements SimpleCacheArrayLoader<A> {
     private final String pathName;
     private final DatasetAttributes attributes;
     private final OrganelleArrayCreator<A, ?> arrayCreator;
+    private final LevelMetrics metrics;
 
-    N5CacheArrayLoader(final N5Reader n5, final String pathName, final DatasetAttributes attributes, CellGrid grid) {
+    N5CacheArrayLoader(final N5Reader n5, final String pathName, final DatasetAttributes attributes, CellGrid grid, final LevelMetrics metrics) {
         this.n5 = n5;
         this.pathName = pathName;
         this.attributes = attributes;
+        this.metrics = metrics;
         this.arrayCreator = new OrganelleArrayCreator<>(grid, attributes.getDataType());
     }
 
@@ -56,16 +61,26 @@ public class N5CacheArrayLoader<A> implements SimpleCacheArrayLoader<A> {
     public A loadArray(final long[] gridPosition, int[] cellDimensions) {
         DataBlock<?> block = null;
 
+        final long start = metrics.readStarted();
         try {
-            block = n5.readBlock(pathName, attributes, gridPosition);
+            block = RawBlockReader.readBlock(n5, pathName, attributes, metrics, gridPosition);
+            if (block == null)
+                metrics.readMissing(start);
+            else
+                metrics.readFinished(start, (long) block.getNumElements() * N5DataTypeSize.getNumBytesPerElement(attributes.getDataType()));
         } catch (Exception e) {
+            metrics.readFailed(start, e);
             log.error("Error loading " + pathName + " at block " + Arrays.toString(gridPosition) + ": " + e);
         }
 
+        final long arrayStart = metrics.arrayStarted();
+        final A array;
         if (block == null) {
-            return (A) arrayCreator.createEmptyArray(gridPosition);
+            array = (A) arrayCreator.createEmptyArray(gridPosition);
         } else {
-            return arrayCreator.createArray(block, gridPosition);
+            array = arrayCreator.createArray(block, gridPosition);
         }
+        metrics.arrayFinished(arrayStart);
+        return array;
     }
 }
@@ -36,6 +36,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 
+import org.embl.mobie.io.metrics.LevelMetrics;
+import org.embl.mobie.io.metrics.LoaderMetrics;
+import org.embl.mobie.io.util.SharedFetchQueue;
+import org.embl.mobie.io.util.SharedQueueCellCache;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.jetbrains.annotations.NotNull;
@@ -44,7 +48,6 @@ import bdv.AbstractViewerSetupImgLoader;
 import bdv.ViewerImgLoader;
 import bdv.cache.CacheControl;
 import bdv.img.cache.SimpleCacheArrayLoader;
-import bdv.img.cache.VolatileGlobalCellCache;
 import bdv.util.ConstantRandomAccessible;
 import bdv.util.MipmapTransforms;
 import lombok.extern.slf4j.Slf4j;
@@ -119,7 +122,7 @@ public class OpenOrganelleN5ImageLoader implements ViewerImgLoader, MultiResolut
     protected ViewRegistrations viewRegistrations;
     private volatile boolean isOpen = false;
     private FetcherThreads fetchers;
-    private VolatileGlobalCellCache cache;
+    private SharedQueueCellCache cache;
     private int sequenceTimepoints = 0;
 
     /**
@@ -132,9 +135,9 @@ public class OpenOrganelleN5ImageLoader implements ViewerImgLoader, MultiResolut
         fetchSequenceDescriptionAndViewRegistrations();
     }
 
-    private static SimpleCacheArrayLoader<?> createCacheArrayLoader(final N5Reader n5, final String pathName, CellGrid grid) throws IOException {
+    private static SimpleCacheArrayLoader<?> createCacheArrayLoader(final N5Reader n5, final String pathName, CellGrid grid, final LevelMetrics metrics) throws IOException {
         final DatasetAttributes attributes = n5.getDatasetAttributes(pathName);
-        return new N5CacheArrayLoader<>(n5, pathName, attributes, grid);
+        return new N5CacheArrayLoader<>(n5, pathName, attributes, grid, metrics);
     }
 
     private void fetchSequenceDescriptionAndViewRegistrations() {
@@ -281,10 +284,13 @@ public class OpenOrganelleN5ImageLoader implements ViewerImgLoader, MultiResolut
                         }
                     }
 
-                    final int numFetcherThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
-                    final BlockingFetchQueues<Callable<?>> queue = new BlockingFetchQueues<>(maxNumLevels, numFetcherThreads);
-                    fetchers = new FetcherThreads(queue, numFetcherThreads);
-                    cache = new VolatileGlobalCellCache(queue);
+                    BlockingFetchQueues<Callable<?>> queue = SharedFetchQueue.get(maxNumLevels);
+                    if (queue == null) {
+                        final int numFetcherThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+                        queue = new BlockingFetchQueues<>(maxNumLevels, numFetcherThreads);
+                        fetchers = new FetcherThreads(queue, numFetcherThreads);
+                    }
+                    cache = new SharedQueueCellCache(queue);
                 } catch (IOException e) {
                     throw new RuntimeException(e);
                 }
@@ -358,8 +364,14 @@ public class OpenOrganelleN5ImageLoader implements ViewerImgLoader, MultiResolut
             synchronized (this) {
                 if (!isOpen)
                     return;
-                fetchers.shutdown();
-                cache.clearCache();
+                if (fetchers != null) {
+                    fetchers.shutdown();
+                    cache.clearCache();
+                } else {
+                    // the queue may be shared with other loaders, whose requests must stay in it
+                    cache.invalidateAll();
+                }
+                LoaderMetrics.getInstance().release(this);
                 isOpen = false;
             }
         }
@@ -512,7 +524,7 @@ public class OpenOrganelleN5ImageLoader implements ViewerImgLoader, MultiResolut
                 final int priority = numMipmapLevels() - 1 - level;
                 final CacheHints cacheHints = new CacheHints(loadingStrategy, priority, false);
 
-                final SimpleCacheArrayLoader<?> loader = createCacheArrayLoader(n5, pathName, grid);
+                final SimpleCacheArrayLoader<?> loader = createCacheArrayLoader(n5, pathName, grid, LoaderMetrics.getInstance().forLevel(OpenOrganelleN5ImageLoader.this, LoaderMetrics.describe(n5), setupId, level));
                 return cache.createImg(grid, timepointId, setupId, level, cacheHints, loader, type);
             } catch (IOException e) {
                 log.error(String.format("image data for timepoint %d setup %d level %d could not be found.%n",
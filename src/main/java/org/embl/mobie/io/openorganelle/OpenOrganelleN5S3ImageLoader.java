@@ -31,13 +31,11 @@ package org.embl.mobie.io.openorganelle;
 import java.io.IOException;
 
 import org.embl.mobie.io.n5.loaders.S3ImageLoader;
+import org.embl.mobie.io.n5.readers.N5AmazonS3CachingReader;
+import org.embl.mobie.io.util.S3Utils;
 import org.janelia.saalfeldlab.n5.s3.N5AmazonS3Reader;
 
-import com.amazonaws.auth.AWSStaticCredentialsProvider;
-import com.amazonaws.auth.AnonymousAWSCredentials;
-import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 
 public class OpenOrganelleN5S3ImageLoader extends OpenOrganelleN5ImageLoader implements S3ImageLoader {
     private final String serviceEndpoint;
@@ -72,16 +70,9 @@ public class OpenOrganelleN5S3ImageLoader extends OpenOrganelleN5ImageLoader imp
 
     static class N5S3ReaderCreator {
         public N5AmazonS3Reader create(String serviceEndpoint, String signingRegion, String bucketName, String key) throws IOException {
-            final AwsClientBuilder.EndpointConfiguration endpoint = new AwsClientBuilder.EndpointConfiguration(serviceEndpoint, signingRegion);
-
-            final AmazonS3 s3 = AmazonS3ClientBuilder
-                .standard()
-                .withPathStyleAccessEnabled(true)
-                .withEndpointConfiguration(endpoint)
-                .withCredentials(new AWSStaticCredentialsProvider(new AnonymousAWSCredentials()))
-                .build();
-
-            return new N5AmazonS3Reader(s3, bucketName, key);
+            // OpenOrganelle buckets are public
+            final AmazonS3 s3 = S3Utils.getAnonymousS3Client(serviceEndpoint, signingRegion);
+            return new N5AmazonS3CachingReader(s3, serviceEndpoint, bucketName, key);
         }
     }
 }
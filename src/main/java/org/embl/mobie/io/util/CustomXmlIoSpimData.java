@@ -59,6 +59,10 @@ public class CustomXmlIoSpimData extends XmlIoAbstractSpimData<SequenceDescripti
         } catch (Exception exception) {
             throw new SpimDataIOException(exception);
         }
+        return loadFromDocument(doc, xmlFilename);
+    }
+
+    public SpimData loadFromDocument(Document doc, String xmlFilename) throws SpimDataException {
         final Element root = doc.getRootElement();
         if (!root.getName().equals(SPIMDATA_TAG))
             throw new RuntimeException("expected <" + SPIMDATA_TAG + "> root element. wrong file?");
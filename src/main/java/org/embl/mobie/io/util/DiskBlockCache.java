@@ -0,0 +1,391 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Size-capped cache of raw (still compressed) chunk bytes on local disk.
+ * <p>
+ * Entries are identified by endpoint, bucket and object key, and remember
+ * the ETag of the object they were fetched with, such that callers can
+ * revalidate them. Each entry is stored in its own file together with a
+ * CRC32 checksum of its content; corrupt entries are dropped on read.
+ * When the total size exceeds the limit, the least recently used entries
+ * are evicted. The usage order survives restarts through the modification
+ * times of the files.
+ */
+@Slf4j
+public class DiskBlockCache {
+
+    private static final int MAGIC = 0x4d424331; // "MBC1"
+    private static final String SUFFIX = ".chunk";
+    private static final String TMP_SUFFIX = ".tmp";
+    // temp files younger than this may still be written by another process
+    private static final long TMP_MAX_AGE_MILLIS = 60 * 60 * 1000L;
+
+    public static final long DEFAULT_MAX_BYTES = 1L << 30;
+
+    private static volatile DiskBlockCache defaultCache;
+    private static volatile boolean defaultInitialized = false;
+
+    /**
+     * Sets the cache used by the remote readers that have no cache of their own,
+     * replacing the one created on first use.
+     *
+     * @param cache the cache, or null to disable disk caching
+     */
+    public static void setDefault(final DiskBlockCache cache) {
+        synchronized (DiskBlockCache.class) {
+            defaultCache = cache;
+            defaultInitialized = true;
+        }
+    }
+
+    /**
+     * @return the cache used by the remote readers that have no cache of their own;
+     * unless set otherwise, a cache of {@link #DEFAULT_MAX_BYTES} in
+     * {@link #getDefaultDirectory()}, or null if that could not be created
+     */
+    public static DiskBlockCache getDefault() {
+        if (!defaultInitialized) {
+            synchronized (DiskBlockCache.class) {
+                if (!defaultInitialized) {
+                    try {
+                        defaultCache = new DiskBlockCache(getDefaultDirectory(), DEFAULT_MAX_BYTES);
+                    } catch (final IOException | RuntimeException e) {
+                        log.warn("Disk caching of chunks is disabled: " + e.getMessage());
+                        defaultCache = null;
+                    }
+                    defaultInitialized = true;
+                }
+            }
+        }
+        return defaultCache;
+    }
+
+    public static Path getDefaultDirectory() {
+        return Paths.get(System.getProperty("user.home"), ".cache", "mobie-io", "chunks");
+    }
+
+    public static class Entry {
+        private final String eTag;
+        private final byte[] data;
+
+        Entry(final String eTag, final byte[] data) {
+            this.eTag = eTag;
+            this.data = data;
+        }
+
+        /**
+         * @return the ETag of the object when it was cached, or null if unknown
+         */
+        public String getETag() {
+            return eTag;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+    }
+
+    private final Path directory;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0;
+    private volatile boolean revalidate = true;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong corruptions = new AtomicLong();
+
+    public DiskBlockCache(final Path directory, final long maxBytes) throws IOException {
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory);
+        loadIndex();
+    }
+
+    /**
+     * If set (the default), cached entries are revalidated with a conditional
+     * request against the ETag of the object before they are used. This costs
+     * a round trip per chunk but no transfer if the object did not change.
+     * Unset it only for data that is known not to be rewritten, as entries are
+     * then used as they are, even if stale.
+     */
+    public void setRevalidate(final boolean revalidate) {
+        this.revalidate = revalidate;
+    }
+
+    public boolean isRevalidate() {
+        return revalidate;
+    }
+
+    /**
+     * @return the cached entry, or null if there is none or it is corrupt
+     */
+    public Entry get(final String endpoint, final String bucket, final String key) {
+        final String identity = identity(endpoint, bucket, key);
+        final String name = fileName(identity);
+        synchronized (index) {
+            if (index.get(name) == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+        }
+
+        final Path file = file(name);
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || !identity.equals(in.readUTF()))
+                throw new IOException("unexpected header");
+            final String eTag = in.readUTF();
+            final int length = in.readInt();
+            final long checksum = in.readLong();
+            final byte[] data = new byte[length];
+            in.readFully(data);
+            if (checksum(data) != checksum)
+                throw new IOException("checksum mismatch");
+
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            hits.incrementAndGet();
+            return new Entry(eTag.isEmpty() ? null : eTag, data);
+        } catch (final NoSuchFileException e) {
+            // evicted concurrently
+            remove(name, false);
+        } catch (final IOException e) {
+            log.warn("Dropping corrupt cache entry " + file + ": " + e.getMessage());
+            corruptions.incrementAndGet();
+            remove(name, true);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(final String endpoint, final String bucket, final String key, final String eTag, final byte[] data) {
+        final String identity = identity(endpoint, bucket, key);
+        final String name = fileName(identity);
+        final Path file = file(name);
+        try {
+            Files.createDirectories(file.getParent());
+            final Path tmp = Files.createTempFile(file.getParent(), name, TMP_SUFFIX);
+            try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeUTF(identity);
+                out.writeUTF(eTag == null ? "" : eTag);
+                out.writeInt(data.length);
+                out.writeLong(checksum(data));
+                out.write(data);
+            }
+            final long size = Files.size(tmp);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            synchronized (index) {
+                final Long previous = index.put(name, size);
+                totalBytes += size - (previous == null ? 0 : previous);
+            }
+            evict();
+        } catch (final IOException e) {
+            log.warn("Could not cache " + identity + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear() {
+        final List<String> names;
+        synchronized (index) {
+            names = new ArrayList<>(index.keySet());
+        }
+        for (final String name : names)
+            remove(name, true);
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getTotalBytes() {
+        synchronized (index) {
+            return totalBytes;
+        }
+    }
+
+    public int size() {
+        synchronized (index) {
+            return index.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public long getCorruptionCount() {
+        return corruptions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "DiskBlockCache{" + directory + ", " + getTotalBytes() + "/" + maxBytes + " bytes, hits=" + getHitCount() + ", misses=" + getMissCount() + "}";
+    }
+
+    private void evict() {
+        final List<String> evicted = new ArrayList<>();
+        synchronized (index) {
+            final Iterator<Map.Entry<String, Long>> entries = index.entrySet().iterator();
+            while (totalBytes > maxBytes && entries.hasNext()) {
+                final Map.Entry<String, Long> eldest = entries.next();
+                totalBytes -= eldest.getValue();
+                evicted.add(eldest.getKey());
+                entries.remove();
+            }
+        }
+        for (final String name : evicted) {
+            deleteFile(name);
+            evictions.incrementAndGet();
+        }
+    }
+
+    private void remove(final String name, final boolean deleteFile) {
+        synchronized (index) {
+            final Long size = index.remove(name);
+            if (size != null)
+                totalBytes -= size;
+        }
+        if (deleteFile)
+            deleteFile(name);
+    }
+
+    private void deleteFile(final String name) {
+        try {
+            Files.deleteIfExists(file(name));
+        } catch (final IOException e) {
+            log.warn("Could not delete cache entry " + name + ": " + e.getMessage());
+        }
+    }
+
+    private void loadIndex() throws IOException {
+        final List<Path> files = new ArrayList<>();
+        final long tmpCutoff = System.currentTimeMillis() - TMP_MAX_AGE_MILLIS;
+        try (final DirectoryStream<Path> subdirectories = Files.newDirectoryStream(directory, Files::isDirectory)) {
+            for (final Path subdirectory : subdirectories) {
+                try (final DirectoryStream<Path> entries = Files.newDirectoryStream(subdirectory)) {
+                    for (final Path entry : entries) {
+                        final String fileName = entry.getFileName().toString();
+                        if (fileName.endsWith(SUFFIX))
+                            files.add(entry);
+                        else if (fileName.endsWith(TMP_SUFFIX) && Files.getLastModifiedTime(entry).toMillis() < tmpCutoff)
+                            Files.deleteIfExists(entry); // left over from an interrupted put
+                    }
+                }
+            }
+        }
+
+        final Map<Path, Long> lastModified = new LinkedHashMap<>();
+        for (final Path file : files)
+            lastModified.put(file, Files.getLastModifiedTime(file).toMillis());
+        files.sort(Comparator.comparing(lastModified::get));
+
+        synchronized (index) {
+            for (final Path file : files) {
+                final long size = Files.size(file);
+                final String fileName = file.getFileName().toString();
+                index.put(fileName.substring(0, fileName.length() - SUFFIX.length()), size);
+                totalBytes += size;
+            }
+        }
+        evict();
+    }
+
+    private Path file(final String name) {
+        return directory.resolve(name.substring(0, 2)).resolve(name + SUFFIX);
+    }
+
+    private static String identity(final String endpoint, final String bucket, final String key) {
+        return endpoint + "\n" + bucket + "\n" + key;
+    }
+
+    private static String fileName(final String identity) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(identity.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder sb = new StringBuilder();
+            for (final byte b : digest)
+                sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long checksum(final byte[] data) {
+        final CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+}
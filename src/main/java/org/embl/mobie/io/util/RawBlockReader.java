@@ -0,0 +1,84 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.util;
+
+import java.io.IOException;
+
+import org.embl.mobie.io.metrics.LevelMetrics;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+/**
+ * Readers that can fetch the encoded bytes of a block separately from
+ * decoding them, such that the time spent on the network and the time
+ * spent decompressing can be told apart.
+ */
+public interface RawBlockReader {
+
+    /**
+     * @return the encoded bytes of the block, or null if it does not exist
+     */
+    byte[] readRawBlock(String pathName, DatasetAttributes datasetAttributes, long... gridPosition) throws IOException;
+
+    /**
+     * @param bytes the encoded bytes, see {@link #readRawBlock}
+     */
+    DataBlock<?> decodeBlock(byte[] bytes, String pathName, DatasetAttributes datasetAttributes, long... gridPosition) throws IOException;
+
+    /**
+     * Reads a block, recording the time spent decompressing it as decode
+     * latency if n5 is a {@link RawBlockReader}.
+     *
+     * @return the block, or null if it does not exist
+     */
+    static DataBlock<?> readBlock(final N5Reader n5, final String pathName, final DatasetAttributes datasetAttributes, final LevelMetrics metrics, final long... gridPosition) throws IOException {
+        if (!(n5 instanceof RawBlockReader))
+            return n5.readBlock(pathName, datasetAttributes, gridPosition);
+
+        final RawBlockReader reader = (RawBlockReader) n5;
+        return decode(reader, reader.readRawBlock(pathName, datasetAttributes, gridPosition), pathName, datasetAttributes, metrics, gridPosition);
+    }
+
+    /**
+     * Decodes a block, recording the time spent as decode latency.
+     *
+     * @param bytes the encoded bytes, or null if the block does not exist
+     * @return the block, or null if bytes is null
+     */
+    static DataBlock<?> decode(final RawBlockReader reader, final byte[] bytes, final String pathName, final DatasetAttributes datasetAttributes, final LevelMetrics metrics, final long... gridPosition) throws IOException {
+        if (bytes == null)
+            return null;
+
+        final long start = metrics.decodeStarted();
+        final DataBlock<?> block = reader.decodeBlock(bytes, pathName, datasetAttributes, gridPosition);
+        metrics.decodeFinished(start);
+        return block;
+    }
+}
@@ -0,0 +1,114 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.util;
+
+import java.io.IOException;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.util.IOUtils;
+
+/**
+ * Reads chunk objects from S3, going through a {@link DiskBlockCache} if one is given.
+ */
+public abstract class S3ChunkReader {
+
+    /**
+     * @param cache the disk cache, or null to always read from S3
+     * @return the raw bytes of the object, or null if it does not exist
+     */
+    public static byte[] read(final AmazonS3 s3, final String endpoint, final String bucket, final String key, final DiskBlockCache cache) throws IOException {
+        if (cache == null)
+            return read(s3, new GetObjectRequest(bucket, key), null, null, null);
+
+        final DiskBlockCache.Entry entry = cache.get(endpoint, bucket, key);
+        if (entry == null)
+            return read(s3, new GetObjectRequest(bucket, key), null, cache, endpoint);
+
+        if (!cache.isRevalidate() || entry.getETag() == null)
+            return entry.getData();
+
+        final GetObjectRequest request = new GetObjectRequest(bucket, key).withNonmatchingETagConstraint(entry.getETag());
+        return read(s3, request, entry, cache, endpoint);
+    }
+
+    /**
+     * Reads a byte range of an object, provided that the object still has
+     * the given ETag. Ranges are cached separately from whole objects.
+     *
+     * @param eTag  the expected ETag of the object, or null to accept any version
+     * @param cache the disk cache, or null to always read from S3
+     * @return the bytes, or null if the object does not exist or has a different ETag
+     */
+    public static byte[] readRange(final AmazonS3 s3, final String endpoint, final String bucket, final String key, final String eTag, final long offset, final int length, final DiskBlockCache cache) throws IOException {
+        final String rangeKey = key + "#" + offset + "+" + length;
+        if (cache != null && eTag != null) {
+            final DiskBlockCache.Entry entry = cache.get(endpoint, bucket, rangeKey);
+            if (entry != null && eTag.equals(entry.getETag()))
+                return entry.getData();
+        }
+
+        final GetObjectRequest request = new GetObjectRequest(bucket, key).withRange(offset, offset + length - 1);
+        if (eTag != null)
+            request.withMatchingETagConstraint(eTag);
+        try (final S3Object object = s3.getObject(request)) {
+            // the AWS client returns null if the ETag constraint is not met
+            if (object == null)
+                return null;
+            final byte[] data = IOUtils.toByteArray(object.getObjectContent());
+            if (data.length != length)
+                throw new IOException("Expected " + length + " bytes at " + offset + " of " + key + ", got " + data.length);
+            if (cache != null)
+                cache.put(endpoint, bucket, rangeKey, object.getObjectMetadata().getETag(), data);
+            return data;
+        } catch (AmazonS3Exception e) {
+            if (S3Utils.isMissingObject(e))
+                return null;
+            throw e;
+        }
+    }
+
+    private static byte[] read(final AmazonS3 s3, final GetObjectRequest request, final DiskBlockCache.Entry cached, final DiskBlockCache cache, final String endpoint) throws IOException {
+        try (final S3Object object = s3.getObject(request)) {
+            // the AWS client returns null if the ETag constraint is not met, i.e. the cached entry is still valid
+            if (object == null)
+                return cached == null ? null : cached.getData();
+            final byte[] data = IOUtils.toByteArray(object.getObjectContent());
+            if (cache != null)
+                cache.put(endpoint, request.getBucketName(), request.getKey(), object.getObjectMetadata().getETag(), data);
+            return data;
+        } catch (AmazonS3Exception e) {
+            if (S3Utils.isMissingObject(e))
+                return null;
+            throw e;
+        }
+    }
+}
@@ -31,11 +31,17 @@ package org.embl.mobie.io.util;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.AnonymousAWSCredentials;
@@ -52,25 +58,112 @@ import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.google.api.client.http.HttpStatusCodes;
 
 import ij.gui.GenericDialog;
+import lombok.extern.slf4j.Slf4j;
 
+@Slf4j
 public abstract class S3Utils {
     private static String[] s3AccessAndSecretKey;
+    private static ClientConfiguration clientConfiguration = new ClientConfiguration();
+
+    // clients by endpoint, region and credentials, shared by all buckets that use them
+    private static final Map<String, AmazonS3> clients = new ConcurrentHashMap<>();
+    // the client that was found to give access to a bucket, by endpoint, region, bucket and credentials
+    private static final Map<String, AmazonS3> bucketClients = new ConcurrentHashMap<>();
+    private static final Map<String, Object> bucketLocks = new ConcurrentHashMap<>();
 
     public static void setS3AccessAndSecretKey(String[] s3AccessAndSecretKey) {
         S3Utils.s3AccessAndSecretKey = s3AccessAndSecretKey;
+        // buckets that needed credentials must be probed again
+        bucketClients.clear();
+    }
+
+    /**
+     * Sets the connection pool size, timeouts etc. of the clients. Clients
+     * created from now on use the new configuration. The cached clients are
+     * only forgotten, not shut down, such that readers that still use them
+     * keep working.
+     *
+     * @param clientConfiguration
+     */
+    public static synchronized void setClientConfiguration(ClientConfiguration clientConfiguration) {
+        S3Utils.clientConfiguration = new ClientConfiguration(clientConfiguration);
+        bucketClients.clear();
+        clients.clear();
+    }
+
+    public static synchronized ClientConfiguration getClientConfiguration() {
+        return new ClientConfiguration(clientConfiguration);
+    }
+
+    /**
+     * @param maxConnections maximum number of open HTTP connections per client
+     */
+    public static void setMaxConnections(int maxConnections) {
+        setClientConfiguration(getClientConfiguration().withMaxConnections(maxConnections));
+    }
+
+    /**
+     * @param connectionTimeoutMillis timeout for establishing a connection
+     * @param socketTimeoutMillis     timeout for reading from an established connection
+     */
+    public static void setTimeouts(int connectionTimeoutMillis, int socketTimeoutMillis) {
+        setClientConfiguration(getClientConfiguration()
+            .withConnectionTimeout(connectionTimeoutMillis)
+            .withSocketTimeout(socketTimeoutMillis));
+    }
+
+    /**
+     * Forgets all cached clients and bucket access decisions and shuts the
+     * clients down. Readers that still use one of them must be reopened.
+     */
+    public static synchronized void clearS3Clients() {
+        bucketClients.clear();
+        final ArrayList<AmazonS3> removed = new ArrayList<>(clients.values());
+        clients.clear();
+        for (final AmazonS3 s3 : removed)
+            s3.shutdown();
+    }
+
+    /**
+     * Returns the shared client for anonymous access, without checking
+     * whether the bucket can be accessed like this. Use this for public
+     * buckets, which may not allow the access check itself.
+     */
+    public static AmazonS3 getAnonymousS3Client(String endpoint, String region) {
+        return getClient(endpoint, region, null);
     }
 
+    /**
+     * Returns a client that can access the bucket, anonymously if possible.
+     * <p>
+     * Clients are shared between all callers with the same endpoint, region
+     * and credentials, and the outcome of the access check is remembered per
+     * bucket, such that only the first call for a bucket contacts the server.
+     */
     public static AmazonS3 getS3Client(String endpoint, String region, String bucket) {
-        final AwsClientBuilder.EndpointConfiguration endpointConfiguration = new AwsClientBuilder.EndpointConfiguration(endpoint, region);
+        final String bucketKey = String.join("|", endpoint, region, bucket, credentialsId());
+        AmazonS3 s3 = bucketClients.get(bucketKey);
+        if (s3 != null)
+            return s3;
+
+        synchronized (bucketLocks.computeIfAbsent(bucketKey, k -> new Object())) {
+            try {
+                s3 = bucketClients.get(bucketKey);
+                if (s3 == null) {
+                    s3 = resolveS3Client(endpoint, region, bucket);
+                    bucketClients.put(bucketKey, s3);
+                }
+                return s3;
+            } finally {
+                // later calls find the client in bucketClients
+                bucketLocks.remove(bucketKey);
+            }
+        }
+    }
 
-        // first we create a client with anonymous credentials and see if we can access the bucket like this
-        AWSCredentialsProvider credentialsProvider = new AWSStaticCredentialsProvider(new AnonymousAWSCredentials());
-        AmazonS3 s3 = AmazonS3ClientBuilder
-            .standard()
-            .withPathStyleAccessEnabled(true)
-            .withEndpointConfiguration(endpointConfiguration)
-            .withCredentials(credentialsProvider)
-            .build();
+    private static AmazonS3 resolveS3Client(String endpoint, String region, String bucket) {
+        // first we use a client with anonymous credentials and see if we can access the bucket like this
+        AmazonS3 s3 = getClient(endpoint, region, null);
 
         // check if we can access the access
         HeadBucketRequest headBucketRequest = new HeadBucketRequest(bucket);
@@ -81,6 +174,7 @@ public abstract class S3Utils {
             switch (e.getStatusCode()) {
                 // if we get a 403 response (access forbidden), we try again with credentials
                 case HttpStatusCodes.STATUS_CODE_FORBIDDEN:
+                    final AWSCredentialsProvider credentialsProvider;
                     if (s3AccessAndSecretKey != null) {
                         // use the given credentials
                         final BasicAWSCredentials credentials = new BasicAWSCredentials(s3AccessAndSecretKey[0], s3AccessAndSecretKey[1]);
@@ -88,14 +182,13 @@ public abstract class S3Utils {
                     } else {
                         // look for credentials at other places
                         credentialsProvider = new DefaultAWSCredentialsProviderChain();
-                        checkCredentialsExistence(credentialsProvider);
+                        if (!credentialsExist(credentialsProvider)) {
+                            // public buckets may forbid the access check but allow reading objects
+                            log.warn("Could not access bucket " + bucket + " anonymously and found no credentials, continuing anonymously");
+                            return s3;
+                        }
                     }
-                    s3 = AmazonS3ClientBuilder
-                        .standard()
-                        .withPathStyleAccessEnabled(true)
-                        .withEndpointConfiguration(endpointConfiguration)
-                        .withCredentials(credentialsProvider)
-                        .build();
+                    s3 = getClient(endpoint, region, credentialsProvider);
                     // check if we have access permissions now
                     try {
                         HeadBucketResult headBucketResult = s3.headBucket(headBucketRequest);
@@ -110,6 +203,42 @@ public abstract class S3Utils {
         }
     }
 
+    /**
+     * @param credentialsProvider null for anonymous access
+     */
+    private static AmazonS3 getClient(String endpoint, String region, AWSCredentialsProvider credentialsProvider) {
+        final String clientKey = String.join("|", endpoint, region, credentialsProvider == null ? "anonymous" : credentialsId());
+        return clients.computeIfAbsent(clientKey, k -> {
+            final AwsClientBuilder.EndpointConfiguration endpointConfiguration = new AwsClientBuilder.EndpointConfiguration(endpoint, region);
+            return AmazonS3ClientBuilder
+                .standard()
+                .withPathStyleAccessEnabled(true)
+                .withEndpointConfiguration(endpointConfiguration)
+                .withCredentials(credentialsProvider == null ? new AWSStaticCredentialsProvider(new AnonymousAWSCredentials()) : credentialsProvider)
+                .withClientConfiguration(getClientConfiguration())
+                .build();
+        });
+    }
+
+    /**
+     * Identifies the credentials in the client and bucket keys by the access
+     * key and a digest of the secret key, such that different secrets for
+     * the same access key do not share a client.
+     */
+    private static String credentialsId() {
+        final String[] accessAndSecretKey = s3AccessAndSecretKey;
+        if (accessAndSecretKey == null)
+            return "default";
+        try {
+            final StringBuilder sb = new StringBuilder("key:").append(accessAndSecretKey[0]).append(':');
+            for (final byte b : MessageDigest.getInstance("SHA-256").digest(accessAndSecretKey[1].getBytes(StandardCharsets.UTF_8)))
+                sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     public static AmazonS3 getS3Client(String uri) {
         final String endpoint = getEndpoint(uri);
         final String region = "us-west-2";  // TODO get region from uri
@@ -117,6 +246,15 @@ public abstract class S3Utils {
         return getS3Client(endpoint, region, bucketAndObject[0]);
     }
 
+    private static boolean credentialsExist(AWSCredentialsProvider credentialsProvider) {
+        try {
+            credentialsProvider.getCredentials();
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
     public static void checkCredentialsExistence(AWSCredentialsProvider credentialsProvider) {
         try {
             credentialsProvider.getCredentials();
@@ -125,6 +263,16 @@ public abstract class S3Utils {
         }
     }
 
+    /**
+     * Whether e reports a missing object. S3 answers requests for missing
+     * objects with 403 rather than 404 unless the caller may list the
+     * bucket, so access denied counts as missing as well.
+     */
+    public static boolean isMissingObject(AmazonServiceException e) {
+        return e.getStatusCode() == HttpStatusCodes.STATUS_CODE_NOT_FOUND
+            || e.getStatusCode() == HttpStatusCodes.STATUS_CODE_FORBIDDEN;
+    }
+
     public static String[] getBucketAndObject(String uri) {
         final String[] split = uri.split("/");
         String bucket = split[3];
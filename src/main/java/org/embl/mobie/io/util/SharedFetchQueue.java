@@ -0,0 +1,103 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.util;
+
+import java.util.concurrent.Callable;
+
+import bdv.cache.SharedQueue;
+import lombok.extern.slf4j.Slf4j;
+import net.imglib2.cache.queue.BlockingFetchQueues;
+
+/**
+ * The fetch queue that image loaders use if they are not given one.
+ * <p>
+ * All loaders share one {@link SharedQueue}, such that opening many images
+ * does not start availableProcessors() fetcher threads per image. The
+ * number of fetcher threads bounds the number of cells that are loaded at
+ * the same time by all loaders. As with any {@link BlockingFetchQueues},
+ * coarser resolution levels of all images are fetched first and, within a
+ * level, the most recently requested cells, i.e. the ones of the current
+ * view, are fetched first.
+ */
+@Slf4j
+public class SharedFetchQueue {
+
+    /**
+     * More than the number of resolution levels of any image we know of.
+     */
+    public static final int DEFAULT_NUM_PRIORITIES = 16;
+
+    private static int numFetcherThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static SharedQueue queue;
+
+    private SharedFetchQueue() {
+    }
+
+    /**
+     * @return the shared queue, which is created on first use
+     */
+    public static synchronized SharedQueue get() {
+        if (queue == null)
+            queue = new SharedQueue(numFetcherThreads, DEFAULT_NUM_PRIORITIES);
+        return queue;
+    }
+
+    /**
+     * Returns the shared queue if it has enough priorities for an image
+     * with numLevels resolution levels.
+     *
+     * @param numLevels number of resolution levels of the image
+     * @return the shared queue, or null if the image has too many levels
+     */
+    public static BlockingFetchQueues<Callable<?>> get(final int numLevels) {
+        if (numLevels > DEFAULT_NUM_PRIORITIES) {
+            log.warn("Image has " + numLevels + " resolution levels, more than the " + DEFAULT_NUM_PRIORITIES + " priorities of the shared fetch queue");
+            return null;
+        }
+        return get();
+    }
+
+    /**
+     * Sets the number of fetcher threads of the shared queue. This only has
+     * an effect before the queue is first used.
+     *
+     * @param numFetcherThreads
+     */
+    public static synchronized void setNumFetcherThreads(final int numFetcherThreads) {
+        if (numFetcherThreads < 1)
+            throw new IllegalArgumentException("numFetcherThreads must be positive: " + numFetcherThreads);
+        if (queue != null)
+            log.warn("The shared fetch queue is in use already, keeping " + queue.getNumFetcherThreads() + " fetcher threads");
+        SharedFetchQueue.numFetcherThreads = numFetcherThreads;
+    }
+
+    public static synchronized int getNumFetcherThreads() {
+        return queue == null ? numFetcherThreads : queue.getNumFetcherThreads();
+    }
+}
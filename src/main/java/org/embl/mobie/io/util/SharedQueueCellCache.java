@@ -0,0 +1,60 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.util;
+
+import java.util.concurrent.Callable;
+
+import bdv.img.cache.VolatileGlobalCellCache;
+import net.imglib2.cache.queue.BlockingFetchQueues;
+
+/**
+ * A {@link VolatileGlobalCellCache} whose cells can be removed without
+ * touching its fetch queue.
+ * <p>
+ * {@link #clearCache()} moves all pending requests of the queue to its
+ * bounded prefetch deque. If the queue is shared with other loaders, see
+ * {@link SharedFetchQueue}, this demotes and possibly drops their requests
+ * as well. Loaders that do not own their queue should therefore use
+ * {@link #invalidateAll()} when they are closed.
+ */
+public class SharedQueueCellCache extends VolatileGlobalCellCache {
+
+    public SharedQueueCellCache(final BlockingFetchQueues<Callable<?>> queue) {
+        super(queue);
+    }
+
+    /**
+     * Removes all cells of this cache. Requests for its cells that are still
+     * in the queue are loaded into the removed entries and then dropped; the
+     * requests of other caches are left as they are.
+     */
+    public void invalidateAll() {
+        backingCache.invalidateAll();
+    }
+}
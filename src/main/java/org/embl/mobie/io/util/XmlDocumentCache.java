@@ -0,0 +1,285 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jdom2.Document;
+import org.jdom2.JDOMException;
+import org.jdom2.input.SAXBuilder;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+
+/**
+ * Bounded, least-recently-used cache for parsed xml documents, e.g. the BDV
+ * xml of an image, which several opener code paths need.
+ * <p>
+ * A cached document is returned without any request for maxAgeMillis after
+ * it was read or last validated. After that it is validated: files by their
+ * modification time and size, http resources by their ETag or Last-Modified
+ * header and S3 objects by their ETag, such that a document that did not
+ * change is not transferred and parsed again. Concurrent requests for the
+ * same document wait for a single read.
+ * <p>
+ * Cached documents are shared between callers and must not be modified.
+ */
+public class XmlDocumentCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 64;
+    public static final long DEFAULT_MAX_AGE_MILLIS = 10000;
+
+    private static final XmlDocumentCache DEFAULT = new XmlDocumentCache();
+
+    private static class CachedDocument {
+        private final Document document;
+        private final String version; // ETag, Last-Modified or modification time and size; null if unknown
+        private final long validatedAt;
+
+        private CachedDocument(Document document, String version, long validatedAt) {
+            this.document = document;
+            this.version = version;
+            this.validatedAt = validatedAt;
+        }
+    }
+
+    private final int maxEntries;
+    private final long maxAgeMillis;
+    private final LinkedHashMap<String, CachedDocument> entries;
+    private final Map<String, CompletableFuture<Document>> loading = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+
+    public XmlDocumentCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    public XmlDocumentCache(final int maxEntries, final long maxAgeMillis) {
+        if (maxEntries < 1)
+            throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        this.maxEntries = maxEntries;
+        this.maxAgeMillis = maxAgeMillis;
+        this.entries = new LinkedHashMap<String, CachedDocument>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedDocument> eldest) {
+                return size() > XmlDocumentCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return the cache that is used by the openers unless another one is given
+     */
+    public static XmlDocumentCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns the parsed document at uri, from the cache if it did not change.
+     *
+     * @param uri file path, http(s) url or S3 url
+     * @return the document, which must not be modified
+     */
+    public Document getDocument(final String uri) throws IOException, JDOMException {
+        final CachedDocument cached;
+        synchronized (entries) {
+            cached = entries.get(uri);
+        }
+        if (cached != null && System.currentTimeMillis() - cached.validatedAt < maxAgeMillis) {
+            hits.incrementAndGet();
+            return cached.document;
+        }
+
+        final CompletableFuture<Document> future = new CompletableFuture<>();
+        final CompletableFuture<Document> existing = loading.putIfAbsent(uri, future);
+        if (existing != null)
+            return await(existing);
+
+        try {
+            final CachedDocument entry = load(uri, cached);
+            synchronized (entries) {
+                entries.put(uri, entry);
+            }
+            future.complete(entry.document);
+            return entry.document;
+        } catch (IOException | JDOMException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(uri, future);
+        }
+    }
+
+    public void invalidate(final String uri) {
+        synchronized (entries) {
+            entries.remove(uri);
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return the number of documents that were returned without a request
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of cached documents that were validated with a
+     * request and had not changed
+     */
+    public long getRevalidationCount() {
+        return revalidations.get();
+    }
+
+    /**
+     * @return the number of documents that were read and parsed, including failed reads
+     */
+    public long getLoadCount() {
+        return loads.get();
+    }
+
+    @Override
+    public String toString() {
+        return "XmlDocumentCache{entries=" + size() + "/" + maxEntries + ", hits=" + getHitCount() + ", revalidations=" + getRevalidationCount() + ", loads=" + getLoadCount() + "}";
+    }
+
+    private CachedDocument load(final String uri, final CachedDocument cached) throws IOException, JDOMException {
+        final long now = System.currentTimeMillis();
+        switch (IOHelper.getType(uri)) {
+            case FILE:
+                return loadFile(uri, cached, now);
+            case HTTP:
+                return loadHttp(uri, cached, now);
+            case S3:
+                return loadS3(uri, cached, now);
+            default:
+                throw new IOException("Could not open uri: " + uri);
+        }
+    }
+
+    private CachedDocument loadFile(final String uri, final CachedDocument cached, final long now) throws IOException, JDOMException {
+        final File file = new File(uri);
+        final String version = file.lastModified() + ":" + file.length();
+        if (cached != null && version.equals(cached.version))
+            return revalidated(cached, now);
+
+        loads.incrementAndGet();
+        return new CachedDocument(new SAXBuilder().build(file), version, now);
+    }
+
+    private CachedDocument loadHttp(final String uri, final CachedDocument cached, final long now) throws IOException, JDOMException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(uri).openConnection();
+        try {
+            if (cached != null && cached.version != null) {
+                if (cached.version.startsWith("\"") || cached.version.startsWith("W/"))
+                    connection.setRequestProperty("If-None-Match", cached.version);
+                else
+                    connection.setRequestProperty("If-Modified-Since", cached.version);
+            }
+            if (connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED)
+                return revalidated(cached, now);
+
+            loads.incrementAndGet();
+            String version = connection.getHeaderField("ETag");
+            if (version == null)
+                version = connection.getHeaderField("Last-Modified");
+            try (final InputStream stream = connection.getInputStream()) {
+                return new CachedDocument(new SAXBuilder().build(stream), version, now);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private CachedDocument loadS3(final String uri, final CachedDocument cached, final long now) throws IOException, JDOMException {
+        final AmazonS3 s3 = S3Utils.getS3Client(uri);
+        final String[] bucketAndObject = S3Utils.getBucketAndObject(uri);
+        final GetObjectRequest request = new GetObjectRequest(bucketAndObject[0], bucketAndObject[1]);
+        if (cached != null && cached.version != null)
+            request.setNonmatchingETagConstraints(Collections.singletonList(cached.version));
+
+        // null if the constraint was not met, i.e. the object did not change
+        final S3Object object = s3.getObject(request);
+        if (object == null)
+            return revalidated(cached, now);
+
+        loads.incrementAndGet();
+        try (final InputStream stream = object.getObjectContent()) {
+            return new CachedDocument(new SAXBuilder().build(stream), object.getObjectMetadata().getETag(), now);
+        }
+    }
+
+    private CachedDocument revalidated(final CachedDocument cached, final long now) {
+        revalidations.incrementAndGet();
+        return new CachedDocument(cached.document, cached.version, now);
+    }
+
+    private static Document await(final CompletableFuture<Document> future) throws IOException, JDOMException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof JDOMException)
+                throw (JDOMException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package dataformats;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.openmbean.CompositeData;
+
+import org.embl.mobie.io.metrics.InMemoryMetricsSink;
+import org.embl.mobie.io.metrics.JmxMetricsSink;
+import org.embl.mobie.io.metrics.LatencyHistogram;
+import org.embl.mobie.io.metrics.LevelMetrics;
+import org.embl.mobie.io.metrics.LoaderMetrics;
+import org.embl.mobie.io.metrics.MetricsSnapshot;
+import org.junit.jupiter.api.Test;
+
+import com.amazonaws.SdkClientException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LoaderMetricsTest {
+
+    @Test
+    void recordsReadsMissesAndErrorsPerLevel() {
+        final LoaderMetrics metrics = new LoaderMetrics();
+        final LevelMetrics level = metrics.forLevel(this, "container", 0, 1);
+        assertSame(level, metrics.forLevel(this, "container", 0, 1));
+
+        level.readFinished(level.readStarted(), 1000);
+        level.readFinished(level.readStarted(), 24);
+        level.readMissing(level.readStarted());
+        level.readFailed(level.readStarted(), new SdkClientException("timeout"));
+        level.readFailed(level.readStarted(), new IllegalStateException());
+        final long pending = level.readStarted();
+
+        final MetricsSnapshot.LevelSnapshot snapshot = metrics.snapshot().getLevel("container", 0, 1);
+        assertEquals(5, snapshot.getReads());
+        assertEquals(1024, snapshot.getBytes());
+        assertEquals(1, snapshot.getMisses());
+        assertEquals(2, snapshot.getErrors());
+        assertEquals(1, snapshot.getSdkClientErrors());
+        assertEquals(1, snapshot.getInFlight());
+        assertEquals(5, snapshot.getReadLatency().getCount());
+        assertNull(metrics.snapshot().getLevel("container", 0, 0));
+
+        level.readFinished(pending, 0);
+        metrics.reset();
+        final MetricsSnapshot.LevelSnapshot afterReset = metrics.snapshot().getLevel("container", 0, 1);
+        assertEquals(0, afterReset.getReads());
+        assertEquals(0, afterReset.getInFlight());
+    }
+
+    @Test
+    void recordsNothingWhileDisabled() {
+        final LoaderMetrics metrics = new LoaderMetrics();
+        final LevelMetrics level = metrics.forLevel(this, "container", 0, 0);
+        metrics.setEnabled(false);
+        level.readFinished(level.readStarted(), 1000);
+        level.decodeFinished(level.decodeStarted());
+        level.arrayFinished(level.arrayStarted());
+        level.prefetchRead();
+
+        metrics.setEnabled(true);
+        final MetricsSnapshot.LevelSnapshot snapshot = metrics.snapshot().getLevel("container", 0, 0);
+        assertEquals(0, snapshot.getReads());
+        assertEquals(0, snapshot.getBytes());
+        assertEquals(0, snapshot.getPrefetchReads());
+        assertEquals(0, snapshot.getDecodeLatency().getCount());
+        assertEquals(0, snapshot.getArrayLatency().getCount());
+
+        LevelMetrics.NONE.readFinished(LevelMetrics.NONE.readStarted(), 1000);
+    }
+
+    @Test
+    void levelsAreRemovedWhenAllOwnersAreReleased() {
+        final LoaderMetrics metrics = new LoaderMetrics();
+        final Object loader = new Object();
+        final Object otherLoader = new Object();
+        metrics.forLevel(loader, "container", 0, 0);
+        metrics.forLevel(loader, "container", 0, 1);
+        metrics.forLevel(otherLoader, "container", 0, 1);
+
+        metrics.release(loader);
+        assertNull(metrics.snapshot().getLevel("container", 0, 0));
+        assertNotNull(metrics.snapshot().getLevel("container", 0, 1));
+
+        metrics.release(otherLoader);
+        assertTrue(metrics.snapshot().getLevels().isEmpty());
+    }
+
+    @Test
+    void histogramPercentilesAreWithinAFactorOfTwo() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++)
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(100));
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(50));
+
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(100, snapshot.getCount());
+        assertTrue(snapshot.getP50Millis() >= 0.1 && snapshot.getP50Millis() <= 0.2, "p50 " + snapshot.getP50Millis());
+        assertTrue(snapshot.getP99Millis() <= 0.2, "p99 " + snapshot.getP99Millis());
+        assertEquals(50, snapshot.getPercentileMillis(100), 1e-9);
+        assertEquals(50, snapshot.getMaxMillis(), 1e-9);
+        assertEquals((99 * 0.1 + 50) / 100, snapshot.getMeanMillis(), 1e-9);
+        assertEquals(0, new LatencyHistogram().snapshot().getP99Millis());
+    }
+
+    @Test
+    void inMemorySinkReturnsSnapshotsWhileAdded() {
+        final LoaderMetrics metrics = new LoaderMetrics();
+        final LevelMetrics level = metrics.forLevel(this, "container", 2, 0);
+        level.readFinished(level.readStarted(), 8);
+
+        final InMemoryMetricsSink sink = new InMemoryMetricsSink();
+        assertNull(sink.getSnapshot());
+        metrics.addSink(sink);
+        assertEquals(8, sink.getSnapshot().getLevel("container", 2, 0).getBytes());
+        metrics.removeSink(sink);
+        assertNull(sink.getSnapshot());
+    }
+
+    @Test
+    void jmxSinkPublishesTheLevels() throws Exception {
+        final LoaderMetrics metrics = new LoaderMetrics();
+        final LevelMetrics level = metrics.forLevel(this, "container", 0, 3);
+        level.readFinished(level.readStarted(), 16);
+
+        final JmxMetricsSink sink = new JmxMetricsSink("org.embl.mobie.io:type=LoaderMetrics,name=test");
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        metrics.addSink(sink);
+        try {
+            final CompositeData[] levels = (CompositeData[]) server.getAttribute(sink.getObjectName(), "Levels");
+            assertEquals(1, levels.length);
+            assertEquals(3, levels[0].get("level"));
+            assertEquals(16L, levels[0].get("bytes"));
+            assertNotNull(levels[0].get("readLatency"));
+        } finally {
+            metrics.removeSink(sink);
+        }
+        assertFalse(server.isRegistered(sink.getObjectName()));
+    }
+}
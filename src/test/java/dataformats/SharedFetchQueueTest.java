@@ -0,0 +1,113 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package dataformats;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.Callable;
+
+import org.embl.mobie.io.n5.util.DownsampleBlock;
+import org.embl.mobie.io.ome.zarr.loaders.N5OMEZarrImageLoader;
+import org.embl.mobie.io.ome.zarr.readers.N5OmeZarrReader;
+import org.embl.mobie.io.ome.zarr.writers.imageplus.WriteImagePlusToN5OmeZarr;
+import org.embl.mobie.io.util.SharedFetchQueue;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import bdv.ViewerSetupImgLoader;
+import bdv.img.cache.VolatileCachedCellImg;
+import ij.IJ;
+import net.imglib2.cache.queue.BlockingFetchQueues;
+import net.imglib2.cache.volatiles.CacheHints;
+import net.imglib2.cache.volatiles.LoadingStrategy;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileAccess;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SharedFetchQueueTest {
+
+    @Test
+    void sharesOneQueue() {
+        assertSame(SharedFetchQueue.get(), SharedFetchQueue.get());
+        assertSame(SharedFetchQueue.get(), SharedFetchQueue.get(5));
+        assertEquals(SharedFetchQueue.get().getNumFetcherThreads(), SharedFetchQueue.getNumFetcherThreads());
+    }
+
+    @Test
+    void rejectsImagesWithMoreLevelsThanPriorities() {
+        assertNull(SharedFetchQueue.get(SharedFetchQueue.DEFAULT_NUM_PRIORITIES + 1));
+    }
+
+    @Test
+    void closingALoaderKeepsTheRequestsOfOtherLoaders(@TempDir Path tempDir) throws Exception {
+        // no fetcher threads, the test takes the requests itself; requests that
+        // are moved to the prefetch deque of this queue are dropped but for one
+        final BlockingFetchQueues<Callable<?>> queue = new BlockingFetchQueues<>(SharedFetchQueue.DEFAULT_NUM_PRIORITIES, 1, 1);
+        final N5OMEZarrImageLoader loader = new N5OMEZarrImageLoader(new N5OmeZarrReader(writeImage(tempDir, "loading")), queue);
+        final N5OMEZarrImageLoader closedLoader = new N5OMEZarrImageLoader(new N5OmeZarrReader(writeImage(tempDir, "closed")), queue);
+        final ViewerSetupImgLoader<?, ?> closedSetupImgLoader = closedLoader.getSetupImgLoader(0);
+        closedSetupImgLoader.getVolatileImage(0, 0);
+
+        final ViewerSetupImgLoader<?, ?> setupImgLoader = loader.getSetupImgLoader(0);
+        final VolatileCachedCellImg<?, ?> img = (VolatileCachedCellImg<?, ?>) setupImgLoader.getVolatileImage(0, 0);
+        img.setCacheHints(new CacheHints(LoadingStrategy.VOLATILE, 0, false));
+        Views.iterable(img.getCells()).forEach(cell -> {
+        });
+        final long numCells = Intervals.numElements(img.getCells());
+
+        closedLoader.close();
+
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            for (long i = 0; i < numCells; i++)
+                queue.take().call();
+        });
+        img.setCacheHints(new CacheHints(LoadingStrategy.DONTLOAD, 0, false));
+        for (final Cell<?> cell : Views.iterable(img.getCells()))
+            assertTrue(((VolatileAccess) cell.getData()).isValid());
+        loader.close();
+    }
+
+    private static String writeImage(final Path tempDir, final String name) {
+        final String zarrPath = new File(tempDir.toFile(), name + ".ome.zarr").getAbsolutePath();
+        new WriteImagePlusToN5OmeZarr().export(IJ.createImage(name, "8-bit ramp", 64, 64, 8),
+            new int[][]{{1, 1, 1}}, new int[][]{{16, 16, 8}}, zarrPath, new AffineTransform3D(),
+            DownsampleBlock.DownsamplingMethod.Average, new RawCompression());
+        return zarrPath;
+    }
+}
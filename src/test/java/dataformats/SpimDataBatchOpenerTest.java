@@ -0,0 +1,82 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package dataformats;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.embl.mobie.io.ImageDataFormat;
+import org.embl.mobie.io.SpimDataBatchOpener;
+import org.embl.mobie.io.n5.util.DownsampleBlock;
+import org.embl.mobie.io.n5.writers.WriteImagePlusToN5;
+import org.embl.mobie.io.util.XmlDocumentCache;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ij.IJ;
+import ij.ImagePlus;
+import mpicbg.spim.data.generic.AbstractSpimData;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class SpimDataBatchOpenerTest {
+
+    @Test
+    void opensImagesAndReadsEachDocumentOnce(@TempDir Path tempDir) throws Exception {
+        final ImagePlus imp = IJ.createImage("image", "8-bit ramp", 64, 64, 2, 8, 1);
+        final String xmlPath = new File(tempDir.toFile(), "image.xml").getAbsolutePath();
+        new WriteImagePlusToN5().export(imp, xmlPath, DownsampleBlock.DownsamplingMethod.Average, new GzipCompression());
+
+        final XmlDocumentCache documentCache = new XmlDocumentCache();
+        final SpimDataBatchOpener opener = new SpimDataBatchOpener(2, documentCache);
+        try {
+            final List<CompletableFuture<AbstractSpimData<?>>> futures = opener.open(Arrays.asList(
+                new SpimDataBatchOpener.OpenRequest(xmlPath, ImageDataFormat.BdvN5),
+                new SpimDataBatchOpener.OpenRequest(xmlPath, ImageDataFormat.BdvN5),
+                new SpimDataBatchOpener.OpenRequest(new File(tempDir.toFile(), "missing.xml").getAbsolutePath(), ImageDataFormat.BdvN5)),
+                null);
+
+            assertEquals(3, futures.size());
+            for (int i = 0; i < 2; i++)
+                assertEquals(2, futures.get(i).get().getSequenceDescription().getViewSetupsOrdered().size());
+            assertThrows(ExecutionException.class, () -> futures.get(2).get());
+            // the xml of the image once, and the attempt to read the missing one
+            assertEquals(2, documentCache.getLoadCount());
+            assertEquals(1, documentCache.size());
+        } finally {
+            opener.shutdown();
+        }
+    }
+}
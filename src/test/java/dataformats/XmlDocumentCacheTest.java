@@ -0,0 +1,105 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package dataformats;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.embl.mobie.io.util.XmlDocumentCache;
+import org.jdom2.Document;
+import org.jdom2.JDOMException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class XmlDocumentCacheTest {
+
+    @Test
+    void parsesEachDocumentOnce(@TempDir Path tempDir) throws IOException, JDOMException {
+        final String uri = write(tempDir.resolve("image.xml"), "a").toString();
+        final XmlDocumentCache cache = new XmlDocumentCache();
+
+        final Document document = cache.getDocument(uri);
+        assertSame(document, cache.getDocument(uri));
+        assertEquals(1, cache.getLoadCount());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    void revalidatesUnchangedFiles(@TempDir Path tempDir) throws IOException, JDOMException {
+        final String uri = write(tempDir.resolve("image.xml"), "a").toString();
+        final XmlDocumentCache cache = new XmlDocumentCache(XmlDocumentCache.DEFAULT_MAX_ENTRIES, 0);
+
+        final Document document = cache.getDocument(uri);
+        assertSame(document, cache.getDocument(uri));
+        assertEquals(1, cache.getLoadCount());
+        assertEquals(1, cache.getRevalidationCount());
+    }
+
+    @Test
+    void reloadsChangedFiles(@TempDir Path tempDir) throws IOException, JDOMException {
+        final Path path = write(tempDir.resolve("image.xml"), "a");
+        final XmlDocumentCache cache = new XmlDocumentCache(XmlDocumentCache.DEFAULT_MAX_ENTRIES, 0);
+
+        final Document document = cache.getDocument(path.toString());
+        write(path, "changed");
+        final Document reloaded = cache.getDocument(path.toString());
+        assertNotSame(document, reloaded);
+        assertEquals("changed", reloaded.getRootElement().getAttributeValue("name"));
+        assertEquals(2, cache.getLoadCount());
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedDocuments(@TempDir Path tempDir) throws IOException, JDOMException {
+        final XmlDocumentCache cache = new XmlDocumentCache(2, XmlDocumentCache.DEFAULT_MAX_AGE_MILLIS);
+        final String a = write(tempDir.resolve("a.xml"), "a").toString();
+        final String b = write(tempDir.resolve("b.xml"), "b").toString();
+        final String c = write(tempDir.resolve("c.xml"), "c").toString();
+
+        cache.getDocument(a);
+        cache.getDocument(b);
+        cache.getDocument(a);
+        cache.getDocument(c);
+        assertEquals(2, cache.size());
+
+        cache.getDocument(a);
+        assertEquals(3, cache.getLoadCount());
+        cache.getDocument(b);
+        assertEquals(4, cache.getLoadCount());
+    }
+
+    private static Path write(final Path path, final String name) throws IOException {
+        return Files.write(path, ("<SpimData name=\"" + name + "\"/>").getBytes(StandardCharsets.UTF_8));
+    }
+}
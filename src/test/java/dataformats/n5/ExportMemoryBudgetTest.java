@@ -0,0 +1,62 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package dataformats.n5;
+
+import org.embl.mobie.io.n5.util.ExportMemoryBudget;
+import org.junit.jupiter.api.Test;
+
+import bdv.export.ExportMipmapInfo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ExportMemoryBudgetTest {
+
+    private static final ExportMipmapInfo MIPMAP_INFO = new ExportMipmapInfo(
+        new int[][] {{1, 1, 1}, {2, 2, 2}},
+        new int[][] {{10, 10, 10}, {10, 10, 5}});
+
+    @Test
+    void minViewWorkingSet() {
+        // level 0: one z row of blocks, 100 * 100 * 10
+        // level 1: one z row of blocks, 50 * 50 * 5, that are downsampled from the blocks of level 0
+        final long expected = 100 * 100 * 10 + 50 * 50 * 5;
+        assertEquals(2 * expected, ExportMemoryBudget.getMinViewWorkingSetInBytes(new long[] {100, 100, 10}, MIPMAP_INFO, 2));
+    }
+
+    @Test
+    void numParallelViewsIsBoundedByTheBudget() {
+        final long viewWorkingSet = ExportMemoryBudget.getMinViewWorkingSetInBytes(new long[] {100, 100, 10}, MIPMAP_INFO, 1);
+        final ExportMemoryBudget budget = new ExportMemoryBudget(500000);
+
+        assertEquals(1, budget.getNumParallelViews(viewWorkingSet, 1));
+        assertEquals(2, budget.getNumParallelViews(viewWorkingSet, 4));
+        assertThrows(IllegalArgumentException.class, () -> new ExportMemoryBudget(200000).getNumParallelViews(viewWorkingSet, 1));
+    }
+}
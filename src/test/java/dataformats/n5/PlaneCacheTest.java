@@ -0,0 +1,170 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package dataformats.n5;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.embl.mobie.io.n5.util.PlaneCache;
+import org.embl.mobie.io.n5.writers.BoundedVirtualStackImageLoader;
+import org.junit.jupiter.api.Test;
+
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.view.Views;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PlaneCacheTest {
+
+    @Test
+    void evictsLeastRecentlyUsedPlane() {
+        final List<Integer> loaded = new ArrayList<>();
+        final PlaneCache<int[]> cache = new PlaneCache<>(index -> {
+            loaded.add(index);
+            return new int[] {index};
+        }, 4, 2);
+
+        final int[] plane1 = cache.get(1);
+        cache.get(2);
+        assertSame(plane1, cache.get(1));
+        // 2 is the least recently used plane now
+        cache.get(3);
+        assertSame(plane1, cache.get(1));
+        cache.get(2);
+
+        assertEquals(2, cache.getNumPlanes());
+        assertEquals(8, cache.getPeakSizeInBytes());
+        assertEquals(4, cache.getNumLoads());
+        assertEquals(2, cache.getNumHits());
+        assertEquals(Arrays.asList(1, 2, 3, 2), loaded);
+
+        cache.clear();
+        assertEquals(0, cache.getNumPlanes());
+    }
+
+    @Test
+    void loadsDifferentPlanesInParallelAndEachPlaneOnce() throws Exception {
+        final CountDownLatch bothLoading = new CountDownLatch(2);
+        final AtomicInteger numLoads = new AtomicInteger();
+        final PlaneCache<int[]> cache = new PlaneCache<>(index -> {
+            numLoads.incrementAndGet();
+            bothLoading.countDown();
+            try {
+                // only finishes if the other plane is loaded at the same time
+                assertTrue(bothLoading.await(10, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return new int[] {index};
+        }, 4, 4);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<int[]>> planes = new ArrayList<>();
+            for (int i = 0; i < 4; ++i) {
+                final int index = i % 2;
+                planes.add(executor.submit(() -> cache.get(index)));
+            }
+            for (int i = 0; i < 4; ++i)
+                assertEquals(i % 2, planes.get(i).get(10, TimeUnit.SECONDS)[0]);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(2, numLoads.get());
+        assertEquals(2, cache.getNumLoads());
+        assertEquals(2, cache.getNumHits());
+    }
+
+    @Test
+    void numPlanesForBudget() {
+        assertEquals(10, PlaneCache.numPlanesForBudget(1000, 100, 1));
+        assertEquals(16, PlaneCache.numPlanesForBudget(1000, 100, 16));
+        assertThrows(IllegalArgumentException.class, () -> new PlaneCache<>(index -> null, 100, 0));
+    }
+
+    @Test
+    void readsVirtualStackThroughBoundedCache() {
+        final int width = 5;
+        final int height = 3;
+        final int numChannels = 2;
+        final int numSlices = 4;
+        final int numFrames = 2;
+        final int[] numReads = new int[1];
+        final VirtualStack stack = new VirtualStack(width, height, null, null) {
+            @Override
+            public int getSize() {
+                return numChannels * numSlices * numFrames;
+            }
+
+            @Override
+            public ImageProcessor getProcessor(final int n) {
+                ++numReads[0];
+                final byte[] pixels = new byte[width * height];
+                for (int i = 0; i < pixels.length; ++i)
+                    pixels[i] = (byte) (n * 10 + i);
+                return new ByteProcessor(width, height, pixels);
+            }
+        };
+        final ImagePlus imp = new ImagePlus("virtual", stack);
+        imp.setDimensions(numChannels, numSlices, numFrames);
+        // the ImagePlus shows the first plane
+        numReads[0] = 0;
+
+        final BoundedVirtualStackImageLoader<UnsignedByteType, ?> loader = BoundedVirtualStackImageLoader.createUnsignedByteInstance(imp, 2);
+        final RandomAccessibleInterval<UnsignedByteType> img = loader.getSetupImgLoader(1).getImage(1);
+        assertArrayEquals(new long[] {width, height, numSlices}, new long[] {img.dimension(0), img.dimension(1), img.dimension(2)});
+
+        final Cursor<UnsignedByteType> c = Views.flatIterable(img).localizingCursor();
+        while (c.hasNext()) {
+            c.fwd();
+            final int n = imp.getStackIndex(2, c.getIntPosition(2) + 1, 2);
+            final int i = c.getIntPosition(1) * width + c.getIntPosition(0);
+            assertEquals((n * 10 + i) & 0xff, c.get().get());
+        }
+        assertEquals(numSlices, numReads[0]);
+        assertEquals(2, loader.getPlaneCache().getNumPlanes());
+    }
+}
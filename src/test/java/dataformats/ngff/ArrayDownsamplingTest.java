@@ -0,0 +1,298 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package dataformats.ngff;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.embl.mobie.io.n5.util.ArrayDownsampling;
+import org.embl.mobie.io.n5.util.DownsampleBlock;
+import org.junit.jupiter.api.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.basictypeaccess.ArrayDataAccessFactory;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Cast;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ArrayDownsamplingTest {
+
+    private static final int[][] FACTORS = {{2, 2, 2}, {2, 2, 1}, {1, 2, 2}, {2, 1, 1}, {1, 1, 1}};
+
+    @Test
+    void sameAsDownsampleBlock3D() {
+        for (final int[] factors : FACTORS) {
+            // the blocks at the upper border need pixels outside of the odd sized source
+            compare(new UnsignedByteType(), new long[]{17, 13, 9}, factors, new int[]{4, 4, 3});
+            compare(new UnsignedShortType(), new long[]{17, 13, 9}, factors, new int[]{4, 4, 3});
+            compare(new FloatType(), new long[]{17, 13, 9}, factors, new int[]{4, 4, 3});
+        }
+    }
+
+    @Test
+    void sameAsDownsampleBlock2DAnd1D() {
+        compare(new UnsignedShortType(), new long[]{21, 11}, new int[]{2, 2}, new int[]{5, 3});
+        compare(new FloatType(), new long[]{21, 11}, new int[]{2, 1}, new int[]{5, 3});
+        compare(new UnsignedByteType(), new long[]{33}, new int[]{2}, new int[]{7});
+    }
+
+    @Test
+    void sameAsDownsampleBlockOnPlanarImg() {
+        for (final int[] factors : FACTORS) {
+            compare(new UnsignedByteType(), new long[]{17, 13, 9}, factors, new int[]{4, 4, 3}, DownsampleBlock.DownsamplingMethod.Average, true);
+            compare(new UnsignedShortType(), new long[]{17, 13, 9}, factors, new int[]{4, 4, 3}, DownsampleBlock.DownsamplingMethod.Average, true);
+            compare(new FloatType(), new long[]{17, 13, 9}, factors, new int[]{4, 4, 3}, DownsampleBlock.DownsamplingMethod.Average, true);
+        }
+        compare(new UnsignedShortType(), new long[]{21, 11}, new int[]{2, 2}, new int[]{5, 3}, DownsampleBlock.DownsamplingMethod.Average, true);
+        compare(new UnsignedIntType(), new long[]{17, 13, 9}, new int[]{3, 3, 2}, new int[]{4, 4, 3}, DownsampleBlock.DownsamplingMethod.Mode, true);
+    }
+
+    @Test
+    void readsCellImgWithOneCellPerPlane() {
+        final UnsignedShortType type = new UnsignedShortType();
+        final long[] size = {17, 13, 9};
+        final Img<UnsignedShortType> planar = createSource(type, size, true, 256);
+        final Img<UnsignedShortType> planeCells = new CellImgFactory<>(type, 17, 13, 1).create(size);
+        final Cursor<UnsignedShortType> in = Views.flatIterable(planar).cursor();
+        for (final UnsignedShortType t : Views.flatIterable(planeCells))
+            t.set(in.next());
+
+        final int[] factors = {2, 2, 2};
+        final int[] blockSize = {4, 4, 3};
+        // inside and partially outside of the source
+        for (final long[] sourceMin : new long[][]{{8, 4, 2}, {14, 10, 6}}) {
+            final SingleCellArrayImg<UnsignedShortType, ?> expected = createTarget(type, blockSize);
+            assertTrue(ArrayDownsampling.downsample(planar, type, sourceMin, factors, DownsampleBlock.DownsamplingMethod.Average, expected));
+            final SingleCellArrayImg<UnsignedShortType, ?> actual = createTarget(type, blockSize);
+            assertTrue(ArrayDownsampling.downsample(planeCells, type, sourceMin, factors, DownsampleBlock.DownsamplingMethod.Average, actual));
+            assertArrayEquals(values(expected), values(actual));
+
+            final SingleCellArrayImg<UnsignedShortType, ?> expectedCopy = createTarget(type, blockSize);
+            assertTrue(ArrayDownsampling.copy(planar, type, sourceMin, expectedCopy));
+            final SingleCellArrayImg<UnsignedShortType, ?> actualCopy = createTarget(type, blockSize);
+            assertTrue(ArrayDownsampling.copy(planeCells, type, sourceMin, actualCopy));
+            assertArrayEquals(values(expectedCopy), values(actualCopy));
+        }
+
+        // block shaped cells are left to DownsampleBlock and CopyBlock
+        final Img<UnsignedShortType> blockCells = new CellImgFactory<>(type, 8).create(size);
+        assertFalse(ArrayDownsampling.downsample(blockCells, type, new long[3], factors, DownsampleBlock.DownsamplingMethod.Average, createTarget(type, blockSize)));
+        assertFalse(ArrayDownsampling.copy(blockCells, type, new long[3], createTarget(type, blockSize)));
+    }
+
+    @Test
+    void copyIsSameAsSource() {
+        for (final boolean planar : new boolean[]{false, true}) {
+            // blocks that are inside, at the border and partially outside of the source
+            for (final long[] min : new long[][]{{0, 0, 0}, {3, 2, 1}, {14, 10, 6}, {-2, -1, 0}}) {
+                compareCopy(new UnsignedByteType(), new long[]{17, 13, 9}, min, new int[]{5, 4, 3}, planar);
+                compareCopy(new UnsignedShortType(), new long[]{17, 13, 9}, min, new int[]{5, 4, 3}, planar);
+                compareCopy(new FloatType(), new long[]{17, 13, 9}, min, new int[]{5, 4, 3}, planar);
+                compareCopy(new UnsignedLongType(), new long[]{17, 13, 9}, min, new int[]{5, 4, 3}, planar);
+            }
+            compareCopy(new UnsignedShortType(), new long[]{21, 11}, new long[]{16, 8}, new int[]{5, 3}, planar);
+        }
+    }
+
+    @Test
+    void unsupportedCopyIsLeftToCopyBlock() {
+        final long[] min = new long[3];
+        final Img<BitType> bits = new ArrayImgFactory<>(new BitType()).create(8, 8, 8);
+        assertFalse(ArrayDownsampling.copy(bits, new BitType(), min, createTarget(new BitType(), new int[]{2, 2, 2})));
+        final Img<UnsignedByteType> bytes = new ArrayImgFactory<>(new UnsignedByteType()).create(8, 8, 8);
+        assertFalse(ArrayDownsampling.copy(Views.translate(bytes, 1, 1, 1), new UnsignedByteType(), min, createTarget(new UnsignedByteType(), new int[]{2, 2, 2})));
+    }
+
+    @Test
+    void modeSameAsDownsampleBlock() {
+        for (final int[] factors : new int[][]{{2, 2, 2}, {3, 3, 1}, {1, 2, 4}}) {
+            compare(new UnsignedIntType(), new long[]{17, 13, 9}, factors, new int[]{4, 4, 3}, DownsampleBlock.DownsamplingMethod.Mode);
+            compare(new UnsignedLongType(), new long[]{17, 13, 9}, factors, new int[]{4, 4, 3}, DownsampleBlock.DownsamplingMethod.Mode);
+        }
+    }
+
+    @Test
+    void modeKeepsUint64LabelsAndPrefersTheSmallestLabel() {
+        final long big = 0xFFFF_FFFF_FFFF_FFF0L; // > 2^63, not representable as double
+        final ArrayImg<UnsignedLongType, ?> source = new ArrayImgFactory<>(new UnsignedLongType()).create(4, 2, 1);
+        final long[] values = {
+            big, big + 1, 7, 3,
+            big, 3, 3, 7};
+        final RandomAccess<UnsignedLongType> ra = source.randomAccess();
+        for (int i = 0; i < values.length; ++i) {
+            ra.setPosition(new long[]{i % 4, i / 4, 0});
+            ra.get().set(values[i]);
+        }
+        final int[] factors = {2, 2, 1};
+        final int[] size = {2, 1, 1};
+
+        final SingleCellArrayImg<UnsignedLongType, ?> generic = createTarget(new UnsignedLongType(), size);
+        final RandomAccess<UnsignedLongType> in = Views.extendBorder(source).randomAccess();
+        in.setPosition(new long[3]);
+        final DownsampleBlock<UnsignedLongType> mode = DownsampleBlock.create(size, factors, DownsampleBlock.DownsamplingMethod.Mode, UnsignedLongType.class, in.getClass());
+        mode.downsampleBlock(in, generic.cursor(), size);
+
+        final SingleCellArrayImg<UnsignedLongType, ?> array = createTarget(new UnsignedLongType(), size);
+        assertTrue(ArrayDownsampling.downsample(source, new UnsignedLongType(), new long[3], factors, DownsampleBlock.DownsamplingMethod.Mode, array));
+
+        for (final SingleCellArrayImg<UnsignedLongType, ?> result : Arrays.asList(generic, array)) {
+            final long[] labels = new long[2];
+            int i = 0;
+            for (final UnsignedLongType t : Views.flatIterable(result))
+                labels[i++] = t.get();
+            // 3 and 7 are both there twice
+            assertArrayEquals(new long[]{big, 3}, labels);
+        }
+    }
+
+    @Test
+    void unsupportedInputIsLeftToDownsampleBlock() {
+        final ArrayImg<UnsignedShortType, ?> source = new ArrayImgFactory<>(new UnsignedShortType()).create(8, 8, 8);
+        final SingleCellArrayImg<UnsignedShortType, ?> target = createTarget(new UnsignedShortType(), new int[]{2, 2, 2});
+        final long[] min = new long[3];
+        assertFalse(ArrayDownsampling.downsample(source, new UnsignedShortType(), min, new int[]{3, 3, 3}, DownsampleBlock.DownsamplingMethod.Average, target));
+        assertFalse(ArrayDownsampling.downsample(source, new UnsignedShortType(), min, new int[]{2, 2, 2}, DownsampleBlock.DownsamplingMethod.Centre, target));
+        assertFalse(ArrayDownsampling.downsample(source, new UnsignedShortType(), min, new int[]{2, 2, 2}, DownsampleBlock.DownsamplingMethod.Mode, target));
+        assertFalse(ArrayDownsampling.downsample(Views.translate(source, 1, 1, 1), new UnsignedShortType(), min, new int[]{2, 2, 2}, DownsampleBlock.DownsamplingMethod.Average, target));
+
+        final ArrayImg<UnsignedIntType, ?> ints = new ArrayImgFactory<>(new UnsignedIntType()).create(8, 8, 8);
+        assertFalse(ArrayDownsampling.downsample(ints, new UnsignedIntType(), min, new int[]{2, 2, 2}, DownsampleBlock.DownsamplingMethod.Average, createTarget(new UnsignedIntType(), new int[]{2, 2, 2})));
+        assertTrue(ArrayDownsampling.downsample(ints, new UnsignedIntType(), min, new int[]{2, 2, 2}, DownsampleBlock.DownsamplingMethod.Mode, createTarget(new UnsignedIntType(), new int[]{2, 2, 2})));
+    }
+
+    private static <T extends RealType<T> & NativeType<T>> void compare(final T type, final long[] sourceSize, final int[] factors, final int[] blockSize) {
+        compare(type, sourceSize, factors, blockSize, DownsampleBlock.DownsamplingMethod.Average);
+    }
+
+    private static <T extends RealType<T> & NativeType<T>> void compare(final T type, final long[] sourceSize, final int[] factors, final int[] blockSize, final DownsampleBlock.DownsamplingMethod method) {
+        compare(type, sourceSize, factors, blockSize, method, false);
+    }
+
+    private static <T extends RealType<T> & NativeType<T>> void compare(final T type, final long[] sourceSize, final int[] factors, final int[] blockSize, final DownsampleBlock.DownsamplingMethod method, final boolean planar) {
+        final int n = sourceSize.length;
+        final Img<T> source = createSource(type, sourceSize, planar, method == DownsampleBlock.DownsamplingMethod.Mode ? 4 : 256);
+
+        final long[] targetSize = new long[n];
+        for (int d = 0; d < n; ++d)
+            targetSize[d] = Math.max(sourceSize[d] / factors[d], 1);
+
+        final DownsampleBlock<T> downsampleBlock = DownsampleBlock.create(blockSize, factors, method, type.getClass(), Views.extendBorder(source).randomAccess().getClass());
+        final long[] cellPos = new long[n];
+        final long[] cellMin = new long[n];
+        final long[] sourceMin = new long[n];
+        final int[] cellDim = new int[n];
+        final long[] numCells = new long[n];
+        for (int d = 0; d < n; ++d)
+            numCells[d] = (targetSize[d] + blockSize[d] - 1) / blockSize[d];
+        for (long i = 0; i < Intervals.numElements(numCells); ++i) {
+            IntervalIndexer.indexToPosition(i, numCells, cellPos);
+            for (int d = 0; d < n; ++d) {
+                cellMin[d] = cellPos[d] * blockSize[d];
+                cellDim[d] = (int) Math.min(blockSize[d], targetSize[d] - cellMin[d]);
+                sourceMin[d] = cellMin[d] * factors[d];
+            }
+
+            final SingleCellArrayImg<T, ?> expected = createTarget(type, cellDim);
+            final RandomAccess<T> in = Views.extendBorder(source).randomAccess();
+            in.setPosition(sourceMin);
+            downsampleBlock.downsampleBlock(in, expected.cursor(), cellDim);
+
+            final SingleCellArrayImg<T, ?> actual = createTarget(type, cellDim);
+            assertTrue(ArrayDownsampling.downsample(source, type, sourceMin, factors, method, actual));
+
+            final double[] expectedValues = values(expected);
+            final double[] actualValues = values(actual);
+            assertEquals(expectedValues.length, actualValues.length);
+            assertArrayEquals(expectedValues, actualValues, type.getClass().getSimpleName() + " " + Arrays.toString(factors));
+        }
+    }
+
+    private static <T extends RealType<T> & NativeType<T>> void compareCopy(final T type, final long[] sourceSize, final long[] sourceMin, final int[] blockSize, final boolean planar) {
+        final Img<T> source = createSource(type, sourceSize, planar, 256);
+        final SingleCellArrayImg<T, ?> actual = createTarget(type, blockSize);
+        assertTrue(ArrayDownsampling.copy(source, type, sourceMin, actual));
+
+        final RandomAccess<T> in = Views.extendBorder(source).randomAccess();
+        final Cursor<T> c = Views.flatIterable(actual).localizingCursor();
+        final long[] position = new long[sourceSize.length];
+        while (c.hasNext()) {
+            c.fwd();
+            c.localize(position);
+            for (int d = 0; d < position.length; ++d)
+                position[d] += sourceMin[d];
+            in.setPosition(position);
+            assertEquals(in.get().getRealDouble(), c.get().getRealDouble(), Arrays.toString(position));
+        }
+    }
+
+    private static <T extends RealType<T> & NativeType<T>> Img<T> createSource(final T type, final long[] sourceSize, final boolean planar, final int maxValue) {
+        final Img<T> source = planar ? new PlanarImgFactory<>(type).create(sourceSize) : new ArrayImgFactory<>(type).create(sourceSize);
+        final Random random = new Random(42);
+        // include odd sums, which have to be rounded
+        source.forEach(t -> t.setReal(type instanceof FloatType ? random.nextFloat() * 100 : random.nextInt(maxValue)));
+        return source;
+    }
+
+    private static <T extends NativeType<T>, A extends ArrayDataAccess<A>> SingleCellArrayImg<T, A> createTarget(final T type, final int[] size) {
+        final A access = Cast.unchecked(ArrayDataAccessFactory.get(type));
+        final SingleCellArrayImg<T, A> img = new SingleCellArrayImg<>(size, new long[size.length], access.createArray((int) Intervals.numElements(size)), null);
+        img.setLinkedType(Cast.unchecked(type.getNativeTypeFactory().createLinkedType(Cast.unchecked(img))));
+        return img;
+    }
+
+    private static <T extends RealType<T> & NativeType<T>> double[] values(final SingleCellArrayImg<T, ?> img) {
+        final double[] values = new double[(int) Intervals.numElements(img)];
+        int i = 0;
+        for (final T t : Views.flatIterable(img))
+            values[i++] = t.getRealDouble();
+        return values;
+    }
+}
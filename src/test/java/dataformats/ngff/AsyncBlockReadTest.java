@@ -0,0 +1,190 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package dataformats.ngff;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.embl.mobie.io.ome.zarr.readers.N5S3OmeZarrReader;
+import org.embl.mobie.io.ome.zarr.util.N5OMEZarrCacheArrayLoader;
+import org.embl.mobie.io.ome.zarr.util.ZarrAxes;
+import org.embl.mobie.io.ome.zarr.writers.N5S3OMEZarrWriter;
+import org.embl.mobie.io.util.DiskBlockCache;
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileByteArray;
+import net.imglib2.img.cell.CellGrid;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AsyncBlockReadTest {
+
+    private static final String BUCKET = "bucket";
+    private static final String CONTAINER = "image.ome.zarr";
+    private static final int MAX_IN_FLIGHT = 4;
+
+    @BeforeAll
+    static void disableDiskCache() {
+        // keep the tests independent of chunks cached by earlier runs
+        DiskBlockCache.setDefault(null);
+    }
+
+    @Test
+    void overlapsRequestsUpToTheBound() throws Exception {
+        final CountDownLatch started = new CountDownLatch(MAX_IN_FLIGHT);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final InMemoryS3 s3 = new InMemoryS3(BUCKET) {
+            @Override
+            public S3Object getObject(final GetObjectRequest request) {
+                if (!request.getKey().startsWith(CONTAINER + "/s0/0/"))
+                    return super.getObject(request);
+                // chunk requests wait until released, like slow GETs
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                started.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    running.decrementAndGet();
+                }
+                return super.getObject(request);
+            }
+        };
+
+        final N5S3OMEZarrWriter writer = new N5S3OMEZarrWriter(s3, "http://localhost", BUCKET, CONTAINER, "/");
+        writer.createDataset("s0", new DatasetAttributes(new long[]{64, 4}, new int[]{4, 4}, DataType.UINT8, new RawCompression()));
+        final DatasetAttributes attributes = writer.getDatasetAttributes("s0");
+        for (long x = 0; x < 16; ++x)
+            writer.writeBlock("s0", attributes, block(new int[]{4, 4}, (byte) x, x, 0));
+
+        final N5S3OmeZarrReader reader = new N5S3OmeZarrReader(s3, "http://localhost", BUCKET, CONTAINER, "/");
+        reader.setMaxInFlightRequests(MAX_IN_FLIGHT);
+        final DatasetAttributes read = reader.getDatasetAttributes("s0");
+        final List<CompletableFuture<DataBlock<?>>> futures = new ArrayList<>();
+        for (long x = 0; x < 16; ++x)
+            futures.add(reader.readBlockAsync("s0", read, x, 0));
+
+        // all of the first requests are waiting at the same time
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        release.countDown();
+
+        for (int x = 0; x < 16; ++x) {
+            final byte[] expected = new byte[16];
+            Arrays.fill(expected, (byte) x);
+            assertArrayEquals(expected, (byte[]) futures.get(x).get(10, TimeUnit.SECONDS).getData());
+        }
+        assertEquals(MAX_IN_FLIGHT, maxRunning.get());
+    }
+
+    @Test
+    void oneFetcherThreadKeepsSeveralReadsInFlight() throws Exception {
+        final int readAhead = 4;
+        final CountDownLatch started = new CountDownLatch(readAhead);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger numGets = new AtomicInteger();
+        final InMemoryS3 s3 = new InMemoryS3(BUCKET) {
+            @Override
+            public S3Object getObject(final GetObjectRequest request) {
+                if (!request.getKey().startsWith(CONTAINER + "/s0/0/"))
+                    return super.getObject(request);
+                numGets.incrementAndGet();
+                started.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.getObject(request);
+            }
+        };
+
+        final N5S3OMEZarrWriter writer = new N5S3OMEZarrWriter(s3, "http://localhost", BUCKET, CONTAINER, "/");
+        writer.createDataset("s0", new DatasetAttributes(new long[]{64, 4}, new int[]{4, 4}, DataType.UINT8, new RawCompression()));
+        final DatasetAttributes attributes = writer.getDatasetAttributes("s0");
+        for (long x = 0; x < 16; ++x)
+            writer.writeBlock("s0", attributes, block(new int[]{4, 4}, (byte) x, x, 0));
+
+        final N5S3OmeZarrReader reader = new N5S3OmeZarrReader(s3, "http://localhost", BUCKET, CONTAINER, "/");
+        reader.setMaxInFlightRequests(MAX_IN_FLIGHT);
+        final DatasetAttributes read = reader.getDatasetAttributes("s0");
+        final CellGrid grid = new CellGrid(new long[]{64, 4, 1}, new int[]{4, 4, 1});
+        final N5OMEZarrCacheArrayLoader<?> loader = new N5OMEZarrCacheArrayLoader<>(reader, "s0", 0, 0, read, grid, ZarrAxes.YX);
+        loader.setReadAhead(readAhead);
+
+        // the only fetcher thread
+        final ExecutorService fetcher = Executors.newSingleThreadExecutor();
+        try {
+            final Future<?> first = fetcher.submit(() -> loader.loadArray(new long[]{0, 0, 0}, new int[]{4, 4, 1}));
+
+            // the GETs of the cell and the next cells are all waiting at the same time
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            assertEquals(readAhead, numGets.get());
+            release.countDown();
+            first.get(10, TimeUnit.SECONDS);
+
+            // the next cells were read ahead and are not read again
+            for (long x = 1; x < readAhead; ++x) {
+                final long[] gridPosition = {x, 0, 0};
+                final VolatileByteArray array = (VolatileByteArray) fetcher.submit(() -> loader.loadArray(gridPosition, new int[]{4, 4, 1})).get(10, TimeUnit.SECONDS);
+                assertEquals((byte) x, array.getCurrentStorageArray()[0]);
+            }
+        } finally {
+            fetcher.shutdownNow();
+        }
+    }
+
+    private static DataBlock<?> block(final int[] size, final byte value, final long... gridPosition) {
+        final byte[] data = new byte[size[0] * size[1]];
+        Arrays.fill(data, value);
+        return new ByteArrayDataBlock(size, gridPosition, data);
+    }
+}
@@ -0,0 +1,101 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package dataformats.ngff;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.embl.mobie.io.util.BoundedRequestExecutor;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BoundedRequestExecutorTest {
+
+    @Test
+    void limitsRequestsInFlight() throws Exception {
+        final BoundedRequestExecutor executor = new BoundedRequestExecutor("test", 4);
+        final CountDownLatch started = new CountDownLatch(4);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+
+        final List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 16; ++i) {
+            final int value = i;
+            futures.add(executor.submit(() -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                started.countDown();
+                release.await();
+                running.decrementAndGet();
+                return value;
+            }));
+        }
+
+        // the first four requests block all threads, so the others stay queued
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertEquals(4, executor.getInFlight());
+        assertEquals(12, executor.getQueued());
+        release.countDown();
+
+        for (int i = 0; i < futures.size(); ++i)
+            assertEquals(i, futures.get(i).get(10, TimeUnit.SECONDS));
+        assertTrue(maxRunning.get() <= 4);
+        executor.shutdown();
+    }
+
+    @Test
+    void propagatesFailuresAndSkipsCancelledRequests() throws Exception {
+        final BoundedRequestExecutor executor = new BoundedRequestExecutor("test", 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+
+        final CompletableFuture<Object> blocking = executor.submit(() -> {
+            release.await();
+            throw new IOException("not found");
+        });
+        final CompletableFuture<Integer> cancelled = executor.submit(calls::incrementAndGet);
+        cancelled.cancel(false);
+        release.countDown();
+
+        final ExecutionException e = assertThrows(ExecutionException.class, () -> blocking.get(10, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IOException);
+        executor.submit(() -> null).get(10, TimeUnit.SECONDS);
+        assertEquals(0, calls.get());
+        executor.shutdown();
+    }
+}
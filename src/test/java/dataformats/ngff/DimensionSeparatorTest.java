@@ -0,0 +1,90 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package dataformats.ngff;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.embl.mobie.io.ome.zarr.readers.N5OmeZarrReader;
+import org.embl.mobie.io.ome.zarr.util.ZarrDatasetAttributes;
+import org.embl.mobie.io.ome.zarr.writers.N5OMEZarrWriter;
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.gson.GsonBuilder;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DimensionSeparatorTest {
+
+    @Test
+    void datasetsWithDifferentSeparatorsCanBeReadInterleaved(@TempDir Path tempDir) throws IOException {
+        final String container = tempDir.resolve("image.ome.zarr").toString();
+        writeDataset(new N5OMEZarrWriter(container, new GsonBuilder(), "."), "dots", (byte) 1);
+        writeDataset(new N5OMEZarrWriter(container, new GsonBuilder(), "/"), "slashes", (byte) 2);
+
+        assertTrue(Files.exists(tempDir.resolve("image.ome.zarr/dots/1.0")));
+        assertTrue(Files.exists(tempDir.resolve("image.ome.zarr/slashes/1/0")));
+
+        final N5OmeZarrReader reader = new N5OmeZarrReader(container);
+        final DatasetAttributes dots = reader.getDatasetAttributes("dots");
+        final DatasetAttributes slashes = reader.getDatasetAttributes("slashes");
+        assertEquals(".", ((ZarrDatasetAttributes) dots).getDimensionSeparator());
+        assertEquals("/", ((ZarrDatasetAttributes) slashes).getDimensionSeparator());
+
+        // the attributes of the last read dataset must not influence block reads of the other one
+        for (int i = 0; i < 2; ++i) {
+            assertBlock(reader.readBlock("slashes", slashes, 0, 1), (byte) 2);
+            assertBlock(reader.readBlock("dots", dots, 0, 1), (byte) 1);
+        }
+    }
+
+    private static void writeDataset(final N5OMEZarrWriter writer, final String pathName, final byte value) throws IOException {
+        writer.createDataset(pathName, new DatasetAttributes(new long[]{8, 8}, new int[]{4, 4}, DataType.UINT8, new RawCompression()));
+        final DatasetAttributes attributes = writer.getDatasetAttributes(pathName);
+        final byte[] data = new byte[16];
+        Arrays.fill(data, value);
+        writer.writeBlock(pathName, attributes, new ByteArrayDataBlock(new int[]{4, 4}, new long[]{0, 1}, data));
+    }
+
+    private static void assertBlock(final DataBlock<?> block, final byte value) {
+        final byte[] expected = new byte[16];
+        Arrays.fill(expected, value);
+        assertArrayEquals(expected, (byte[]) block.getData());
+    }
+}
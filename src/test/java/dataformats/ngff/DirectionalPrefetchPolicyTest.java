@@ -0,0 +1,108 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package dataformats.ngff;
+
+import java.util.List;
+
+import org.embl.mobie.io.ome.zarr.util.CellRequest;
+import org.embl.mobie.io.ome.zarr.util.DirectionalPrefetchPolicy;
+import org.embl.mobie.io.ome.zarr.util.PrefetchPolicy;
+import org.junit.jupiter.api.Test;
+
+import net.imglib2.img.cell.CellGrid;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DirectionalPrefetchPolicyTest {
+
+    private static final CellGrid[] GRIDS = {
+        new CellGrid(new long[]{1024, 1024, 64}, new int[]{64, 64, 32}),
+        new CellGrid(new long[]{512, 512, 32}, new int[]{64, 64, 32})
+    };
+
+    private static final double[][] RESOLUTIONS = {{1, 1, 1}, {2, 2, 2}};
+
+    private static PrefetchPolicy.Context context(final double[] centroid) {
+        return new PrefetchPolicy.Context() {
+            @Override
+            public int numLevels() {
+                return GRIDS.length;
+            }
+
+            @Override
+            public CellGrid getGrid(int level) {
+                return GRIDS[level];
+            }
+
+            @Override
+            public double[] getMipmapResolution(int level) {
+                return RESOLUTIONS[level];
+            }
+
+            @Override
+            public double[] getRecentCentroid() {
+                return centroid;
+            }
+        };
+    }
+
+    @Test
+    void proposesCellsAheadOfTheMotionAndTheParent() {
+        final DirectionalPrefetchPolicy policy = new DirectionalPrefetchPolicy(2, true);
+        final CellRequest request = new CellRequest(0, 0, 0, new long[]{5, 3, 0});
+        final List<CellRequest> proposals = policy.propose(request, context(new double[]{3, 3, 0}));
+
+        assertEquals(3, proposals.size());
+        assertEquals(request.at(0, new long[]{6, 3, 0}), proposals.get(0));
+        assertEquals(request.at(0, new long[]{7, 3, 0}), proposals.get(1));
+        assertEquals(request.at(1, new long[]{2, 1, 0}), proposals.get(2));
+    }
+
+    @Test
+    void staysInsideTheGrid() {
+        final DirectionalPrefetchPolicy policy = new DirectionalPrefetchPolicy(2, false);
+        final CellRequest request = new CellRequest(0, 0, 0, new long[]{15, 0, 1});
+        final List<CellRequest> proposals = policy.propose(request, context(new double[]{13, 2, 1}));
+
+        assertTrue(proposals.isEmpty());
+    }
+
+    @Test
+    void onlyProposesTheParentWithoutHistory() {
+        final DirectionalPrefetchPolicy policy = new DirectionalPrefetchPolicy();
+        final CellRequest request = new CellRequest(0, 0, 1, new long[]{1, 1, 0});
+        assertTrue(policy.propose(request, context(null)).isEmpty());
+
+        final CellRequest finest = new CellRequest(0, 0, 0, new long[]{7, 8, 1});
+        final List<CellRequest> proposals = policy.propose(finest, context(null));
+        assertEquals(1, proposals.size());
+        assertEquals(finest.at(1, new long[]{3, 4, 0}), proposals.get(0));
+    }
+}
@@ -0,0 +1,124 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package dataformats.ngff;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.stream.Stream;
+
+import org.embl.mobie.io.util.DiskBlockCache;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DiskBlockCacheTest {
+
+    private static final String ENDPOINT = "https://s3.embl.de";
+    private static final String BUCKET = "i2k-2020";
+
+    @Test
+    void storesEntriesAcrossRestarts(@TempDir Path tempDir) throws IOException {
+        final DiskBlockCache cache = new DiskBlockCache(tempDir, 1024 * 1024);
+        final byte[] data = bytes(100, (byte) 7);
+        cache.put(ENDPOINT, BUCKET, "image.ome.zarr/s0/0.0.0", "\"etag\"", data);
+
+        final DiskBlockCache reopened = new DiskBlockCache(tempDir, 1024 * 1024);
+        final DiskBlockCache.Entry entry = reopened.get(ENDPOINT, BUCKET, "image.ome.zarr/s0/0.0.0");
+        assertNotNull(entry);
+        assertEquals("\"etag\"", entry.getETag());
+        assertArrayEquals(data, entry.getData());
+        assertNull(reopened.get(ENDPOINT, "other-bucket", "image.ome.zarr/s0/0.0.0"));
+        assertEquals(1, reopened.getHitCount());
+        assertEquals(1, reopened.getMissCount());
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedEntries(@TempDir Path tempDir) throws IOException {
+        final DiskBlockCache cache = new DiskBlockCache(tempDir, 3000);
+        cache.put(ENDPOINT, BUCKET, "a", null, bytes(900, (byte) 1));
+        cache.put(ENDPOINT, BUCKET, "b", null, bytes(900, (byte) 2));
+        cache.put(ENDPOINT, BUCKET, "c", null, bytes(900, (byte) 3));
+        assertNotNull(cache.get(ENDPOINT, BUCKET, "a"));
+        cache.put(ENDPOINT, BUCKET, "d", null, bytes(900, (byte) 4));
+
+        assertTrue(cache.getTotalBytes() <= 3000);
+        assertEquals(1, cache.getEvictionCount());
+        assertNull(cache.get(ENDPOINT, BUCKET, "b"));
+        assertNotNull(cache.get(ENDPOINT, BUCKET, "a"));
+        assertNotNull(cache.get(ENDPOINT, BUCKET, "d"));
+    }
+
+    @Test
+    void dropsCorruptEntries(@TempDir Path tempDir) throws IOException {
+        final DiskBlockCache cache = new DiskBlockCache(tempDir, 1024 * 1024);
+        cache.put(ENDPOINT, BUCKET, "a", null, bytes(100, (byte) 1));
+
+        final Path file;
+        try (Stream<Path> files = Files.walk(tempDir)) {
+            file = files.filter(Files::isRegularFile).findFirst().get();
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{42}), Files.size(file) - 1);
+        }
+
+        assertNull(cache.get(ENDPOINT, BUCKET, "a"));
+        assertEquals(1, cache.getCorruptionCount());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void keepsRecentTemporaryFiles(@TempDir Path tempDir) throws IOException {
+        final Path subdirectory = Files.createDirectories(tempDir.resolve("ab"));
+        final Path recent = Files.createFile(subdirectory.resolve("recent.tmp"));
+        final Path stale = Files.createFile(subdirectory.resolve("stale.tmp"));
+        Files.setLastModifiedTime(stale, FileTime.fromMillis(System.currentTimeMillis() - 24 * 60 * 60 * 1000L));
+
+        new DiskBlockCache(tempDir, 1024 * 1024);
+        assertTrue(Files.exists(recent));
+        assertFalse(Files.exists(stale));
+    }
+
+    private static byte[] bytes(final int n, final byte value) {
+        final byte[] data = new byte[n];
+        for (int i = 0; i < n; ++i)
+            data[i] = value;
+        return data;
+    }
+}
@@ -0,0 +1,386 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package dataformats.ngff;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.HeadBucketRequest;
+import com.amazonaws.services.s3.model.HeadBucketResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+
+/**
+ * An S3 client that keeps the objects of a single bucket in memory, as a
+ * local stand-in for S3 in tests. Supports the requests that the readers
+ * and writers of this library make, including ranged and conditional GETs
+ * and multipart uploads.
+ */
+public class InMemoryS3 extends AbstractAmazonS3 {
+
+    private final String bucketName;
+    private final SortedMap<String, byte[]> objects = new ConcurrentSkipListMap<>();
+    private final Map<String, SortedMap<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+    private final AtomicInteger uploadCount = new AtomicInteger();
+    private final AtomicInteger numPuts = new AtomicInteger();
+    private final AtomicInteger numUploadedParts = new AtomicInteger();
+
+    public InMemoryS3(final String bucketName) {
+        this.bucketName = bucketName;
+    }
+
+    public byte[] getBytes(final String key) {
+        return objects.get(key);
+    }
+
+    public TreeSet<String> getKeys() {
+        return new TreeSet<>(objects.keySet());
+    }
+
+    /**
+     * @return the number of single PUTs
+     */
+    public int getNumPuts() {
+        return numPuts.get();
+    }
+
+    /**
+     * @return the number of parts uploaded in multipart uploads
+     */
+    public int getNumUploadedParts() {
+        return numUploadedParts.get();
+    }
+
+    /**
+     * @return the number of multipart uploads that were neither completed
+     * nor aborted
+     */
+    public int getNumOpenUploads() {
+        return uploads.size();
+    }
+
+    private void checkBucket(final String bucket) {
+        if (!bucketName.equals(bucket))
+            throw exception(404, "NoSuchBucket", bucket);
+    }
+
+    private static AmazonS3Exception exception(final int statusCode, final String errorCode, final String message) {
+        final AmazonS3Exception e = new AmazonS3Exception(message);
+        e.setStatusCode(statusCode);
+        e.setErrorCode(errorCode);
+        return e;
+    }
+
+    private byte[] get(final String bucket, final String key) {
+        checkBucket(bucket);
+        final byte[] bytes = objects.get(key);
+        if (bytes == null)
+            throw exception(404, "NoSuchKey", key);
+        return bytes;
+    }
+
+    private static String eTag(final byte[] bytes) {
+        try {
+            final StringBuilder sb = new StringBuilder();
+            for (final byte b : MessageDigest.getInstance("MD5").digest(bytes))
+                sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static ObjectMetadata metadata(final byte[] bytes, final long contentLength) {
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setHeader(Headers.ETAG, eTag(bytes));
+        metadata.setContentLength(contentLength);
+        return metadata;
+    }
+
+    private static byte[] readAll(final InputStream in) {
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            for (int n = in.read(buffer); n != -1; n = in.read(buffer))
+                out.write(buffer, 0, n);
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public PutObjectResult putObject(final PutObjectRequest request) {
+        checkBucket(request.getBucketName());
+        final byte[] bytes = readAll(request.getInputStream());
+        objects.put(request.getKey(), bytes);
+        numPuts.incrementAndGet();
+        final PutObjectResult result = new PutObjectResult();
+        result.setETag(eTag(bytes));
+        return result;
+    }
+
+    @Override
+    public PutObjectResult putObject(final String bucket, final String key, final InputStream input, final ObjectMetadata metadata) {
+        return putObject(new PutObjectRequest(bucket, key, input, metadata));
+    }
+
+    @Override
+    public PutObjectResult putObject(final String bucket, final String key, final String content) {
+        return putObject(bucket, key, new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)), new ObjectMetadata());
+    }
+
+    /**
+     * Like the AWS client, returns null if an ETag constraint is not met.
+     */
+    @Override
+    public S3Object getObject(final GetObjectRequest request) {
+        final byte[] bytes = get(request.getBucketName(), request.getKey());
+        final String eTag = eTag(bytes);
+        if (!request.getMatchingETagConstraints().isEmpty() && !request.getMatchingETagConstraints().contains(eTag))
+            return null;
+        if (request.getNonmatchingETagConstraints().contains(eTag))
+            return null;
+
+        byte[] content = bytes;
+        final long[] range = request.getRange();
+        if (range != null) {
+            final int from = (int) Math.min(range[0], bytes.length);
+            final int to = (int) Math.min(range[1] + 1, bytes.length);
+            content = new byte[to - from];
+            System.arraycopy(bytes, from, content, 0, content.length);
+        }
+        final S3Object object = new S3Object();
+        object.setBucketName(request.getBucketName());
+        object.setKey(request.getKey());
+        object.setObjectMetadata(metadata(bytes, content.length));
+        object.setObjectContent(new S3ObjectInputStream(new ByteArrayInputStream(content), null));
+        return object;
+    }
+
+    @Override
+    public S3Object getObject(final String bucket, final String key) {
+        return getObject(new GetObjectRequest(bucket, key));
+    }
+
+    @Override
+    public ObjectMetadata getObjectMetadata(final GetObjectMetadataRequest request) {
+        final byte[] bytes = get(request.getBucketName(), request.getKey());
+        return metadata(bytes, bytes.length);
+    }
+
+    @Override
+    public ObjectMetadata getObjectMetadata(final String bucket, final String key) {
+        return getObjectMetadata(new GetObjectMetadataRequest(bucket, key));
+    }
+
+    @Override
+    public boolean doesObjectExist(final String bucket, final String key) {
+        checkBucket(bucket);
+        return objects.containsKey(key);
+    }
+
+    @Override
+    public boolean doesBucketExistV2(final String bucket) {
+        return bucketName.equals(bucket);
+    }
+
+    @Override
+    public boolean doesBucketExist(final String bucket) {
+        return doesBucketExistV2(bucket);
+    }
+
+    @Override
+    public HeadBucketResult headBucket(final HeadBucketRequest request) {
+        checkBucket(request.getBucketName());
+        return new HeadBucketResult();
+    }
+
+    /**
+     * Lists all matching objects at once, i.e. results are never truncated.
+     */
+    @Override
+    public ListObjectsV2Result listObjectsV2(final ListObjectsV2Request request) {
+        checkBucket(request.getBucketName());
+        final String prefix = request.getPrefix() == null ? "" : request.getPrefix();
+        final String delimiter = request.getDelimiter();
+        final ListObjectsV2Result result = new ListObjectsV2Result();
+        result.setBucketName(bucketName);
+        result.setPrefix(prefix);
+        result.setDelimiter(delimiter);
+        result.setTruncated(false);
+        final TreeSet<String> commonPrefixes = new TreeSet<>();
+        for (final Map.Entry<String, byte[]> entry : objects.tailMap(prefix).entrySet()) {
+            final String key = entry.getKey();
+            if (!key.startsWith(prefix))
+                break;
+            if (delimiter != null) {
+                final int i = key.indexOf(delimiter, prefix.length());
+                if (i != -1) {
+                    commonPrefixes.add(key.substring(0, i + delimiter.length()));
+                    continue;
+                }
+            }
+            final S3ObjectSummary summary = new S3ObjectSummary();
+            summary.setBucketName(bucketName);
+            summary.setKey(key);
+            summary.setSize(entry.getValue().length);
+            summary.setETag(eTag(entry.getValue()));
+            result.getObjectSummaries().add(summary);
+        }
+        result.setCommonPrefixes(new ArrayList<>(commonPrefixes));
+        result.setKeyCount(result.getObjectSummaries().size() + commonPrefixes.size());
+        return result;
+    }
+
+    @Override
+    public ListObjectsV2Result listObjectsV2(final String bucket, final String prefix) {
+        return listObjectsV2(new ListObjectsV2Request().withBucketName(bucket).withPrefix(prefix));
+    }
+
+    @Override
+    public ListObjectsV2Result listObjectsV2(final String bucket) {
+        return listObjectsV2(bucket, null);
+    }
+
+    @Override
+    public void deleteObject(final String bucket, final String key) {
+        checkBucket(bucket);
+        objects.remove(key);
+    }
+
+    @Override
+    public DeleteObjectsResult deleteObjects(final DeleteObjectsRequest request) {
+        checkBucket(request.getBucketName());
+        final List<DeleteObjectsResult.DeletedObject> deleted = new ArrayList<>();
+        for (final DeleteObjectsRequest.KeyVersion key : request.getKeys()) {
+            objects.remove(key.getKey());
+            final DeleteObjectsResult.DeletedObject object = new DeleteObjectsResult.DeletedObject();
+            object.setKey(key.getKey());
+            deleted.add(object);
+        }
+        return new DeleteObjectsResult(deleted);
+    }
+
+    @Override
+    public InitiateMultipartUploadResult initiateMultipartUpload(final InitiateMultipartUploadRequest request) {
+        checkBucket(request.getBucketName());
+        final String uploadId = "upload-" + uploadCount.incrementAndGet();
+        uploads.put(uploadId, new ConcurrentSkipListMap<>());
+        final InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+        result.setBucketName(bucketName);
+        result.setKey(request.getKey());
+        result.setUploadId(uploadId);
+        return result;
+    }
+
+    @Override
+    public UploadPartResult uploadPart(final UploadPartRequest request) {
+        checkBucket(request.getBucketName());
+        final SortedMap<Integer, byte[]> parts = uploads.get(request.getUploadId());
+        if (parts == null)
+            throw exception(404, "NoSuchUpload", request.getUploadId());
+        final byte[] bytes = readAll(request.getInputStream());
+        if (bytes.length != request.getPartSize())
+            throw exception(400, "IncompleteBody", "Expected " + request.getPartSize() + " bytes, got " + bytes.length);
+        parts.put(request.getPartNumber(), bytes);
+        numUploadedParts.incrementAndGet();
+        final UploadPartResult result = new UploadPartResult();
+        result.setPartNumber(request.getPartNumber());
+        result.setETag(eTag(bytes));
+        return result;
+    }
+
+    @Override
+    public CompleteMultipartUploadResult completeMultipartUpload(final CompleteMultipartUploadRequest request) {
+        checkBucket(request.getBucketName());
+        final SortedMap<Integer, byte[]> parts = uploads.remove(request.getUploadId());
+        if (parts == null)
+            throw exception(404, "NoSuchUpload", request.getUploadId());
+        final SortedMap<Integer, String> partETags = new TreeMap<>();
+        for (final PartETag partETag : request.getPartETags())
+            partETags.put(partETag.getPartNumber(), partETag.getETag());
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (final Map.Entry<Integer, String> partETag : partETags.entrySet()) {
+            final byte[] part = parts.get(partETag.getKey());
+            if (part == null || !eTag(part).equals(partETag.getValue()))
+                throw exception(400, "InvalidPart", "Part " + partETag.getKey());
+            out.write(part, 0, part.length);
+        }
+        final byte[] bytes = out.toByteArray();
+        objects.put(request.getKey(), bytes);
+        final CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+        result.setBucketName(bucketName);
+        result.setKey(request.getKey());
+        result.setETag(eTag(bytes));
+        return result;
+    }
+
+    @Override
+    public void abortMultipartUpload(final AbortMultipartUploadRequest request) {
+        checkBucket(request.getBucketName());
+        uploads.remove(request.getUploadId());
+    }
+}
@@ -32,6 +32,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
 
@@ -40,12 +42,16 @@ import org.embl.mobie.io.SpimDataOpener;
 import org.embl.mobie.io.n5.util.DownsampleBlock;
 import org.embl.mobie.io.n5.writers.WriteImagePlusToN5;
 import org.embl.mobie.io.ome.zarr.util.ZarrAxes;
+import org.embl.mobie.io.ome.zarr.util.ZarrConsolidatedMetadata;
+import org.embl.mobie.io.ome.zarr.writers.CompressionPolicy;
 import org.embl.mobie.io.ome.zarr.writers.imageplus.WriteImagePlusToN5OmeZarr;
 import org.embl.mobie.io.util.IOHelper;
 import org.everit.json.schema.Schema;
 import org.everit.json.schema.loader.SchemaLoader;
 import org.janelia.saalfeldlab.n5.Compression;
 import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.Lz4Compression;
+import org.janelia.saalfeldlab.n5.RawCompression;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 import org.junit.jupiter.api.BeforeAll;
@@ -69,6 +75,8 @@ import net.imglib2.type.numeric.integer.GenericByteType;
 
 import static org.apache.commons.io.FilenameUtils.removeExtension;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class NGFFWriterTest {
@@ -206,6 +214,7 @@ public class NGFFWriterTest {
 
     void zarrAssertions(String zarrPath, int nChannels, int nTimepoints) throws SpimDataException, IOException {
         assertTrue(new File(zarrPath).exists());
+        assertTrue(new File(zarrPath, ZarrConsolidatedMetadata.ZMETADATA_FILE).exists());
         validateJSON(zarrPath);
 
         SpimData spimData = (SpimData) new SpimDataOpener().open(zarrPath, ImageDataFormat.OmeZarr);
@@ -397,4 +406,73 @@ public class NGFFWriterTest {
         // check lowest resolution level of n5 and ome-zarr have identical pixel values
         assertTrue(isImageIdentical(lowestResN5, lowestResZarr));
     }
+
+    @Test
+    void writeOmeZarrWithCompressionPerLevel() throws SpimDataException, IOException {
+        int[][] resolutions = new int[][]{{1, 1, 1}, {2, 2, 2}, {4, 4, 4}};
+        int[][] subdivisions = new int[][]{{64, 64, 64}, {64, 64, 64}, {64, 64, 64}};
+        ImagePlus imp = makeZYXImage(imageName, 200, 200, 100);
+
+        String n5Path = writeImageAndGetPath(imp, ImageDataFormat.BdvN5, resolutions, subdivisions);
+        String zarrPath = getZarrPath();
+        WriteImagePlusToN5OmeZarr writer = new WriteImagePlusToN5OmeZarr();
+        writer.setCompressionPolicy(CompressionPolicy.perLevel(new GzipCompression(), new RawCompression()));
+        writer.export(imp, resolutions, subdivisions, zarrPath, sourceTransform, downsamplingMethod, null);
+
+        assertTrue(getCompressorId(zarrPath, "s0").matches("zlib|gzip"));
+        assertTrue(getCompressorId(zarrPath, "s1").equals("none"));
+        assertTrue(getCompressorId(zarrPath, "s2").equals("none"));
+
+        // all levels are read back with their own compression
+        SpimDataOpener spimDataOpener = new SpimDataOpener();
+        SpimData spimDataZarr = (SpimData) spimDataOpener.open(zarrPath, ImageDataFormat.OmeZarr);
+        SpimData spimDataN5 = (SpimData) spimDataOpener.open(n5Path, ImageDataFormat.BdvN5);
+        for (int level = 0; level < resolutions.length; level++)
+            assertTrue(isImageIdentical(getImage(spimDataN5, 0, 0, level), getImage(spimDataZarr, 0, 0, level)));
+    }
+
+    @Test
+    void writeOmeZarrWithParallelViews() throws SpimDataException {
+        int[][] resolutions = new int[][]{{1, 1, 1}, {2, 2, 2}};
+        int[][] subdivisions = new int[][]{{32, 32, 8}, {32, 32, 8}};
+        ImagePlus imp = makeTCZYXImage(imageName, 64, 64, 16, 2, 3);
+
+        String n5Path = writeImageAndGetPath(imp, ImageDataFormat.BdvN5, resolutions, subdivisions);
+        String zarrPath = getZarrPath();
+        WriteImagePlusToN5OmeZarr writer = new WriteImagePlusToN5OmeZarr();
+        writer.setNumParallelViews(4);
+        writer.export(imp, resolutions, subdivisions, zarrPath, sourceTransform, downsamplingMethod, compression);
+
+        SpimDataOpener spimDataOpener = new SpimDataOpener();
+        SpimData spimDataZarr = (SpimData) spimDataOpener.open(zarrPath, ImageDataFormat.OmeZarr);
+        SpimData spimDataN5 = (SpimData) spimDataOpener.open(n5Path, ImageDataFormat.BdvN5);
+        for (int setupId = 0; setupId < 2; setupId++)
+            for (int timepoint = 0; timepoint < 3; timepoint++)
+                for (int level = 0; level < resolutions.length; level++)
+                    assertTrue(isImageIdentical(getImage(spimDataN5, setupId, timepoint, level), getImage(spimDataZarr, setupId, timepoint, level)));
+    }
+
+    String getCompressorId(String zarrPath, String dataset) throws IOException {
+        JSONObject zarray = new JSONObject(new String(Files.readAllBytes(new File(zarrPath, dataset + "/.zarray").toPath()), StandardCharsets.UTF_8));
+        return zarray.isNull("compressor") ? "none" : zarray.getJSONObject("compressor").getString("id");
+    }
+
+    @Test
+    void compressionWithoutZarrCompressorIsRejected() {
+        ImagePlus imp = makeZYXImage(imageName, 64, 64, 8);
+        WriteImagePlusToN5OmeZarr writer = new WriteImagePlusToN5OmeZarr();
+        writer.setCompressionPolicy(CompressionPolicy.perLevel(new RawCompression(), new Lz4Compression()));
+        assertThrows(IllegalArgumentException.class, () -> writer.export(imp, new int[][]{{1, 1, 1}, {2, 2, 2}},
+            new int[][]{{32, 32, 8}, {32, 32, 8}}, getZarrPath(), sourceTransform, downsamplingMethod, null));
+    }
+
+    @Test
+    void compressionAndCompressionPolicyAreRejected() {
+        ImagePlus imp = makeZYXImage(imageName, 64, 64, 8);
+        WriteImagePlusToN5OmeZarr writer = new WriteImagePlusToN5OmeZarr();
+        writer.setCompressionPolicy(CompressionPolicy.of(new RawCompression()));
+        assertThrows(IllegalArgumentException.class, () -> writer.export(imp, new int[][]{{1, 1, 1}},
+            new int[][]{{32, 32, 8}}, getZarrPath(), sourceTransform, downsamplingMethod, new GzipCompression()));
+        assertFalse(new File(getZarrPath()).exists());
+    }
 }
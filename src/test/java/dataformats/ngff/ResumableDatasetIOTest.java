@@ -0,0 +1,242 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package dataformats.ngff;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.embl.mobie.io.n5.util.ChunkManifest;
+import org.embl.mobie.io.n5.util.DownsampleBlock;
+import org.embl.mobie.io.n5.util.ExportScalePyramid;
+import org.embl.mobie.io.n5.util.ResumableDatasetIO;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import bdv.export.ExportMipmapInfo;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ResumableDatasetIOTest {
+
+    private static final ExportMipmapInfo MIPMAP_INFO = new ExportMipmapInfo(
+        new int[][]{{1, 1, 1}, {2, 2, 2}, {4, 4, 4}},
+        new int[][]{{16, 16, 16}, {16, 16, 16}, {8, 8, 8}});
+
+    private final ExecutorService executorService = Executors.newFixedThreadPool(3);
+
+    @TempDir
+    Path tempDir;
+
+    @AfterEach
+    void shutdown() {
+        executorService.shutdown();
+    }
+
+    @Test
+    void resumedExportWritesOnlyTheMissingChunks() throws IOException {
+        final ArrayImg<UnsignedShortType, ?> img = randomImage(70, 45, 33);
+        final MemoryDatasetIO expected = new MemoryDatasetIO();
+        write(img, expected, loopback());
+
+        for (final ExportScalePyramid.LoopbackHeuristic heuristic : new ExportScalePyramid.LoopbackHeuristic[]{loopback(), new ExportScalePyramid.SinglePassHeuristic()}) {
+            final File file = tempDir.resolve("resume-" + heuristic.getClass().getSimpleName() + ".manifest").toFile();
+            final MemoryDatasetIO io = new MemoryDatasetIO();
+            io.maxWrites = 20;
+            final ChunkManifest interrupted = ChunkManifest.open(file);
+            interrupted.setSaveIntervalMillis(0);
+            assertThrows(IOException.class, () -> write(img, new ResumableDatasetIO<>(io, interrupted, 0, 0, null), heuristic));
+            assertTrue(file.exists());
+
+            io.maxWrites = Integer.MAX_VALUE;
+            io.numWrites.clear();
+            final ChunkManifest resumed = ChunkManifest.open(file);
+            write(img, new ResumableDatasetIO<>(io, resumed, 0, 0, null), heuristic);
+
+            assertEquals(expected.numWrites.size(), 20 + io.numWrites.size(), "chunks written again");
+            assertLevelsEqual(expected, io);
+        }
+    }
+
+    @Test
+    void incrementalExportWritesOnlyTheChangedChunks() throws IOException {
+        final ArrayImg<UnsignedShortType, ?> img = randomImage(70, 45, 33);
+        final File file = tempDir.resolve("incremental.manifest").toFile();
+        final MemoryDatasetIO io = new MemoryDatasetIO();
+        write(img, new ResumableDatasetIO<>(io, ChunkManifest.open(file), 0, 0, null), loopback());
+
+        final FinalInterval changed = new FinalInterval(new long[]{20, 20, 20}, new long[]{21, 21, 21});
+        Views.interval(img, changed).forEach(t -> t.set(60000));
+        final MemoryDatasetIO expected = new MemoryDatasetIO();
+        write(img, expected, loopback());
+
+        final ChunkManifest manifest = ChunkManifest.open(file);
+        // one chunk in each of the three levels
+        assertEquals(3, manifest.invalidate(0, 0, MIPMAP_INFO, changed));
+        io.numWrites.clear();
+        write(img, new ResumableDatasetIO<>(io, manifest, 0, 0, null), loopback());
+
+        assertEquals(3, io.numWrites.size());
+        assertLevelsEqual(expected, io);
+    }
+
+    @Test
+    void chunksWrittenWithOtherSettingsAreWrittenAgain() throws IOException {
+        final ArrayImg<UnsignedShortType, ?> img = randomImage(70, 45, 33);
+        final File file = tempDir.resolve("settings.manifest").toFile();
+        final MemoryDatasetIO io = new MemoryDatasetIO();
+        write(img, new ResumableDatasetIO<>(io, ChunkManifest.open(file), 0, 0, null, level -> "gzip Average"), loopback());
+        final int numChunks = io.numWrites.size();
+
+        io.numWrites.clear();
+        write(img, new ResumableDatasetIO<>(io, ChunkManifest.open(file), 0, 0, null, level -> "gzip Average"), loopback());
+        assertEquals(0, io.numWrites.size());
+
+        // another compression of level 1 changes the chunks of level 1 only
+        write(img, new ResumableDatasetIO<>(io, ChunkManifest.open(file), 0, 0, null, level -> level == 1 ? "blosc Average" : "gzip Average"), loopback());
+        assertTrue(io.numWrites.size() > 0 && io.numWrites.size() < numChunks);
+        assertTrue(io.numWrites.keySet().stream().allMatch(key -> key.startsWith("1 ")), "chunks written again " + io.numWrites.keySet());
+    }
+
+    @Test
+    void chunksOfShardsAreRecordedWhenTheShardIsWritten() throws IOException {
+        final ChunkManifest manifest = ChunkManifest.open(tempDir.resolve("shards.manifest").toFile());
+        final List<ResumableDatasetIO<Integer, UnsignedShortType>> resumable = new ArrayList<>();
+        final List<long[]> doneBeforeFlush = new ArrayList<>();
+        final MemoryDatasetIO io = new MemoryDatasetIO() {
+            @Override
+            public void flush(final Integer dataset) {
+                for (final long[] chunk : new long[][]{{0, 0, 0}, {1, 0, 0}, {2, 0, 0}, {0, 1, 0}, {1, 1, 0}, {2, 1, 0}})
+                    if (resumable.get(0).isBlockDone(dataset, chunk))
+                        doneBeforeFlush.add(chunk);
+            }
+        };
+        resumable.add(new ResumableDatasetIO<>(io, manifest, 0, 0, new int[]{2, 2, 2}));
+        final ExportMipmapInfo mipmapInfo = new ExportMipmapInfo(new int[][]{{1, 1, 1}}, new int[][]{{16, 16, 16}});
+        final ArrayImg<UnsignedShortType, ?> img = randomImage(48, 32, 16);
+
+        // 3 x 2 x 1 chunks: a shard of 2 x 2 x 1 chunks and one of 1 x 2 x 1 chunks at the border
+        ExportScalePyramid.writeScalePyramid(img, new UnsignedShortType(), mipmapInfo,
+            DownsampleBlock.DownsamplingMethod.Average, resumable.get(0), executorService, 3, null, null, null);
+        assertEquals(6, doneBeforeFlush.size(), "complete shards are recorded before flushing");
+
+        // only one chunk of the first shard is written again, so its shard is only written by flushing
+        assertEquals(1, manifest.invalidate(0, 0, mipmapInfo, new FinalInterval(new long[]{0, 0, 0}, new long[]{15, 15, 15})));
+        doneBeforeFlush.clear();
+        io.numWrites.clear();
+        ExportScalePyramid.writeScalePyramid(img, new UnsignedShortType(), mipmapInfo,
+            DownsampleBlock.DownsamplingMethod.Average, resumable.get(0), executorService, 3, null, null, null);
+        assertEquals(1, io.numWrites.size());
+        assertEquals(5, doneBeforeFlush.size());
+        for (final long[] chunk : doneBeforeFlush)
+            assertTrue(chunk[0] != 0 || chunk[1] != 0);
+        assertEquals(6, manifest.getLevel(0, 0, 0, new long[]{48, 32, 16}, new int[]{16, 16, 16}).getNumWritten());
+    }
+
+    private static ExportScalePyramid.LoopbackHeuristic loopback() {
+        return (originalImg, factorsToOriginalImg, previousLevel, factorsToPreviousLevel, chunkSize) -> previousLevel >= 0;
+    }
+
+    private void write(final RandomAccessibleInterval<UnsignedShortType> img, final ExportScalePyramid.DatasetIO<Integer, UnsignedShortType> io, final ExportScalePyramid.LoopbackHeuristic heuristic) throws IOException {
+        ExportScalePyramid.writeScalePyramid(img, new UnsignedShortType(), MIPMAP_INFO, DownsampleBlock.DownsamplingMethod.Average, io, executorService, 3,
+            heuristic, null, null);
+    }
+
+    private static void assertLevelsEqual(final MemoryDatasetIO expected, final MemoryDatasetIO actual) {
+        assertEquals(expected.levels.size(), actual.levels.size());
+        for (int level = 0; level < expected.levels.size(); level++)
+            assertArrayEquals(toArray(expected.levels.get(level)), toArray(actual.levels.get(level)), "level " + level);
+    }
+
+    private static ArrayImg<UnsignedShortType, ?> randomImage(final long... dimensions) {
+        final ArrayImg<UnsignedShortType, ?> img = ArrayImgs.unsignedShorts(dimensions);
+        final Random random = new Random(42);
+        img.forEach(t -> t.set(random.nextInt(1000)));
+        return img;
+    }
+
+    private static int[] toArray(final RandomAccessibleInterval<UnsignedShortType> img) {
+        final List<Integer> values = new ArrayList<>();
+        Views.flatIterable(img).forEach(t -> values.add(t.get()));
+        return values.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Keeps the levels in memory, and keeps them when the same levels are
+     * created again, like a container that is written again.
+     */
+    private static class MemoryDatasetIO implements ExportScalePyramid.DatasetIO<Integer, UnsignedShortType> {
+        final List<ArrayImg<UnsignedShortType, ?>> levels = new ArrayList<>();
+        final Map<String, Integer> numWrites = new HashMap<>();
+        int maxWrites = Integer.MAX_VALUE;
+
+        @Override
+        public synchronized Integer createDataset(final int level, final long[] dimensions, final int[] blockSize) {
+            if (level == levels.size())
+                levels.add(ArrayImgs.unsignedShorts(dimensions.clone()));
+            return level;
+        }
+
+        @Override
+        public synchronized void writeBlock(final Integer dataset, final ExportScalePyramid.Block<UnsignedShortType> dataBlock) throws IOException {
+            if (numWrites.size() == maxWrites)
+                throw new IOException("interrupted");
+            numWrites.merge(dataset + " " + Arrays.toString(dataBlock.getGridPosition()), 1, Integer::sum);
+            LoopBuilder.setImages(dataBlock.getData(), Views.interval(levels.get(dataset), dataBlock.getData())).forEachPixel((i, o) -> o.set(i));
+        }
+
+        @Override
+        public void flush(final Integer dataset) {
+        }
+
+        @Override
+        public synchronized RandomAccessibleInterval<UnsignedShortType> getImage(final int level) {
+            return levels.get(level);
+        }
+    }
+}
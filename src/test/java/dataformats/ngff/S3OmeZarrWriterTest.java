@@ -0,0 +1,195 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package dataformats.ngff;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.embl.mobie.io.ome.zarr.readers.N5S3OmeZarrReader;
+import org.embl.mobie.io.ome.zarr.util.ZarrDatasetAttributes;
+import org.embl.mobie.io.ome.zarr.writers.N5S3OMEZarrWriter;
+import org.embl.mobie.io.util.DiskBlockCache;
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class S3OmeZarrWriterTest {
+
+    private static final String BUCKET = "bucket";
+    private static final String CONTAINER = "image.ome.zarr";
+
+    private final InMemoryS3 s3 = new InMemoryS3(BUCKET);
+
+    @BeforeAll
+    static void disableDiskCache() {
+        // keep the tests independent of chunks cached by earlier runs
+        DiskBlockCache.setDefault(null);
+    }
+
+    @Test
+    void chunksAreWrittenAsObjects() throws IOException {
+        final N5S3OMEZarrWriter writer = new N5S3OMEZarrWriter(s3, "http://localhost", BUCKET, CONTAINER, "/");
+        writer.createGroup("");
+        writer.setAttribute("", "name", "image");
+        writer.createDataset("s0", new DatasetAttributes(new long[]{12, 8}, new int[]{4, 4}, DataType.UINT8, new RawCompression()));
+        final DatasetAttributes attributes = writer.getDatasetAttributes("s0");
+        for (long y = 0; y < 2; ++y)
+            for (long x = 0; x < 3; ++x)
+                writer.writeBlock("s0", attributes, block(new int[]{4, 4}, (byte) (10 * y + x), x, y));
+
+        assertTrue(s3.getKeys().contains(CONTAINER + "/.zgroup"));
+        assertTrue(s3.getKeys().contains(CONTAINER + "/s0/.zarray"));
+        assertTrue(s3.getKeys().contains(CONTAINER + "/s0/1/2"));
+
+        final N5S3OmeZarrReader reader = new N5S3OmeZarrReader(s3, "http://localhost", BUCKET, CONTAINER, "/");
+        assertEquals("image", reader.getAttribute("", "name", String.class));
+        final DatasetAttributes read = reader.getDatasetAttributes("s0");
+        assertArrayEquals(new long[]{12, 8}, read.getDimensions());
+        for (long y = 0; y < 2; ++y)
+            for (long x = 0; x < 3; ++x)
+                assertBlock(reader.readBlock("s0", read, x, y), 16, (byte) (10 * y + x));
+
+        writer.deleteBlock("s0", 0, 0);
+        assertNull(reader.readBlock("s0", read, 0, 0));
+    }
+
+    @Test
+    void partialShardsAreUploadedOnFlushAndMerged() throws IOException {
+        final N5S3OMEZarrWriter writer = new N5S3OMEZarrWriter(s3, "http://localhost", BUCKET, CONTAINER, "/");
+        writer.setExperimentalSharding(true);
+        writer.createDataset("s0", new DatasetAttributes(new long[]{8, 8}, new int[]{4, 4}, DataType.UINT8, new RawCompression()), new int[]{8, 8});
+        final DatasetAttributes attributes = writer.getDatasetAttributes("s0");
+        assertTrue(((ZarrDatasetAttributes) attributes).isSharded());
+        assertTrue(s3.getKeys().contains(CONTAINER + "/s0/zarr.json"));
+        assertFalse(s3.getKeys().contains(CONTAINER + "/s0/.zarray"));
+
+        writer.writeBlock("s0", attributes, block(new int[]{4, 4}, (byte) 1, 0, 0));
+        assertFalse(s3.getKeys().contains(CONTAINER + "/s0/c/0/0"));
+        writer.flush("s0");
+        assertTrue(s3.getKeys().contains(CONTAINER + "/s0/c/0/0"));
+
+        writer.writeBlock("s0", attributes, block(new int[]{4, 4}, (byte) 2, 1, 1));
+        writer.flush();
+        assertBlock(writer.readBlock("s0", attributes, 0, 0), 16, (byte) 1);
+        assertBlock(writer.readBlock("s0", attributes, 1, 1), 16, (byte) 2);
+        assertNull(writer.readBlock("s0", attributes, 1, 0));
+
+        writer.deleteBlock("s0", 0, 0);
+        assertNull(writer.readBlock("s0", attributes, 0, 0));
+        assertBlock(writer.readBlock("s0", attributes, 1, 1), 16, (byte) 2);
+    }
+
+    @Test
+    void shardsAreWrittenToBucketsThatCannotBeListed() throws IOException {
+        // without permission to list the bucket, S3 answers HEAD requests for missing objects with 403
+        final InMemoryS3 s3 = new InMemoryS3(BUCKET) {
+            @Override
+            public ObjectMetadata getObjectMetadata(final GetObjectMetadataRequest request) {
+                if (!getKeys().contains(request.getKey())) {
+                    final AmazonS3Exception e = new AmazonS3Exception("Access Denied");
+                    e.setStatusCode(403);
+                    e.setErrorCode("AccessDenied");
+                    throw e;
+                }
+                return super.getObjectMetadata(request);
+            }
+        };
+        final N5S3OMEZarrWriter writer = new N5S3OMEZarrWriter(s3, "http://localhost", BUCKET, CONTAINER, "/");
+        writer.setExperimentalSharding(true);
+        writer.createDataset("s0", new DatasetAttributes(new long[]{8, 16}, new int[]{4, 4}, DataType.UINT8, new RawCompression()), new int[]{8, 8});
+        final DatasetAttributes attributes = writer.getDatasetAttributes("s0");
+
+        writer.writeBlock("s0", attributes, block(new int[]{4, 4}, (byte) 1, 0, 0));
+        writer.flush();
+        writer.writeBlock("s0", attributes, block(new int[]{4, 4}, (byte) 2, 1, 1));
+        writer.flush();
+        assertBlock(writer.readBlock("s0", attributes, 0, 0), 16, (byte) 1);
+        assertBlock(writer.readBlock("s0", attributes, 1, 1), 16, (byte) 2);
+        // the second shard does not exist
+        assertNull(writer.readBlock("s0", attributes, 0, 2));
+    }
+
+    @Test
+    void largeShardsAreUploadedInParts() throws IOException {
+        final N5S3OMEZarrWriter writer = new N5S3OMEZarrWriter(s3, "http://localhost", BUCKET, CONTAINER, "/");
+        writer.setMultipartUpload(N5S3OMEZarrWriter.MIN_PART_SIZE, N5S3OMEZarrWriter.MIN_PART_SIZE);
+        writer.setExperimentalSharding(true);
+        // one shard of 2 x 4 chunks of 1 MiB
+        final int[] blockSize = {1024, 1024};
+        writer.createDataset("s0", new DatasetAttributes(new long[]{2048, 4096}, blockSize, DataType.UINT8, new RawCompression()), new int[]{2048, 4096});
+        final DatasetAttributes attributes = writer.getDatasetAttributes("s0");
+        for (long y = 0; y < 4; ++y)
+            for (long x = 0; x < 2; ++x)
+                writer.writeBlock("s0", attributes, block(blockSize, (byte) (10 * y + x), x, y));
+
+        assertEquals(2, s3.getNumUploadedParts());
+        assertEquals(0, s3.getNumOpenUploads());
+        for (long y = 0; y < 4; ++y)
+            for (long x = 0; x < 2; ++x)
+                assertBlock(writer.readBlock("s0", attributes, x, y), 1024 * 1024, (byte) (10 * y + x));
+    }
+
+    @Test
+    void removeDeletesAllObjectsBelowPath() throws IOException {
+        final N5S3OMEZarrWriter writer = new N5S3OMEZarrWriter(s3, "http://localhost", BUCKET, CONTAINER, "/");
+        writer.createDataset("s0", new DatasetAttributes(new long[]{8, 8}, new int[]{4, 4}, DataType.UINT8, new RawCompression()));
+        writer.createDataset("s1", new DatasetAttributes(new long[]{4, 4}, new int[]{4, 4}, DataType.UINT8, new RawCompression()));
+        writer.writeBlock("s0", writer.getDatasetAttributes("s0"), block(new int[]{4, 4}, (byte) 1, 0, 0));
+
+        writer.remove("s0");
+        assertTrue(s3.getKeys().stream().noneMatch(key -> key.startsWith(CONTAINER + "/s0/")));
+        assertTrue(s3.getKeys().contains(CONTAINER + "/s1/.zarray"));
+    }
+
+    private static DataBlock<?> block(final int[] size, final byte value, final long... gridPosition) {
+        final byte[] data = new byte[size[0] * size[1]];
+        Arrays.fill(data, value);
+        return new ByteArrayDataBlock(size, gridPosition, data);
+    }
+
+    private static void assertBlock(final DataBlock<?> block, final int numElements, final byte value) {
+        final byte[] expected = new byte[numElements];
+        Arrays.fill(expected, value);
+        assertArrayEquals(expected, (byte[]) block.getData());
+    }
+}
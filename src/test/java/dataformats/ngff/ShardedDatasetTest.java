@@ -0,0 +1,258 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package dataformats.ngff;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+import org.embl.mobie.io.ome.zarr.readers.N5OmeZarrReader;
+import org.embl.mobie.io.ome.zarr.util.Crc32c;
+import org.embl.mobie.io.ome.zarr.util.ShardIndex;
+import org.embl.mobie.io.ome.zarr.util.ZarrDatasetAttributes;
+import org.embl.mobie.io.ome.zarr.writers.N5OMEZarrWriter;
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.gson.GsonBuilder;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ShardedDatasetTest {
+
+    @Test
+    void indexRoundTrip() throws IOException {
+        final ShardIndex index = new ShardIndex(4);
+        index.set(1, 0, 10);
+        index.set(3, 10, 5);
+
+        final byte[] bytes = index.toByteArray(ShardIndex.Layout.DEFAULT);
+        assertEquals(4 * 16 + 4, bytes.length);
+        final ShardIndex read = ShardIndex.read(bytes, 4, ShardIndex.Layout.DEFAULT);
+        assertTrue(read.isEmpty(0));
+        assertEquals(0, read.getOffset(1));
+        assertEquals(10, read.getNumBytes(1));
+        assertTrue(read.isEmpty(2));
+        assertEquals(10, read.getOffset(3));
+        assertEquals(5, read.getNumBytes(3));
+
+        // crc32c of the zarr v3 specification, i.e. CRC-32C
+        assertEquals(0xe3069283, Crc32c.compute("123456789".getBytes(StandardCharsets.US_ASCII), 0, 9));
+        bytes[20] ^= 1;
+        assertThrows(IOException.class, () -> ShardIndex.read(bytes, 4, ShardIndex.Layout.DEFAULT));
+    }
+
+    @Test
+    void chunksAreNumberedInCOrderOfTheZarrDimensions() {
+        // n5 order (x, y), row major: x varies fastest
+        assertEquals(0, ShardIndex.getChunkIndex(new long[]{2, 2}, new int[]{2, 2}, true));
+        assertEquals(1, ShardIndex.getChunkIndex(new long[]{3, 2}, new int[]{2, 2}, true));
+        assertEquals(2, ShardIndex.getChunkIndex(new long[]{2, 3}, new int[]{2, 2}, true));
+        assertEquals(2, ShardIndex.getChunkIndex(new long[]{3, 2}, new int[]{2, 2}, false));
+        assertArrayEquals(new long[]{1, 1}, ShardIndex.getShardPosition(new long[]{3, 2}, new int[]{2, 2}));
+        assertEquals(2, ShardIndex.getNumChunksInShard(new long[]{12, 8}, new int[]{4, 4}, new int[]{2, 2}, new long[]{1, 0}));
+    }
+
+    @Test
+    void chunksArePackedIntoShards(@TempDir Path tempDir) throws IOException {
+        final String container = tempDir.resolve("image.ome.zarr").toString();
+        final N5OMEZarrWriter writer = new N5OMEZarrWriter(container, new GsonBuilder(), "/");
+        writer.setExperimentalSharding(true);
+        // 3 x 2 chunks in shards of 2 x 2 chunks
+        writer.createDataset("s0", new DatasetAttributes(new long[]{12, 8}, new int[]{4, 4}, DataType.UINT8, new RawCompression()), new int[]{8, 8});
+        final DatasetAttributes attributes = writer.getDatasetAttributes("s0");
+        assertTrue(((ZarrDatasetAttributes) attributes).isSharded());
+        // a zarr v3 array, which zarr v2 readers do not mistake for an array of fill values
+        assertTrue(Files.exists(tempDir.resolve("image.ome.zarr/s0/zarr.json")));
+        assertFalse(Files.exists(tempDir.resolve("image.ome.zarr/s0/.zarray")));
+        final String zarrJson = new String(Files.readAllBytes(tempDir.resolve("image.ome.zarr/s0/zarr.json")), StandardCharsets.UTF_8);
+        assertTrue(zarrJson.contains("sharding_indexed"));
+        assertTrue(zarrJson.contains("crc32c"));
+
+        for (long y = 0; y < 2; ++y)
+            for (long x = 0; x < 3; ++x)
+                writer.writeBlock("s0", attributes, block((byte) (10 * y + x), x, y));
+
+        // both shards are complete, so they have been written without flush
+        assertTrue(Files.exists(tempDir.resolve("image.ome.zarr/s0/c/0/0")));
+        assertTrue(Files.exists(tempDir.resolve("image.ome.zarr/s0/c/0/1")));
+        assertFalse(Files.exists(tempDir.resolve("image.ome.zarr/s0/c/0/2")));
+
+        final N5OmeZarrReader reader = new N5OmeZarrReader(container);
+        final DatasetAttributes read = reader.getDatasetAttributes("s0");
+        for (long y = 0; y < 2; ++y)
+            for (long x = 0; x < 3; ++x)
+                assertBlock(reader.readBlock("s0", read, x, y), (byte) (10 * y + x));
+    }
+
+    @Test
+    void partialShardsAreWrittenOnFlushAndMerged(@TempDir Path tempDir) throws IOException {
+        final String container = tempDir.resolve("image.ome.zarr").toString();
+        final N5OMEZarrWriter writer = new N5OMEZarrWriter(container, new GsonBuilder(), "/");
+        writer.setExperimentalSharding(true);
+        writer.createDataset("s0", new DatasetAttributes(new long[]{8, 8}, new int[]{4, 4}, DataType.UINT8, new RawCompression()), new int[]{8, 8});
+        final DatasetAttributes attributes = writer.getDatasetAttributes("s0");
+
+        writer.writeBlock("s0", attributes, block((byte) 1, 0, 0));
+        assertNull(writer.readBlock("s0", attributes, 0, 0));
+        writer.flush("s0");
+        assertBlock(writer.readBlock("s0", attributes, 0, 0), (byte) 1);
+
+        writer.writeBlock("s0", attributes, block((byte) 2, 1, 1));
+        writer.flush();
+        assertBlock(writer.readBlock("s0", attributes, 0, 0), (byte) 1);
+        assertBlock(writer.readBlock("s0", attributes, 1, 1), (byte) 2);
+        assertNull(writer.readBlock("s0", attributes, 1, 0));
+        // the merged shard replaced the old one, no temporary file is left
+        try (final Stream<Path> files = Files.list(tempDir.resolve("image.ome.zarr/s0/c/0"))) {
+            assertEquals(1, files.count());
+        }
+
+        writer.deleteBlock("s0", 0, 0);
+        assertNull(writer.readBlock("s0", attributes, 0, 0));
+        assertBlock(writer.readBlock("s0", attributes, 1, 1), (byte) 2);
+    }
+
+    @Test
+    void shardingIsExperimental(@TempDir Path tempDir) throws IOException {
+        final N5OMEZarrWriter writer = new N5OMEZarrWriter(tempDir.resolve("image.ome.zarr").toString(), new GsonBuilder(), "/");
+        assertThrows(IllegalStateException.class, () -> writer.createDataset("s0",
+            new DatasetAttributes(new long[]{8, 8}, new int[]{4, 4}, DataType.UINT8, new RawCompression()), new int[]{8, 8}));
+        assertFalse(writer.datasetExists("s0"));
+    }
+
+    @Test
+    void corruptShardIndicesAreRejected(@TempDir Path tempDir) throws IOException {
+        final String container = tempDir.resolve("image.ome.zarr").toString();
+        final N5OMEZarrWriter writer = new N5OMEZarrWriter(container, new GsonBuilder(), "/");
+        writer.setExperimentalSharding(true);
+        writer.createDataset("s0", new DatasetAttributes(new long[]{8, 8}, new int[]{4, 4}, DataType.UINT8, new RawCompression()), new int[]{8, 8});
+        writer.writeBlock("s0", writer.getDatasetAttributes("s0"), block((byte) 1, 0, 0));
+        writer.flush();
+
+        final Path shard = tempDir.resolve("image.ome.zarr/s0/c/0/0");
+        final byte[] bytes = Files.readAllBytes(shard);
+        // the number of bytes of the first chunk, in the index at the end
+        bytes[bytes.length - ShardIndex.Layout.DEFAULT.getByteSize(4) + 8] ^= 1;
+        Files.write(shard, bytes);
+
+        final N5OmeZarrReader reader = new N5OmeZarrReader(container);
+        final DatasetAttributes read = reader.getDatasetAttributes("s0");
+        assertThrows(IOException.class, () -> reader.readBlock("s0", read, 0, 0));
+    }
+
+    @Test
+    void zarrV3ShardsAreRead(@TempDir Path tempDir) throws IOException {
+        // as written by other zarr v3 implementations: little endian chunks, with the index at the start or end
+        for (final boolean indexAtStart : new boolean[]{true, false}) {
+            final Path container = tempDir.resolve(indexAtStart ? "start.zarr" : "end.zarr");
+            Files.createDirectories(container.resolve("s0/c/0"));
+            Files.write(container.resolve("s0/zarr.json"), ("{\"zarr_format\": 3, \"node_type\": \"array\", " +
+                "\"shape\": [4, 12], \"data_type\": \"uint16\", " +
+                "\"chunk_grid\": {\"name\": \"regular\", \"configuration\": {\"chunk_shape\": [4, 8]}}, " +
+                "\"chunk_key_encoding\": {\"name\": \"default\", \"configuration\": {\"separator\": \"/\"}}, " +
+                "\"fill_value\": 0, \"codecs\": [{\"name\": \"sharding_indexed\", \"configuration\": {" +
+                "\"chunk_shape\": [4, 4], \"codecs\": [{\"name\": \"bytes\", \"configuration\": {\"endian\": \"little\"}}], " +
+                "\"index_codecs\": [{\"name\": \"bytes\", \"configuration\": {\"endian\": \"little\"}}, {\"name\": \"crc32c\"}], " +
+                "\"index_location\": \"" + (indexAtStart ? "start" : "end") + "\"}}], \"attributes\": {}}").getBytes(StandardCharsets.UTF_8));
+            // the second chunk is stored before the first, the last shard only holds a missing chunk
+            Files.write(container.resolve("s0/c/0/0"), v3Shard(indexAtStart, 1, 0));
+            Files.write(container.resolve("s0/c/0/1"), v3Shard(indexAtStart));
+
+            final N5OmeZarrReader reader = new N5OmeZarrReader(container.toString());
+            assertTrue(reader.datasetExists("s0"));
+            final ZarrDatasetAttributes attributes = (ZarrDatasetAttributes) reader.getDatasetAttributes("s0");
+            assertArrayEquals(new long[]{12, 4}, attributes.getDimensions());
+            assertArrayEquals(new int[]{4, 4}, attributes.getBlockSize());
+            assertArrayEquals(new int[]{2, 1}, attributes.getChunksPerShard());
+            assertEquals(DataType.UINT16, attributes.getDataType());
+            for (int x = 0; x < 2; ++x) {
+                final short[] data = (short[]) reader.readBlock("s0", attributes, x, 0).getData();
+                for (int i = 0; i < data.length; ++i)
+                    assertEquals(1000 * x + i, data[i]);
+            }
+            assertNull(reader.readBlock("s0", attributes, 2, 0));
+        }
+    }
+
+    /**
+     * @return a shard of 1 x 2 uint16 chunks of 4 x 4, with the chunks at chunkIndices in this order
+     */
+    private static byte[] v3Shard(final boolean indexAtStart, final int... chunkIndices) {
+        final int chunkBytes = 16 * 2;
+        final int indexBytes = 2 * 16 + 4;
+        final ByteBuffer shard = ByteBuffer.allocate(chunkIndices.length * chunkBytes + indexBytes).order(ByteOrder.LITTLE_ENDIAN);
+        final long[] index = {-1, -1, -1, -1};
+        final int dataStart = indexAtStart ? indexBytes : 0;
+        for (int i = 0; i < chunkIndices.length; ++i) {
+            index[2 * chunkIndices[i]] = dataStart + (long) i * chunkBytes;
+            index[2 * chunkIndices[i] + 1] = chunkBytes;
+        }
+        final ByteBuffer indexBuffer = ByteBuffer.allocate(indexBytes).order(ByteOrder.LITTLE_ENDIAN);
+        for (final long value : index)
+            indexBuffer.putLong(value);
+        indexBuffer.putInt(Crc32c.compute(indexBuffer.array(), 0, indexBytes - 4));
+
+        if (indexAtStart)
+            shard.put(indexBuffer.array());
+        for (final int chunk : chunkIndices)
+            for (int i = 0; i < 16; ++i)
+                shard.putShort((short) (1000 * chunk + i));
+        if (!indexAtStart)
+            shard.put(indexBuffer.array());
+        return shard.array();
+    }
+
+    private static DataBlock<?> block(final byte value, final long... gridPosition) {
+        final byte[] data = new byte[16];
+        Arrays.fill(data, value);
+        return new ByteArrayDataBlock(new int[]{4, 4}, gridPosition, data);
+    }
+
+    private static void assertBlock(final DataBlock<?> block, final byte value) {
+        final byte[] expected = new byte[16];
+        Arrays.fill(expected, value);
+        assertArrayEquals(expected, (byte[]) block.getData());
+    }
+}
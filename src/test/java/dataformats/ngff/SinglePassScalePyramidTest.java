@@ -0,0 +1,174 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package dataformats.ngff;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.embl.mobie.io.n5.util.DownsampleBlock;
+import org.embl.mobie.io.n5.util.ExportScalePyramid;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import bdv.export.ExportMipmapInfo;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SinglePassScalePyramidTest {
+
+    private final ExecutorService executorService = Executors.newFixedThreadPool(3);
+
+    @AfterEach
+    void shutdown() {
+        executorService.shutdown();
+    }
+
+    @Test
+    void singlePassGivesTheSameLevelsAsLoopback() throws IOException {
+        // not divisible by the cell sizes nor the downsampling factors
+        final ArrayImg<UnsignedShortType, ?> img = randomImage(70, 45, 33);
+        final ExportMipmapInfo mipmapInfo = new ExportMipmapInfo(
+            new int[][]{{1, 1, 1}, {2, 2, 2}, {4, 4, 4}, {8, 8, 4}},
+            new int[][]{{16, 16, 16}, {16, 16, 16}, {8, 8, 8}, {8, 8, 16}});
+        assertTrue(ExportScalePyramid.supportsSinglePass(mipmapInfo));
+
+        for (final DownsampleBlock.DownsamplingMethod method : DownsampleBlock.DownsamplingMethod.values()) {
+            final MemoryDatasetIO singlePass = write(img, mipmapInfo, method, new ExportScalePyramid.SinglePassHeuristic());
+            final MemoryDatasetIO loopback = write(img, mipmapInfo, method, (originalImg, factorsToOriginalImg, previousLevel, factorsToPreviousLevel, chunkSize) -> previousLevel >= 0);
+
+            assertEquals(0, singlePass.numGetImageCalls, "single pass must not read back levels");
+            assertTrue(loopback.numGetImageCalls > 0);
+            for (int level = 0; level < mipmapInfo.getNumLevels(); level++) {
+                assertArrayEquals(Intervals.dimensionsAsLongArray(loopback.levels.get(level)), Intervals.dimensionsAsLongArray(singlePass.levels.get(level)));
+                assertArrayEquals(toArray(loopback.levels.get(level)), toArray(singlePass.levels.get(level)), method + " level " + level);
+            }
+            assertEquals(loopback.numWrites, singlePass.numWrites);
+            for (final int writes : singlePass.numWrites.values())
+                assertEquals(1, writes);
+        }
+    }
+
+    @Test
+    void singlePassReadsTheSourcePlaneByPlane() throws IOException {
+        final ArrayImg<UnsignedShortType, ?> img = randomImage(70, 45, 33);
+        final ExportMipmapInfo mipmapInfo = new ExportMipmapInfo(
+            new int[][]{{1, 1, 1}, {2, 2, 2}, {4, 4, 4}},
+            new int[][]{{16, 16, 16}, {16, 16, 16}, {16, 16, 16}});
+        final MemoryDatasetIO io = new MemoryDatasetIO();
+        // a single thread writes the cells of level 0 in the order they are visited
+        ExportScalePyramid.writeScalePyramid(img, new UnsignedShortType(), mipmapInfo, DownsampleBlock.DownsamplingMethod.Average, io, executorService, 1, new ExportScalePyramid.SinglePassHeuristic(), null, null);
+
+        assertEquals(5 * 3 * 3, io.level0Rows.size());
+        for (int i = 1; i < io.level0Rows.size(); i++)
+            assertTrue(io.level0Rows.get(i - 1) <= io.level0Rows.get(i), "cells of level 0 in z rows " + io.level0Rows);
+    }
+
+    @Test
+    void unalignedLevelsAreNotSupported() {
+        // factors that are not multiples of the previous factors
+        assertFalse(ExportScalePyramid.supportsSinglePass(new ExportMipmapInfo(
+            new int[][]{{1, 1, 1}, {2, 2, 2}, {3, 3, 3}},
+            new int[][]{{16, 16, 16}, {16, 16, 16}, {16, 16, 16}})));
+        // chunks that are computed from parts of the chunks of the previous level
+        assertFalse(ExportScalePyramid.supportsSinglePass(new ExportMipmapInfo(
+            new int[][]{{1, 1, 1}, {2, 2, 2}},
+            new int[][]{{16, 16, 16}, {12, 12, 12}})));
+        // pixels that are computed from two chunks of the previous level
+        assertFalse(ExportScalePyramid.supportsSinglePass(new ExportMipmapInfo(
+            new int[][]{{1, 1, 1}, {2, 2, 2}},
+            new int[][]{{15, 15, 15}, {15, 15, 15}})));
+    }
+
+    private MemoryDatasetIO write(final RandomAccessibleInterval<UnsignedShortType> img, final ExportMipmapInfo mipmapInfo, final DownsampleBlock.DownsamplingMethod method, final ExportScalePyramid.LoopbackHeuristic loopbackHeuristic) throws IOException {
+        final MemoryDatasetIO io = new MemoryDatasetIO();
+        ExportScalePyramid.writeScalePyramid(img, new UnsignedShortType(), mipmapInfo, method, io, executorService, 3, loopbackHeuristic, null, null);
+        return io;
+    }
+
+    private static ArrayImg<UnsignedShortType, ?> randomImage(final long... dimensions) {
+        final ArrayImg<UnsignedShortType, ?> img = ArrayImgs.unsignedShorts(dimensions);
+        final Random random = new Random(42);
+        img.forEach(t -> t.set(random.nextInt(8)));
+        return img;
+    }
+
+    private static int[] toArray(final RandomAccessibleInterval<UnsignedShortType> img) {
+        final List<Integer> values = new ArrayList<>();
+        Views.flatIterable(img).forEach(t -> values.add(t.get()));
+        return values.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static class MemoryDatasetIO implements ExportScalePyramid.DatasetIO<Integer, UnsignedShortType> {
+        final List<ArrayImg<UnsignedShortType, ?>> levels = new ArrayList<>();
+        final Map<String, Integer> numWrites = new HashMap<>();
+        final List<Long> level0Rows = new ArrayList<>();
+        int numGetImageCalls;
+
+        @Override
+        public synchronized Integer createDataset(final int level, final long[] dimensions, final int[] blockSize) {
+            levels.add(ArrayImgs.unsignedShorts(dimensions.clone()));
+            return level;
+        }
+
+        @Override
+        public synchronized void writeBlock(final Integer dataset, final ExportScalePyramid.Block<UnsignedShortType> dataBlock) {
+            numWrites.merge(dataset + " " + Arrays.toString(dataBlock.getGridPosition()), 1, Integer::sum);
+            if (dataset == 0)
+                level0Rows.add(dataBlock.getGridPosition()[2]);
+            LoopBuilder.setImages(dataBlock.getData(), Views.interval(levels.get(dataset), dataBlock.getData())).forEachPixel((i, o) -> o.set(i));
+        }
+
+        @Override
+        public void flush(final Integer dataset) {
+        }
+
+        @Override
+        public synchronized RandomAccessibleInterval<UnsignedShortType> getImage(final int level) {
+            numGetImageCalls++;
+            return levels.get(level);
+        }
+    }
+}
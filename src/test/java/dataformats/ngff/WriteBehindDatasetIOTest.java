@@ -0,0 +1,202 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package dataformats.ngff;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.embl.mobie.io.n5.util.DownsampleBlock;
+import org.embl.mobie.io.n5.util.ExportScalePyramid;
+import org.embl.mobie.io.n5.util.WriteBehindDatasetIO;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import bdv.export.ExportMipmapInfo;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class WriteBehindDatasetIOTest {
+
+    private static final ExportMipmapInfo MIPMAP_INFO = new ExportMipmapInfo(
+        new int[][]{{1, 1, 1}, {2, 2, 2}, {4, 4, 4}},
+        new int[][]{{16, 16, 16}, {16, 16, 16}, {8, 8, 8}});
+
+    private final ExecutorService executorService = Executors.newFixedThreadPool(3);
+
+    @AfterEach
+    void shutdown() {
+        executorService.shutdown();
+    }
+
+    @Test
+    void writeBehindGivesTheSameLevels() throws IOException {
+        final ArrayImg<UnsignedShortType, ?> img = randomImage(70, 45, 33);
+        final MemoryDatasetIO direct = new MemoryDatasetIO();
+        write(img, direct);
+
+        final MemoryDatasetIO plain = new MemoryDatasetIO();
+        final EncodingMemoryDatasetIO encoding = new EncodingMemoryDatasetIO();
+        for (final MemoryDatasetIO io : new MemoryDatasetIO[]{plain, encoding}) {
+            try (final WriteBehindDatasetIO<Integer, UnsignedShortType> writeBehind = new WriteBehindDatasetIO<>(io, 2, 2, 4)) {
+                io.writeBehind = writeBehind;
+                write(img, writeBehind);
+                assertEquals(0, writeBehind.getNumPendingBlocks());
+            }
+            assertEquals(direct.levels.size(), io.levels.size());
+            for (int level = 0; level < direct.levels.size(); level++)
+                assertArrayEquals(toArray(direct.levels.get(level)), toArray(io.levels.get(level)), "level " + level);
+            assertTrue(io.maxPendingBlocks <= 4, "too many pending blocks: " + io.maxPendingBlocks);
+        }
+        assertTrue(encoding.numEncoded.get() > 0);
+        assertEquals(encoding.numEncoded.get(), encoding.numWritten.get());
+    }
+
+    @Test
+    void flushThrowsWhenWritingFailed() throws IOException {
+        final MemoryDatasetIO io = new MemoryDatasetIO() {
+            @Override
+            public void writeBlock(final Integer dataset, final ExportScalePyramid.Block<UnsignedShortType> dataBlock) throws IOException {
+                throw new IOException("disk full");
+            }
+        };
+        final WriteBehindDatasetIO<Integer, UnsignedShortType> writeBehind = new WriteBehindDatasetIO<>(io, 1, 1, 2);
+        Throwable e = assertThrows(IOException.class, () -> write(randomImage(20, 20, 20), writeBehind));
+        while (e.getCause() != null)
+            e = e.getCause();
+        assertEquals("disk full", e.getMessage());
+        writeBehind.close();
+    }
+
+    private void write(final RandomAccessibleInterval<UnsignedShortType> img, final ExportScalePyramid.DatasetIO<Integer, UnsignedShortType> io) throws IOException {
+        ExportScalePyramid.writeScalePyramid(img, new UnsignedShortType(), MIPMAP_INFO, DownsampleBlock.DownsamplingMethod.Average, io, executorService, 3,
+            (originalImg, factorsToOriginalImg, previousLevel, factorsToPreviousLevel, chunkSize) -> previousLevel >= 0, null, null);
+    }
+
+    private static ArrayImg<UnsignedShortType, ?> randomImage(final long... dimensions) {
+        final ArrayImg<UnsignedShortType, ?> img = ArrayImgs.unsignedShorts(dimensions);
+        final Random random = new Random(42);
+        img.forEach(t -> t.set(random.nextInt(1000)));
+        return img;
+    }
+
+    private static int[] toArray(final RandomAccessibleInterval<UnsignedShortType> img) {
+        final List<Integer> values = new ArrayList<>();
+        Views.flatIterable(img).forEach(t -> values.add(t.get()));
+        return values.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static class MemoryDatasetIO implements ExportScalePyramid.DatasetIO<Integer, UnsignedShortType> {
+        final List<ArrayImg<UnsignedShortType, ?>> levels = new ArrayList<>();
+        volatile WriteBehindDatasetIO<?, ?> writeBehind;
+        volatile int maxPendingBlocks;
+
+        @Override
+        public synchronized Integer createDataset(final int level, final long[] dimensions, final int[] blockSize) {
+            levels.add(ArrayImgs.unsignedShorts(dimensions.clone()));
+            return level;
+        }
+
+        @Override
+        public void writeBlock(final Integer dataset, final ExportScalePyramid.Block<UnsignedShortType> dataBlock) throws IOException {
+            pending();
+            synchronized (this) {
+                LoopBuilder.setImages(dataBlock.getData(), Views.interval(levels.get(dataset), dataBlock.getData())).forEachPixel((i, o) -> o.set(i));
+            }
+        }
+
+        void pending() {
+            if (writeBehind != null)
+                synchronized (this) {
+                    maxPendingBlocks = Math.max(maxPendingBlocks, writeBehind.getNumPendingBlocks());
+                }
+        }
+
+        @Override
+        public void flush(final Integer dataset) {
+        }
+
+        @Override
+        public synchronized RandomAccessibleInterval<UnsignedShortType> getImage(final int level) {
+            return levels.get(level);
+        }
+    }
+
+    private static class EncodingMemoryDatasetIO extends MemoryDatasetIO implements ExportScalePyramid.EncodingDatasetIO<Integer, UnsignedShortType> {
+        final AtomicInteger numEncoded = new AtomicInteger();
+        final AtomicInteger numWritten = new AtomicInteger();
+
+        @Override
+        public ExportScalePyramid.EncodedBlock encodeBlock(final Integer dataset, final ExportScalePyramid.Block<UnsignedShortType> dataBlock) {
+            numEncoded.incrementAndGet();
+            final RandomAccessibleInterval<UnsignedShortType> data = dataBlock.getData();
+            final int n = data.numDimensions();
+            final ByteBuffer bytes = ByteBuffer.allocate(8 * 2 * n + 2 * (int) Views.iterable(data).size());
+            for (int d = 0; d < n; d++) {
+                bytes.putLong(data.min(d));
+                bytes.putLong(data.dimension(d));
+            }
+            Views.flatIterable(data).forEach(t -> bytes.putShort(t.getShort()));
+            return new ExportScalePyramid.EncodedBlock(dataBlock.getGridPosition(), bytes.array());
+        }
+
+        @Override
+        public void writeEncodedBlock(final Integer dataset, final ExportScalePyramid.EncodedBlock encodedBlock) {
+            pending();
+            numWritten.incrementAndGet();
+            final ByteBuffer bytes = ByteBuffer.wrap(encodedBlock.getBytes());
+            final long[] min = new long[3];
+            final long[] max = new long[3];
+            for (int d = 0; d < 3; d++) {
+                min[d] = bytes.getLong();
+                max[d] = min[d] + bytes.getLong() - 1;
+            }
+            synchronized (this) {
+                final Cursor<UnsignedShortType> cursor = Views.flatIterable(Views.interval(levels.get(dataset), min, max)).cursor();
+                while (cursor.hasNext())
+                    cursor.next().setShort(bytes.getShort());
+            }
+        }
+    }
+}
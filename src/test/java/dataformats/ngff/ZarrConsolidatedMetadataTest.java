@@ -0,0 +1,143 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package dataformats.ngff;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.stream.Stream;
+
+import org.embl.mobie.io.ome.zarr.readers.N5OmeZarrReader;
+import org.embl.mobie.io.ome.zarr.util.ZarrConsolidatedMetadata;
+import org.embl.mobie.io.ome.zarr.util.ZarrMetadataCache;
+import org.embl.mobie.io.ome.zarr.writers.N5OMEZarrWriter;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ZarrConsolidatedMetadataTest {
+
+    @Test
+    void convertsToAndFromJson() throws IOException {
+        final HashMap<String, JsonElement> zattrs = new HashMap<>();
+        zattrs.put("name", new JsonPrimitive("image"));
+        final ZarrConsolidatedMetadata metadata = new ZarrConsolidatedMetadata();
+        metadata.put("", ZarrMetadataCache.FileKind.ZATTRS, zattrs);
+        metadata.put("/labels/cells/", ZarrMetadataCache.FileKind.ZATTRS, zattrs);
+
+        final ZarrConsolidatedMetadata parsed = ZarrConsolidatedMetadata.fromJson(metadata.toJson());
+        assertEquals(2, parsed.size());
+        assertEquals("image", parsed.get("/", ZarrMetadataCache.FileKind.ZATTRS).get("name").getAsString());
+        assertEquals("image", parsed.get("labels/cells", ZarrMetadataCache.FileKind.ZATTRS).get("name").getAsString());
+        assertNull(parsed.get("labels/cells", ZarrMetadataCache.FileKind.ZARRAY));
+    }
+
+    @Test
+    void rejectsUnknownFormat() {
+        final HashMap<String, JsonElement> zmetadata = new ZarrConsolidatedMetadata().toJson();
+        zmetadata.put(ZarrConsolidatedMetadata.FORMAT_KEY, new JsonPrimitive(2));
+        assertThrows(IOException.class, () -> ZarrConsolidatedMetadata.fromJson(zmetadata));
+    }
+
+    @Test
+    void readerTakesMetadataFromConsolidatedFile(@TempDir Path tempDir) throws IOException {
+        final Path container = tempDir.resolve("image.ome.zarr");
+        final N5OMEZarrWriter writer = new N5OMEZarrWriter(container.toString());
+        writer.createGroup("");
+        writer.setAttributes("", Collections.singletonMap("name", "image"));
+        writer.createGroup("labels/cells");
+        writer.createDataset("labels/cells/s0", new DatasetAttributes(new long[]{64, 32, 16}, new int[]{32, 32, 16}, DataType.UINT8, new RawCompression()));
+        writer.writeConsolidatedMetadata();
+        assertTrue(Files.exists(container.resolve(ZarrConsolidatedMetadata.ZMETADATA_FILE)));
+
+        // the reader must not need the individual files any more
+        Files.delete(container.resolve("labels/cells/s0/.zarray"));
+        final N5OmeZarrReader reader = new N5OmeZarrReader(container.toString());
+        assertTrue(reader.readConsolidatedMetadata());
+        assertEquals("image", reader.getAttribute("", "name", String.class));
+        assertTrue(reader.groupExists("labels/cells"));
+        assertTrue(reader.datasetExists("labels/cells/s0"));
+        assertArrayEquals(new long[]{64, 32, 16}, reader.getDatasetAttributes("labels/cells/s0").getDimensions());
+        assertFalse(reader.datasetExists("labels/cells/s1"));
+    }
+
+    @Test
+    void readerFallsBackToFilesMissingFromStaleConsolidatedFile(@TempDir Path tempDir) throws IOException {
+        final Path container = tempDir.resolve("image.ome.zarr");
+        final N5OMEZarrWriter writer = new N5OMEZarrWriter(container.toString());
+        writer.createGroup("labels/cells");
+        writer.createDataset("labels/cells/s0", new DatasetAttributes(new long[]{64, 32, 16}, new int[]{32, 32, 16}, DataType.UINT8, new RawCompression()));
+        writer.writeConsolidatedMetadata();
+        final Path zmetadata = container.resolve(ZarrConsolidatedMetadata.ZMETADATA_FILE);
+        final byte[] staleZmetadata = Files.readAllBytes(zmetadata);
+        try (Stream<Path> files = Files.list(container)) {
+            assertTrue(files.noneMatch(file -> file.getFileName().toString().contains(".tmp-")));
+        }
+
+        // e.g. another process added an array without consolidating again
+        writer.createDataset("labels/cells/s1", new DatasetAttributes(new long[]{32, 16, 8}, new int[]{32, 16, 8}, DataType.UINT8, new RawCompression()));
+        Files.write(zmetadata, staleZmetadata);
+
+        final N5OmeZarrReader reader = new N5OmeZarrReader(container.toString());
+        assertTrue(reader.readConsolidatedMetadata());
+        assertTrue(reader.datasetExists("labels/cells/s1"));
+        assertArrayEquals(new long[]{32, 16, 8}, reader.getDatasetAttributes("labels/cells/s1").getDimensions());
+        assertFalse(reader.datasetExists("labels/cells/s2"));
+    }
+
+    @Test
+    void writingMetadataRemovesConsolidatedFile(@TempDir Path tempDir) throws IOException {
+        final Path container = tempDir.resolve("image.ome.zarr");
+        final N5OMEZarrWriter writer = new N5OMEZarrWriter(container.toString());
+        writer.createGroup("");
+        writer.writeConsolidatedMetadata();
+        assertTrue(Files.exists(container.resolve(ZarrConsolidatedMetadata.ZMETADATA_FILE)));
+
+        writer.setAttributes("", Collections.singletonMap("name", "image"));
+        assertFalse(Files.exists(container.resolve(ZarrConsolidatedMetadata.ZMETADATA_FILE)));
+
+        final N5OmeZarrReader reader = new N5OmeZarrReader(container.toString());
+        assertFalse(reader.readConsolidatedMetadata());
+        assertEquals("image", reader.getAttribute("", "name", String.class));
+    }
+}
@@ -0,0 +1,128 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package dataformats.ngff;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import org.embl.mobie.io.ome.zarr.readers.N5OmeZarrReader;
+import org.embl.mobie.io.ome.zarr.util.ZarrMetadataCache;
+import org.embl.mobie.io.ome.zarr.writers.N5OMEZarrWriter;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ZarrMetadataCacheTest {
+
+    @Test
+    void evictsLeastRecentlyUsed() throws IOException {
+        final ZarrMetadataCache cache = new ZarrMetadataCache(2);
+        cache.get("a", ZarrMetadataCache.FileKind.ZARRAY, () -> "a");
+        cache.get("b", ZarrMetadataCache.FileKind.ZARRAY, () -> "b");
+        cache.get("a", ZarrMetadataCache.FileKind.ZARRAY, () -> "a");
+        cache.get("c", ZarrMetadataCache.FileKind.ZARRAY, () -> "c");
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+        assertEquals("x", cache.get("b", ZarrMetadataCache.FileKind.ZARRAY, () -> "x"));
+    }
+
+    @Test
+    void cachesMissingFilesAndNormalizesPaths() throws IOException {
+        final ZarrMetadataCache cache = new ZarrMetadataCache();
+        assertNull(cache.get("/s0/", ZarrMetadataCache.FileKind.ZATTRS, () -> null));
+        assertNull(cache.get("s0", ZarrMetadataCache.FileKind.ZATTRS, () -> "unexpected"));
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    void invalidatesSubtrees() throws IOException {
+        final ZarrMetadataCache cache = new ZarrMetadataCache();
+        cache.get("labels/cells/s0", ZarrMetadataCache.FileKind.ZARRAY, () -> "s0");
+        cache.get("labels/cells", ZarrMetadataCache.FileKind.ZATTRS, () -> "cells");
+        cache.get("labels/cellsX", ZarrMetadataCache.FileKind.ZATTRS, () -> "cellsX");
+
+        cache.invalidate("labels/cells");
+
+        assertEquals(1, cache.size());
+        assertEquals("cellsX", cache.get("labels/cellsX", ZarrMetadataCache.FileKind.ZATTRS, () -> "reloaded"));
+    }
+
+    @Test
+    void writerInvalidatesReaderCache(@TempDir Path tempDir) throws IOException {
+        final String container = tempDir.resolve("image.ome.zarr").toString();
+        final N5OMEZarrWriter writer = new N5OMEZarrWriter(container);
+        final ZarrMetadataCache cache = new ZarrMetadataCache();
+        writer.setMetadataCache(cache);
+
+        assertFalse(writer.datasetExists("s0"));
+        writer.createDataset("s0", new DatasetAttributes(new long[]{64, 32, 16}, new int[]{32, 32, 16}, DataType.UINT8, new RawCompression()));
+        assertTrue(writer.datasetExists("s0"));
+        assertArrayEquals(new long[]{64, 32, 16}, writer.getDatasetAttributes("s0").getDimensions());
+
+        writer.setAttributes("", Collections.singletonMap("name", "image"));
+        assertEquals("image", writer.getAttribute("", "name", String.class));
+
+        final long misses = cache.getMissCount();
+        final N5OmeZarrReader reader = new N5OmeZarrReader(container);
+        reader.setMetadataCache(cache);
+        reader.getDatasetAttributes("s0");
+        reader.getDatasetAttributes("s0");
+        assertEquals(misses, cache.getMissCount());
+
+        writer.remove("s0");
+        assertFalse(reader.datasetExists("s0"));
+    }
+
+    @Test
+    void readsEachMetadataFileOnce(@TempDir Path tempDir) throws IOException {
+        final String container = tempDir.resolve("image.ome.zarr").toString();
+        new N5OMEZarrWriter(container).createDataset("s0", new DatasetAttributes(new long[]{64, 32, 16}, new int[]{32, 32, 16}, DataType.UINT8, new RawCompression()));
+
+        final N5OmeZarrReader reader = new N5OmeZarrReader(container, true);
+        final ZarrMetadataCache cache = new ZarrMetadataCache();
+        reader.setMetadataCache(cache);
+        assertTrue(reader.datasetExists("s0"));
+        reader.getAttributes("s0");
+        reader.getDatasetAttributes("s0");
+
+        // .zarray and .zattrs
+        assertEquals(2, cache.getMissCount());
+    }
+}
@@ -1,6 +1,7 @@
 package dataformats.ngff.v04;
 
 import org.embl.mobie.io.ImageDataFormat;
+import org.embl.mobie.io.ome.zarr.loaders.N5OMEZarrImageLoader;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
@@ -92,4 +93,17 @@ public class ImageWithLabelsNgffTest extends BaseTest {
         expectedValue = 1143;
         Assertions.assertEquals(expectedValue, value);
     }
+
+    @Test
+    public void checkSetupsAreOpenedOnDemand() {
+        N5OMEZarrImageLoader imgLoader = (N5OMEZarrImageLoader) spimData.getSequenceDescription().getImgLoader();
+        // 4 channels and the labels
+        int numSetups = spimData.getSequenceDescription().getViewSetupsOrdered().size();
+        Assertions.assertTrue(numSetups > 4);
+        Assertions.assertEquals(0, imgLoader.getNumOpenedSetups());
+
+        spimData.getSequenceDescription().getImgLoader().getSetupImgLoader(numSetups - 1).getImage(0);
+        Assertions.assertEquals(1, imgLoader.getNumOpenedSetups());
+        Assertions.assertSame(imgLoader.getSetupImgLoader(numSetups - 1), imgLoader.getSetupImgLoader(numSetups - 1));
+    }
 }
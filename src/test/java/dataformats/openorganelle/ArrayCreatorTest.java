@@ -0,0 +1,93 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2022 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package dataformats.openorganelle;
+
+import org.embl.mobie.io.n5.util.ArrayCreator;
+import org.embl.mobie.io.openorganelle.OrganelleArrayCreator;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileShortArray;
+import net.imglib2.img.cell.CellGrid;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class ArrayCreatorTest {
+
+    private final OrganelleArrayCreator<VolatileShortArray, ?> creator =
+        new OrganelleArrayCreator<>(new CellGrid(new long[]{8, 6, 1}, new int[]{4, 4, 1}), DataType.UINT16);
+
+    @BeforeEach
+    void resetCounts() {
+        ArrayCreator.resetBlockCounts();
+    }
+
+    @Test
+    void wrapsBlocksWithTheShapeOfTheCell() {
+        final short[] data = ramp(16);
+        final VolatileShortArray array = creator.createArray(new ShortArrayDataBlock(new int[]{4, 4, 1}, new long[]{1, 0, 0}, data), new long[]{1, 0, 0});
+
+        assertSame(data, array.getCurrentStorageArray());
+        assertEquals(1, ArrayCreator.getNumWrappedBlocks());
+        assertEquals(0, ArrayCreator.getNumCopiedBlocks());
+    }
+
+    @Test
+    void ignoresSingletonDimensions() {
+        final short[] data = ramp(16);
+        final VolatileShortArray array = creator.createArray(new ShortArrayDataBlock(new int[]{4, 4, 1, 1, 1}, new long[]{1, 0, 0, 0, 0}, data), new long[]{1, 0, 0});
+
+        assertSame(data, array.getCurrentStorageArray());
+        assertEquals(1, ArrayCreator.getNumWrappedBlocks());
+    }
+
+    @Test
+    void copiesBlocksThatAreCroppedAtTheBorder() {
+        // the cell at the border has 4 x 2 pixels, the block is padded to 4 x 4
+        final short[] data = ramp(16);
+        final VolatileShortArray array = creator.createArray(new ShortArrayDataBlock(new int[]{4, 4, 1}, new long[]{0, 1, 0}, data), new long[]{0, 1, 0});
+
+        assertNotSame(data, array.getCurrentStorageArray());
+        assertArrayEquals(ramp(8), array.getCurrentStorageArray());
+        assertEquals(0, ArrayCreator.getNumWrappedBlocks());
+        assertEquals(1, ArrayCreator.getNumCopiedBlocks());
+    }
+
+    private static short[] ramp(final int n) {
+        final short[] data = new short[n];
+        for (int i = 0; i < n; ++i)
+            data[i] = (short) i;
+        return data;
+    }
+}